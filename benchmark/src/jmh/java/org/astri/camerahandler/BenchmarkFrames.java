@@ -0,0 +1,96 @@
+package org.astri.camerahandler;
+
+import java.util.ArrayDeque;
+
+/**
+ * Frames and a simulated camera driver for the benchmarks.
+ */
+final class BenchmarkFrames {
+
+	/** Preview resolutions the frame benchmarks are run at */
+	static final String VGA = "640x480";
+	static final String HD = "1280x720";
+	static final String FULL_HD = "1920x1080";
+
+	private BenchmarkFrames() {
+	}
+
+	static int parseWidth(String resolution) {
+		return Integer.parseInt(resolution.substring(0, resolution.indexOf('x')));
+	}
+
+	static int parseHeight(String resolution) {
+		return Integer.parseInt(resolution.substring(resolution.indexOf('x') + 1));
+	}
+
+	/**
+	 * @return NV21 frame with a textured luma plane and varying chroma
+	 */
+	static byte[] createNv21(int width, int height) {
+		byte[] frame = new byte[width * height * 3 / 2];
+		fillNv21(frame, width, height, 0);
+		return frame;
+	}
+
+	static void fillNv21(byte[] frame, int width, int height, int seed) {
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				frame[y * width + x] = (byte) ((x * 7 + y * 13 + ((x ^ y) & 31) + seed) & 0xff);
+			}
+		}
+		for (int i = width * height; i < frame.length; i++) {
+			frame[i] = (byte) (128 + ((i * 5 + seed) & 63) - 32);
+		}
+	}
+
+	static FrameDescriptor descriptor(int width, int height) {
+		return new FrameDescriptor(YuvConverter.FORMAT_NV21, width, height, 90, 0, true);
+	}
+
+	/**
+	 * Stand-in for the camera driver: buffers given back by the pool are
+	 * queued and handed out again as the next frames, like
+	 * addCallbackBuffer and onPreviewFrame. Frame contents are not rewritten
+	 * so that benchmarks measure the library and not the fill.
+	 */
+	static final class FakeDriver implements PreviewBufferPool.BufferSink {
+
+		private final ArrayDeque<byte[]> queued = new ArrayDeque<byte[]>();
+
+		@Override
+		public synchronized void queueBuffer(byte[] buffer) {
+			queued.add(buffer);
+		}
+
+		/**
+		 * @return next filled buffer, null if the driver has none left
+		 */
+		synchronized byte[] nextFrame() {
+			return queued.poll();
+		}
+	}
+
+	/**
+	 * Listener that only reads a byte of each frame so that delivery is not
+	 * optimized away.
+	 */
+	static final class ChecksumListener implements CameraDataListener {
+
+		long checksum;
+
+		@Override
+		public void receiveCameraFrame(byte[] data, int width, int height, boolean backCamera,
+				int imageFormat, int imageOrientation) {
+			checksum += data[data.length >> 1] + width;
+		}
+
+		@Override
+		public void receivePhotoFrame(byte[] data, int width, int height) {
+		}
+
+		@Override
+		public void receiveMarkerFrame(byte[] data, int width, int height, float screenAspectRatio) {
+		}
+	}
+
+}
@@ -0,0 +1,80 @@
+package org.astri.camerahandler;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Preview buffer recycling through the reference counted pool compared to
+ * allocating a buffer per frame, the gc profiler shows the difference in
+ * bytes allocated per frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class BufferRecyclingBenchmark {
+
+	@Param({BenchmarkFrames.VGA, BenchmarkFrames.HD, BenchmarkFrames.FULL_HD})
+	public String resolution;
+
+	private int frameSize;
+	private BenchmarkFrames.FakeDriver driver;
+	private PreviewBufferPool pool;
+	private PreviewFrameRing ring;
+	private FrameDescriptor descriptor;
+
+	@Setup
+	public void setUp() {
+		int width = BenchmarkFrames.parseWidth(resolution);
+		int height = BenchmarkFrames.parseHeight(resolution);
+		frameSize = width * height * 3 / 2;
+		driver = new BenchmarkFrames.FakeDriver();
+		pool = new PreviewBufferPool(PreviewBufferPool.DEFAULT_BUFFER_COUNT + 2, frameSize, driver);
+		pool.start();
+		ring = new PreviewFrameRing(2);
+		descriptor = BenchmarkFrames.descriptor(width, height);
+	}
+
+	/**
+	 * Acquire, a second holder as with manual release or fan-out, release
+	 * both.
+	 */
+	@Benchmark
+	public byte[] pooled() {
+		byte[] data = driver.nextFrame();
+		pool.acquire(data);
+		pool.retain(data);
+		pool.release(data);
+		pool.release(data);
+		return data;
+	}
+
+	/**
+	 * Pooled frame also kept in the recent frame ring used for zero shutter
+	 * lag markers.
+	 */
+	@Benchmark
+	public byte[] pooledWithRing() {
+		byte[] data = driver.nextFrame();
+		pool.acquire(data);
+		ring.add(data, descriptor, pool, 0);
+		pool.release(data);
+		return data;
+	}
+
+	/**
+	 * Baseline: a new buffer for every frame.
+	 */
+	@Benchmark
+	public byte[] allocatePerFrame() {
+		return new byte[frameSize];
+	}
+
+}
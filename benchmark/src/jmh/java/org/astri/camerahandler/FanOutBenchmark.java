@@ -0,0 +1,71 @@
+package org.astri.camerahandler;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Delivering one frame to several subscribers. With shared output all
+ * subscribers get the same raw frame, otherwise half of them want RGB565 so
+ * the frame is converted once for that group.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FanOutBenchmark {
+
+	private static final long FRAME_INTERVAL_NANOS = 33333333L;
+
+	@Param({BenchmarkFrames.VGA, BenchmarkFrames.HD, BenchmarkFrames.FULL_HD})
+	public String resolution;
+
+	@Param({"1", "4"})
+	public int subscribers;
+
+	@Param({"true", "false"})
+	public boolean sharedOutput;
+
+	private BenchmarkFrames.FakeDriver driver;
+	private PreviewBufferPool pool;
+	private FrameDescriptor descriptor;
+	private FrameFanOut fanOut;
+	private BenchmarkFrames.ChecksumListener listener;
+	private long timestamp;
+
+	@Setup
+	public void setUp() {
+		int width = BenchmarkFrames.parseWidth(resolution);
+		int height = BenchmarkFrames.parseHeight(resolution);
+		driver = new BenchmarkFrames.FakeDriver();
+		pool = new PreviewBufferPool(PreviewBufferPool.DEFAULT_BUFFER_COUNT, width * height * 3 / 2, driver);
+		pool.start();
+		descriptor = BenchmarkFrames.descriptor(width, height);
+		listener = new BenchmarkFrames.ChecksumListener();
+		fanOut = new FrameFanOut(new CameraMetrics());
+		for (int i = 0; i < subscribers; i++) {
+			int format = sharedOutput || i % 2 == 0 ? YuvConverter.FORMAT_NV21 : YuvConverter.FORMAT_RGB565;
+			// separate listeners, equal subscriptions are not added twice
+			fanOut.subscribe(new FrameSubscription(new BenchmarkFrames.ChecksumListener(), 0, format, null));
+		}
+	}
+
+	@Benchmark
+	public boolean dispatch() {
+		byte[] data = driver.nextFrame();
+		if (data == null || !pool.acquire(data)) {
+			return false;
+		}
+		timestamp += FRAME_INTERVAL_NANOS;
+		fanOut.dispatch(data, descriptor, pool, timestamp);
+		pool.release(data);
+		return true;
+	}
+
+}
@@ -0,0 +1,51 @@
+package org.astri.camerahandler;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Sharpness and motion analysis of consecutive frames, which has a fixed
+ * budget regardless of the resolution.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FrameAnalysisBenchmark {
+
+	@Param({BenchmarkFrames.VGA, BenchmarkFrames.HD, BenchmarkFrames.FULL_HD})
+	public String resolution;
+
+	private int width;
+	private int height;
+	private byte[][] frames;
+	private int next;
+	private FrameAnalyzer analyzer;
+	private FrameAnalysis analysis;
+
+	@Setup
+	public void setUp() {
+		width = BenchmarkFrames.parseWidth(resolution);
+		height = BenchmarkFrames.parseHeight(resolution);
+		frames = new byte[2][width * height * 3 / 2];
+		BenchmarkFrames.fillNv21(frames[0], width, height, 0);
+		BenchmarkFrames.fillNv21(frames[1], width, height, 3);
+		analyzer = new FrameAnalyzer();
+		analysis = new FrameAnalysis();
+	}
+
+	@Benchmark
+	public float analyze() {
+		next ^= 1;
+		analyzer.analyze(frames[next], width, height, 0, analysis);
+		return analysis.getSharpness();
+	}
+
+}
@@ -0,0 +1,91 @@
+package org.astri.camerahandler;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Per frame overhead of the preview callback path without the listener's
+ * own work: taking the buffer from the driver, delivering it and giving it
+ * back, directly on the camera thread or through the frame pipeline.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FrameDispatchBenchmark {
+
+	@Param({BenchmarkFrames.VGA, BenchmarkFrames.HD, BenchmarkFrames.FULL_HD})
+	public String resolution;
+
+	private BenchmarkFrames.FakeDriver driver;
+	private PreviewBufferPool pool;
+	private FrameDescriptor descriptor;
+	private BenchmarkFrames.ChecksumListener listener;
+	private CameraMetrics metrics;
+	private FramePipeline pipeline;
+
+	@Setup
+	public void setUp() {
+		int width = BenchmarkFrames.parseWidth(resolution);
+		int height = BenchmarkFrames.parseHeight(resolution);
+		driver = new BenchmarkFrames.FakeDriver();
+		pool = new PreviewBufferPool(PreviewBufferPool.DEFAULT_BUFFER_COUNT, width * height * 3 / 2, driver);
+		pool.start();
+		descriptor = BenchmarkFrames.descriptor(width, height);
+		listener = new BenchmarkFrames.ChecksumListener();
+		metrics = new CameraMetrics();
+		pipeline = new FramePipeline(new FramePipeline.FrameConsumer() {
+			@Override
+			public void processFrame(byte[] data, FrameDescriptor frameDescriptor, PreviewBufferPool framePool) {
+				listener.receiveCameraFrame(data, frameDescriptor.getWidth(), frameDescriptor.getHeight(),
+						true, frameDescriptor.getFormat(), frameDescriptor.getOrientation());
+			}
+		}, FramePipeline.DropPolicy.KEEP_LATEST, 1, 1);
+		pipeline.start();
+	}
+
+	@TearDown
+	public void tearDown() {
+		pipeline.stop();
+	}
+
+	/**
+	 * Camera thread delivery as in onPreviewFrame, with metrics recording.
+	 */
+	@Benchmark
+	public long directDelivery() {
+		byte[] data = driver.nextFrame();
+		if (data == null || !pool.acquire(data)) {
+			return 0;
+		}
+		metrics.frameReceived();
+		long start = System.nanoTime();
+		listener.receiveCameraFrame(data, descriptor.getWidth(), descriptor.getHeight(),
+				descriptor.isBackCamera(), descriptor.getFormat(), descriptor.getOrientation());
+		metrics.frameDelivered(start, start, System.nanoTime());
+		pool.release(data);
+		return listener.checksum;
+	}
+
+	/**
+	 * Cost for the camera thread of handing a frame to a keep latest
+	 * pipeline, older frames are dropped when the worker is busy.
+	 */
+	@Benchmark
+	public boolean pipelineSubmit() {
+		byte[] data = driver.nextFrame();
+		if (data == null || !pool.acquire(data)) {
+			return false;
+		}
+		return pipeline.submit(data, descriptor, pool);
+	}
+
+}
@@ -0,0 +1,80 @@
+package org.astri.camerahandler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Negotiating preview and picture sizes from size lists recorded on
+ * devices, scoring every pair and answering from the memo as when a camera
+ * is opened again.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SizeNegotiationBenchmark {
+
+	private static final int[][] PREVIEW_SIZES = {
+		{1920, 1080}, {1440, 1080}, {1280, 960}, {1280, 720}, {960, 720}, {960, 540},
+		{800, 480}, {768, 432}, {720, 480}, {640, 480}, {640, 360}, {576, 432},
+		{480, 320}, {384, 288}, {352, 288}, {320, 240}, {240, 160}, {176, 144},
+	};
+
+	private static final int[][] PICTURE_SIZES = {
+		{4160, 3120}, {4160, 2340}, {4000, 3000}, {3840, 2160}, {3264, 2448}, {3264, 1836},
+		{3200, 2400}, {2976, 2976}, {2592, 1944}, {2592, 1458}, {2560, 1920}, {2560, 1440},
+		{2048, 1536}, {2048, 1152}, {1920, 1440}, {1920, 1080}, {1600, 1200}, {1440, 1080},
+		{1280, 960}, {1280, 768}, {1280, 720}, {1024, 768}, {800, 600}, {800, 480},
+		{720, 480}, {640, 480}, {640, 360}, {480, 360}, {352, 288}, {320, 240},
+	};
+
+	@Param({"640x480", "1280x720", "1920x1080"})
+	public String preset;
+
+	private List<CameraSize> previewSizes;
+	private List<CameraSize> pictureSizes;
+	private SizeNegotiator.Request request;
+	private SizeNegotiator negotiator;
+
+	@Setup
+	public void setUp() {
+		previewSizes = toSizes(PREVIEW_SIZES);
+		pictureSizes = toSizes(PICTURE_SIZES);
+		String[] size = preset.split("x");
+		request = new SizeNegotiator.Request(Integer.parseInt(size[0]), Integer.parseInt(size[1]),
+				0, 1.7778f, 0.01f, 2048 * 1600, 640 * 480, 1.3333f);
+		negotiator = new SizeNegotiator();
+		negotiator.negotiate(0, previewSizes, pictureSizes, request);
+	}
+
+	private static List<CameraSize> toSizes(int[][] sizes) {
+		List<CameraSize> result = new ArrayList<CameraSize>();
+		for (int[] size : sizes) {
+			result.add(new CameraSize(size[0], size[1]));
+		}
+		// drivers report sizes in no particular order
+		Collections.shuffle(result, new java.util.Random(1));
+		return result;
+	}
+
+	@Benchmark
+	public SizeNegotiator.Result negotiate() {
+		return SizeNegotiator.choose(previewSizes, pictureSizes, request);
+	}
+
+	@Benchmark
+	public SizeNegotiator.Result negotiateMemoised() {
+		return negotiator.negotiate(0, previewSizes, pictureSizes, request);
+	}
+
+}
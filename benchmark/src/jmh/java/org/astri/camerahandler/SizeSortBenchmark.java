@@ -0,0 +1,60 @@
+package org.astri.camerahandler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import android.hardware.Camera;
+
+/**
+ * Sorting a typical list of supported picture sizes as done when choosing
+ * the photo size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SizeSortBenchmark {
+
+	private static final int[][] SIZES = {
+		{4160, 3120}, {4160, 2340}, {4000, 3000}, {3840, 2160}, {3264, 2448}, {3264, 1836},
+		{3200, 2400}, {2976, 2976}, {2592, 1944}, {2592, 1458}, {2560, 1920}, {2560, 1440},
+		{2048, 1536}, {2048, 1152}, {1920, 1440}, {1920, 1080}, {1600, 1200}, {1440, 1080},
+		{1280, 960}, {1280, 768}, {1280, 720}, {1024, 768}, {800, 600}, {800, 480},
+		{720, 480}, {640, 480}, {640, 360}, {480, 360}, {352, 288}, {320, 240},
+	};
+
+	private List<Camera.Size> supported;
+	private List<Camera.Size> sizes;
+	private SizeComparator comparator;
+
+	@Setup
+	public void setUp() {
+		Camera camera = new Camera();
+		supported = new ArrayList<Camera.Size>();
+		for (int[] size : SIZES) {
+			supported.add(camera.new Size(size[0], size[1]));
+		}
+		// drivers report sizes in no particular order
+		Collections.shuffle(supported, new java.util.Random(1));
+		sizes = new ArrayList<Camera.Size>(supported);
+		comparator = new SizeComparator();
+	}
+
+	@Benchmark
+	public List<Camera.Size> sortSupportedSizes() {
+		sizes.clear();
+		sizes.addAll(supported);
+		Collections.sort(sizes, comparator);
+		return sizes;
+	}
+
+}
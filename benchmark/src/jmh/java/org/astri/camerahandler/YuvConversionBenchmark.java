@@ -0,0 +1,84 @@
+package org.astri.camerahandler;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * NV21 conversion, rotation and region of interest scaling of one frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class YuvConversionBenchmark {
+
+	@Param({BenchmarkFrames.VGA, BenchmarkFrames.HD, BenchmarkFrames.FULL_HD})
+	public String resolution;
+
+	private int width;
+	private int height;
+	private byte[] nv21;
+	private byte[] rgb565;
+	private byte[] rgba8888;
+	private byte[] rotated;
+	private byte[] roiOut;
+	private FrameRoi roi;
+	private YuvConverter converter;
+
+	@Setup
+	public void setUp() {
+		width = BenchmarkFrames.parseWidth(resolution);
+		height = BenchmarkFrames.parseHeight(resolution);
+		nv21 = BenchmarkFrames.createNv21(width, height);
+		rgb565 = new byte[YuvConverter.getOutputSize(YuvConverter.FORMAT_RGB565, width, height)];
+		rgba8888 = new byte[YuvConverter.getOutputSize(YuvConverter.FORMAT_RGBA8888, width, height)];
+		rotated = new byte[nv21.length];
+		roi = FrameRoi.centered(0.5f, 2, FrameRoi.FORMAT_LUMA);
+		roiOut = new byte[roi.getOutputSize(width, height)];
+		converter = new YuvConverter();
+	}
+
+	@Benchmark
+	public byte[] toRgb565() {
+		converter.nv21ToRgb565(nv21, width, height, rgb565);
+		return rgb565;
+	}
+
+	@Benchmark
+	public byte[] toRgba8888() {
+		converter.nv21ToRgba8888(nv21, width, height, rgba8888);
+		return rgba8888;
+	}
+
+	/**
+	 * Conversion to upright portrait in the same pass.
+	 */
+	@Benchmark
+	public byte[] toRgb565Rotated90() {
+		converter.convert(nv21, width, height, 90, false, YuvConverter.FORMAT_RGB565, rgb565);
+		return rgb565;
+	}
+
+	@Benchmark
+	public byte[] rotateNv21By90() {
+		FrameRotator.rotateNv21(nv21, width, height, 90, false, rotated);
+		return rotated;
+	}
+
+	/**
+	 * Center half of the frame scaled down by two, luma only.
+	 */
+	@Benchmark
+	public byte[] roiLuma() {
+		RoiScaler.scale(nv21, width, height, roi, roiOut);
+		return roiOut;
+	}
+
+}
@@ -0,0 +1,30 @@
+package android.graphics;
+
+/**
+ * Stand-in with the format constants of the Android class.
+ */
+public class ImageFormat {
+
+	public static final int UNKNOWN = 0;
+	public static final int RGB_565 = 4;
+	public static final int NV16 = 16;
+	public static final int NV21 = 17;
+	public static final int YUV_420_888 = 35;
+	public static final int JPEG = 256;
+	public static final int YV12 = 0x32315659;
+
+	public static int getBitsPerPixel(int format) {
+		switch (format) {
+		case RGB_565:
+		case NV16:
+			return 16;
+		case NV21:
+		case YV12:
+		case YUV_420_888:
+			return 12;
+		default:
+			return -1;
+		}
+	}
+
+}
@@ -0,0 +1,12 @@
+package android.graphics;
+
+/**
+ * Stand-in with the format constants of the Android class.
+ */
+public class PixelFormat {
+
+	public static final int RGBA_8888 = 1;
+	public static final int RGB_888 = 3;
+	public static final int RGB_565 = 4;
+
+}
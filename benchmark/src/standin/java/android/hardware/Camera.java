@@ -0,0 +1,18 @@
+package android.hardware;
+
+/**
+ * Stand-in for the camera class, only sizes are needed off the device.
+ */
+public class Camera {
+
+	public class Size {
+		public int width;
+		public int height;
+
+		public Size(int w, int h) {
+			width = w;
+			height = h;
+		}
+	}
+
+}
@@ -0,0 +1,252 @@
+package org.astri.camerahandler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import android.util.Log;
+
+/**
+ * Camera provider remembering what the cameras of the device are: camera
+ * count, facing, orientation and the capabilities seen when a camera was
+ * first opened. With a cache file the values are kept across runs, keyed by
+ * the build fingerprint so that a system update discards them.
+ * <p>
+ * Known capabilities let the handler choose sizes before a camera is open,
+ * and spare Camera1 the getParameters call that reads them. Thread safe,
+ * handlers using the same cache file share one provider.
+ */
+final class CachedCameraProvider implements CameraDevice.Provider {
+
+	private static final String TAG = "CachedCameraProvider";
+
+	/** Version 2 added the preview fps ranges */
+	private static final int FILE_VERSION = 2;
+
+	private final CameraDevice.Provider delegate;
+	private final File cacheFile;
+	private final String fingerprint;
+
+	private boolean loaded;
+	private int cameraCount = -1;
+	private int[] facings;
+	private int[] orientations;
+	private CameraCapabilities[] capabilities;
+
+	/**
+	 * @param cacheFile null to keep the values in memory only
+	 * @param fingerprint build of the device the file is valid for
+	 */
+	CachedCameraProvider(CameraDevice.Provider delegate, File cacheFile, String fingerprint) {
+		this.delegate = delegate;
+		this.cacheFile = cacheFile;
+		this.fingerprint = fingerprint;
+	}
+
+	CameraDevice.Provider getDelegate() {
+		return delegate;
+	}
+
+	@Override
+	public synchronized int getCameraCount() {
+		load();
+		if (cameraCount < 0) {
+			int count = delegate.getCameraCount();
+			cameraCount = count;
+			facings = new int[count];
+			orientations = new int[count];
+			capabilities = new CameraCapabilities[count];
+			for (int i = 0; i < count; i++) {
+				facings[i] = delegate.getFacing(i);
+				orientations[i] = delegate.getOrientation(i);
+			}
+			save();
+		}
+		return cameraCount;
+	}
+
+	@Override
+	public synchronized int getFacing(int cameraIndex) {
+		return cameraIndex < getCameraCount() ? facings[cameraIndex] : delegate.getFacing(cameraIndex);
+	}
+
+	@Override
+	public synchronized int getOrientation(int cameraIndex) {
+		return cameraIndex < getCameraCount() ? orientations[cameraIndex]
+				: delegate.getOrientation(cameraIndex);
+	}
+
+	/**
+	 * @return capabilities of the camera from an earlier open, null if it
+	 * was not opened yet
+	 */
+	synchronized CameraCapabilities getCapabilities(int cameraIndex) {
+		return cameraIndex < getCameraCount() ? capabilities[cameraIndex] : null;
+	}
+
+	/**
+	 * Opens the camera without holding the lock, so that handlers sharing
+	 * the provider don't wait for each other's cameras.
+	 */
+	@Override
+	public CameraDevice open(int cameraIndex, Executor callbackExecutor) {
+		CameraDevice device = delegate.open(cameraIndex, callbackExecutor);
+		CameraCapabilities known = getCapabilities(cameraIndex);
+		if (known != null) {
+			if (device instanceof Camera1Device) {
+				((Camera1Device) device).setCapabilities(known);
+			}
+		} else if (cameraIndex < getCameraCount()) {
+			storeCapabilities(cameraIndex, device.getCapabilities());
+		}
+		return device;
+	}
+
+	private synchronized void storeCapabilities(int cameraIndex, CameraCapabilities opened) {
+		if (capabilities[cameraIndex] == null) {
+			capabilities[cameraIndex] = opened;
+			save();
+		}
+	}
+
+	private void load() {
+		if (loaded) {
+			return;
+		}
+		loaded = true;
+		if (cacheFile == null || !cacheFile.isFile()) {
+			return;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+			if (in.readInt() != FILE_VERSION || !in.readUTF().equals(fingerprint)) {
+				Log.d(TAG, "Camera cache from another build, discarded");
+				return;
+			}
+			int count = in.readInt();
+			int[] readFacings = new int[count];
+			int[] readOrientations = new int[count];
+			CameraCapabilities[] readCapabilities = new CameraCapabilities[count];
+			for (int i = 0; i < count; i++) {
+				readFacings[i] = in.readInt();
+				readOrientations[i] = in.readInt();
+				if (in.readBoolean()) {
+					readCapabilities[i] = readCapabilities(in);
+				}
+			}
+			cameraCount = count;
+			facings = readFacings;
+			orientations = readOrientations;
+			capabilities = readCapabilities;
+		} catch (IOException e) {
+			Log.e(TAG, "Error reading camera cache", e);
+		} finally {
+			closeQuietly(in);
+		}
+	}
+
+	private void save() {
+		if (cacheFile == null) {
+			return;
+		}
+		DataOutputStream out = null;
+		File tmp = new File(cacheFile.getPath() + ".tmp");
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			out.writeInt(FILE_VERSION);
+			out.writeUTF(fingerprint);
+			out.writeInt(cameraCount);
+			for (int i = 0; i < cameraCount; i++) {
+				out.writeInt(facings[i]);
+				out.writeInt(orientations[i]);
+				out.writeBoolean(capabilities[i] != null);
+				if (capabilities[i] != null) {
+					writeCapabilities(out, capabilities[i]);
+				}
+			}
+			out.close();
+			out = null;
+			if (!tmp.renameTo(cacheFile)) {
+				Log.e(TAG, "Error replacing camera cache " + cacheFile);
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Error writing camera cache", e);
+		} finally {
+			closeQuietly(out);
+		}
+	}
+
+	private static CameraCapabilities readCapabilities(DataInputStream in) throws IOException {
+		List<CameraSize> previewSizes = readSizes(in);
+		List<CameraSize> pictureSizes = readSizes(in);
+		int focusModeCount = in.readInt();
+		List<String> focusModes = new ArrayList<String>(focusModeCount);
+		for (int i = 0; i < focusModeCount; i++) {
+			focusModes.add(in.readUTF());
+		}
+		int maxFocusAreas = in.readInt();
+		int rangeCount = in.readInt();
+		List<CameraFpsRange> fpsRanges = new ArrayList<CameraFpsRange>(rangeCount);
+		for (int i = 0; i < rangeCount; i++) {
+			fpsRanges.add(new CameraFpsRange(in.readInt(), in.readInt()));
+		}
+		return new CameraCapabilities(previewSizes, pictureSizes, focusModes, maxFocusAreas,
+				fpsRanges);
+	}
+
+	private static List<CameraSize> readSizes(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		List<CameraSize> sizes = new ArrayList<CameraSize>(count);
+		for (int i = 0; i < count; i++) {
+			sizes.add(new CameraSize(in.readInt(), in.readInt()));
+		}
+		return sizes;
+	}
+
+	private static void writeCapabilities(DataOutputStream out, CameraCapabilities capabilities)
+			throws IOException {
+		writeSizes(out, capabilities.getPreviewSizes());
+		writeSizes(out, capabilities.getPictureSizes());
+		List<String> focusModes = capabilities.getFocusModes();
+		out.writeInt(focusModes.size());
+		for (String mode : focusModes) {
+			out.writeUTF(mode);
+		}
+		out.writeInt(capabilities.getMaxFocusAreas());
+		List<CameraFpsRange> fpsRanges = capabilities.getPreviewFpsRanges();
+		out.writeInt(fpsRanges.size());
+		for (CameraFpsRange r : fpsRanges) {
+			out.writeInt(r.getMin());
+			out.writeInt(r.getMax());
+		}
+	}
+
+	private static void writeSizes(DataOutputStream out, List<CameraSize> sizes) throws IOException {
+		out.writeInt(sizes.size());
+		for (CameraSize s : sizes) {
+			out.writeInt(s.getWidth());
+			out.writeInt(s.getHeight());
+		}
+	}
+
+	private static void closeQuietly(Closeable stream) {
+		if (stream != null) {
+			try {
+				stream.close();
+			} catch (IOException e) {
+				// nothing to do
+			}
+		}
+	}
+
+}
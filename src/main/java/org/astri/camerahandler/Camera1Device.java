@@ -0,0 +1,257 @@
+package org.astri.camerahandler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import android.graphics.Rect;
+import android.hardware.Camera;
+import android.hardware.Camera.CameraInfo;
+import android.hardware.Camera.Size;
+import android.view.SurfaceHolder;
+
+/**
+ * {@link CameraDevice} on android.hardware.Camera. Callbacks are forwarded
+ * by listeners created once per device, so frames don't allocate.
+ */
+public class Camera1Device implements CameraDevice {
+
+	/** Opens cameras with Camera.open */
+	public static final CameraDevice.Provider PROVIDER = new CameraDevice.Provider() {
+		@Override
+		public int getCameraCount() {
+			return Camera.getNumberOfCameras();
+		}
+
+		@Override
+		public int getFacing(int cameraIndex) {
+			CameraInfo info = new CameraInfo();
+			Camera.getCameraInfo(cameraIndex, info);
+			return info.facing;
+		}
+
+		@Override
+		public int getOrientation(int cameraIndex) {
+			CameraInfo info = new CameraInfo();
+			Camera.getCameraInfo(cameraIndex, info);
+			return info.orientation;
+		}
+
+		@Override
+		public CameraDevice open(int cameraIndex, Executor callbackExecutor) {
+			Camera camera = Camera.open(cameraIndex);
+			if (camera == null) {
+				throw new RuntimeException("Camera " + cameraIndex + " not available");
+			}
+			return new Camera1Device(camera);
+		}
+	};
+
+	private final Camera camera;
+	private CameraCapabilities capabilities;
+
+	private volatile PreviewCallback previewCallback;
+	private volatile FocusCallback focusCallback;
+	private volatile PictureCallback pictureCallback;
+
+	/**
+	 * @param camera opened camera, released by {@link #release()}
+	 */
+	public Camera1Device(Camera camera) {
+		this.camera = camera;
+	}
+
+	/**
+	 * @return the wrapped camera
+	 */
+	public Camera getCamera() {
+		return camera;
+	}
+
+	/**
+	 * Sets capabilities known from an earlier open of the same camera, so
+	 * they are not read from the camera parameters again.
+	 */
+	void setCapabilities(CameraCapabilities capabilities) {
+		this.capabilities = capabilities;
+	}
+
+	@Override
+	public CameraCapabilities getCapabilities() {
+		if (capabilities == null) {
+			Camera.Parameters parameters = camera.getParameters();
+			List<String> focusModes = parameters.getSupportedFocusModes();
+			capabilities = new CameraCapabilities(toSizes(parameters.getSupportedPreviewSizes()),
+					toSizes(parameters.getSupportedPictureSizes()),
+					focusModes != null ? focusModes : Collections.<String>emptyList(),
+					parameters.getMaxNumFocusAreas(),
+					toFpsRanges(parameters.getSupportedPreviewFpsRange()));
+		}
+		return capabilities;
+	}
+
+	private static List<CameraSize> toSizes(List<Size> sizes) {
+		List<CameraSize> result = new ArrayList<CameraSize>();
+		if (sizes != null) {
+			for (Size s : sizes) {
+				result.add(new CameraSize(s.width, s.height));
+			}
+		}
+		return result;
+	}
+
+	private static List<CameraFpsRange> toFpsRanges(List<int[]> ranges) {
+		List<CameraFpsRange> result = new ArrayList<CameraFpsRange>();
+		if (ranges != null) {
+			for (int[] r : ranges) {
+				result.add(new CameraFpsRange(r[Camera.Parameters.PREVIEW_FPS_MIN_INDEX],
+						r[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]));
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public CameraSettings getSettings() {
+		Camera.Parameters parameters = camera.getParameters();
+		CameraSettings settings = new CameraSettings();
+		Size previewSize = parameters.getPreviewSize();
+		settings.setPreviewSize(previewSize.width, previewSize.height);
+		settings.setPreviewFormat(parameters.getPreviewFormat());
+		Size pictureSize = parameters.getPictureSize();
+		settings.setPictureSize(pictureSize.width, pictureSize.height);
+		settings.setFocusMode(parameters.getFocusMode());
+		settings.setWhiteBalance(parameters.getWhiteBalance());
+		int[] fps = new int[2];
+		parameters.getPreviewFpsRange(fps);
+		settings.setPreviewFpsRange(new CameraFpsRange(fps[Camera.Parameters.PREVIEW_FPS_MIN_INDEX],
+				fps[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]));
+		return settings;
+	}
+
+	@Override
+	public void applySettings(CameraSettings settings) {
+		Camera.Parameters parameters = camera.getParameters();
+		if (settings.hasPreviewSize()) {
+			parameters.setPreviewSize(settings.getPreviewWidth(), settings.getPreviewHeight());
+		}
+		if (settings.getPreviewFormat() != 0) {
+			parameters.setPreviewFormat(settings.getPreviewFormat());
+		}
+		CameraFpsRange fps = settings.getPreviewFpsRange();
+		if (fps != null) {
+			parameters.setPreviewFpsRange(fps.getMin(), fps.getMax());
+		}
+		if (settings.hasPictureSize()) {
+			parameters.setPictureSize(settings.getPictureWidth(), settings.getPictureHeight());
+		}
+		if (settings.getFocusMode() != null) {
+			parameters.setFocusMode(settings.getFocusMode());
+		}
+		if (settings.getWhiteBalance() != null) {
+			parameters.setWhiteBalance(settings.getWhiteBalance());
+		}
+		int[] area = settings.getFocusArea();
+		if (area != null) {
+			List<Camera.Area> areas = new ArrayList<Camera.Area>();
+			areas.add(new Camera.Area(new Rect(area[0], area[1], area[2], area[3]), area[4]));
+			parameters.setFocusAreas(areas);
+		}
+		camera.setParameters(parameters);
+	}
+
+	@Override
+	public void setDisplayOrientation(int degrees) {
+		camera.setDisplayOrientation(degrees);
+	}
+
+	@Override
+	public void setPreviewDisplay(Object display) throws IOException {
+		camera.setPreviewDisplay((SurfaceHolder) display);
+	}
+
+	@Override
+	public void startPreview() {
+		camera.startPreview();
+	}
+
+	@Override
+	public void stopPreview() {
+		camera.stopPreview();
+	}
+
+	@Override
+	public void setPreviewCallback(PreviewCallback callback) {
+		previewCallback = callback;
+		camera.setPreviewCallbackWithBuffer(callback != null ? cameraPreviewCallback : null);
+	}
+
+	@Override
+	public void addCallbackBuffer(byte[] buffer) {
+		camera.addCallbackBuffer(buffer);
+	}
+
+	@Override
+	public boolean setImageCallback(ImageCallback callback, int maxFrames) {
+		// Camera1 copies every frame to a callback buffer
+		return false;
+	}
+
+	@Override
+	public void autoFocus(FocusCallback callback) {
+		focusCallback = callback;
+		camera.autoFocus(cameraFocusCallback);
+	}
+
+	@Override
+	public void cancelAutoFocus() {
+		camera.cancelAutoFocus();
+	}
+
+	@Override
+	public void takePicture(PictureCallback callback) {
+		pictureCallback = callback;
+		camera.takePicture(null, null, cameraJpegCallback);
+	}
+
+	@Override
+	public void release() {
+		previewCallback = null;
+		focusCallback = null;
+		pictureCallback = null;
+		camera.release();
+	}
+
+	private final Camera.PreviewCallback cameraPreviewCallback = new Camera.PreviewCallback() {
+		@Override
+		public void onPreviewFrame(byte[] data, Camera c) {
+			PreviewCallback callback = previewCallback;
+			if (callback != null) {
+				callback.onPreviewFrame(data);
+			}
+		}
+	};
+
+	private final Camera.AutoFocusCallback cameraFocusCallback = new Camera.AutoFocusCallback() {
+		@Override
+		public void onAutoFocus(boolean success, Camera c) {
+			FocusCallback callback = focusCallback;
+			if (callback != null) {
+				callback.onFocused(success);
+			}
+		}
+	};
+
+	private final Camera.PictureCallback cameraJpegCallback = new Camera.PictureCallback() {
+		@Override
+		public void onPictureTaken(byte[] data, Camera c) {
+			PictureCallback callback = pictureCallback;
+			if (callback != null) {
+				callback.onPictureTaken(data);
+			}
+		}
+	};
+
+}
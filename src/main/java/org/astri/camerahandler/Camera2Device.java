@@ -0,0 +1,857 @@
+package org.astri.camerahandler;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.hardware.Camera;
+import android.hardware.Camera.CameraInfo;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.hardware.camera2.params.MeteringRectangle;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+import android.util.Range;
+import android.util.Size;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+
+/**
+ * {@link CameraDevice} on android.hardware.camera2.
+ * <p>
+ * One capture session carries three streams: the preview surface, a
+ * YUV_420_888 ImageReader at the preview size for frame analysis and a
+ * JPEG ImageReader at the picture size for stills. Analysis frames go to
+ * the image callback as the Image planes without copying, or are copied
+ * to NV21 callback buffers for the preview callback. Preview keeps running
+ * while a still is captured, startPreview after a picture does nothing.
+ * <p>
+ * Callbacks run on the looper of the thread that opened the camera, so
+ * frames arrive on the camera thread of {@link CameraHandler} without a
+ * hand-off. Size changes rebuild the session, a still requested meanwhile
+ * is taken once it is configured.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class Camera2Device implements CameraDevice {
+
+	private static final String TAG = "Camera2Device";
+
+	private static final long OPEN_TIMEOUT_MS = 3000;
+	private static final int JPEG_MAX_IMAGES = 2;
+	/** YUV stream sizes guaranteed alongside preview and JPEG */
+	private static final int MAX_ANALYSIS_PIXELS = 1920 * 1080;
+
+	/**
+	 * @return true if the device has Camera2 and none of its cameras is a
+	 * LEGACY one, which runs Camera2 on top of the old API
+	 */
+	public static boolean isSupported(Context context) {
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+			return false;
+		}
+		try {
+			CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+			String[] ids = manager.getCameraIdList();
+			if (ids.length == 0) {
+				return false;
+			}
+			for (String id : ids) {
+				Integer level = manager.getCameraCharacteristics(id).get(
+						CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+				if (level == null || level == CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY) {
+					return false;
+				}
+			}
+			return true;
+		} catch (CameraAccessException e) {
+			Log.e(TAG, "Camera2 not available", e);
+			return false;
+		} catch (RuntimeException e) {
+			Log.e(TAG, "Camera2 not available", e);
+			return false;
+		}
+	}
+
+	/**
+	 * @return provider opening cameras with CameraManager, camera ids and
+	 * characteristics are read once
+	 */
+	public static CameraDevice.Provider provider(Context context) {
+		final CameraManager manager = (CameraManager) context.getApplicationContext()
+				.getSystemService(Context.CAMERA_SERVICE);
+		return new CameraDevice.Provider() {
+			private String[] ids;
+			private CameraCharacteristics[] characteristics;
+
+			private synchronized void load() {
+				if (ids != null) {
+					return;
+				}
+				try {
+					String[] cameraIds = manager.getCameraIdList();
+					characteristics = new CameraCharacteristics[cameraIds.length];
+					for (int i = 0; i < cameraIds.length; i++) {
+						characteristics[i] = manager.getCameraCharacteristics(cameraIds[i]);
+					}
+					ids = cameraIds;
+				} catch (CameraAccessException e) {
+					throw new RuntimeException("Camera list not available", e);
+				}
+			}
+
+			@Override
+			public int getCameraCount() {
+				load();
+				return ids.length;
+			}
+
+			@Override
+			public int getFacing(int cameraIndex) {
+				load();
+				Integer facing = characteristics[cameraIndex].get(CameraCharacteristics.LENS_FACING);
+				return facing != null && facing == CameraMetadata.LENS_FACING_FRONT
+						? CameraInfo.CAMERA_FACING_FRONT : CameraInfo.CAMERA_FACING_BACK;
+			}
+
+			@Override
+			public int getOrientation(int cameraIndex) {
+				load();
+				Integer orientation = characteristics[cameraIndex].get(
+						CameraCharacteristics.SENSOR_ORIENTATION);
+				return orientation != null ? orientation : 0;
+			}
+
+			@Override
+			public CameraDevice open(int cameraIndex, Executor callbackExecutor) {
+				load();
+				return new Camera2Device(manager, ids[cameraIndex], characteristics[cameraIndex]);
+			}
+		};
+	}
+
+	private final CameraCharacteristics characteristics;
+	private final CameraCapabilities capabilities;
+	private final Rect activeArray;
+
+	/** Receives the open and error callbacks, open blocks the opening thread */
+	private final HandlerThread stateThread;
+	/** Looper of the opening thread, or the state thread if it has none */
+	private final Handler handler;
+	private android.hardware.camera2.CameraDevice device;
+	private volatile boolean disconnected;
+
+	// current settings, applied to the next request or session
+	private int previewWidth;
+	private int previewHeight;
+	private int pictureWidth;
+	private int pictureHeight;
+	private String focusMode;
+	private MeteringRectangle[] focusRegions;
+	private CameraFpsRange fpsRange;
+
+	private Surface previewSurface;
+	private ImageReader analysisReader;
+	private ImageReader jpegReader;
+	private CameraCaptureSession session;
+	/** Surfaces of the session differ from the current settings */
+	private boolean sessionStale = true;
+	/** The session has the preview surface as an output */
+	private boolean previewInSession;
+	private boolean configuring;
+	private boolean previewRequested;
+	private boolean repeating;
+
+	private PreviewCallback previewCallback;
+	private final ArrayDeque<byte[]> callbackBuffers = new ArrayDeque<byte[]>();
+	private ImageCallback imageCallback;
+	private int maxImageFrames = 2;
+	/** Frame objects of images not held by the image callback */
+	private final ArrayDeque<DirectFrame> freeFrames = new ArrayDeque<DirectFrame>();
+
+	private FocusCallback focusCallback;
+	private boolean focusTriggered;
+	private PictureCallback pictureCallback;
+	private boolean picturePending;
+
+	private long droppedFrames;
+
+	private Camera2Device(CameraManager manager, String cameraId,
+			CameraCharacteristics characteristics) {
+		this.characteristics = characteristics;
+		this.capabilities = readCapabilities(characteristics);
+		this.activeArray = characteristics.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
+
+		stateThread = new HandlerThread("Camera2State-" + cameraId);
+		stateThread.start();
+		Looper looper = Looper.myLooper();
+		handler = new Handler(looper != null ? looper : stateThread.getLooper());
+
+		final CountDownLatch opened = new CountDownLatch(1);
+		final android.hardware.camera2.CameraDevice[] result =
+				new android.hardware.camera2.CameraDevice[1];
+		try {
+			manager.openCamera(cameraId, new android.hardware.camera2.CameraDevice.StateCallback() {
+				@Override
+				public void onOpened(android.hardware.camera2.CameraDevice camera) {
+					result[0] = camera;
+					opened.countDown();
+				}
+
+				@Override
+				public void onDisconnected(android.hardware.camera2.CameraDevice camera) {
+					Log.e(TAG, "Camera " + camera.getId() + " disconnected");
+					disconnected = true;
+					camera.close();
+					opened.countDown();
+				}
+
+				@Override
+				public void onError(android.hardware.camera2.CameraDevice camera, int error) {
+					Log.e(TAG, "Camera " + camera.getId() + " error: " + error);
+					disconnected = true;
+					camera.close();
+					opened.countDown();
+				}
+			}, new Handler(stateThread.getLooper()));
+			if (!opened.await(OPEN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+				Log.e(TAG, "Timed out opening camera " + cameraId);
+			}
+		} catch (CameraAccessException e) {
+			Log.e(TAG, "Camera " + cameraId + " failed to open", e);
+		} catch (SecurityException e) {
+			Log.e(TAG, "No permission to open camera " + cameraId, e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		device = result[0];
+		if (device == null || disconnected) {
+			stateThread.quitSafely();
+			throw new RuntimeException("Camera " + cameraId + " failed to open");
+		}
+
+		CameraSize preview = capabilities.getPreviewSizes().isEmpty()
+				? new CameraSize(640, 480) : capabilities.getPreviewSizes().get(0);
+		previewWidth = preview.getWidth();
+		previewHeight = preview.getHeight();
+		CameraSize picture = capabilities.getPictureSizes().isEmpty()
+				? preview : capabilities.getPictureSizes().get(0);
+		pictureWidth = picture.getWidth();
+		pictureHeight = picture.getHeight();
+	}
+
+	private static CameraCapabilities readCapabilities(CameraCharacteristics characteristics) {
+		StreamConfigurationMap map = characteristics.get(
+				CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+		List<CameraSize> previewSizes = new ArrayList<CameraSize>();
+		List<CameraSize> pictureSizes = new ArrayList<CameraSize>();
+		if (map != null) {
+			Size[] yuvSizes = map.getOutputSizes(ImageFormat.YUV_420_888);
+			if (yuvSizes != null) {
+				for (Size s : yuvSizes) {
+					if (s.getWidth() * s.getHeight() <= MAX_ANALYSIS_PIXELS) {
+						previewSizes.add(new CameraSize(s.getWidth(), s.getHeight()));
+					}
+				}
+			}
+			Size[] jpegSizes = map.getOutputSizes(ImageFormat.JPEG);
+			if (jpegSizes != null) {
+				for (Size s : jpegSizes) {
+					pictureSizes.add(new CameraSize(s.getWidth(), s.getHeight()));
+				}
+			}
+		}
+		List<String> focusModes = new ArrayList<String>();
+		int[] afModes = characteristics.get(CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES);
+		if (afModes != null) {
+			for (int mode : afModes) {
+				String name = toFocusModeName(mode);
+				if (name != null) {
+					focusModes.add(name);
+				}
+			}
+		}
+		Integer maxRegions = characteristics.get(CameraCharacteristics.CONTROL_MAX_REGIONS_AF);
+		// Camera1 units, frames per second times 1000
+		List<CameraFpsRange> fpsRanges = new ArrayList<CameraFpsRange>();
+		Range<Integer>[] aeRanges = characteristics.get(
+				CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+		if (aeRanges != null) {
+			for (Range<Integer> r : aeRanges) {
+				fpsRanges.add(new CameraFpsRange(r.getLower() * 1000, r.getUpper() * 1000));
+			}
+		}
+		return new CameraCapabilities(previewSizes, pictureSizes, focusModes,
+				maxRegions != null ? maxRegions : 0, fpsRanges);
+	}
+
+	/**
+	 * @return Camera1 name of the focus mode, so that the settings are the
+	 * same for both backends
+	 */
+	private static String toFocusModeName(int afMode) {
+		switch (afMode) {
+		case CameraMetadata.CONTROL_AF_MODE_AUTO:
+			return Camera.Parameters.FOCUS_MODE_AUTO;
+		case CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_VIDEO:
+			return Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO;
+		case CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_PICTURE:
+			return Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE;
+		default:
+			return null;
+		}
+	}
+
+	private static int toAfMode(String focusMode) {
+		if (Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO.equals(focusMode)) {
+			return CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_VIDEO;
+		}
+		if (Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE.equals(focusMode)) {
+			return CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_PICTURE;
+		}
+		if (Camera.Parameters.FOCUS_MODE_AUTO.equals(focusMode)) {
+			return CameraMetadata.CONTROL_AF_MODE_AUTO;
+		}
+		return CameraMetadata.CONTROL_AF_MODE_OFF;
+	}
+
+	/**
+	 * @return frames dropped because no callback buffer or image was free
+	 */
+	public long getDroppedFrameCount() {
+		return droppedFrames;
+	}
+
+	@Override
+	public CameraCapabilities getCapabilities() {
+		return capabilities;
+	}
+
+	@Override
+	public CameraSettings getSettings() {
+		CameraSettings settings = new CameraSettings();
+		settings.setPreviewSize(previewWidth, previewHeight);
+		// YUV_420_888 frames are handed to callback buffers as NV21
+		settings.setPreviewFormat(ImageFormat.NV21);
+		settings.setPictureSize(pictureWidth, pictureHeight);
+		settings.setFocusMode(focusMode);
+		settings.setWhiteBalance(Camera.Parameters.WHITE_BALANCE_AUTO);
+		settings.setPreviewFpsRange(fpsRange);
+		return settings;
+	}
+
+	@Override
+	public void applySettings(CameraSettings settings) {
+		if (settings.hasPreviewSize() && !capabilities.isPreviewSizeSupported(
+				settings.getPreviewWidth(), settings.getPreviewHeight())) {
+			throw new IllegalArgumentException("Unsupported preview size "
+					+ settings.getPreviewWidth() + "x" + settings.getPreviewHeight());
+		}
+		if (settings.getPreviewFormat() != 0 && settings.getPreviewFormat() != ImageFormat.NV21) {
+			throw new IllegalArgumentException("Only NV21 preview callbacks are supported");
+		}
+		if (settings.hasPictureSize() && !capabilities.isPictureSizeSupported(
+				settings.getPictureWidth(), settings.getPictureHeight())) {
+			throw new IllegalArgumentException("Unsupported picture size "
+					+ settings.getPictureWidth() + "x" + settings.getPictureHeight());
+		}
+		CameraFpsRange fps = settings.getPreviewFpsRange();
+		if (fps != null && !capabilities.getPreviewFpsRanges().contains(fps)) {
+			throw new IllegalArgumentException("Unsupported preview fps range " + fps);
+		}
+
+		if (fps != null) {
+			fpsRange = fps;
+		}
+		if (settings.hasPreviewSize() && (settings.getPreviewWidth() != previewWidth
+				|| settings.getPreviewHeight() != previewHeight)) {
+			previewWidth = settings.getPreviewWidth();
+			previewHeight = settings.getPreviewHeight();
+			sessionStale = true;
+		}
+		if (settings.hasPictureSize() && (settings.getPictureWidth() != pictureWidth
+				|| settings.getPictureHeight() != pictureHeight)) {
+			pictureWidth = settings.getPictureWidth();
+			pictureHeight = settings.getPictureHeight();
+			sessionStale = true;
+		}
+		if (settings.getFocusMode() != null) {
+			focusMode = settings.getFocusMode();
+		}
+		int[] area = settings.getFocusArea();
+		if (area != null && activeArray != null) {
+			focusRegions = new MeteringRectangle[] { toMeteringRectangle(area) };
+		}
+		if (previewRequested) {
+			if (sessionStale) {
+				createSession();
+			} else {
+				setRepeatingRequest();
+			}
+		}
+	}
+
+	/**
+	 * Maps a Camera1 area in -1000..1000 to the sensor active array.
+	 */
+	private MeteringRectangle toMeteringRectangle(int[] area) {
+		int left = activeArray.left + (area[0] + 1000) * activeArray.width() / 2000;
+		int top = activeArray.top + (area[1] + 1000) * activeArray.height() / 2000;
+		int right = activeArray.left + (area[2] + 1000) * activeArray.width() / 2000;
+		int bottom = activeArray.top + (area[3] + 1000) * activeArray.height() / 2000;
+		return new MeteringRectangle(left, top, Math.max(1, right - left),
+				Math.max(1, bottom - top), Math.min(area[4], MeteringRectangle.METERING_WEIGHT_MAX));
+	}
+
+	@Override
+	public void setDisplayOrientation(int degrees) {
+		// the preview surface is rotated by the system
+	}
+
+	@Override
+	public void setPreviewDisplay(Object display) {
+		Surface surface = display instanceof SurfaceHolder ? ((SurfaceHolder) display).getSurface()
+				: (Surface) display;
+		if (surface != previewSurface) {
+			previewSurface = surface;
+			sessionStale = true;
+			if (previewRequested) {
+				createSession();
+			}
+		}
+	}
+
+	@Override
+	public void startPreview() {
+		previewRequested = true;
+		if (sessionStale) {
+			createSession();
+		} else if (session != null && !repeating) {
+			setRepeatingRequest();
+		}
+	}
+
+	@Override
+	public void stopPreview() {
+		previewRequested = false;
+		if (session != null && repeating) {
+			try {
+				session.stopRepeating();
+			} catch (CameraAccessException e) {
+				Log.e(TAG, "Error stopping preview", e);
+			} catch (IllegalStateException e) {
+				// session already closed
+			}
+		}
+		repeating = false;
+	}
+
+	@Override
+	public void setPreviewCallback(PreviewCallback callback) {
+		previewCallback = callback;
+		if (callback == null) {
+			callbackBuffers.clear();
+		}
+	}
+
+	@Override
+	public void addCallbackBuffer(byte[] buffer) {
+		callbackBuffers.add(buffer);
+	}
+
+	@Override
+	public boolean setImageCallback(ImageCallback callback, int maxFrames) {
+		imageCallback = callback;
+		if (callback != null && maxFrames != maxImageFrames) {
+			// the reader keeps one image spare for acquireLatestImage
+			maxImageFrames = Math.max(1, maxFrames);
+			sessionStale = true;
+			if (previewRequested) {
+				createSession();
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public void autoFocus(FocusCallback callback) {
+		if (session == null || toAfMode(focusMode) == CameraMetadata.CONTROL_AF_MODE_OFF) {
+			// fixed focus
+			callback.onFocused(true);
+			return;
+		}
+		focusCallback = callback;
+		focusTriggered = false;
+		triggerFocus(CameraMetadata.CONTROL_AF_TRIGGER_START);
+	}
+
+	@Override
+	public void cancelAutoFocus() {
+		if (focusCallback != null || focusTriggered) {
+			focusCallback = null;
+			focusTriggered = false;
+			if (session != null) {
+				triggerFocus(CameraMetadata.CONTROL_AF_TRIGGER_CANCEL);
+			}
+		}
+	}
+
+	private void triggerFocus(int trigger) {
+		try {
+			CaptureRequest.Builder builder = createRequest(
+					android.hardware.camera2.CameraDevice.TEMPLATE_PREVIEW, false);
+			builder.set(CaptureRequest.CONTROL_AF_TRIGGER, trigger);
+			session.capture(builder.build(), new CameraCaptureSession.CaptureCallback() {
+				@Override
+				public void onCaptureCompleted(CameraCaptureSession s, CaptureRequest request,
+						TotalCaptureResult result) {
+					// AF state of the repeating results counts from now on
+					focusTriggered = focusCallback != null;
+				}
+			}, handler);
+		} catch (CameraAccessException e) {
+			Log.e(TAG, "Error triggering focus", e);
+		} catch (IllegalStateException e) {
+			Log.e(TAG, "Error triggering focus", e);
+		}
+	}
+
+	@Override
+	public void takePicture(PictureCallback callback) {
+		if (device == null || disconnected) {
+			throw new RuntimeException("takePicture failed, camera closed");
+		}
+		pictureCallback = callback;
+		if (session == null || configuring || sessionStale) {
+			// taken once the session with the new picture size is configured
+			picturePending = true;
+			if (!configuring) {
+				createSession();
+			}
+			return;
+		}
+		captureStill();
+	}
+
+	private void captureStill() {
+		picturePending = false;
+		try {
+			CaptureRequest.Builder builder = createRequest(
+					android.hardware.camera2.CameraDevice.TEMPLATE_STILL_CAPTURE, false);
+			builder.addTarget(jpegReader.getSurface());
+			session.capture(builder.build(), new CameraCaptureSession.CaptureCallback() {
+				@Override
+				public void onCaptureStarted(CameraCaptureSession s, CaptureRequest request,
+						long timestamp, long frameNumber) {
+					PictureCallback callback = pictureCallback;
+					if (callback != null) {
+						callback.onShutter();
+					}
+				}
+
+				@Override
+				public void onCaptureFailed(CameraCaptureSession s, CaptureRequest request,
+						android.hardware.camera2.CaptureFailure failure) {
+					Log.e(TAG, "Still capture failed: " + failure.getReason());
+				}
+			}, handler);
+		} catch (CameraAccessException e) {
+			throw new RuntimeException("takePicture failed", e);
+		}
+	}
+
+	@Override
+	public void release() {
+		previewRequested = false;
+		previewCallback = null;
+		imageCallback = null;
+		focusCallback = null;
+		pictureCallback = null;
+		callbackBuffers.clear();
+		closeSession();
+		if (device != null) {
+			device.close();
+			device = null;
+		}
+		closeReaders();
+		stateThread.quitSafely();
+	}
+
+	private void closeSession() {
+		if (session != null) {
+			session.close();
+			session = null;
+		}
+		repeating = false;
+		configuring = false;
+		sessionStale = true;
+	}
+
+	private void closeReaders() {
+		synchronized (freeFrames) {
+			freeFrames.clear();
+		}
+		if (analysisReader != null) {
+			analysisReader.close();
+			analysisReader = null;
+		}
+		if (jpegReader != null) {
+			jpegReader.close();
+			jpegReader = null;
+		}
+	}
+
+	/**
+	 * Creates a session with the preview, analysis and JPEG streams.
+	 */
+	private void createSession() {
+		if (device == null || disconnected) {
+			return;
+		}
+		closeSession();
+		closeReaders();
+		analysisReader = ImageReader.newInstance(previewWidth, previewHeight,
+				ImageFormat.YUV_420_888, maxImageFrames + 1);
+		analysisReader.setOnImageAvailableListener(analysisListener, handler);
+		jpegReader = ImageReader.newInstance(pictureWidth, pictureHeight, ImageFormat.JPEG,
+				JPEG_MAX_IMAGES);
+		jpegReader.setOnImageAvailableListener(jpegListener, handler);
+		configureSession(previewSurface != null && previewSurface.isValid());
+	}
+
+	private void configureSession(final boolean withPreview) {
+		List<Surface> surfaces = new ArrayList<Surface>(3);
+		surfaces.add(analysisReader.getSurface());
+		surfaces.add(jpegReader.getSurface());
+		if (withPreview) {
+			surfaces.add(previewSurface);
+		}
+		final ImageReader sessionReader = analysisReader;
+		configuring = true;
+		try {
+			device.createCaptureSession(surfaces, new CameraCaptureSession.StateCallback() {
+				@Override
+				public void onConfigured(CameraCaptureSession configured) {
+					if (sessionReader != analysisReader || device == null) {
+						// superseded while configuring
+						configured.close();
+						return;
+					}
+					configuring = false;
+					sessionStale = false;
+					session = configured;
+					previewInSession = withPreview;
+					if (previewRequested) {
+						setRepeatingRequest();
+					}
+					if (picturePending) {
+						captureStill();
+					}
+				}
+
+				@Override
+				public void onConfigureFailed(CameraCaptureSession failed) {
+					if (sessionReader != analysisReader || device == null) {
+						return;
+					}
+					if (withPreview) {
+						// e.g. a surface size the camera can't output,
+						// frames and stills still work without the preview
+						Log.e(TAG, "Session with preview surface failed, retrying without it");
+						configureSession(false);
+					} else {
+						Log.e(TAG, "Capture session configuration failed");
+						configuring = false;
+					}
+				}
+			}, handler);
+		} catch (CameraAccessException e) {
+			configuring = false;
+			Log.e(TAG, "Error creating capture session", e);
+		}
+	}
+
+	private CaptureRequest.Builder createRequest(int template, boolean repeatingTargets)
+			throws CameraAccessException {
+		CaptureRequest.Builder builder = device.createCaptureRequest(template);
+		if (repeatingTargets || template == android.hardware.camera2.CameraDevice.TEMPLATE_PREVIEW) {
+			builder.addTarget(analysisReader.getSurface());
+			if (previewInSession) {
+				builder.addTarget(previewSurface);
+			}
+		}
+		builder.set(CaptureRequest.CONTROL_MODE, CameraMetadata.CONTROL_MODE_AUTO);
+		builder.set(CaptureRequest.CONTROL_AWB_MODE, CameraMetadata.CONTROL_AWB_MODE_AUTO);
+		int afMode = toAfMode(focusMode);
+		builder.set(CaptureRequest.CONTROL_AF_MODE, afMode);
+		if (focusRegions != null && afMode == CameraMetadata.CONTROL_AF_MODE_AUTO
+				&& capabilities.getMaxFocusAreas() > 0) {
+			builder.set(CaptureRequest.CONTROL_AF_REGIONS, focusRegions);
+		}
+		if (fpsRange != null) {
+			builder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE,
+					new Range<Integer>(fpsRange.getMin() / 1000, fpsRange.getMax() / 1000));
+		}
+		return builder;
+	}
+
+	private void setRepeatingRequest() {
+		if (session == null) {
+			return;
+		}
+		try {
+			CaptureRequest.Builder builder = createRequest(
+					android.hardware.camera2.CameraDevice.TEMPLATE_PREVIEW, true);
+			session.setRepeatingRequest(builder.build(), repeatingCallback, handler);
+			repeating = true;
+		} catch (CameraAccessException e) {
+			Log.e(TAG, "Error starting preview", e);
+		} catch (IllegalStateException e) {
+			Log.e(TAG, "Error starting preview", e);
+		}
+	}
+
+	/**
+	 * Completes a focus request when the AF state of the preview results
+	 * locks.
+	 */
+	private final CameraCaptureSession.CaptureCallback repeatingCallback =
+			new CameraCaptureSession.CaptureCallback() {
+		@Override
+		public void onCaptureCompleted(CameraCaptureSession s, CaptureRequest request,
+				TotalCaptureResult result) {
+			FocusCallback callback = focusCallback;
+			if (callback == null || !focusTriggered) {
+				return;
+			}
+			Integer state = result.get(CaptureResult.CONTROL_AF_STATE);
+			if (state == null || state == CameraMetadata.CONTROL_AF_STATE_FOCUSED_LOCKED
+					|| state == CameraMetadata.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED) {
+				focusCallback = null;
+				focusTriggered = false;
+				callback.onFocused(state == null
+						|| state == CameraMetadata.CONTROL_AF_STATE_FOCUSED_LOCKED);
+			}
+		}
+	};
+
+	private final ImageReader.OnImageAvailableListener analysisListener =
+			new ImageReader.OnImageAvailableListener() {
+		@Override
+		public void onImageAvailable(ImageReader reader) {
+			Image image;
+			try {
+				image = reader.acquireLatestImage();
+			} catch (IllegalStateException e) {
+				// every image is held by the image callback
+				droppedFrames++;
+				return;
+			}
+			if (image == null) {
+				return;
+			}
+			ImageCallback images = imageCallback;
+			if (images != null) {
+				images.onImageFrame(wrap(image));
+				return;
+			}
+			PreviewCallback callback = previewCallback;
+			byte[] buffer = callback != null ? callbackBuffers.poll() : null;
+			if (buffer == null) {
+				if (callback != null) {
+					droppedFrames++;
+				}
+				image.close();
+				return;
+			}
+			// byte[] frames are a copy of the direct frame
+			DirectFrame frame = wrap(image);
+			boolean copied = frame.copyToNv21(buffer);
+			frame.release();
+			if (!copied) {
+				// buffer too small for the frame, keep it for the next one
+				callbackBuffers.add(buffer);
+				droppedFrames++;
+				return;
+			}
+			callback.onPreviewFrame(buffer);
+		}
+	};
+
+	private final ImageReader.OnImageAvailableListener jpegListener =
+			new ImageReader.OnImageAvailableListener() {
+		@Override
+		public void onImageAvailable(ImageReader reader) {
+			Image image = reader.acquireNextImage();
+			if (image == null) {
+				return;
+			}
+			ByteBuffer buffer = image.getPlanes()[0].getBuffer();
+			byte[] jpeg = new byte[buffer.remaining()];
+			buffer.get(jpeg);
+			image.close();
+			PictureCallback callback = pictureCallback;
+			pictureCallback = null;
+			if (callback != null) {
+				callback.onPictureTaken(jpeg);
+			}
+		}
+	};
+
+	private DirectFrame wrap(Image image) {
+		DirectFrame frame;
+		synchronized (freeFrames) {
+			frame = freeFrames.poll();
+		}
+		if (frame == null) {
+			frame = new DirectFrame(frameOwner);
+		}
+		Image.Plane[] planes = image.getPlanes();
+		frame.set(image.getFormat(), image.getWidth(), image.getHeight(), planes.length,
+				image.getTimestamp());
+		for (int i = 0; i < planes.length && i < 3; i++) {
+			ByteBuffer buffer = planes[i].getBuffer();
+			frame.setPlane(i, buffer, buffer.position(), planes[i].getRowStride(),
+					planes[i].getPixelStride());
+		}
+		frame.source = image;
+		return frame;
+	}
+
+	private final DirectFrame.Owner frameOwner = new DirectFrame.Owner() {
+		@Override
+		public void releaseFrame(DirectFrame frame) {
+			Image image;
+			synchronized (freeFrames) {
+				image = (Image) frame.source;
+				if (image == null) {
+					// released twice
+					return;
+				}
+				frame.source = null;
+				freeFrames.add(frame);
+			}
+			image.close();
+		}
+	};
+
+}
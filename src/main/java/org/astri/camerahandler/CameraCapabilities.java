@@ -0,0 +1,73 @@
+package org.astri.camerahandler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Sizes and modes supported by a {@link CameraDevice}. Read once per opened
+ * camera, the lists don't change while it is open.
+ */
+public final class CameraCapabilities {
+
+	private final List<CameraSize> previewSizes;
+	private final List<CameraSize> pictureSizes;
+	private final List<String> focusModes;
+	private final int maxFocusAreas;
+	private final List<CameraFpsRange> previewFpsRanges;
+
+	/**
+	 * @param focusModes focus mode names of Camera.Parameters, may be empty
+	 */
+	public CameraCapabilities(List<CameraSize> previewSizes, List<CameraSize> pictureSizes,
+			List<String> focusModes, int maxFocusAreas) {
+		this(previewSizes, pictureSizes, focusModes, maxFocusAreas,
+				Collections.<CameraFpsRange>emptyList());
+	}
+
+	/**
+	 * @param previewFpsRanges supported preview frame rates, empty if the
+	 * camera doesn't report them
+	 */
+	public CameraCapabilities(List<CameraSize> previewSizes, List<CameraSize> pictureSizes,
+			List<String> focusModes, int maxFocusAreas, List<CameraFpsRange> previewFpsRanges) {
+		this.previewSizes = Collections.unmodifiableList(new ArrayList<CameraSize>(previewSizes));
+		this.pictureSizes = Collections.unmodifiableList(new ArrayList<CameraSize>(pictureSizes));
+		this.focusModes = Collections.unmodifiableList(new ArrayList<String>(focusModes));
+		this.maxFocusAreas = maxFocusAreas;
+		this.previewFpsRanges = Collections.unmodifiableList(
+				new ArrayList<CameraFpsRange>(previewFpsRanges));
+	}
+
+	/**
+	 * @return supported preview sizes in the order the camera reports them
+	 */
+	public List<CameraSize> getPreviewSizes() {
+		return previewSizes;
+	}
+
+	public List<CameraSize> getPictureSizes() {
+		return pictureSizes;
+	}
+
+	public List<String> getFocusModes() {
+		return focusModes;
+	}
+
+	public int getMaxFocusAreas() {
+		return maxFocusAreas;
+	}
+
+	public List<CameraFpsRange> getPreviewFpsRanges() {
+		return previewFpsRanges;
+	}
+
+	public boolean isPreviewSizeSupported(int width, int height) {
+		return previewSizes.contains(new CameraSize(width, height));
+	}
+
+	public boolean isPictureSizeSupported(int width, int height) {
+		return pictureSizes.contains(new CameraSize(width, height));
+	}
+
+}
@@ -0,0 +1,126 @@
+package org.astri.camerahandler;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+
+/**
+ * Camera as used by {@link CameraHandler} and {@link PhotoTaker}, so that
+ * the handler can run on another camera implementation than
+ * android.hardware.Camera, e.g. {@link Camera2Device} or
+ * {@link FakeCameraDevice} for measuring the frame pipeline off device.
+ * <p>
+ * Methods follow android.hardware.Camera: preview frames are delivered to
+ * buffers given with {@link #addCallbackBuffer(byte[])} and a frame is
+ * dropped when no buffer is queued. Preview stops when a picture is taken,
+ * except on Camera2, so startPreview must not restart a running preview.
+ * Internal interface, it may change between versions.
+ */
+public interface CameraDevice {
+
+	/**
+	 * Enumerates and opens cameras.
+	 */
+	interface Provider {
+
+		int getCameraCount();
+
+		/**
+		 * @return CameraInfo.CAMERA_FACING_BACK or CAMERA_FACING_FRONT
+		 */
+		int getFacing(int cameraIndex);
+
+		/**
+		 * @return clockwise rotation of the sensor image in degrees
+		 */
+		int getOrientation(int cameraIndex);
+
+		/**
+		 * @param callbackExecutor runs the device callbacks, Camera1 ignores it
+		 * and calls back on the looper of the opening thread
+		 * @throws RuntimeException if the camera can't be opened
+		 */
+		CameraDevice open(int cameraIndex, Executor callbackExecutor);
+	}
+
+	interface PreviewCallback {
+		/**
+		 * @param data buffer given with addCallbackBuffer, holding the frame
+		 */
+		void onPreviewFrame(byte[] data);
+	}
+
+	interface ImageCallback {
+		/**
+		 * @param frame planes in the camera's buffers, must be released
+		 */
+		void onImageFrame(DirectFrame frame);
+	}
+
+	interface FocusCallback {
+		void onFocused(boolean success);
+	}
+
+	interface PictureCallback {
+		/**
+		 * Called when the exposure of the picture starts, before
+		 * onPictureTaken. Camera1 doesn't report it.
+		 */
+		void onShutter();
+
+		/**
+		 * Called when the JPEG is ready. Preview is stopped at this point on
+		 * Camera1 and keeps running on Camera2.
+		 */
+		void onPictureTaken(byte[] jpeg);
+	}
+
+	CameraCapabilities getCapabilities();
+
+	/**
+	 * @return current settings, a new object each call
+	 */
+	CameraSettings getSettings();
+
+	/**
+	 * Applies the values set in the settings at once.
+	 * @throws RuntimeException if the camera rejects a value
+	 */
+	void applySettings(CameraSettings settings);
+
+	void setDisplayOrientation(int degrees);
+
+	/**
+	 * @param display SurfaceHolder for Camera1, ignored by devices without
+	 * a display
+	 */
+	void setPreviewDisplay(Object display) throws IOException;
+
+	void startPreview();
+
+	void stopPreview();
+
+	/**
+	 * @param callback receives frames in queued buffers, null to stop
+	 */
+	void setPreviewCallback(PreviewCallback callback);
+
+	void addCallbackBuffer(byte[] buffer);
+
+	/**
+	 * Delivers preview frames in the camera's own buffers instead of
+	 * copying them to callback buffers.
+	 * @param callback null to stop
+	 * @param maxFrames frames the receiver may hold at once
+	 * @return false if the device only delivers to callback buffers
+	 */
+	boolean setImageCallback(ImageCallback callback, int maxFrames);
+
+	void autoFocus(FocusCallback callback);
+
+	void cancelAutoFocus();
+
+	void takePicture(PictureCallback callback);
+
+	void release();
+
+}
@@ -0,0 +1,44 @@
+package org.astri.camerahandler;
+
+/**
+ * Preview frame rate range of a {@link CameraDevice}, in frames per second
+ * scaled by 1000 as in Camera.Parameters.
+ */
+public final class CameraFpsRange {
+
+	private final int min;
+	private final int max;
+
+	public CameraFpsRange(int min, int max) {
+		this.min = min;
+		this.max = max;
+	}
+
+	public int getMin() {
+		return min;
+	}
+
+	public int getMax() {
+		return max;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof CameraFpsRange)) {
+			return false;
+		}
+		CameraFpsRange other = (CameraFpsRange) o;
+		return min == other.min && max == other.max;
+	}
+
+	@Override
+	public int hashCode() {
+		return min * 32713 + max;
+	}
+
+	@Override
+	public String toString() {
+		return "[" + min / 1000f + ", " + max / 1000f + "]";
+	}
+
+}
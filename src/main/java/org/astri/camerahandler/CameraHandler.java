@@ -1,8 +1,20 @@
 package org.astri.camerahandler;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.content.Context;
 import android.graphics.ImageFormat;
@@ -12,8 +24,9 @@ import android.graphics.Rect;
 import android.graphics.RectF;
 import android.hardware.Camera;
 import android.hardware.Camera.CameraInfo;
-import android.hardware.Camera.Parameters;
-import android.hardware.Camera.Size;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.view.Display;
 import android.view.SurfaceHolder;
@@ -27,39 +40,255 @@ public class CameraHandler {
 	public static final int DEFAULT_FRAME_WIDTH = 640;
 	public static final int DEFAULT_FRAME_HEIGHT = 480;
 	
-	private static int FrameWidth = DEFAULT_FRAME_WIDTH;
-	private static int FrameHeight = DEFAULT_FRAME_HEIGHT;
+	/** No camera open */
+	public static final int STATE_CLOSED = 0;
+	/** Camera being opened and configured */
+	public static final int STATE_OPENING = 1;
+	/** Preview running */
+	public static final int STATE_PREVIEW = 2;
+	/** Preview running, photo or marker captures in progress */
+	public static final int STATE_CAPTURING = 3;
 	
-	private SurfaceHolder previewHolder = null;
-	private Camera camera;
+	/**
+	 * Changed on the camera thread, so the camera calls never race, but read
+	 * from any thread. Transitions are compare and set, the capture states
+	 * change only while preview runs.
+	 */
+	private final AtomicInteger state = new AtomicInteger(STATE_CLOSED);
+	
+	/** Preview size asked for with the constructor or setPreviewSize */
+	private volatile CameraSize requestedFrameSize;
+	/** Preview size of the open camera, the requested size before */
+	private volatile CameraSize frameSize;
+	
+	private volatile SurfaceHolder previewHolder = null;
+	private volatile CameraDevice camera;
+	/**
+	 * Where cameras are opened from, with camera info and capabilities
+	 * remembered across opens and, for the platform cameras, across runs.
+	 */
+	private static final Map<File, CachedCameraProvider> sharedProviders =
+			new HashMap<File, CachedCameraProvider>();
+	private volatile CachedCameraProvider cameraProvider;
+	private final File cacheDir;
 	private CameraInfo cameraInfo = new CameraInfo();
-	private boolean inPreview;
-	private int currentCameraFacing = CameraInfo.CAMERA_FACING_BACK;
+	private volatile int currentCameraFacing = CameraInfo.CAMERA_FACING_BACK;
     private int imageOrientation = 0;
 
 	/**
-	 * Buffer for camera driver to store preview data, created statically so
-	 * that it doesn't need to be re-allocated each frame.
+	 * Buffers for camera driver to store preview data, created once per
+	 * camera session so that they don't need to be re-allocated each frame.
+	 */
+	private volatile PreviewBufferPool mPreviewBufferPool;
+	private volatile int previewBufferCount = PreviewBufferPool.DEFAULT_BUFFER_COUNT;
+	private volatile boolean manualFrameRelease = false;
+
+	/**
+	 * Optional asynchronous stage between the camera callback and the data
+	 * listener, frames are delivered on the camera thread when null.
+	 */
+	private volatile FramePipeline framePipeline;
+
+	/**
+	 * Format of frames delivered to the data listener, NV21 frames are
+	 * converted when set to one of the RGB formats of {@link YuvConverter}.
+	 */
+	private volatile int frameOutputFormat = YuvConverter.FORMAT_NV21;
+	private volatile YuvConverter yuvConverter = new YuvConverter();
+	private ExecutorService conversionExecutor;
+
+	/**
+	 * Conversion and rotation output buffers, one per delivering thread so
+	 * that pipeline workers can convert concurrently without allocating per
+	 * frame.
+	 */
+	private final ThreadLocal<byte[]> convertedBuffer = new ThreadLocal<byte[]>();
+	private final ThreadLocal<byte[]> roiBuffer = new ThreadLocal<byte[]>();
+
+	/**
+	 * Region cropped and scaled from NV21 frames before delivery, whole
+	 * frames are delivered when null.
+	 */
+	private volatile FrameRoi frameRoi;
+
+	/**
+	 * When set frames are rotated by the camera orientation before delivery,
+	 * front camera frames optionally mirrored.
 	 */
-	private byte[] mPreviewBuffer = null;
-	private byte[] mPreviewBuffer2 = null;
-	private byte[] mPreviewBuffer3 = null;
-	private byte[] mPreviewBuffer4 = null;
-	private int mPreviewBufferIdx;
+	private volatile boolean uprightFrames = false;
+	private volatile boolean mirrorFrontCamera = false;
+
+	/**
+	 * Transform applied to frames delivered to the data listener, rebuilt
+	 * when the region, output format or rotation settings change.
+	 */
+	private volatile FrameTransform frameTransform = FrameTransform.NONE;
+
+	/**
+	 * Frame and capture timing, recorded lock free.
+	 */
+	private final CameraMetrics metrics = new CameraMetrics();
+
+	/**
+	 * Additional frame subscribers with their own rate, format and region.
+	 */
+	private final FrameFanOut frameFanOut = new FrameFanOut(metrics);
 
 	private int mPreviewWidth;
 	private int mPreviewHeight;
 
-	private CameraDataListener dataListener;
+	/**
+	 * Preview frame geometry, rebuilt only when the camera parameters change
+	 * so that the frame callback does not need to call getParameters().
+	 */
+	private volatile FrameDescriptor frameDescriptor;
+
+	private volatile CameraDataListener dataListener;
 	
-	private PhotoTaker photoTaker;
-	private PhotoTaker markerTaker;
+	private volatile PhotoTaker photoTaker;
+	private volatile PhotoTaker markerTaker;
+	private volatile PhotoDecoder photoDecoder;
+	private volatile PhotoDecoder markerDecoder;
+
+	/**
+	 * Queues photo and marker captures, camera thread only.
+	 */
+	private final CaptureScheduler captureScheduler = new CaptureScheduler(metrics);
+
+	/**
+	 * Steps preview size and frame rate with the listener load, levels and
+	 * windows on the camera thread only.
+	 */
+	private final PreviewQualityController qualityController = new PreviewQualityController();
+
+	/** Preview and picture sizes, memoised per camera */
+	private final SizeNegotiator sizeNegotiator = new SizeNegotiator();
+	/** Index of the open camera, camera thread only */
+	private int cameraIndex = -1;
+	private volatile boolean adaptivePreview = false;
+
+	/** Encoder for the next recording, null for H.264 with MediaCodec */
+	private volatile VideoEncoder videoEncoder;
+	/** Records preview frames, null when not recording. Set on the camera thread. */
+	private volatile VideoRecorder videoRecorder;
+	/** Compressed recent frames, null when disabled */
+	private volatile FrameHistory frameHistory;
+
+	/**
+	 * Recent preview frames that markers are taken from without takePicture,
+	 * null when zero shutter lag markers are disabled. Camera thread only.
+	 */
+	private PreviewFrameRing markerFrameRing;
+	private volatile int markerRingSize = 0;
+	private volatile boolean markerPickSharpest = false;
+	private volatile int markerMinPixels = 0;
+
+	/** Preview frames older than this are not used as markers */
+	private static final long MARKER_FRAME_MAX_AGE_NANOS = 500 * 1000000L;
+
+	/** Reused marker output, decode thread only */
+	private byte[] markerPixels;
+	private ByteBuffer markerDirectBuffer;
+	/** Preview marker scaled to the decoder's target size, decode thread only */
+	private byte[] markerScaled;
+
+	/** Incremented to drop markers from preview that are not yet delivered */
+	private final AtomicInteger previewMarkerGeneration = new AtomicInteger();
+
+	/**
+	 * Sharpness and motion of preview frames, computed on the camera thread
+	 * when analysis is enabled or a capture waits for a steady camera. One
+	 * result per preview buffer, so pipeline workers read their own frame's.
+	 */
+	private final FrameAnalyzer frameAnalyzer = new FrameAnalyzer();
+	private volatile boolean frameAnalysisEnabled = false;
+
+	/**
+	 * Per preview buffer data of the current buffer pool: arrival time and
+	 * analysis of the frame in the buffer.
+	 */
+	private volatile FrameSlots frameSlots;
+
+	/**
+	 * Frames go to the {@link DirectFrameListener} in the camera's buffers,
+	 * without preview buffer pool. Camera thread only.
+	 */
+	private boolean directFrames;
+	/**
+	 * Direct buffers that preview buffers are copied to for a
+	 * {@link DirectFrameListener} when the camera only fills byte arrays.
+	 */
+	private volatile DirectFramePool directFramePool;
+	/** Luma copied from direct frames for analysis, camera thread only */
+	private byte[] directLuma;
+	private final FrameAnalysis directAnalysis = new FrameAnalysis();
+
+	/** Start of the current resume, 0 once its first frame arrived */
+	private long resumeStartNanos;
+	/** Preview buffers allocated while the camera opens, camera thread only */
+	private FutureTask<byte[][]> preallocatedBuffers;
+	private int preallocatedIndex = -1;
+
+	/**
+	 * Closed buffer pool of the camera switched from, reused by the next
+	 * camera if it needs the same buffers. Camera thread only.
+	 */
+	private PreviewBufferPool switchBufferPool;
+	/** Camera the preview buffer pool queues buffers to */
+	private volatile CameraDevice bufferCamera;
+	/** Arrival of the latest frame, camera thread only */
+	private long lastFrameNanos;
+	/** Last frame of the camera switched from, 0 when not switching */
+	private long switchFromNanos;
+
+	/** Preview gap of a camera switch that is logged as too slow */
+	private static final long SWITCH_GAP_TARGET_NANOS = 300 * 1000000L;
+
+	/** Capture waiting for a steady camera, camera thread only */
+	private SteadyCapture steadyCapture;
+
+	/** Consecutive steady frames before a steady capture is taken */
+	private static final int STEADY_FRAME_COUNT = 2;
+
+	/**
+	 * Decodes and delivers photos and markers in capture order, so that
+	 * preview restarts without waiting for the decode.
+	 */
+	private ExecutorService photoDecodeExecutor;
 
 	private int displayWidth;
 	private int displayHeight;
 	
-	private String preferredFocusMode = null;
-	
+	private volatile String preferredFocusMode = null;
+
+	/**
+	 * Thread owning the camera. The camera is opened on this thread, so all
+	 * camera callbacks, including preview frames, are delivered on it
+	 * instead of the UI thread.
+	 */
+	private CameraThread cameraThread;
+	/** Thread quit by release, finishing its task, guarded by this */
+	private CameraThread quittingThread;
+	private final CameraThread.Factory cameraThreadFactory;
+
+	/**
+	 * Given to camera providers that don't call back on the opening thread's
+	 * looper, so that their callbacks also run on the camera thread.
+	 */
+	private final Executor cameraCallbackExecutor = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			CameraThread thread;
+			synchronized (CameraHandler.this) {
+				thread = cameraThread;
+			}
+			// callbacks of a camera still closing after release are dropped
+			if (thread != null) {
+				thread.post(command);
+			}
+		}
+	};
+
 	public CameraHandler(Context context) {
 		this(CameraInfo.CAMERA_FACING_BACK, context);
 	}
@@ -68,89 +297,853 @@ public class CameraHandler {
 		this(DEFAULT_FRAME_WIDTH, DEFAULT_FRAME_HEIGHT,
 				cameraFacing, context);
 	}
-	
-	public CameraHandler(int frameWidth, int frameHeight, int cameraFacing, Context context) {
-		
-		CameraHandler.FrameWidth = frameWidth;
-		CameraHandler.FrameHeight = frameHeight;
-		this.currentCameraFacing = cameraFacing;
-		
-		WindowManager wm = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
-		Display display = wm.getDefaultDisplay();
-		Point size = new Point();
-		display.getSize(size);
-		displayWidth = size.y;
-		displayHeight = size.x;
-		
+	
+	public CameraHandler(int frameWidth, int frameHeight, int cameraFacing, Context context) {
+		this(frameWidth, frameHeight, cameraFacing, context.getCacheDir(),
+				LooperCameraThread.FACTORY);
+		
+		WindowManager wm = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
+		Display display = wm.getDefaultDisplay();
+		Point size = new Point();
+		display.getSize(size);
+		displayWidth = size.y;
+		displayHeight = size.x;
+		
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+				&& Camera2Device.isSupported(context)) {
+			cameraProvider = createCachedProvider(Camera2Device.provider(context), "camera2");
+		} else {
+			cameraProvider = createCachedProvider(Camera1Device.PROVIDER, "camera1");
+		}
+	}
+	
+	/**
+	 * Handler running on a plain JVM, without display or Android camera:
+	 * cameras come from the provider, e.g. {@link FakeCameraDevice}, and the
+	 * camera thread is a plain Java thread. Touch focus maps the frame size.
+	 */
+	CameraHandler(int frameWidth, int frameHeight, int cameraFacing, CameraDevice.Provider provider) {
+		this(frameWidth, frameHeight, cameraFacing, null, ExecutorCameraThread.FACTORY);
+		displayWidth = frameWidth;
+		displayHeight = frameHeight;
+		cameraProvider = createCachedProvider(provider, null);
+	}
+	
+	private CameraHandler(int frameWidth, int frameHeight, int cameraFacing, File cacheDir,
+			CameraThread.Factory cameraThreadFactory) {
+		this.requestedFrameSize = new CameraSize(frameWidth, frameHeight);
+		this.frameSize = requestedFrameSize;
+		this.currentCameraFacing = cameraFacing;
+		this.cacheDir = cacheDir;
+		this.cameraThreadFactory = cameraThreadFactory;
+		captureScheduler.setActivityListener(captureActivityListener);
+	}
+	
+	/**
+	 * @param cacheName name of the file the camera info is kept in, null to
+	 * keep it in memory only, e.g. for simulated cameras
+	 */
+	private CachedCameraProvider createCachedProvider(CameraDevice.Provider provider, String cacheName) {
+		if (cacheName == null || cacheDir == null) {
+			return new CachedCameraProvider(provider, null, Build.FINGERPRINT);
+		}
+		File cacheFile = new File(cacheDir, "camera_info_" + cacheName);
+		// handlers share the provider of a file so that they don't overwrite it
+		synchronized (sharedProviders) {
+			CachedCameraProvider shared = sharedProviders.get(cacheFile);
+			if (shared == null || shared.getDelegate() != provider) {
+				shared = new CachedCameraProvider(provider, cacheFile, Build.FINGERPRINT);
+				sharedProviders.put(cacheFile, shared);
+			}
+			return shared;
+		}
+	}
+
+	/**
+	 * @return the open Camera1 camera, null if the camera is closed or
+	 * provided by another {@link CameraDevice.Provider}
+	 */
+	public Camera getCamera() {
+		CameraDevice device = camera;
+		return device instanceof Camera1Device ? ((Camera1Device) device).getCamera() : null;
+	}
+	
+	public CameraDevice getCameraDevice() {
+		return camera;
+	}
+	
+	/**
+	 * Sets where cameras are opened from, e.g. {@link FakeCameraDevice} to
+	 * drive the handler with simulated frames. Takes effect when the camera
+	 * is resumed next time.
+	 * @param provider null for android.hardware.Camera
+	 */
+	public void setCameraProvider(final CameraDevice.Provider provider) {
+		runOnCameraThread(new Callable<Void>() {
+			@Override
+			public Void call() {
+				if (provider == null || provider == Camera1Device.PROVIDER) {
+					cameraProvider = createCachedProvider(Camera1Device.PROVIDER, "camera1");
+				} else {
+					cameraProvider = createCachedProvider(provider, null);
+				}
+				return null;
+			}
+		});
+	}
+	
+	public CameraInfo getCameraInfo() {
+		return cameraInfo;
+	}
+	
+	public Point getFrameSize() {
+		CameraSize size = frameSize;
+		return new Point(size.getWidth(), size.getHeight());
+	}
+	
+	/**
+	 * @return STATE_CLOSED, STATE_OPENING, STATE_PREVIEW or STATE_CAPTURING
+	 */
+	public int getState() {
+		return state.get();
+	}
+	
+	private boolean isPreviewRunning() {
+		int current = state.get();
+		return current == STATE_PREVIEW || current == STATE_CAPTURING;
+	}
+	
+	private final CaptureScheduler.ActivityListener captureActivityListener =
+			new CaptureScheduler.ActivityListener() {
+		@Override
+		public void capturesActive(boolean active) {
+			if (active) {
+				state.compareAndSet(STATE_PREVIEW, STATE_CAPTURING);
+			} else {
+				state.compareAndSet(STATE_CAPTURING, STATE_PREVIEW);
+			}
+		}
+	};
+	
+	public int getCameraNumber() {
+		return cameraProvider.getCameraCount();
+	}
+	
+	public void setPreviewHolder(SurfaceView preview) {
+		previewHolder = preview.getHolder();
+		previewHolder.addCallback(surfaceCallback);
+	}
+
+	/**
+	 * @param listener takes preview frames, photos and markers, a
+	 * {@link DirectFrameListener} takes frames in direct buffers
+	 * @throws IllegalStateException if the listener is a
+	 * {@link DirectFrameListener} while a feature its frames skip is in use
+	 */
+	public void setDataListener(CameraDataListener listener) {
+		if (listener instanceof DirectFrameListener) {
+			String feature = getDirectFrameConflict();
+			if (feature != null) {
+				throw new IllegalStateException(feature + " not available with direct frames");
+			}
+		}
+		this.dataListener = listener;
+		photoTaker = new PhotoTaker(photoListener, PhotoTaker.PHOTO_ASPECT_RATIO, 
+				PhotoTaker.PHOTO_ASPECT_RATIO_LIMIT, PhotoTaker.PHOTO_MAX_PIXELS);
+		markerTaker = new PhotoTaker(markerListener, PhotoTaker.MARKER_ASPECT_RATIO,
+				PhotoTaker.MARKER_ASPECT_RATIO_LIMIT, PhotoTaker.MARKER_MAX_PIXELS);
+		if (photoDecoder != null) {
+			photoTaker.setDecoder(photoDecoder);
+		}
+		if (markerDecoder != null) {
+			markerTaker.setDecoder(markerDecoder);
+		}
+		photoTaker.setCaptureListener(captureScheduler);
+		markerTaker.setCaptureListener(captureScheduler);
+		photoTaker.setMetrics(metrics);
+		markerTaker.setMetrics(metrics);
+		ExecutorService decodeExecutor = getPhotoDecodeExecutor();
+		photoTaker.setDecodeExecutor(decodeExecutor);
+		markerTaker.setDecodeExecutor(decodeExecutor);
+	}
+	
+	/**
+	 * @return feature in use that direct frames skip, null if none
+	 */
+	private String getDirectFrameConflict() {
+		if (markerRingSize > 0) {
+			return "Zero shutter lag markers are";
+		}
+		if (framePipeline != null) {
+			return "The frame pipeline is";
+		}
+		if (frameFanOut.hasSubscriptions()) {
+			return "Frame subscriptions are";
+		}
+		if (frameRoi != null) {
+			return "A frame region is";
+		}
+		if (frameOutputFormat != YuvConverter.FORMAT_NV21) {
+			return "RGB frame output is";
+		}
+		if (uprightFrames) {
+			return "Upright frames are";
+		}
+		return null;
+	}
+
+	/**
+	 * @throws IllegalStateException if the data listener is a
+	 * {@link DirectFrameListener}
+	 */
+	private void checkNoDirectFrames(String feature) {
+		if (dataListener instanceof DirectFrameListener) {
+			throw new IllegalStateException(feature + " not available with direct frames");
+		}
+	}
+
+	private synchronized ExecutorService getPhotoDecodeExecutor() {
+		if (photoDecodeExecutor == null) {
+			photoDecodeExecutor = Executors.newSingleThreadExecutor();
+		}
+		return photoDecodeExecutor;
+	}
+	
+	/**
+	 * Drops photos and markers that are requested but not yet delivered.
+	 * Photos and markers are decoded and delivered on a background thread,
+	 * so a capture can still be in flight after the preview has restarted.
+	 */
+	public void cancelPendingCaptures() {
+		if (photoTaker != null) {
+			photoTaker.cancelPendingCaptures();
+		}
+		if (markerTaker != null) {
+			markerTaker.cancelPendingCaptures();
+		}
+		previewMarkerGeneration.incrementAndGet();
+	}
+	
+	/**
+	 * Sets how photos are decoded before receivePhotoFrame. With
+	 * {@link PhotoDecoder#OUTPUT_RGB565_DIRECT} photos are delivered to
+	 * receivePhotoBuffer if the data listener implements
+	 * {@link DirectPhotoListener}. With {@link PhotoDecoder#OUTPUT_JPEG} the
+	 * JPEG data is delivered as it is.
+	 * @param output one of the PhotoDecoder outputs
+	 * @param targetWidth subsample photos down to this width, 0 for full size
+	 * @param targetHeight subsample photos down to this height, 0 for full size
+	 */
+	public void setPhotoDecoding(int output, int targetWidth, int targetHeight) {
+		final PhotoDecoder decoder = new PhotoDecoder(output, targetWidth, targetHeight);
+		runOnCameraThread(new Callable<Void>() {
+			@Override
+			public Void call() {
+				photoDecoder = decoder;
+				if (photoTaker != null) {
+					photoTaker.setDecoder(decoder);
+				}
+				return null;
+			}
+		});
+	}
+	
+	/**
+	 * Sets how markers are decoded before receiveMarkerFrame.
+	 * @see #setPhotoDecoding(int, int, int)
+	 */
+	public void setMarkerDecoding(int output, int targetWidth, int targetHeight) {
+		final PhotoDecoder decoder = new PhotoDecoder(output, targetWidth, targetHeight);
+		runOnCameraThread(new Callable<Void>() {
+			@Override
+			public Void call() {
+				markerDecoder = decoder;
+				if (markerTaker != null) {
+					markerTaker.setDecoder(decoder);
+				}
+				return null;
+			}
+		});
+	}
+	
+	/**
+	 * Sets the data listener that receives only a region of each preview
+	 * frame, scaled down as given by the region.
+	 * @param listener
+	 * @param roi region of interest, null for whole frames
+	 */
+	public void setDataListener(CameraDataListener listener, FrameRoi roi) {
+		setFrameRoi(roi);
+		setDataListener(listener);
+	}
+	
+	/**
+	 * Sets the region of preview frames delivered to the data listener. The
+	 * region is cropped and scaled before rotation and RGB conversion, with
+	 * luma output no RGB conversion is done. A scaled buffer is valid only
+	 * during the receiveCameraFrame call.
+	 * @param roi region of interest, null for whole frames
+	 * @throws IllegalStateException if a region is set while the data
+	 * listener is a {@link DirectFrameListener}
+	 */
+	public void setFrameRoi(FrameRoi roi) {
+		if (roi != null) {
+			checkNoDirectFrames("A frame region is");
+		}
+		this.frameRoi = roi;
+		updateFrameTransform();
+	}
+	
+	public FrameRoi getFrameRoi() {
+		return frameRoi;
+	}
+	
+	/**
+	 * Sets the preview size asked for, takes effect when the camera is
+	 * resumed next time.
+	 */
+	public void setPreviewSize(int presetWidth, int presetHeight) {
+		CameraSize size = new CameraSize(presetWidth, presetHeight);
+		requestedFrameSize = size;
+		if (state.get() == STATE_CLOSED) {
+			frameSize = size;
+		}
+		photoTaker.setAspectRatio ( presetWidth * 1.0f / presetHeight );
+	}
+
+	public void setPreferredFocusMode(String focusMode) {
+		this.preferredFocusMode = focusMode;
+	}
+
+	/**
+	 * Sets the number of preview buffers shared with the camera driver,
+	 * takes effect when the camera is resumed next time.
+	 * @param bufferCount
+	 */
+	public void setPreviewBufferCount(int bufferCount) {
+		if (bufferCount < 1) {
+			throw new IllegalArgumentException("At least one preview buffer required");
+		}
+		this.previewBufferCount = bufferCount;
+	}
+
+	/**
+	 * Answers single marker captures from the most recent preview frames
+	 * instead of takePicture, so markers are delivered within milliseconds
+	 * and preview is not interrupted. takePicture is still used when the
+	 * preview is smaller than minPixels, its aspect ratio doesn't match the
+	 * requested one or markers are decoded to JPEG. The frames are held in
+	 * addition to the preview buffers. Takes effect when the camera is
+	 * resumed next time. Not available with a {@link DirectFrameListener},
+	 * whose frames are the camera's own buffers.
+	 * @param frameCount number of recent frames kept, 0 to disable
+	 * @param pickSharpest deliver the least blurry of the kept frames
+	 * instead of the newest
+	 * @param minPixels smallest preview width * height used for markers
+	 * @throws IllegalStateException if frames are kept while the data
+	 * listener is a {@link DirectFrameListener}
+	 */
+	public void setZeroShutterLagMarkers(int frameCount, boolean pickSharpest, int minPixels) {
+		if (frameCount < 0) {
+			throw new IllegalArgumentException("Invalid frame count: " + frameCount);
+		}
+		if (frameCount > 0) {
+			checkNoDirectFrames("Zero shutter lag markers are");
+		}
+		this.markerRingSize = frameCount;
+		this.markerPickSharpest = pickSharpest;
+		this.markerMinPixels = minPixels;
+	}
+
+	/**
+	 * Computes the sharpness and global motion of each preview frame and
+	 * delivers them to receiveFrameAnalysis if the data listener implements
+	 * {@link FrameAnalysisListener}. Takes well under a millisecond per frame
+	 * on the camera thread.
+	 * @param enabled
+	 */
+	public void setFrameAnalysis(boolean enabled) {
+		this.frameAnalysisEnabled = enabled;
+	}
+
+	/**
+	 * By default a frame buffer is given back to the camera driver when
+	 * receiveCameraFrame returns. With manual release the listener keeps
+	 * the buffer until it calls {@link #releaseFrame(byte[])}.
+	 * @param manualRelease
+	 */
+	public void setManualFrameRelease(boolean manualRelease) {
+		this.manualFrameRelease = manualRelease;
+	}
+
+	/**
+	 * Lowers the preview frame rate and size while the data listener can't
+	 * keep up with the frames, and raises them again when it has time to
+	 * spare, never above the size chosen for the preset. The frame size
+	 * delivered to the listener changes accordingly. Off by default, takes
+	 * effect when the camera is resumed next time.
+	 * @param enabled
+	 */
+	public void setAdaptivePreview(boolean enabled) {
+		this.adaptivePreview = enabled;
+	}
+
+	/**
+	 * Sets the lowest preview quality adaptive preview steps down to, takes
+	 * effect when the camera is resumed next time.
+	 * @param minWidth smallest preview width * minHeight used
+	 * @param minFps lowest frame rate, 0 for any
+	 */
+	public void setPreviewQualityFloor(final int minWidth, final int minHeight, final int minFps) {
+		runOnCameraThread(new Callable<Void>() {
+			@Override
+			public Void call() {
+				qualityController.setFloor(minWidth, minHeight, minFps);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Power saving for thermal or battery limits: adaptive preview caps the
+	 * preview at half the pixels of the chosen size and lowers the size
+	 * before the frame rate, so frames keep coming at a rate the device
+	 * can sustain. Applies to a running preview.
+	 * @param saving
+	 */
+	public void setPowerSaving(final boolean saving) {
+		runOnCameraThread(new Callable<Void>() {
+			@Override
+			public Void call() {
+				// a recording keeps its size, the level is applied when it stops
+				if (qualityController.setPowerSaving(saving) && adaptivePreview
+						&& camera != null && state.get() == STATE_PREVIEW && videoRecorder == null) {
+					applyQualityLevel();
+				}
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Sets the encoder of the recordings started next, e.g. a
+	 * {@link FakeVideoEncoder} for tests.
+	 * @param encoder null for H.264 to MP4 with MediaCodec, the default
+	 */
+	public void setVideoEncoder(VideoEncoder encoder) {
+		this.videoEncoder = encoder;
+	}
+
+	/**
+	 * Records the preview to a video file at the preview size while the
+	 * frames keep going to the data listener. Preview buffers go to the
+	 * encoder without an extra copy, and frames are dropped for the encoder
+	 * rather than held back from the listener when it falls behind, see
+	 * {@link CameraMetrics.Snapshot#getRecordingDrops()}. More preview
+	 * buffers leave the encoder more room. Adaptive preview holds its level
+	 * while recording. Pausing the camera or switching cameras ends the
+	 * recording.
+	 * @param output file to write, MP4 with the default encoder
+	 * @throws IOException if the encoder can't be started
+	 * @throws IllegalStateException if the preview is not running, already
+	 * recording, or the default encoder needs Android 4.3
+	 */
+	public void startRecording(final File output) throws IOException {
+		IOException error = runOnCameraThread(new Callable<IOException>() {
+			@Override
+			public IOException call() {
+				try {
+					doStartRecording(output);
+					return null;
+				} catch (IOException e) {
+					return e;
+				}
+			}
+		});
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	private void doStartRecording(File output) throws IOException {
+		FrameDescriptor descriptor = frameDescriptor;
+		if (camera == null || !isPreviewRunning() || descriptor == null) {
+			throw new IllegalStateException("Preview is not running");
+		}
+		if (videoRecorder != null) {
+			throw new IllegalStateException("Already recording");
+		}
+		VideoEncoder encoder = videoEncoder;
+		if (encoder == null) {
+			if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) {
+				throw new IllegalStateException("MP4 recording needs Android 4.3");
+			}
+			encoder = new MediaCodecVideoEncoder();
+		}
+		CameraFpsRange range = camera.getSettings().getPreviewFpsRange();
+		int frameRate = range != null ? Math.max(1, range.getMax() / 1000) : 30;
+		VideoRecorder recorder = new VideoRecorder(encoder, metrics, descriptor.getWidth(),
+				descriptor.getHeight());
+		recorder.start(output, frameRate, imageOrientation);
+		videoRecorder = recorder;
+		Log.d(TAG, "Recording " + descriptor.getWidth() + "x" + descriptor.getHeight() + " at "
+				+ frameRate + " fps to " + output);
+	}
+
+	/**
+	 * Ends the recording, encoding the frames still waiting, and completes
+	 * the file. Does nothing if not recording.
+	 * @throws IOException if the file could not be completed, or if the
+	 * encoder failed and the recording stopped early
+	 */
+	public void stopRecording() throws IOException {
+		IOException error = runOnCameraThread(new Callable<IOException>() {
+			@Override
+			public IOException call() {
+				try {
+					doStopRecording();
+					return null;
+				} catch (IOException e) {
+					return e;
+				} finally {
+					applyHeldQualityLevel();
+				}
+			}
+		});
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	private void doStopRecording() throws IOException {
+		VideoRecorder recorder = videoRecorder;
+		if (recorder == null) {
+			return;
+		}
+		videoRecorder = null;
+		recorder.stop();
+		Log.d(TAG, "Recording stopped, frames: " + recorder.getRecordedCount() + ", dropped: "
+				+ recorder.getDroppedCount());
+	}
+
+	/**
+	 * Applies a preview size adaptive preview changed to while recording.
+	 */
+	private void applyHeldQualityLevel() {
+		if (adaptivePreview && camera != null && state.get() == STATE_PREVIEW
+				&& qualityController.isStarted() && !qualityController.getSize().equals(frameSize)) {
+			applyQualityLevel();
+		}
+	}
+
+	/**
+	 * @return false also when the encoder failed, stopRecording still has
+	 * to be called then to complete the file
+	 */
+	public boolean isRecording() {
+		VideoRecorder recorder = videoRecorder;
+		return recorder != null && recorder.isRecording();
+	}
+
+	/**
+	 * Keeps the preview frames of the last seconds compressed in memory
+	 * outside the Java heap, so the frames from before an event can be
+	 * written out with {@link #dumpFrameHistory}. Frames are compressed on a
+	 * thread of the history, and skipped by the history rather than held back
+	 * from the data listener when compression falls behind, see
+	 * {@link CameraMetrics.Snapshot#getHistoryDrops()}. The history is kept
+	 * while the camera is paused. Replaces an earlier history.
+	 * @param seconds history length
+	 * @param maxBytes memory for compressed frames, the oldest are evicted
+	 * when it is full
+	 * @param compressor null for JPEG
+	 */
+	public void enableFrameHistory(int seconds, int maxBytes, FrameCompressor compressor) {
+		FrameHistory history = new FrameHistory(
+				compressor != null ? compressor : new JpegFrameCompressor(), metrics,
+				seconds * 1000000000L, maxBytes);
+		history.start();
+		FrameHistory old = frameHistory;
+		frameHistory = history;
+		if (old != null) {
+			old.stop();
+		}
+	}
+
+	public void disableFrameHistory() {
+		FrameHistory old = frameHistory;
+		frameHistory = null;
+		if (old != null) {
+			old.stop();
+		}
+	}
+
+	/**
+	 * Writes the frames of the last seconds of the history to a file on the
+	 * calling thread, so not the UI thread. Preview and the history go on
+	 * while the file is written. Seconds count back from the newest frame.
+	 * @param seconds
+	 * @return number of frames written
+	 * @throws IOException if the file can't be written
+	 * @throws IllegalStateException if the frame history is not enabled
+	 */
+	public int dumpFrameHistory(File output, int seconds) throws IOException {
+		FrameHistory history = frameHistory;
+		if (history == null) {
+			throw new IllegalStateException("Frame history is not enabled");
+		}
+		return history.dump(output, seconds * 1000000000L);
+	}
+
+	/**
+	 * Gives a frame buffer received in receiveCameraFrame back to the camera
+	 * driver, required only with manual frame release.
+	 * @param data
+	 * @return false if the buffer is not held
+	 */
+	public boolean releaseFrame(byte[] data) {
+		PreviewBufferPool pool = mPreviewBufferPool;
+		return pool != null && pool.release(data);
+	}
+
+	/**
+	 * Delivers preview frames to the data listener on worker threads instead
+	 * of the camera thread, so listener processing time doesn't lower the
+	 * capture frame rate. Consider increasing the preview buffer count to
+	 * cover the queue capacity and workers.
+	 * @param dropPolicy what to do with frames when the listener falls behind.
+	 * With BLOCK the listener must not call methods of this handler, they
+	 * wait for the camera thread, see {@link FramePipeline.DropPolicy#BLOCK}.
+	 * @param workerCount number of worker threads, with more than one the
+	 * listener is called concurrently
+	 * @param queueCapacity number of frames waiting for a worker, ignored
+	 * with KEEP_LATEST
+	 * @throws IllegalStateException if the data listener is a
+	 * {@link DirectFrameListener}, direct frames are always delivered on the
+	 * camera thread
+	 */
+	public void enableFramePipeline(FramePipeline.DropPolicy dropPolicy, int workerCount, int queueCapacity) {
+		checkNoDirectFrames("The frame pipeline is");
+		FramePipeline pipeline = new FramePipeline(pipelineConsumer, dropPolicy, workerCount, queueCapacity);
+		pipeline.start();
+		FramePipeline old = framePipeline;
+		framePipeline = pipeline;
+		metrics.setFramePipeline(pipeline);
+		if (old != null) {
+			old.stop();
+		}
+	}
+
+	/**
+	 * Returns to delivering frames directly on the camera thread.
+	 */
+	public void disableFramePipeline() {
+		FramePipeline old = framePipeline;
+		framePipeline = null;
+		metrics.setFramePipeline(null);
+		if (old != null) {
+			old.stop();
+		}
+	}
+
+	/**
+	 * Sets the format of frames delivered to receiveCameraFrame. With
+	 * {@link YuvConverter#FORMAT_RGB565} or {@link YuvConverter#FORMAT_RGBA8888}
+	 * NV21 frames are converted before delivery and the imageFormat argument
+	 * tells the delivered format. A converted buffer is valid only during
+	 * the receiveCameraFrame call.
+	 * @param outputFormat one of the YuvConverter formats
+	 * @param conversionThreads number of threads converting row stripes of
+	 * one frame in parallel, 1 converts on the delivering thread
+	 * @throws IllegalStateException if an RGB format is set while the data
+	 * listener is a {@link DirectFrameListener}
+	 */
+	public synchronized void setFrameOutputFormat(int outputFormat, int conversionThreads) {
+		if (outputFormat != YuvConverter.FORMAT_NV21 && outputFormat != YuvConverter.FORMAT_RGB565
+				&& outputFormat != YuvConverter.FORMAT_RGBA8888) {
+			throw new IllegalArgumentException("Unsupported frame output format: " + outputFormat);
+		}
+		if (outputFormat != YuvConverter.FORMAT_NV21) {
+			checkNoDirectFrames("RGB frame output is");
+		}
+		ExecutorService oldExecutor = conversionExecutor;
+		conversionExecutor = null;
+		if (outputFormat != YuvConverter.FORMAT_NV21 && conversionThreads > 1) {
+			// calling thread converts one of the stripes
+			conversionExecutor = Executors.newFixedThreadPool(conversionThreads - 1);
+			yuvConverter = new YuvConverter(conversionExecutor, conversionThreads);
+		} else {
+			yuvConverter = new YuvConverter();
+		}
+		frameOutputFormat = outputFormat;
+		updateFrameTransform();
+		if (oldExecutor != null) {
+			oldExecutor.shutdown();
+		}
+	}
+
+	public int getFrameOutputFormat() {
+		return frameOutputFormat;
 	}
 
-	public Camera getCamera() {
-		return camera;
+	/**
+	 * Makes receiveCameraFrame deliver frames that are already rotated by the
+	 * camera orientation, so that they are upright in the natural orientation
+	 * of the device. The delivered width and height are swapped for 90 and
+	 * 270 degree cameras and imageOrientation is 0. With an RGB output format
+	 * the rotation is done in the same pass as the conversion. A rotated
+	 * buffer is valid only during the receiveCameraFrame call.
+	 * @param upright
+	 * @param mirrorFrontCamera also flip front camera frames horizontally,
+	 * like a mirror
+	 * @throws IllegalStateException if upright frames are asked for while
+	 * the data listener is a {@link DirectFrameListener}
+	 */
+	public void setUprightFrames(boolean upright, boolean mirrorFrontCamera) {
+		if (upright) {
+			checkNoDirectFrames("Upright frames are");
+		}
+		this.mirrorFrontCamera = mirrorFrontCamera;
+		this.uprightFrames = upright;
+		updateFrameTransform();
 	}
-	
-	public CameraInfo getCameraInfo() {
-		return cameraInfo;
+
+	private synchronized void updateFrameTransform() {
+		frameTransform = new FrameTransform(frameRoi, frameOutputFormat, uprightFrames, mirrorFrontCamera);
 	}
-	
-	public Point getFrameSize() {
-		return new Point(FrameWidth, FrameHeight);
+
+	/**
+	 * Adds a frame subscriber next to the data listener. Subscribers asking
+	 * for the same format, region and rotation share one converted buffer,
+	 * and a preview buffer goes back to the driver only when every
+	 * subscriber has finished with it.
+	 * @param subscription
+	 * @throws IllegalStateException if the data listener is a
+	 * {@link DirectFrameListener}, direct frames are not fanned out
+	 */
+	public void subscribe(FrameSubscription subscription) {
+		checkNoDirectFrames("Frame subscriptions are");
+		frameFanOut.subscribe(subscription);
 	}
-	
-	public int getCameraNumber() {
-		return Camera.getNumberOfCameras();
+
+	/**
+	 * @param subscription
+	 * @return false if the subscription was not found
+	 */
+	public boolean unsubscribe(FrameSubscription subscription) {
+		return frameFanOut.unsubscribe(subscription);
 	}
-	
-	public void setPreviewHolder(SurfaceView preview) {
-		previewHolder = preview.getHolder();
-		previewHolder.addCallback(surfaceCallback);
+
+	public List<FrameSubscription> getSubscriptions() {
+		return frameFanOut.getSubscriptions();
 	}
 
-	public void setDataListener(CameraDataListener listener) {
-		this.dataListener = listener;
-		photoTaker = new PhotoTaker(photoListener, PhotoTaker.PHOTO_ASPECT_RATIO, 
-				PhotoTaker.PHOTO_ASPECT_RATIO_LIMIT, PhotoTaker.PHOTO_MAX_PIXELS);
-		markerTaker = new PhotoTaker(markerListener, PhotoTaker.MARKER_ASPECT_RATIO,
-				PhotoTaker.MARKER_ASPECT_RATIO_LIMIT, PhotoTaker.MARKER_MAX_PIXELS);
+	/**
+	 * @return frame and capture metrics, poll {@link CameraMetrics#snapshot()}
+	 */
+	public CameraMetrics getMetrics() {
+		return metrics;
 	}
-	
-	public void setPreviewSize(int presetWidth, int presetHeight) {
-		FrameWidth = presetWidth;
-		FrameHeight = presetHeight;
-		photoTaker.setAspectRatio ( FrameWidth * 1.0f / FrameHeight );
+
+	/**
+	 * @return the frame pipeline with its queue statistics, or null if frames
+	 * are delivered on the camera thread
+	 */
+	public FramePipeline getFramePipeline() {
+		return framePipeline;
 	}
 
-	public void setPreferredFocusMode(String focusMode) {
-		this.preferredFocusMode = focusMode;
+	/**
+	 * @return preview buffer pool of the current camera session, or null
+	 * if the preview callback is not set
+	 */
+	public PreviewBufferPool getPreviewBufferPool() {
+		return mPreviewBufferPool;
+	}
+	
+	public int[] resumeCameraIndex(final int cameraIndex) {
+		return runOnCameraThread(new Callable<int[]>() {
+			@Override
+			public int[] call() {
+				return doResumeCameraIndex(cameraIndex);
+			}
+		});
 	}
 	
-	public int[] resumeCameraIndex(int cameraIndex) {
+	private int[] doResumeCameraIndex(int cameraIndex) {
 		
+		if (!beginOpening()) {
+			return getOpenFrameSize();
+		}
+		resumeStartNanos = System.nanoTime();
 	    try {
-	        camera = Camera.open(cameraIndex);
-            imageOrientation = getImageOrientation(cameraIndex);
+	        openCamera(cameraIndex);
 	    } catch (RuntimeException e) {
 	    	Log.e(TAG, "Camera failed to open: " + e.getLocalizedMessage());
 	    }
-		return resumeCamera();
+		return startCamera();
+	}
+	
+	public int[] resumeCamera(final int cameraFacing) {
+		return runOnCameraThread(new Callable<int[]>() {
+			@Override
+			public int[] call() {
+				return doResumeCamera(cameraFacing);
+			}
+		});
 	}
 	
-	public int[] resumeCamera(int cameraFacing) {
+	/**
+	 * Opens the camera with given facing on the camera thread without
+	 * blocking the caller.
+	 * @param cameraFacing
+	 * @param listener notified with the frame size when the camera is
+	 * resumed, on the caller's looper if it has one, otherwise on the
+	 * camera thread. May be null.
+	 * @return future for the frame size
+	 */
+	public Future<int[]> resumeCameraAsync(final int cameraFacing, CameraResumeListener listener) {
+		return postToCameraThread(new Callable<int[]>() {
+			@Override
+			public int[] call() {
+				return doResumeCamera(cameraFacing);
+			}
+		}, listener);
+	}
+	
+	/**
+	 * Asynchronous version of {@link #resumeCamera()}.
+	 * @param listener may be null
+	 * @return future for the frame size
+	 */
+	public Future<int[]> resumeCameraAsync(CameraResumeListener listener) {
+		return postToCameraThread(new Callable<int[]>() {
+			@Override
+			public int[] call() {
+				return doResumeCamera();
+			}
+		}, listener);
+	}
+	
+	private int[] doResumeCamera(int cameraFacing) {
+		if (!beginOpening()) {
+			return getOpenFrameSize();
+		}
+		resumeStartNanos = System.nanoTime();
 		currentCameraFacing = cameraFacing;
 		openCameraFacing(cameraFacing);
-		return resumeCamera();
-		
+		return startCamera();
 	}
 	
 	private void openCameraFacing(int cameraFacing) {
 		
-		int cameraCount = Camera.getNumberOfCameras();
-		// Camera.CameraInfo cameraInfo = new Camera.CameraInfo();
+		int cameraCount = cameraProvider.getCameraCount();
 	    for (int camIdx = 0; camIdx < cameraCount; camIdx++) {
-	        Camera.getCameraInfo(camIdx, cameraInfo);
-	        if (cameraInfo.facing == cameraFacing) {
+	        if (cameraProvider.getFacing(camIdx) == cameraFacing) {
+	            cameraInfo.facing = cameraFacing;
 	            try {
-	                camera = Camera.open(camIdx);
-                    imageOrientation = getImageOrientation(camIdx);
+	                openCamera(camIdx);
+                    cameraInfo.orientation = imageOrientation;
 	            } catch (RuntimeException e) {
 	                Log.e(TAG, "Camera failed to open: " + e.getLocalizedMessage());
 	            }
@@ -160,16 +1153,57 @@ public class CameraHandler {
 	}
 	
 	public int[] resumeCamera() {
+		return runOnCameraThread(new Callable<int[]>() {
+			@Override
+			public int[] call() {
+				return doResumeCamera();
+			}
+		});
+	}
+	
+	private int[] doResumeCamera() {
+		if (!beginOpening()) {
+			return getOpenFrameSize();
+		}
+		resumeStartNanos = System.nanoTime();
+		return startCamera();
+	}
+	
+	/**
+	 * @return false if the camera is not closed, resuming twice would open
+	 * the camera twice
+	 */
+	private boolean beginOpening() {
+		if (state.compareAndSet(STATE_CLOSED, STATE_OPENING)) {
+			return true;
+		}
+		Log.w(TAG, "Camera already open, state: " + state.get());
+		return false;
+	}
+	
+	private int[] getOpenFrameSize() {
+		CameraSize size = frameSize;
+		return camera != null ? new int[] { size.getWidth(), size.getHeight() } : new int[2];
+	}
+	
+	/**
+	 * Configures the camera opened for the resume and starts preview, opens
+	 * any camera if none was opened.
+	 */
+	private int[] startCamera() {
 		
 		// no preferred camera or selected camera failed to open, try other cameras
-		int cameraCount = Camera.getNumberOfCameras();
+		int cameraCount = cameraProvider.getCameraCount();
 		if(camera == null){
 			Log.e(TAG, "Selected Camera open returns null, trying to open other cameras, camera count: " + cameraCount);
 			for(int i = 0; i < cameraCount; i++){
-				camera = Camera.open(i);
+				try {
+					openCamera(i);
+				} catch (RuntimeException e) {
+					Log.e(TAG, "Camera " + i + " failed to open: " + e.getLocalizedMessage());
+				}
 				if(camera != null){
 					Log.d(TAG, "Camera opened at id: " + i);
-                    imageOrientation = getImageOrientation(i);
 					break;
 				}
 			}
@@ -177,20 +1211,44 @@ public class CameraHandler {
 		
 		int [] frameSize = new int [2];
 		if (camera != null) {
-			initCamera(FrameWidth, FrameHeight);
-			Log.d(TAG, "finished camera init");
+			if (photoTaker != null) {
+				// decode thread is stopped on release
+				ExecutorService decodeExecutor = getPhotoDecodeExecutor();
+				photoTaker.setDecodeExecutor(decodeExecutor);
+				markerTaker.setDecodeExecutor(decodeExecutor);
+			}
+			CameraSize requested = requestedFrameSize;
 			try {
-				camera.setPreviewDisplay(previewHolder);
-			} catch (IOException e) {
-				Log.e(TAG, "Error setting camera preview display", e);
+				initCamera(requested.getWidth(), requested.getHeight());
+				Log.d(TAG, "finished camera init");
+				try {
+					camera.setPreviewDisplay(previewHolder);
+				} catch (IOException e) {
+					Log.e(TAG, "Error setting camera preview display", e);
+				}
+				camera.startPreview();
+			} catch (RuntimeException e) {
+				releaseCamera(false);
+				throw e;
+			}
+			state.compareAndSet(STATE_OPENING, STATE_PREVIEW);
+			if (adaptivePreview) {
+				qualityController.restartWindow(System.nanoTime(), getFrameDropCount());
+				getCameraThread().postDelayed(qualityTick,
+						PreviewQualityController.WINDOW_MILLIS);
 			}
-			camera.startPreview();
 			Log.d(TAG, "Camera preview started");
-			frameSize[0] = FrameWidth;
-			frameSize[1] = FrameHeight;
+			CameraSize size = this.frameSize;
+			frameSize[0] = size.getWidth();
+			frameSize[1] = size.getHeight();
 			return frameSize;
 		} else {
 			Log.e(TAG, "Failed to open camera");
+			resumeStartNanos = 0;
+			preallocatedBuffers = null;
+			switchBufferPool = null;
+			switchFromNanos = 0;
+			state.set(STATE_CLOSED);
 
 			frameSize[0] = 0;
 			frameSize[1] = 0;
@@ -199,74 +1257,187 @@ public class CameraHandler {
 		return frameSize;
 	}
 
+	/**
+	 * Opens a camera. When its preview sizes are known from an earlier open,
+	 * the preview buffers are allocated on another thread meanwhile.
+	 * @throws RuntimeException if the camera can't be opened
+	 */
+	private void openCamera(int index) {
+		preallocatePreviewBuffers(index);
+		long openStart = System.nanoTime();
+		camera = cameraProvider.open(index, cameraCallbackExecutor);
+		cameraIndex = index;
+		metrics.cameraOpened(System.nanoTime() - openStart);
+		imageOrientation = getImageOrientation(index);
+	}
+
+	private void preallocatePreviewBuffers(int index) {
+		if (preallocatedBuffers != null && preallocatedIndex == index) {
+			// started before the previous camera was released
+			return;
+		}
+		preallocatedBuffers = null;
+		CameraCapabilities capabilities = cameraProvider.getCapabilities(index);
+		if (capabilities == null || dataListener instanceof DirectFrameListener) {
+			// sizes not known yet, or frames may not need preview buffers
+			return;
+		}
+		CameraSize requested = requestedFrameSize;
+		CameraSize size = negotiateSizes(index, capabilities, requested.getWidth(),
+				requested.getHeight()).getPreviewSize();
+		if (size == null) {
+			return;
+		}
+		final int count = previewBufferCount + markerRingSize;
+		final int bufferSize = previewBufferSize(size.getWidth(), size.getHeight(), ImageFormat.NV21);
+		if (fitsPool(switchBufferPool != null ? switchBufferPool : mPreviewBufferPool, count,
+				bufferSize)) {
+			// buffers of the camera switched from are reused
+			return;
+		}
+		FutureTask<byte[][]> task = new FutureTask<byte[][]>(new Callable<byte[][]>() {
+			@Override
+			public byte[][] call() {
+				return PreviewBufferPool.allocateBuffers(count, bufferSize);
+			}
+		});
+		new Thread(task, "PreviewBufferAlloc").start();
+		preallocatedBuffers = task;
+		preallocatedIndex = index;
+	}
+
+	private static boolean fitsPool(PreviewBufferPool pool, int count, int bufferSize) {
+		return pool != null && pool.getBufferCount() == count && pool.getBufferSize() == bufferSize;
+	}
+
+	/**
+	 * @return the buffers allocated while the camera opened if they have the
+	 * given count and size, otherwise null
+	 */
+	private byte[][] takePreallocatedBuffers(int count, int bufferSize) {
+		FutureTask<byte[][]> task = preallocatedBuffers;
+		preallocatedBuffers = null;
+		if (task == null) {
+			return null;
+		}
+		try {
+			byte[][] buffers = task.get();
+			if (buffers.length == count && buffers[0].length == bufferSize) {
+				return buffers;
+			}
+			Log.d(TAG, "preallocated preview buffers don't fit, size: " + buffers[0].length);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			Log.e(TAG, "Preview buffer allocation failed", e.getCause());
+		}
+		return null;
+	}
+
+	/**
+	 * @return preview buffer size with some slack, some drivers write past
+	 * the frame
+	 */
+	private static int previewBufferSize(int width, int height, int format) {
+		int bitsPerPixel;
+		if (format == ImageFormat.NV21 || format == ImageFormat.YV12) {
+			// known without asking the platform, also on a plain JVM
+			bitsPerPixel = 12;
+		} else {
+			PixelFormat info = new PixelFormat();
+			PixelFormat.getPixelFormatInfo(format, info);
+			bitsPerPixel = info.bitsPerPixel;
+		}
+		return width * height * bitsPerPixel / 8 + 4096;
+	}
+
+	/**
+	 * Records the time from the resume request to the first frame.
+	 */
+	private void firstFrameReceived(long arrivalNanos) {
+		long elapsed = arrivalNanos - resumeStartNanos;
+		resumeStartNanos = 0;
+		metrics.firstFrame(elapsed);
+		Log.d(TAG, "first frame " + elapsed / 1000000 + " ms after resume");
+		if (switchFromNanos != 0) {
+			long gap = arrivalNanos - switchFromNanos;
+			switchFromNanos = 0;
+			metrics.cameraSwitched(gap);
+			if (gap > SWITCH_GAP_TARGET_NANOS) {
+				Log.w(TAG, "camera switch gap " + gap / 1000000 + " ms");
+			} else {
+				Log.d(TAG, "camera switch gap " + gap / 1000000 + " ms");
+			}
+		}
+	}
+
     private int getImageOrientation(int cameraIndex) {
-        CameraInfo cameraInfo = new CameraInfo();
-        Camera.getCameraInfo(cameraIndex, cameraInfo);
-        int imageOrientation = cameraInfo.orientation;
+        int imageOrientation = cameraProvider.getOrientation(cameraIndex);
         Log.d(TAG, "camerainfo orientation: " + imageOrientation);
         return imageOrientation;
     }
 
 	private void initCamera(int presetWidth, int presetHeight) {
 
-		Camera.Parameters parameters = camera.getParameters();
-		int minDifference = 100000;
-
-		boolean isRotatedNeeded = false;
-		if (presetWidth < presetHeight) {
-			isRotatedNeeded = true;
-			int tmp = presetWidth;
-			presetWidth = presetHeight;
-			presetHeight = tmp;
-		}
-		List<Size> previewSizes = parameters.getSupportedPreviewSizes();
-		Log.d(TAG, "Supported preview sizes:" + previewSizes.size());
-		float minRatioDifference = 1000000.0f;
-		for (Size s : previewSizes) {
-			float ratioDifference = Math.abs(s.height * 1.0f / s.width - presetHeight * 1.0f / presetWidth);
-			int heightDifference = Math.abs(s.height-presetHeight);
-			if (ratioDifference < minRatioDifference || (ratioDifference == minRatioDifference && heightDifference < minDifference) ) {
-				Log.d(TAG, "preview size w: " + s.width + ", h:" + s.height);
-				minRatioDifference = ratioDifference;
-				minDifference = heightDifference;
-				FrameWidth = s.width;
-				FrameHeight = s.height;
-				
-			}
-//			int heightDifference = Math.abs(s.height-presetHeight);
-//			if (s.width == presetWidth && heightDifference < minDifference) {
-//				Log.d(TAG, "preview size w: " + s.width + ", h:" + s.height);
-//				minDifference = heightDifference;
-//				FrameWidth = s.width;
-//				FrameHeight = s.height;
-//			}
+		CameraCapabilities capabilities = camera.getCapabilities();
+		boolean isRotatedNeeded = presetWidth < presetHeight;
+		// memoised, usually negotiated already for preallocating the buffers
+		CameraSize previewSize = negotiateSizes(cameraIndex, capabilities, presetWidth,
+				presetHeight).getPreviewSize();
+		if (previewSize == null) {
+			previewSize = new CameraSize(presetWidth, presetHeight);
 		}
 		
-		if(photoTaker != null) {
-			photoTaker.setPictureSize(camera);
+		// picture size goes to the camera with the other settings
+		CameraSettings settings = new CameraSettings();
+		if (adaptivePreview) {
+			qualityController.start(capabilities, previewSize);
+			previewSize = qualityController.getSize();
+			settings.setPreviewFpsRange(qualityController.getFpsRange());
 		}
+		frameSize = previewSize;
+		captureScheduler.cameraOpened(camera, settings, previewSize, photoTaker);
 		if (isRotatedNeeded) {
 			camera.setDisplayOrientation(90);
 		}
-		parameters.setPreviewSize(FrameWidth, FrameHeight);
-		parameters.setPreviewFormat(ImageFormat.NV21);
-		parameters.setWhiteBalance(Camera.Parameters.WHITE_BALANCE_AUTO);
+		settings.setPreviewSize(previewSize.getWidth(), previewSize.getHeight());
+		settings.setPreviewFormat(ImageFormat.NV21);
+		settings.setWhiteBalance(Camera.Parameters.WHITE_BALANCE_AUTO);
 
-		String focusMode = chooseFocusMode(parameters);
+		String focusMode = chooseFocusMode(capabilities.getFocusModes());
 		if(focusMode != null) {
-			parameters.setFocusMode(focusMode);
+			settings.setFocusMode(focusMode);
 		}
-		camera.setParameters(parameters);
+		camera.applySettings(settings);
 		Log.d(TAG, "finished set camera parameters");
 
-		setCallback();
+		doSetCallback(settings);
+	}
+
+	/**
+	 * Negotiates the preview size for the preset, and the picture size of
+	 * the photo taker that goes with it.
+	 */
+	private SizeNegotiator.Result negotiateSizes(int index, CameraCapabilities capabilities,
+			int presetWidth, int presetHeight) {
+		PhotoTaker taker = photoTaker;
+		PhotoTaker markers = markerTaker;
+		SizeNegotiator.Request request = new SizeNegotiator.Request(presetWidth, presetHeight,
+				frameTransform.getRelativeCost(),
+				taker != null ? taker.getAspectRatio() : 0,
+				taker != null ? taker.getAspectRatioThreshold() : 0,
+				taker != null ? taker.getMaxPixels() : 0,
+				markerRingSize > 0 ? markerMinPixels : -1,
+				markers != null ? markers.getAspectRatio() : PhotoTaker.MARKER_ASPECT_RATIO);
+		SizeNegotiator.Result result = sizeNegotiator.negotiate(index,
+				capabilities.getPreviewSizes(), capabilities.getPictureSizes(), request);
+		Log.d(TAG, "negotiated sizes: " + result);
+		return result;
 	}
 	
-	private String chooseFocusMode(Parameters parameters) {
+	private String chooseFocusMode(List<String> supportedFocusModes) {
 		
 		String selectedFocusMode = null;
-		
-		List<String> supportedFocusModes = parameters.getSupportedFocusModes();
 
 		if (supportedFocusModes != null) {
 			
@@ -314,13 +1485,30 @@ public class CameraHandler {
 	 * Init photo size for taking photo by either front or back camera
 	 * @param cameraFacing
 	 */
-	public void initPhotoSize(int cameraFacing){
+	public void initPhotoSize(final int cameraFacing){
+		runOnCameraThread(new Callable<Void>() {
+			@Override
+			public Void call() {
+				doInitPhotoSize(cameraFacing);
+				return null;
+			}
+		});
+	}
+	
+	private void doInitPhotoSize(int cameraFacing){
 		
 		if(camera != null){
 			// camera already opened
-			photoTaker.setPictureSize(camera);
+			captureScheduler.applyPictureSize(photoTaker);
 		}
 		else {
+			int index = findCameraIndex(cameraFacing);
+			CameraCapabilities known = index >= 0 ? cameraProvider.getCapabilities(index) : null;
+			if (known != null) {
+				// known from an earlier open, no need to open the camera
+				photoTaker.choosePictureSize(known.getPictureSizes());
+				return;
+			}
 			openCameraFacing(cameraFacing);
 			if(camera != null) {
 				photoTaker.setPictureSize(camera);
@@ -342,217 +1530,855 @@ public class CameraHandler {
 	}
 	
 	public void pauseCamera() {
+		runOnCameraThread(new Callable<Void>() {
+			@Override
+			public Void call() {
+				doPauseCamera();
+				return null;
+			}
+		});
+	}
+	
+	/**
+	 * Releases the camera on the camera thread without blocking the caller.
+	 * @return future completed when the camera is released
+	 */
+	public Future<Void> pauseCameraAsync() {
+		return postToCameraThread(new Callable<Void>() {
+			@Override
+			public Void call() {
+				doPauseCamera();
+				return null;
+			}
+		}, null);
+	}
+	
+	/**
+	 * Releases the camera, drops pending captures and stops the camera
+	 * thread, the photo decode thread, the frame pipeline and the frame
+	 * history. Calls waiting for the camera thread that didn't run yet throw
+	 * CancellationException, futures of asynchronous calls are cancelled.
+	 * The handler can still be resumed later, new threads are started then.
+	 */
+	public void release() {
+		try {
+			pauseCamera();
+		} catch (CancellationException e) {
+			// released by another thread meanwhile, the camera is closed
+		}
+		disableFramePipeline();
+		disableFrameHistory();
+		cancelPendingCaptures();
+		synchronized (this) {
+			if (photoDecodeExecutor != null) {
+				photoDecodeExecutor.shutdown();
+				photoDecodeExecutor = null;
+				if (photoTaker != null) {
+					photoTaker.setDecodeExecutor(null);
+					markerTaker.setDecodeExecutor(null);
+				}
+			}
+		}
+		CameraThread thread;
+		synchronized (this) {
+			thread = cameraThread;
+			if (thread == null) {
+				return;
+			}
+			cameraThread = null;
+			quittingThread = thread;
+		}
+		// waits for the task running, new calls wait for a new thread meanwhile
+		for (Runnable dropped : thread.quit()) {
+			if (dropped instanceof Future) {
+				((Future<?>) dropped).cancel(false);
+			}
+		}
+		synchronized (this) {
+			quittingThread = null;
+			notifyAll();
+		}
+	}
+	
+	private void doPauseCamera() {
+		releaseCamera(false);
+		switchFromNanos = 0;
+	}
+
+	/**
+	 * @param keepBuffers keep the closed preview buffer pool for the next
+	 * camera, used when switching cameras
+	 */
+	private void releaseCamera(boolean keepBuffers) {
+		CameraThread thread = cameraThread;
+		if (thread != null) {
+			thread.removeCallbacks(qualityTick);
+		}
+		try {
+			doStopRecording();
+		} catch (IOException e) {
+			Log.e(TAG, "Error completing recording", e);
+		}
+		captureScheduler.cameraClosed();
+		steadyCapture = null;
+		clearMarkerFrameRing();
 		if (camera != null) {
-			if (inPreview) {
-				camera.setPreviewCallbackWithBuffer(null);
-				inPreview = false;
+			if (isPreviewRunning()) {
+				camera.setPreviewCallback(null);
+				if (directFrames) {
+					camera.setImageCallback(null, 0);
+				}
 				camera.stopPreview();
 			}
+			if (mPreviewBufferPool != null) {
+				mPreviewBufferPool.close();
+				if (keepBuffers) {
+					switchBufferPool = mPreviewBufferPool;
+				}
+				mPreviewBufferPool = null;
+			}
+			bufferCamera = null;
 
 			camera.release();
 			camera = null;
 		}
-		inPreview = false;
+		directFrames = false;
+		closeDirectFramePool();
+		if (!keepBuffers) {
+			switchBufferPool = null;
+			preallocatedBuffers = null;
+		}
+		resumeStartNanos = 0;
+		frameDescriptor = null;
+		state.set(keepBuffers ? STATE_OPENING : STATE_CLOSED);
 	}
 	
+	/**
+	 * Takes a photo, queued after captures already in progress.
+	 * @return false if preview is not running
+	 */
 	public boolean takePhoto(){
+		return takePhotoBurst(1) >= 0;
+	}
+	
+	/**
+	 * Takes photos back to back, each delivered to receivePhotoFrame.
+	 * Preview is restarted between the shots.
+	 * @param shotCount number of photos
+	 * @return request id reported to the {@link CaptureTimingListener},
+	 * -1 if preview is not running
+	 */
+	public int takePhotoBurst(final int shotCount){
+		return runOnCameraThread(new Callable<Integer>() {
+			@Override
+			public Integer call() {
+				return doTakePhoto(shotCount);
+			}
+		});
+	}
+	
+	private int doTakePhoto(int shotCount){
 		Log.d(TAG, "starting to take photo");
 		
-		if(inPreview){
-			photoTaker.takePhoto(camera);
-			Log.d(TAG, "photo taking called");
-			return true;
+		if(isPreviewRunning() && photoTaker != null){
+			int requestId = captureScheduler.enqueue(photoTaker, 0, shotCount);
+			Log.d(TAG, "photo taking queued");
+			return requestId;
 		} else {
 			Log.e(TAG, "Can not take a photo now!");
-			return false;
+			return -1;
 		}
 	}
 	
+	/**
+	 * Sets the listener notified of the latency of each queued shot.
+	 * @param listener called on the camera thread, null to remove
+	 */
+	public void setCaptureTimingListener(final CaptureTimingListener listener){
+		runOnCameraThread(new Callable<Void>() {
+			@Override
+			public Void call() {
+				captureScheduler.setTimingListener(listener);
+				return null;
+			}
+		});
+	}
+	
 	private SurfaceHolder.Callback surfaceCallback = new SurfaceHolder.Callback() {
 		public void surfaceCreated(SurfaceHolder holder) {
-			try {
-				Log.w(TAG, "surface created");
-				if (camera != null) {
-					camera.setPreviewDisplay(previewHolder);
+			Log.w(TAG, "surface created");
+			postToCameraThread(new Callable<Void>() {
+				@Override
+				public Void call() {
+					try {
+						if (camera != null) {
+							camera.setPreviewDisplay(previewHolder);
+						}
+					} catch (Throwable t) {
+						Log.e(TAG, "Exception in setPreviewDisplay()", t);
+					}
+					return null;
 				}
-			} catch (Throwable t) {
-				Log.e(TAG, "Exception in setPreviewDisplay()", t);
-			}
+			}, null);
 		}
 
 		public void surfaceChanged(SurfaceHolder holder, int format, int width,
 				int height) {
 			Log.w(TAG, "surface changed");
-			if (camera == null) {
-				return;
+			postToCameraThread(new Callable<Void>() {
+				@Override
+				public Void call() {
+					restartPreview();
+					return null;
+				}
+			}, null);
+		}
+
+		public void surfaceDestroyed(SurfaceHolder holder) {
+			// no-op
+			Log.w(TAG, "surface destroyed");
+
+		}
+	};
+	
+	private void restartPreview() {
+		if (camera == null) {
+			return;
+		}
+
+		List<CameraSize> sizes = camera.getCapabilities().getPreviewSizes();
+		Log.d(TAG, "Supported preview sizes:");
+		for (CameraSize s : sizes) {
+			Log.d(TAG, "w: " + s.getWidth() + ", h:" + s.getHeight());
+		}
+
+		CameraSettings settings = new CameraSettings();
+		CameraSize size = frameSize;
+		if (size.getWidth() > size.getHeight()) {
+			settings.setPreviewSize(size.getWidth(), size.getHeight());
+		} else {
+			settings.setPreviewSize(size.getHeight(), size.getWidth());
+			camera.setDisplayOrientation(90);
+		}
+		if (settings.getPreviewWidth() != mPreviewWidth
+				|| settings.getPreviewHeight() != mPreviewHeight) {
+			// usually set already when the camera was resumed
+			camera.applySettings(settings);
+			updateFrameDescriptor(settings);
+			mPreviewWidth = settings.getPreviewWidth();
+			mPreviewHeight = settings.getPreviewHeight();
+		}
+		camera.startPreview();
+	}
+
+	/**
+	 * Sets the Camera preview callback
+	 * 
+	 */
+	public void setCallback() {
+		runOnCameraThread(new Callable<Void>() {
+			@Override
+			public Void call() {
+				if (camera != null) {
+					doSetCallback(camera.getSettings());
+				}
+				return null;
+			}
+		});
+	}
+	
+	/**
+	 * @param settings preview size and format as set to the camera, so that
+	 * they don't have to be read back
+	 */
+	private void doSetCallback(CameraSettings settings) {
+
+		int pformat = settings.getPreviewFormat();
+
+		mPreviewWidth = settings.getPreviewWidth();
+		mPreviewHeight = settings.getPreviewHeight();
+
+		if (dataListener instanceof DirectFrameListener
+				&& camera.setImageCallback(mImageCallback, previewBufferCount)) {
+			// frames stay in the camera's buffers, no pool or ring needed
+			clearMarkerFrameRing();
+			closeDirectFramePool();
+			if (mPreviewBufferPool != null) {
+				mPreviewBufferPool.close();
+				mPreviewBufferPool = null;
+			}
+			preallocatedBuffers = null;
+			switchBufferPool = null;
+			frameSlots = null;
+			frameAnalyzer.reset();
+			frameDescriptor = new FrameDescriptor(ImageFormat.YUV_420_888, mPreviewWidth,
+					mPreviewHeight, imageOrientation, currentCameraFacing,
+					currentCameraFacing == CameraInfo.CAMERA_FACING_BACK);
+			Log.d(TAG, "direct frames: " + frameDescriptor);
+			directFrames = true;
+			return;
+		}
+		directFrames = false;
+
+		frameDescriptor = new FrameDescriptor(pformat, mPreviewWidth, mPreviewHeight,
+				imageOrientation, currentCameraFacing,
+				currentCameraFacing == CameraInfo.CAMERA_FACING_BACK);
+		Log.d(TAG, "frame descriptor: " + frameDescriptor);
+
+		Log.d(TAG, "preview w: " + mPreviewWidth + ", h: " + mPreviewHeight);
+
+		int bufferSize = previewBufferSize(mPreviewWidth, mPreviewHeight, pformat);
+		int frameSize = bufferSize - 4096;
+
+		// Make sure old buffers are not given back to the driver.
+		clearMarkerFrameRing();
+		if (mPreviewBufferPool != null) {
+			mPreviewBufferPool.close();
+		}
+		PreviewBufferPool previousPool = switchBufferPool;
+		switchBufferPool = null;
+		closeDirectFramePool();
+		if (dataListener instanceof DirectFrameListener && pformat == ImageFormat.NV21) {
+			// one copy per frame, the preview buffer is free again right after
+			directFramePool = new DirectFramePool(previewBufferCount, frameSize);
+			metrics.allocated((long) previewBufferCount * frameSize);
+		}
+
+		// Preview buffers, extra ones for the frames kept for markers.
+		int ringSize = markerRingSize;
+		if (ringSize > 0) {
+			markerFrameRing = new PreviewFrameRing(ringSize);
+		}
+		int bufferCount = previewBufferCount + ringSize;
+		if (fitsPool(previousPool, bufferCount, bufferSize)) {
+			// switched camera with the same preview size, buffers from the
+			// previous camera go to this one
+			mPreviewBufferPool = previousPool;
+			preallocatedBuffers = null;
+			if (frameSlots == null || frameSlots.pool != previousPool) {
+				frameSlots = new FrameSlots(previousPool);
 			}
+			Log.d(TAG, "preview buffers reused");
+		} else {
+			byte[][] buffers = takePreallocatedBuffers(bufferCount, bufferSize);
+			mPreviewBufferPool = buffers != null ? new PreviewBufferPool(buffers, previewBufferSink)
+					: new PreviewBufferPool(bufferCount, bufferSize, previewBufferSink);
+			frameSlots = new FrameSlots(mPreviewBufferPool);
+			metrics.allocated((long) mPreviewBufferPool.getBufferCount() * mPreviewBufferPool.getBufferSize());
+		}
+		frameAnalyzer.reset();
+		metrics.setPreviewBufferPool(mPreviewBufferPool);
+		bufferCamera = camera;
+
+		Log.d(TAG, "Add callback buffers: " + previewBufferCount);
+
+		// with buffer requires addbuffer, all buffers are queued at start.
+		mPreviewBufferPool.start();
+		camera.setPreviewCallback(mCameraCallback);
 
-			Camera.Parameters parameters = camera.getParameters();
-			List<Size> sizes = parameters.getSupportedPreviewSizes();
-			Log.d(TAG, "Supported preview sizes:");
-			for (Size s : sizes) {
-				Log.d(TAG, "w: " + s.width + ", h:" + s.height);
+	}
+
+	/**
+	 * Ends a load window of adaptive preview every WINDOW_MILLIS while the
+	 * camera is open.
+	 */
+	private final Runnable qualityTick = new Runnable() {
+		@Override
+		public void run() {
+			if (camera == null || !adaptivePreview) {
+				return;
+			}
+			int current = state.get();
+			if (current == STATE_PREVIEW && videoRecorder == null) {
+				if (qualityController.evaluate(System.nanoTime(), getFrameDropCount())) {
+					applyQualityLevel();
+				}
+			} else if (current == STATE_CAPTURING || videoRecorder != null) {
+				// preview may stop for the picture, not a load to react to, and
+				// a recording keeps one frame size
+				qualityController.restartWindow(System.nanoTime(), getFrameDropCount());
 			}
+			getCameraThread().postDelayed(this, PreviewQualityController.WINDOW_MILLIS);
+		}
+	};
 
-			if (FrameWidth > FrameHeight) {
-				parameters.setPreviewSize(FrameWidth, FrameHeight);
+	/**
+	 * Sets the preview size and fps range chosen by the quality controller.
+	 * A new size restarts preview with buffers of the new size.
+	 */
+	private void applyQualityLevel() {
+		CameraSize size = qualityController.getSize();
+		CameraSettings settings = new CameraSettings();
+		settings.setPreviewFpsRange(qualityController.getFpsRange());
+		try {
+			if (size.getWidth() == mPreviewWidth && size.getHeight() == mPreviewHeight) {
+				camera.applySettings(settings);
 			} else {
-				parameters.setPreviewSize(FrameHeight, FrameWidth);
-				camera.setDisplayOrientation(90);
+				camera.setPreviewCallback(null);
+				if (directFrames) {
+					camera.setImageCallback(null, 0);
+				}
+				camera.stopPreview();
+				settings.setPreviewSize(size.getWidth(), size.getHeight());
+				settings.setPreviewFormat(ImageFormat.NV21);
+				camera.applySettings(settings);
+				frameSize = size;
+				doSetCallback(settings);
+				camera.startPreview();
 			}
-			camera.setParameters(parameters);
-			camera.startPreview();
-			inPreview = true;
+			Log.d(TAG, "preview quality " + size + " fps " + settings.getPreviewFpsRange()
+					+ ", load: " + qualityController.getLastLoad());
+		} catch (RuntimeException e) {
+			Log.e(TAG, "Error changing preview quality", e);
+		}
+		qualityController.restartWindow(System.nanoTime(), getFrameDropCount());
+	}
 
+	/**
+	 * @return frames lost so far because the consumer held every buffer,
+	 * decreases when buffers are replaced
+	 */
+	private long getFrameDropCount() {
+		long drops = 0;
+		PreviewBufferPool pool = mPreviewBufferPool;
+		if (pool != null) {
+			drops += pool.getDroppedCount();
+		}
+		DirectFramePool directPool = directFramePool;
+		if (directPool != null) {
+			drops += directPool.getDroppedCount();
+		}
+		FramePipeline pipeline = framePipeline;
+		if (pipeline != null) {
+			drops += pipeline.getDroppedCount();
 		}
+		return drops;
+	}
 
-		public void surfaceDestroyed(SurfaceHolder holder) {
-			// no-op
-			Log.w(TAG, "surface destroyed");
+	private void closeDirectFramePool() {
+		DirectFramePool pool = directFramePool;
+		if (pool != null) {
+			directFramePool = null;
+			pool.close();
+		}
+	}
 
+	/**
+	 * Queues buffers to the current camera, so that a pool can outlive the
+	 * camera it was created for. Pools are closed before their camera is
+	 * released, closed pools don't queue.
+	 */
+	private final PreviewBufferPool.BufferSink previewBufferSink = new PreviewBufferPool.BufferSink() {
+		@Override
+		public void queueBuffer(byte[] buffer) {
+			CameraDevice target = bufferCamera;
+			if (target != null) {
+				target.addCallbackBuffer(buffer);
+			}
 		}
 	};
 
 	/**
-	 * Sets the Camera preview callback
-	 * 
+	 * Rebuilds the frame descriptor from settings that were just applied
+	 * to the camera, without querying the camera again.
 	 */
-	public void setCallback() {
-
-		int pformat = camera.getParameters().getPreviewFormat();
-
-		// Get pixel format information to compute buffer size.
-		PixelFormat info = new PixelFormat();
-		PixelFormat.getPixelFormatInfo(pformat, info);
-		int bitsPerPixel = info.bitsPerPixel;
-
-		mPreviewWidth = camera.getParameters().getPreviewSize().width;
-		mPreviewHeight = camera.getParameters().getPreviewSize().height;
-
-		Log.d(TAG, "preview w: " + mPreviewWidth + ", h: " + mPreviewHeight);
-
-		int bufferSize = mPreviewWidth * mPreviewHeight * bitsPerPixel / 8;
-
-		// Make sure buffer is deleted before creating a new one.
-		mPreviewBuffer = null;
-		mPreviewBuffer2 = null;
-		mPreviewBuffer3 = null;
-		mPreviewBuffer4 = null;
-
-		// New preview buffer.
-		mPreviewBuffer = new byte[bufferSize + 4096];
-		mPreviewBuffer2 = new byte[bufferSize + 4096];
-		mPreviewBuffer3 = new byte[bufferSize + 4096];
-		mPreviewBuffer4 = new byte[bufferSize + 4096];
-
-		Log.d(TAG, "Add callback buffer");
-		inPreview = true;
-
-		// with buffer requires addbuffer.
-		camera.addCallbackBuffer(mPreviewBuffer);
-		mPreviewBufferIdx = 1;
-		camera.setPreviewCallbackWithBuffer(mCameraCallback);
-
+	private void updateFrameDescriptor(CameraSettings settings) {
+		FrameDescriptor descriptor = frameDescriptor;
+		if (descriptor != null) {
+			frameDescriptor = descriptor.withSize(settings.getPreviewWidth(), settings.getPreviewHeight());
+		}
 	}
 
 	/**
 	 * Camera callback to retrieve camera frames.
 	 * 
 	 */
-	private final Camera.PreviewCallback mCameraCallback = new Camera.PreviewCallback() {
+	private final CameraDevice.PreviewCallback mCameraCallback = new CameraDevice.PreviewCallback() {
 		/**
 		 * Actual callback function for camera frames. Does per frame
 		 * processing.
 		 * 
 		 * @param data
 		 *            buffer for preview data, in YUV420sp format.
-		 * @param c
-		 *            Camera object.
 		 */
-		public void onPreviewFrame(byte[] data, Camera c) {
-			if (c != null) {
-				// with buffer requires addbuffer each callback frame.
-				switch (mPreviewBufferIdx % 4) {
-				case 0:
-					c.addCallbackBuffer(mPreviewBuffer);
-					break;
-				case 1:
-					c.addCallbackBuffer(mPreviewBuffer2);
-					break;
-				case 2:
-					c.addCallbackBuffer(mPreviewBuffer3);
-					break;
-				case 3:
-					c.addCallbackBuffer(mPreviewBuffer4);
-					break;
-				}
-				;
-				mPreviewBufferIdx++;
-				if (inPreview) {
-					c.setPreviewCallbackWithBuffer(this);
-				}
+		public void onPreviewFrame(byte[] data) {
+			long arrivalNanos = System.nanoTime();
+			PreviewBufferPool pool = mPreviewBufferPool;
+			if (data == null || pool == null || !pool.acquire(data)) {
+				// buffer from an old session, don't give it back to the driver
+				return;
+			}
+			metrics.frameReceived();
+			if (resumeStartNanos != 0) {
+				firstFrameReceived(arrivalNanos);
+			}
+			lastFrameNanos = arrivalNanos;
+			FrameSlots slots = frameSlots;
+			int slot = slots != null && slots.pool == pool ? pool.slotOf(data) : -1;
+			if (slot >= 0) {
+				slots.arrivalNanos[slot] = arrivalNanos;
 			}
 			
-			if (dataListener != null) {
-				try {
-					Camera.Parameters params = c.getParameters();
-					int format = params.getPreviewFormat();
-					dataListener.receiveCameraFrame(data, FrameWidth, FrameHeight,
-							currentCameraFacing == CameraInfo.CAMERA_FACING_BACK,
-							format, imageOrientation);
-				} catch(Exception e) {
-					Log.e(TAG, "Error getting camera parameters!", e);
+			// frame geometry is cached, no camera parameter queries per frame
+			FrameDescriptor descriptor = frameDescriptor;
+			PreviewFrameRing ring = markerFrameRing;
+			if (ring != null && descriptor != null) {
+				ring.add(data, descriptor, pool, arrivalNanos);
+			}
+			VideoRecorder recorder = videoRecorder;
+			if (recorder != null && descriptor != null) {
+				recorder.offer(data, descriptor, pool, arrivalNanos);
+			}
+			FrameHistory history = frameHistory;
+			if (history != null && descriptor != null) {
+				history.offer(data, descriptor, pool, arrivalNanos);
+			}
+			if ((frameAnalysisEnabled || steadyCapture != null) && descriptor != null && slot >= 0) {
+				FrameAnalysis analysis = analyzeFrame(data, descriptor, slots.analyses[slot],
+						arrivalNanos);
+				if (analysis != null && steadyCapture != null) {
+					checkSteadyCapture(analysis);
 				}
 			}
+			FramePipeline pipeline = framePipeline;
+			if (pipeline != null && descriptor != null) {
+				// pipeline owns the buffer from now on
+				pipeline.submit(data, descriptor, pool);
+				return;
+			}
+			
+			deliverFrame(data, descriptor, pool);
+			
+			// buffer goes back to the driver only when the consumer is done with it
+			pool.release(data);
 			//Log.d(TAG, "frame received from camera");
 		}
 	};
 	
+	/**
+	 * Camera callback for frames in the camera's buffers, used when the
+	 * data listener is a {@link DirectFrameListener}.
+	 */
+	private final CameraDevice.ImageCallback mImageCallback = new CameraDevice.ImageCallback() {
+		@Override
+		public void onImageFrame(DirectFrame frame) {
+			long arrivalNanos = System.nanoTime();
+			metrics.frameReceived();
+			if (resumeStartNanos != 0) {
+				firstFrameReceived(arrivalNanos);
+			}
+			lastFrameNanos = arrivalNanos;
+			CameraDataListener listener = dataListener;
+			if (!directFrames || !(listener instanceof DirectFrameListener)) {
+				frame.release();
+				return;
+			}
+			frame.setCamera(imageOrientation, currentCameraFacing == CameraInfo.CAMERA_FACING_BACK);
+			VideoRecorder recorder = videoRecorder;
+			if (recorder != null) {
+				recorder.offer(frame, arrivalNanos);
+			}
+			FrameHistory history = frameHistory;
+			if (history != null) {
+				history.offer(frame, arrivalNanos);
+			}
+			if (frameAnalysisEnabled || steadyCapture != null) {
+				FrameAnalysis analysis = analyzeDirectFrame(frame, arrivalNanos);
+				if (analysis != null) {
+					if (frameAnalysisEnabled && listener instanceof FrameAnalysisListener) {
+						((FrameAnalysisListener) listener).receiveFrameAnalysis(analysis);
+					}
+					if (steadyCapture != null) {
+						checkSteadyCapture(analysis);
+					}
+				}
+			}
+			long startNanos = System.nanoTime();
+			try {
+				((DirectFrameListener) listener).receiveDirectFrame(frame);
+			} catch (Exception e) {
+				Log.e(TAG, "Error delivering camera frame!", e);
+			}
+			long endNanos = System.nanoTime();
+			metrics.frameDelivered(arrivalNanos, startNanos, endNanos);
+			if (adaptivePreview) {
+				qualityController.frameProcessed(endNanos - startNanos);
+			}
+		}
+	};
+
+	/**
+	 * Analyzes the luma plane of a direct frame, copied once to a reused
+	 * buffer since the analyzer reads arrays.
+	 * @return null if the frame has no luma plane
+	 */
+	private FrameAnalysis analyzeDirectFrame(DirectFrame frame, long arrivalNanos) {
+		if (frame.getFormat() != ImageFormat.YUV_420_888 || frame.getPlaneCount() == 0) {
+			return null;
+		}
+		int width = frame.getWidth();
+		int height = frame.getHeight();
+		byte[] luma = directLuma;
+		if (luma == null || luma.length < width * height) {
+			luma = new byte[width * height];
+			directLuma = luma;
+			metrics.allocated(luma.length);
+		}
+		ByteBuffer plane = frame.getPlane(0);
+		int rowStride = frame.getRowStride(0);
+		int position = plane.position();
+		if (rowStride == width) {
+			plane.get(luma, 0, Math.min(width * height, plane.remaining()));
+		} else {
+			for (int y = 0; y < height; y++) {
+				plane.position(position + y * rowStride);
+				plane.get(luma, y * width, width);
+			}
+		}
+		plane.position(position);
+		frameAnalyzer.analyze(luma, width, height, arrivalNanos, directAnalysis);
+		directAnalysis.buffer = null;
+		return directAnalysis;
+	}
+
+	/**
+	 * Delivers a frame to the data listener, cropping, rotating and
+	 * converting it first if requested, and then to the subscribers. With
+	 * manual frame release the buffer is retained for the listener when it is
+	 * delivered as is, the caller releases its own reference in any case.
+	 */
+	private void deliverFrame(byte[] data, FrameDescriptor descriptor, PreviewBufferPool pool) {
+		if (descriptor == null) {
+			return;
+		}
+		CameraDataListener listener = dataListener;
+		if (listener != null) {
+			try {
+				FrameSlots slots = frameSlots;
+				int slot = slots != null && slots.pool == pool ? pool.slotOf(data) : -1;
+				if (slot >= 0 && frameAnalysisEnabled && listener instanceof FrameAnalysisListener
+						&& slots.analyses[slot].buffer == data) {
+					((FrameAnalysisListener) listener).receiveFrameAnalysis(slots.analyses[slot]);
+				}
+				long arrivalNanos = slot >= 0 ? slots.arrivalNanos[slot] : 0;
+				long startNanos;
+				FrameTransform transform = frameTransform;
+				DirectFramePool directPool = directFramePool;
+				if (directPool != null && listener instanceof DirectFrameListener) {
+					startNanos = System.nanoTime();
+					if (!deliverDirectCopy(data, descriptor, directPool, arrivalNanos,
+							(DirectFrameListener) listener)) {
+						// every direct frame is still held by the listener
+						startNanos = 0;
+					}
+				} else if (transform.isIdentity(descriptor)) {
+					if (manualFrameRelease) {
+						pool.retain(data);
+					}
+					startNanos = System.nanoTime();
+					listener.receiveCameraFrame(data, descriptor.getWidth(), descriptor.getHeight(),
+							descriptor.isBackCamera(), descriptor.getFormat(),
+							descriptor.getOrientation());
+				} else {
+					byte[] out = getThreadBuffer(convertedBuffer, transform.getOutputSize(descriptor));
+					byte[] scratch = getThreadBuffer(roiBuffer, transform.getScratchSize(descriptor));
+					transform.apply(data, descriptor, yuvConverter, scratch, out);
+					startNanos = System.nanoTime();
+					listener.receiveCameraFrame(out, transform.getOutputWidth(descriptor),
+							transform.getOutputHeight(descriptor), descriptor.isBackCamera(),
+							transform.getOutputFormat(descriptor),
+							transform.getOutputOrientation(descriptor));
+				}
+				if (startNanos != 0) {
+					long endNanos = System.nanoTime();
+					metrics.frameDelivered(arrivalNanos, startNanos, endNanos);
+					if (adaptivePreview) {
+						qualityController.frameProcessed(endNanos - startNanos);
+					}
+				}
+			} catch(Exception e) {
+				Log.e(TAG, "Error delivering camera frame!", e);
+			}
+		}
+		if (frameFanOut.hasSubscriptions()) {
+			frameFanOut.dispatch(data, descriptor, pool, System.nanoTime());
+		}
+	}
+	
+	/**
+	 * Copies a NV21 preview buffer to a pooled direct frame and delivers it.
+	 * @return false if no direct frame is free
+	 */
+	private boolean deliverDirectCopy(byte[] data, FrameDescriptor descriptor, DirectFramePool pool,
+			long arrivalNanos, DirectFrameListener listener) {
+		DirectFrame frame = pool.obtain();
+		if (frame == null) {
+			return false;
+		}
+		ByteBuffer buffer = DirectFramePool.bufferOf(frame);
+		buffer.put(data, 0, Math.min(data.length, buffer.capacity()));
+		buffer.clear();
+		frame.set(ImageFormat.NV21, descriptor.getWidth(), descriptor.getHeight(), 3, arrivalNanos);
+		frame.setNv21Planes(buffer);
+		frame.setCamera(descriptor.getOrientation(), descriptor.isBackCamera());
+		listener.receiveDirectFrame(frame);
+		return true;
+	}
+
+	/**
+	 * Analyzes a NV21 frame into the result slot of its preview buffer.
+	 * @return null if the frame can't be analyzed
+	 */
+	private FrameAnalysis analyzeFrame(byte[] data, FrameDescriptor descriptor, FrameAnalysis analysis,
+			long arrivalNanos) {
+		if (descriptor.getFormat() != YuvConverter.FORMAT_NV21) {
+			return null;
+		}
+		frameAnalyzer.analyze(data, descriptor.getWidth(), descriptor.getHeight(), arrivalNanos,
+				analysis);
+		analysis.buffer = data;
+		return analysis;
+	}
+	
+	/**
+	 * Data kept for each buffer of a preview buffer pool, indexed by the
+	 * buffer's slot in the pool. A slot is written on the camera thread
+	 * before the frame is handed over and read while the frame is in flight.
+	 */
+	private static final class FrameSlots {
+		final PreviewBufferPool pool;
+		final long[] arrivalNanos;
+		final FrameAnalysis[] analyses;
+		
+		FrameSlots(PreviewBufferPool pool) {
+			this.pool = pool;
+			int count = pool.getBufferCount();
+			arrivalNanos = new long[count];
+			analyses = new FrameAnalysis[count];
+			for (int i = 0; i < count; i++) {
+				analyses[i] = new FrameAnalysis();
+			}
+		}
+	}
+	
+	/**
+	 * @return output buffer of the current delivering thread, at least of
+	 * given size
+	 */
+	private byte[] getThreadBuffer(ThreadLocal<byte[]> buffers, int size) {
+		byte[] out = buffers.get();
+		if (out == null || out.length < size) {
+			out = new byte[size];
+			buffers.set(out);
+			metrics.allocated(size);
+		}
+		return out;
+	}
+	
+	private final FramePipeline.FrameConsumer pipelineConsumer = new FramePipeline.FrameConsumer() {
+		@Override
+		public void processFrame(byte[] data, FrameDescriptor descriptor, PreviewBufferPool pool) {
+			deliverFrame(data, descriptor, pool);
+		}
+	};
+	
 	public void switchCamera(){
+		runOnCameraThread(new Callable<Void>() {
+			@Override
+			public Void call() {
+				doSwitchCamera();
+				return null;
+			}
+		});
+	}
+	
+	/**
+	 * Switches between the back and front camera. What can be done without
+	 * the new camera is done while the old one still shows preview: its
+	 * capabilities come from the camera cache and its preview buffers are
+	 * allocated, or the old camera's buffers are kept when the size is the
+	 * same. Only then the old camera is released, most devices can't open
+	 * both at once.
+	 */
+	private void doSwitchCamera(){
 		
 		if(camera != null){
-			if(Camera.getNumberOfCameras() > 1){
-				
-				pauseCamera();
+			if(cameraProvider.getCameraCount() > 1){
 				
+				int targetFacing;
 				if(currentCameraFacing == CameraInfo.CAMERA_FACING_BACK){
-					currentCameraFacing = CameraInfo.CAMERA_FACING_FRONT;
+					targetFacing = CameraInfo.CAMERA_FACING_FRONT;
 				} else {
-					currentCameraFacing = CameraInfo.CAMERA_FACING_BACK;
+					targetFacing = CameraInfo.CAMERA_FACING_BACK;
+				}
+				long switchStart = System.nanoTime();
+				int targetIndex = findCameraIndex(targetFacing);
+				if (targetIndex >= 0 && !directFrames) {
+					preallocatePreviewBuffers(targetIndex);
 				}
+				// no frame of the old camera yet, the gap counts from now
+				long lastFrame = resumeStartNanos == 0 ? lastFrameNanos : 0;
 				
-				resumeCamera(currentCameraFacing);
+				// stays OPENING until the new camera runs
+				releaseCamera(true);
+				
+				currentCameraFacing = targetFacing;
+				switchFromNanos = lastFrame != 0 ? lastFrame : switchStart;
+				resumeStartNanos = System.nanoTime();
+				openCameraFacing(currentCameraFacing);
+				startCamera();
 			}
 		}
 		
 	}
 	
-	public void focusOnTouch(float x, float y) {
+	/**
+	 * @return index of the first camera with given facing, -1 if none
+	 */
+	private int findCameraIndex(int cameraFacing) {
+		int cameraCount = cameraProvider.getCameraCount();
+		for (int i = 0; i < cameraCount; i++) {
+			if (cameraProvider.getFacing(i) == cameraFacing) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	public void focusOnTouch(final float x, final float y) {
+		postToCameraThread(new Callable<Void>() {
+			@Override
+			public Void call() {
+				doFocusOnTouch(x, y);
+				return null;
+			}
+		}, null);
+	}
+	
+	private void doFocusOnTouch(float x, float y) {
 		
 	    if (camera != null) {
 
 	        camera.cancelAutoFocus();
 	        Rect focusRect = calculateFocusArea(x, y, 1f);
 
-	        Parameters parameters = camera.getParameters();
-	        parameters.setFocusMode(Parameters.FOCUS_MODE_AUTO);
+	        CameraSettings settings = new CameraSettings();
+	        settings.setFocusMode(Camera.Parameters.FOCUS_MODE_AUTO);
 	        
-	        List<Camera.Area> areas = new ArrayList<Camera.Area>();
-	        areas.add(new Camera.Area(focusRect, 1000));
 	        Log.d(TAG, "touch x: " + x + " y: " + y + 
 	        		 ", focus x: " + focusRect.centerX() + " y: " + focusRect.centerY() + 
 	        		 ", disp w: " + displayWidth + " h: " + displayHeight);
-	        parameters.setFocusAreas(areas);
+	        settings.setFocusArea(focusRect.left, focusRect.top, focusRect.right, focusRect.bottom, 1000);
 
-	        camera.setParameters(parameters);
+	        camera.applySettings(settings);
 	        camera.autoFocus(focusCallback);
 	    }
 	    
 	}
 	
-	private Camera.AutoFocusCallback focusCallback = new Camera.AutoFocusCallback() {
+	private CameraDevice.FocusCallback focusCallback = new CameraDevice.FocusCallback() {
 		@Override
-		public void onAutoFocus(boolean success, Camera camera) {
+		public void onFocused(boolean success) {
 			Log.d(TAG, "camera focused: " + success);
 		}
 	};
@@ -586,37 +2412,386 @@ public class CameraHandler {
 	}
 	
 	
-	public boolean captureMarker(float aspectRatio){
+	/**
+	 * Captures a marker, queued after captures already in progress.
+	 * @return false if preview is not running
+	 */
+	public boolean captureMarker(final float aspectRatio){
+		return captureMarkerBurst(aspectRatio, 1) >= 0;
+	}
+	
+	/**
+	 * Captures markers back to back, each delivered to receiveMarkerFrame.
+	 * @return request id reported to the {@link CaptureTimingListener},
+	 * -1 if preview is not running
+	 */
+	public int captureMarkerBurst(final float aspectRatio, final int shotCount){
+		return runOnCameraThread(new Callable<Integer>() {
+			@Override
+			public Integer call() {
+				return doCaptureMarker(aspectRatio, shotCount);
+			}
+		});
+	}
+	
+	private int doCaptureMarker(float aspectRatio, int shotCount){
 		Log.d(TAG, "starting to capture marker");
 		
-		if(inPreview){
-			markerTaker.setAspectRatio(aspectRatio);
-			markerTaker.takePhoto(camera);
-			Log.d(TAG, "marker taking called");
-			return true;
+		if(isPreviewRunning() && markerTaker != null){
+			if (shotCount == 1) {
+				int requestId = captureMarkerFromPreview(aspectRatio);
+				if (requestId >= 0) {
+					return requestId;
+				}
+			}
+			int requestId = captureScheduler.enqueue(markerTaker, aspectRatio, shotCount);
+			Log.d(TAG, "marker taking queued");
+			return requestId;
 		} else {
 			Log.e(TAG, "Can not capture marker now!");
-			return false;
+			return -1;
 		}
 		
 	}
 	
-	private PhotoListener photoListener = new PhotoListener() {
-		@Override
-		public void photoCaptured(byte[] data, int width, int height, float screenAspectRatio) {
-
-			if (dataListener != null)
-			dataListener.receivePhotoFrame(data, width, height);
+	/**
+	 * Captures a marker once the camera has been steady for a couple of
+	 * frames, so that fewer markers are blurred by hand shake. Replaces a
+	 * steady capture that is still waiting.
+	 * @param maxMotion largest movement between frames in pixels counted
+	 * as steady
+	 * @param timeoutMs capture anyway after this time
+	 * @return false if preview is not running
+	 */
+	public boolean captureMarkerWhenSteady(float aspectRatio, float maxMotion, int timeoutMs) {
+		return requestSteadyCapture(true, aspectRatio, maxMotion, timeoutMs);
+	}
+	
+	/**
+	 * Takes a photo once the camera has been steady for a couple of frames.
+	 * @see #captureMarkerWhenSteady(float, float, int)
+	 */
+	public boolean takePhotoWhenSteady(float maxMotion, int timeoutMs) {
+		return requestSteadyCapture(false, 0, maxMotion, timeoutMs);
+	}
+	
+	private boolean requestSteadyCapture(final boolean marker, final float aspectRatio,
+			final float maxMotion, final int timeoutMs) {
+		return runOnCameraThread(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				if (!isPreviewRunning()) {
+					Log.e(TAG, "Can not capture now!");
+					return false;
+				}
+				steadyCapture = new SteadyCapture(marker, aspectRatio, maxMotion,
+						System.nanoTime() + timeoutMs * 1000000L);
+				return true;
+			}
+		});
+	}
+	
+	/**
+	 * Takes the waiting steady capture if the camera has been steady long
+	 * enough or the wait timed out.
+	 */
+	private void checkSteadyCapture(FrameAnalysis analysis) {
+		SteadyCapture pending = steadyCapture;
+		if (analysis.isSteady(pending.maxMotion)) {
+			pending.steadyFrames++;
+		} else {
+			pending.steadyFrames = 0;
 		}
-	};
+		boolean timedOut = analysis.getTimestampNanos() - pending.deadlineNanos >= 0;
+		if (pending.steadyFrames < STEADY_FRAME_COUNT && !timedOut) {
+			return;
+		}
+		steadyCapture = null;
+		Log.d(TAG, (timedOut ? "steady wait timed out, " : "camera steady, ") + analysis);
+		if (pending.marker) {
+			doCaptureMarker(pending.aspectRatio, 1);
+		} else {
+			doTakePhoto(1);
+		}
+	}
+	
+	private static final class SteadyCapture {
+		final boolean marker;
+		final float aspectRatio;
+		final float maxMotion;
+		final long deadlineNanos;
+		int steadyFrames;
+		
+		SteadyCapture(boolean marker, float aspectRatio, float maxMotion, long deadlineNanos) {
+			this.marker = marker;
+			this.aspectRatio = aspectRatio;
+			this.maxMotion = maxMotion;
+			this.deadlineNanos = deadlineNanos;
+		}
+	}
+	
+	/**
+	 * Delivers a recent preview frame as the marker, subsampled to the
+	 * marker decoder's target size and converted to RGB565 on the decode
+	 * thread.
+	 * @return request id, -1 if takePicture is needed
+	 */
+	private int captureMarkerFromPreview(final float aspectRatio) {
+		PreviewFrameRing ring = markerFrameRing;
+		final PhotoDecoder decoder = markerTaker.getDecoder();
+		if (ring == null || decoder.getOutput() == PhotoDecoder.OUTPUT_JPEG) {
+			return -1;
+		}
+		long startNanos = System.nanoTime();
+		int slot = ring.select(markerPickSharpest, startNanos, MARKER_FRAME_MAX_AGE_NANOS);
+		if (slot < 0) {
+			return -1;
+		}
+		final FrameDescriptor descriptor = ring.getDescriptor(slot);
+		final int width = descriptor.getWidth();
+		final int height = descriptor.getHeight();
+		if (descriptor.getFormat() != YuvConverter.FORMAT_NV21 || width * height < markerMinPixels
+				|| (aspectRatio > 0 && Math.abs((float) width / height - aspectRatio)
+						>= PhotoTaker.MARKER_ASPECT_RATIO_LIMIT)) {
+			return -1;
+		}
+		
+		// the ring may drop the frame before the decode thread gets to it
+		final byte[] frame = ring.getFrame(slot);
+		final PreviewBufferPool pool = ring.getPool(slot);
+		pool.retain(frame);
+		final int generation = previewMarkerGeneration.get();
+		try {
+			getPhotoDecodeExecutor().execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						if (generation == previewMarkerGeneration.get()) {
+							deliverPreviewMarker(frame, width, height, decoder, aspectRatio);
+						}
+					} finally {
+						pool.release(frame);
+					}
+				}
+			});
+		} catch (RuntimeException e) {
+			Log.e(TAG, "Marker delivery rejected", e);
+			pool.release(frame);
+			return -1;
+		}
+		Log.d(TAG, "marker taken from preview, w: " + width + " h: " + height);
+		return captureScheduler.reportImmediateShot(startNanos);
+	}
+	
+	private void deliverPreviewMarker(byte[] frame, int width, int height, PhotoDecoder decoder,
+			float aspectRatio) {
+		// subsampled as the decoder subsamples a picture, so that markers
+		// from preview and from takePicture come in the same size
+		int sampleSize = decoder.getSampleSize(width, height);
+		if (sampleSize > 1) {
+			FrameRoi roi = new FrameRoi(0, 0, 1, 1, sampleSize, false, FrameRoi.FORMAT_NV21);
+			int scaledSize = roi.getOutputSize(width, height);
+			if (markerScaled == null || markerScaled.length != scaledSize) {
+				markerScaled = new byte[scaledSize];
+				metrics.allocated(scaledSize);
+			}
+			RoiScaler.scale(frame, width, height, roi, markerScaled);
+			frame = markerScaled;
+			width = roi.getOutputWidth(width);
+			height = roi.getOutputHeight(height);
+		}
+		int size = YuvConverter.getOutputSize(YuvConverter.FORMAT_RGB565, width, height);
+		if (decoder.getOutput() != PhotoDecoder.OUTPUT_RGB565_DIRECT) {
+			// array is handed over to the listener, so a new one each time
+			byte[] pixels = new byte[size];
+			metrics.allocated(size);
+			yuvConverter.nv21ToRgb565(frame, width, height, pixels);
+			markerListener.photoCaptured(pixels, width, height, aspectRatio);
+			return;
+		}
+		if (markerPixels == null || markerPixels.length != size) {
+			markerPixels = new byte[size];
+			markerDirectBuffer = ByteBuffer.allocateDirect(size);
+			metrics.allocated(2L * size);
+		}
+		yuvConverter.nv21ToRgb565(frame, width, height, markerPixels);
+		markerDirectBuffer.clear();
+		markerDirectBuffer.put(markerPixels);
+		markerDirectBuffer.rewind();
+		((PhotoBufferListener) markerListener).photoBufferCaptured(markerDirectBuffer, width, height,
+				aspectRatio);
+	}
 	
-	private PhotoListener markerListener = new PhotoListener() {
+	private void clearMarkerFrameRing() {
+		if (markerFrameRing != null) {
+			markerFrameRing.clear();
+			markerFrameRing = null;
+		}
+	}
+	
+	/**
+	 * @return the camera thread, a new one once a quitting thread finished.
+	 * The last task of the quitting thread gets that thread, which refuses
+	 * its posts.
+	 */
+	private synchronized CameraThread getCameraThread() {
+		while (quittingThread != null) {
+			if (quittingThread.isCurrentThread()) {
+				return quittingThread;
+			}
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while the camera thread quits", e);
+			}
+		}
+		if (cameraThread == null) {
+			cameraThread = cameraThreadFactory.start();
+		}
+		return cameraThread;
+	}
+	
+	/**
+	 * Posts a task to the camera thread, to a new one if the thread quit
+	 * before the task got to it. A task posted by the quitting thread is
+	 * cancelled.
+	 */
+	private void post(Runnable task) {
+		while (true) {
+			CameraThread thread = getCameraThread();
+			if (thread.post(task)) {
+				return;
+			}
+			if (thread.isCurrentThread()) {
+				if (task instanceof Future) {
+					((Future<?>) task).cancel(false);
+				}
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Runs the task on the camera thread and waits for the result. Runs
+	 * the task directly when called on the camera thread.
+	 * @throws CancellationException if the handler was released before the
+	 * task ran
+	 */
+	private <T> T runOnCameraThread(Callable<T> task) {
+		FutureTask<T> future = new FutureTask<T>(task);
+		if (getCameraThread().isCurrentThread()) {
+			future.run();
+		} else {
+			post(future);
+		}
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for camera thread", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IllegalStateException("Camera thread task failed", cause);
+		}
+	}
+	
+	/**
+	 * Posts the task to the camera thread without waiting.
+	 * @param listener notified with the result on the caller's looper if
+	 * the caller has one, otherwise on the camera thread. May be null.
+	 */
+	private <T> Future<T> postToCameraThread(final Callable<T> task,
+			final CameraResumeListener listener) {
+		Looper callerLooper = Looper.myLooper();
+		final Handler callerHandler = callerLooper != null ? new Handler(callerLooper) : null;
+		FutureTask<T> future = new FutureTask<T>(task) {
+			@Override
+			protected void done() {
+				if (listener == null || isCancelled()) {
+					return;
+				}
+				final int[] frameSize = resultAsFrameSize(this);
+				Runnable notify = new Runnable() {
+					@Override
+					public void run() {
+						listener.cameraResumed(frameSize);
+					}
+				};
+				if (callerHandler != null) {
+					callerHandler.post(notify);
+				} else {
+					notify.run();
+				}
+			}
+		};
+		post(future);
+		return future;
+	}
+	
+	private static int[] resultAsFrameSize(Future<?> future) {
+		try {
+			Object result = future.get();
+			if (result instanceof int[]) {
+				return (int[]) result;
+			}
+		} catch (Exception e) {
+			Log.e(TAG, "Camera resume failed", e);
+		}
+		return new int[2];
+	}
+	
+	private PhotoListener photoListener = new PhotoForwarder(false);
+	
+	private PhotoListener markerListener = new PhotoForwarder(true);
+	
+	/**
+	 * Forwards photos or markers to the data listener, direct buffers only
+	 * if the listener takes them.
+	 */
+	private class PhotoForwarder implements PhotoListener, PhotoBufferListener {
+		
+		private final boolean marker;
+		
+		PhotoForwarder(boolean marker) {
+			this.marker = marker;
+		}
+		
 		@Override
 		public void photoCaptured(byte[] data, int width, int height, float screenAspectRatio) {
 
-			if (dataListener != null)
-			dataListener.receiveMarkerFrame(data, width, height, screenAspectRatio);
+			CameraDataListener listener = dataListener;
+			if (listener == null) {
+				return;
+			}
+			if (marker) {
+				listener.receiveMarkerFrame(data, width, height, screenAspectRatio);
+			} else {
+				listener.receivePhotoFrame(data, width, height);
+			}
 		}
-	};
+		
+		@Override
+		public void photoBufferCaptured(ByteBuffer buffer, int width, int height, float screenAspectRatio) {
+			
+			CameraDataListener listener = dataListener;
+			if (!(listener instanceof DirectPhotoListener)) {
+				byte[] data = new byte[buffer.remaining()];
+				metrics.allocated(data.length);
+				buffer.get(data);
+				photoCaptured(data, width, height, screenAspectRatio);
+				return;
+			}
+			DirectPhotoListener directListener = (DirectPhotoListener) listener;
+			if (marker) {
+				directListener.receiveMarkerBuffer(buffer, width, height, screenAspectRatio);
+			} else {
+				directListener.receivePhotoBuffer(buffer, width, height);
+			}
+		}
+	}
 	
 }
@@ -0,0 +1,537 @@
+package org.astri.camerahandler;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Frame and capture timing of a {@link CameraHandler}, see
+ * {@link CameraHandler#getMetrics()}.
+ * <p>
+ * Recording is lock free and doesn't allocate, counters are striped and
+ * latencies go to fixed size histograms, so metrics can be left enabled.
+ * {@link #snapshot()} is meant to be polled, e.g. by telemetry once in a
+ * few seconds.
+ */
+public class CameraMetrics {
+
+	private volatile boolean enabled = true;
+
+	private final StripedCounter framesReceived = new StripedCounter();
+	private final StripedCounter framesDelivered = new StripedCounter();
+	private final StripedCounter allocatedBytes = new StripedCounter();
+	private final StripedCounter allocationCount = new StripedCounter();
+	private final StripedCounter framesRecorded = new StripedCounter();
+	private final StripedCounter recordingDrops = new StripedCounter();
+	private final StripedCounter historyFrames = new StripedCounter();
+	private final StripedCounter historyDrops = new StripedCounter();
+
+	/** Camera callback to the start of receiveCameraFrame, including queueing */
+	private final LatencyHistogram frameLatency = new LatencyHistogram();
+	/** Time spent in receiveCameraFrame */
+	private final LatencyHistogram listenerTime = new LatencyHistogram();
+	/** Capture request to takePicture, waiting for earlier captures */
+	private final LatencyHistogram captureWait = new LatencyHistogram();
+	/** takePicture to the JPEG callback, shutter and JPEG encoding */
+	private final LatencyHistogram captureTime = new LatencyHistogram();
+	/** takePicture to the start of the exposure, if the camera reports it */
+	private final LatencyHistogram shutterLag = new LatencyHistogram();
+	/** Start of the exposure to the JPEG callback, exposure and encoding */
+	private final LatencyHistogram jpegTime = new LatencyHistogram();
+	/** JPEG callback to the photo delivered, decoding and delivery */
+	private final LatencyHistogram decodeTime = new LatencyHistogram();
+	/** Capture request to the photo delivered */
+	private final LatencyHistogram photoTotal = new LatencyHistogram();
+	/** Opening the camera device */
+	private final LatencyHistogram openTime = new LatencyHistogram();
+	/** Resume request to the first preview frame received */
+	private final LatencyHistogram firstFrameTime = new LatencyHistogram();
+	/** Last frame of the old camera to the first of the new one */
+	private final LatencyHistogram switchGap = new LatencyHistogram();
+
+	// sources of counters kept by other objects, and totals of retired ones
+	private PreviewBufferPool pool;
+	private FramePipeline pipeline;
+	private long retiredStarvations;
+	private long retiredDrops;
+
+	private long lastSnapshotNanos = System.nanoTime();
+	private long lastDelivered;
+
+	/**
+	 * Metrics are enabled by default. Disabling stops recording, values
+	 * recorded so far are kept.
+	 * @param enabled
+	 */
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	void frameReceived() {
+		if (enabled) {
+			framesReceived.increment();
+		}
+	}
+
+	void frameDelivered(long arrivalNanos, long listenerStartNanos, long listenerEndNanos) {
+		if (enabled) {
+			framesDelivered.increment();
+			if (arrivalNanos != 0) {
+				frameLatency.recordNanos(listenerStartNanos - arrivalNanos);
+			}
+			listenerTime.recordNanos(listenerEndNanos - listenerStartNanos);
+		}
+	}
+
+	void frameRecorded() {
+		if (enabled) {
+			framesRecorded.increment();
+		}
+	}
+
+	void recordingDropped() {
+		if (enabled) {
+			recordingDrops.increment();
+		}
+	}
+
+	void historyFrameStored() {
+		if (enabled) {
+			historyFrames.increment();
+		}
+	}
+
+	void historyDropped() {
+		if (enabled) {
+			historyDrops.increment();
+		}
+	}
+
+	void shotCaptured(long waitNanos, long captureNanos) {
+		if (enabled) {
+			captureWait.recordNanos(waitNanos);
+			captureTime.recordNanos(captureNanos);
+		}
+	}
+
+	void shutterReported(long shutterLagNanos, long jpegNanos) {
+		if (enabled) {
+			shutterLag.recordNanos(shutterLagNanos);
+			jpegTime.recordNanos(jpegNanos);
+		}
+	}
+
+	void photoDelivered(long decodeNanos, long totalNanos) {
+		if (enabled) {
+			decodeTime.recordNanos(decodeNanos);
+			photoTotal.recordNanos(totalNanos);
+		}
+	}
+
+	void cameraOpened(long openNanos) {
+		if (enabled) {
+			openTime.recordNanos(openNanos);
+		}
+	}
+
+	void firstFrame(long sinceResumeNanos) {
+		if (enabled) {
+			firstFrameTime.recordNanos(sinceResumeNanos);
+		}
+	}
+
+	void cameraSwitched(long gapNanos) {
+		if (enabled) {
+			switchGap.recordNanos(gapNanos);
+		}
+	}
+
+	/**
+	 * Counts a buffer allocated by the library while the camera runs, which
+	 * is what the garbage collector will have to reclaim.
+	 */
+	void allocated(long bytes) {
+		if (enabled) {
+			allocationCount.increment();
+			allocatedBytes.add(bytes);
+		}
+	}
+
+	synchronized void setPreviewBufferPool(PreviewBufferPool newPool) {
+		if (pool != null && pool != newPool) {
+			retiredStarvations += pool.getDroppedCount();
+		}
+		pool = newPool;
+	}
+
+	synchronized void setFramePipeline(FramePipeline newPipeline) {
+		if (pipeline != null && pipeline != newPipeline) {
+			retiredDrops += pipeline.getDroppedCount();
+		}
+		pipeline = newPipeline;
+	}
+
+	/**
+	 * @return current values, frame rate since the previous snapshot
+	 */
+	public synchronized Snapshot snapshot() {
+		long now = System.nanoTime();
+		long delivered = framesDelivered.sum();
+		long elapsed = now - lastSnapshotNanos;
+		float fps = elapsed > 0 ? (delivered - lastDelivered) * 1e9f / elapsed : 0;
+		lastSnapshotNanos = now;
+		lastDelivered = delivered;
+
+		long starvations = retiredStarvations + (pool != null ? pool.getDroppedCount() : 0);
+		long drops = retiredDrops + (pipeline != null ? pipeline.getDroppedCount() : 0);
+		return new Snapshot(System.currentTimeMillis(), fps, framesReceived.sum(), delivered,
+				drops, starvations, allocationCount.sum(), allocatedBytes.sum(),
+				framesRecorded.sum(), recordingDrops.sum(), historyFrames.sum(), historyDrops.sum(),
+				frameLatency.snapshot(), listenerTime.snapshot(), captureWait.snapshot(),
+				captureTime.snapshot(), shutterLag.snapshot(), jpegTime.snapshot(),
+				decodeTime.snapshot(), photoTotal.snapshot(),
+				openTime.snapshot(), firstFrameTime.snapshot(), switchGap.snapshot());
+	}
+
+	/**
+	 * Clears every counter and histogram.
+	 */
+	public synchronized void reset() {
+		framesReceived.reset();
+		framesDelivered.reset();
+		allocatedBytes.reset();
+		allocationCount.reset();
+		framesRecorded.reset();
+		recordingDrops.reset();
+		historyFrames.reset();
+		historyDrops.reset();
+		frameLatency.reset();
+		listenerTime.reset();
+		captureWait.reset();
+		captureTime.reset();
+		shutterLag.reset();
+		jpegTime.reset();
+		decodeTime.reset();
+		photoTotal.reset();
+		openTime.reset();
+		firstFrameTime.reset();
+		switchGap.reset();
+		retiredStarvations = pool != null ? -pool.getDroppedCount() : 0;
+		retiredDrops = pipeline != null ? -pipeline.getDroppedCount() : 0;
+		lastSnapshotNanos = System.nanoTime();
+		lastDelivered = 0;
+	}
+
+	/**
+	 * Summary of a latency histogram, durations in microseconds.
+	 */
+	public static final class HistogramSnapshot {
+		private final long count;
+		private final double mean;
+		private final long p50;
+		private final long p90;
+		private final long p99;
+		private final long max;
+
+		HistogramSnapshot(long count, double mean, long p50, long p90, long p99, long max) {
+			this.count = count;
+			this.mean = mean;
+			this.p50 = p50;
+			this.p90 = p90;
+			this.p99 = p99;
+			this.max = max;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public double getMeanMicros() {
+			return mean;
+		}
+
+		public long getP50Micros() {
+			return p50;
+		}
+
+		public long getP90Micros() {
+			return p90;
+		}
+
+		public long getP99Micros() {
+			return p99;
+		}
+
+		public long getMaxMicros() {
+			return max;
+		}
+
+		void export(String name, Map<String, Number> out) {
+			out.put(name + ".count", count);
+			out.put(name + ".mean_us", mean);
+			out.put(name + ".p50_us", p50);
+			out.put(name + ".p90_us", p90);
+			out.put(name + ".p99_us", p99);
+			out.put(name + ".max_us", max);
+		}
+
+		@Override
+		public String toString() {
+			return "n: " + count + " mean: " + Math.round(mean) + " p50: " + p50 + " p90: " + p90
+					+ " p99: " + p99 + " max: " + max + " us";
+		}
+	}
+
+	/**
+	 * Values of all metrics at one point of time.
+	 */
+	public static final class Snapshot {
+		private final long timestampMillis;
+		private final float deliveredFps;
+		private final long framesReceived;
+		private final long framesDelivered;
+		private final long framesDropped;
+		private final long bufferStarvations;
+		private final long allocationCount;
+		private final long allocatedBytes;
+		private final long framesRecorded;
+		private final long recordingDrops;
+		private final long historyFrames;
+		private final long historyDrops;
+		private final HistogramSnapshot frameLatency;
+		private final HistogramSnapshot listenerTime;
+		private final HistogramSnapshot captureWait;
+		private final HistogramSnapshot captureTime;
+		private final HistogramSnapshot shutterLag;
+		private final HistogramSnapshot jpegTime;
+		private final HistogramSnapshot decodeTime;
+		private final HistogramSnapshot photoTotal;
+		private final HistogramSnapshot openTime;
+		private final HistogramSnapshot firstFrameTime;
+		private final HistogramSnapshot switchGap;
+
+		Snapshot(long timestampMillis, float deliveredFps, long framesReceived, long framesDelivered,
+				long framesDropped, long bufferStarvations, long allocationCount, long allocatedBytes,
+				long framesRecorded, long recordingDrops, long historyFrames, long historyDrops,
+				HistogramSnapshot frameLatency, HistogramSnapshot listenerTime,
+				HistogramSnapshot captureWait, HistogramSnapshot captureTime,
+				HistogramSnapshot shutterLag, HistogramSnapshot jpegTime,
+				HistogramSnapshot decodeTime, HistogramSnapshot photoTotal,
+				HistogramSnapshot openTime, HistogramSnapshot firstFrameTime,
+				HistogramSnapshot switchGap) {
+			this.timestampMillis = timestampMillis;
+			this.deliveredFps = deliveredFps;
+			this.framesReceived = framesReceived;
+			this.framesDelivered = framesDelivered;
+			this.framesDropped = framesDropped;
+			this.bufferStarvations = bufferStarvations;
+			this.allocationCount = allocationCount;
+			this.allocatedBytes = allocatedBytes;
+			this.framesRecorded = framesRecorded;
+			this.recordingDrops = recordingDrops;
+			this.historyFrames = historyFrames;
+			this.historyDrops = historyDrops;
+			this.frameLatency = frameLatency;
+			this.listenerTime = listenerTime;
+			this.captureWait = captureWait;
+			this.captureTime = captureTime;
+			this.shutterLag = shutterLag;
+			this.jpegTime = jpegTime;
+			this.decodeTime = decodeTime;
+			this.photoTotal = photoTotal;
+			this.openTime = openTime;
+			this.firstFrameTime = firstFrameTime;
+			this.switchGap = switchGap;
+		}
+
+		public long getTimestampMillis() {
+			return timestampMillis;
+		}
+
+		/**
+		 * @return frames delivered to the data listener per second since
+		 * the previous snapshot
+		 */
+		public float getDeliveredFps() {
+			return deliveredFps;
+		}
+
+		public long getFramesReceived() {
+			return framesReceived;
+		}
+
+		public long getFramesDelivered() {
+			return framesDelivered;
+		}
+
+		/**
+		 * @return frames dropped by the frame pipeline
+		 */
+		public long getFramesDropped() {
+			return framesDropped;
+		}
+
+		/**
+		 * @return times the camera driver was left without a free preview
+		 * buffer, each drops at least one frame in the driver
+		 */
+		public long getBufferStarvations() {
+			return bufferStarvations;
+		}
+
+		public long getAllocationCount() {
+			return allocationCount;
+		}
+
+		public long getAllocatedBytes() {
+			return allocatedBytes;
+		}
+
+		/**
+		 * @return frames written to video files
+		 */
+		public long getFramesRecorded() {
+			return framesRecorded;
+		}
+
+		/**
+		 * @return frames skipped by the recorder so that the camera and the
+		 * data listener weren't held up, or not taken by the encoder
+		 */
+		public long getRecordingDrops() {
+			return recordingDrops;
+		}
+
+		/**
+		 * @return frames compressed into the frame history
+		 */
+		public long getHistoryFrames() {
+			return historyFrames;
+		}
+
+		/**
+		 * @return frames the frame history skipped so that the camera wasn't
+		 * held up, or couldn't compress or store
+		 */
+		public long getHistoryDrops() {
+			return historyDrops;
+		}
+
+		public HistogramSnapshot getFrameLatency() {
+			return frameLatency;
+		}
+
+		public HistogramSnapshot getListenerTime() {
+			return listenerTime;
+		}
+
+		public HistogramSnapshot getCaptureWait() {
+			return captureWait;
+		}
+
+		/**
+		 * @return takePicture to the JPEG, see getShutterLag and getJpegTime
+		 * for its parts
+		 */
+		public HistogramSnapshot getCaptureTime() {
+			return captureTime;
+		}
+
+		/**
+		 * @return takePicture to the start of the exposure, empty with
+		 * Camera1 which doesn't report it
+		 */
+		public HistogramSnapshot getShutterLag() {
+			return shutterLag;
+		}
+
+		/**
+		 * @return start of the exposure to the JPEG, empty with Camera1
+		 */
+		public HistogramSnapshot getJpegTime() {
+			return jpegTime;
+		}
+
+		public HistogramSnapshot getDecodeTime() {
+			return decodeTime;
+		}
+
+		public HistogramSnapshot getPhotoTotal() {
+			return photoTotal;
+		}
+
+		/**
+		 * @return time the camera device took to open
+		 */
+		public HistogramSnapshot getOpenTime() {
+			return openTime;
+		}
+
+		/**
+		 * @return resume request to the first preview frame, the startup
+		 * time seen by the user
+		 */
+		public HistogramSnapshot getTimeToFirstFrame() {
+			return firstFrameTime;
+		}
+
+		/**
+		 * @return preview gap of camera switches, from the last frame of the
+		 * old camera to the first frame of the new one
+		 */
+		public HistogramSnapshot getSwitchGap() {
+			return switchGap;
+		}
+
+		/**
+		 * @return flat name to value map for telemetry export
+		 */
+		public Map<String, Number> toMap() {
+			Map<String, Number> out = new LinkedHashMap<String, Number>();
+			out.put("timestamp_ms", timestampMillis);
+			out.put("frames.fps", deliveredFps);
+			out.put("frames.received", framesReceived);
+			out.put("frames.delivered", framesDelivered);
+			out.put("frames.dropped", framesDropped);
+			out.put("buffers.starved", bufferStarvations);
+			out.put("alloc.count", allocationCount);
+			out.put("alloc.bytes", allocatedBytes);
+			out.put("recording.frames", framesRecorded);
+			out.put("recording.dropped", recordingDrops);
+			out.put("history.frames", historyFrames);
+			out.put("history.dropped", historyDrops);
+			frameLatency.export("frame.latency", out);
+			listenerTime.export("frame.listener", out);
+			captureWait.export("capture.wait", out);
+			captureTime.export("capture.shot", out);
+			shutterLag.export("capture.shutter", out);
+			jpegTime.export("capture.jpeg", out);
+			decodeTime.export("capture.decode", out);
+			photoTotal.export("capture.total", out);
+			openTime.export("startup.open", out);
+			firstFrameTime.export("startup.first_frame", out);
+			switchGap.export("switch.gap", out);
+			return out;
+		}
+
+		@Override
+		public String toString() {
+			return "CameraMetrics fps: " + deliveredFps + ", received: " + framesReceived
+					+ ", delivered: " + framesDelivered + ", dropped: " + framesDropped
+					+ ", starved: " + bufferStarvations + ", allocations: " + allocationCount
+					+ " (" + allocatedBytes + " bytes)"
+					+ ", recorded: " + framesRecorded + ", recording drops: " + recordingDrops
+					+ ", history: " + historyFrames + ", history drops: " + historyDrops
+					+ "\n frame latency " + frameLatency + "\n listener " + listenerTime
+					+ "\n capture wait " + captureWait + "\n shot " + captureTime
+					+ "\n shutter " + shutterLag + "\n jpeg " + jpegTime
+					+ "\n decode " + decodeTime + "\n photo total " + photoTotal
+					+ "\n camera open " + openTime + "\n first frame " + firstFrameTime
+					+ "\n switch gap " + switchGap;
+		}
+	}
+
+}
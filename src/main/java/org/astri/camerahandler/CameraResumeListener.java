@@ -0,0 +1,12 @@
+package org.astri.camerahandler;
+
+public interface CameraResumeListener {
+
+	/**
+	 * Called when an asynchronous camera resume has finished.
+	 * @param frameSize preview frame width and height, both 0 if the
+	 * camera failed to open
+	 */
+	public void cameraResumed(int[] frameSize);
+
+}
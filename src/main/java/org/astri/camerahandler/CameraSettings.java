@@ -0,0 +1,133 @@
+package org.astri.camerahandler;
+
+/**
+ * Camera settings applied in one round trip by
+ * {@link CameraDevice#applySettings(CameraSettings)}. Only the values set
+ * are changed, the others are left as the camera has them.
+ * <p>
+ * Returned by {@link CameraDevice#getSettings()} with every value set to
+ * the camera's current one.
+ */
+public final class CameraSettings {
+
+	private int previewWidth;
+	private int previewHeight;
+	/** ImageFormat constant, 0 when not set */
+	private int previewFormat;
+	private int pictureWidth;
+	private int pictureHeight;
+	private String focusMode;
+	private String whiteBalance;
+	/** Focus area in the -1000..1000 camera coordinates, null when not set */
+	private int[] focusArea;
+	private CameraFpsRange previewFpsRange;
+
+	public void setPreviewSize(int width, int height) {
+		previewWidth = width;
+		previewHeight = height;
+	}
+
+	public boolean hasPreviewSize() {
+		return previewWidth > 0 && previewHeight > 0;
+	}
+
+	public int getPreviewWidth() {
+		return previewWidth;
+	}
+
+	public int getPreviewHeight() {
+		return previewHeight;
+	}
+
+	/**
+	 * @param range one of {@link CameraCapabilities#getPreviewFpsRanges()}
+	 */
+	public void setPreviewFpsRange(CameraFpsRange range) {
+		previewFpsRange = range;
+	}
+
+	/**
+	 * @return null when not set
+	 */
+	public CameraFpsRange getPreviewFpsRange() {
+		return previewFpsRange;
+	}
+
+	public void setPreviewFormat(int format) {
+		previewFormat = format;
+	}
+
+	public int getPreviewFormat() {
+		return previewFormat;
+	}
+
+	public void setPictureSize(int width, int height) {
+		pictureWidth = width;
+		pictureHeight = height;
+	}
+
+	public boolean hasPictureSize() {
+		return pictureWidth > 0 && pictureHeight > 0;
+	}
+
+	public int getPictureWidth() {
+		return pictureWidth;
+	}
+
+	public int getPictureHeight() {
+		return pictureHeight;
+	}
+
+	public void setFocusMode(String mode) {
+		focusMode = mode;
+	}
+
+	public String getFocusMode() {
+		return focusMode;
+	}
+
+	public void setWhiteBalance(String mode) {
+		whiteBalance = mode;
+	}
+
+	public String getWhiteBalance() {
+		return whiteBalance;
+	}
+
+	/**
+	 * Sets one focus area, coordinates from -1000 to 1000 over the sensor.
+	 */
+	public void setFocusArea(int left, int top, int right, int bottom, int weight) {
+		focusArea = new int[] { left, top, right, bottom, weight };
+	}
+
+	/**
+	 * @return left, top, right, bottom and weight, or null
+	 */
+	public int[] getFocusArea() {
+		return focusArea;
+	}
+
+	/**
+	 * Clears every value, so that the settings can be reused.
+	 */
+	public void clear() {
+		previewWidth = 0;
+		previewHeight = 0;
+		previewFormat = 0;
+		pictureWidth = 0;
+		pictureHeight = 0;
+		focusMode = null;
+		whiteBalance = null;
+		focusArea = null;
+		previewFpsRange = null;
+	}
+
+	@Override
+	public String toString() {
+		return "CameraSettings preview: " + previewWidth + "x" + previewHeight + " format: "
+				+ previewFormat + ", fps: " + previewFpsRange + ", picture: " + pictureWidth + "x" + pictureHeight
+				+ ", focus: " + focusMode + ", white balance: " + whiteBalance;
+	}
+
+}
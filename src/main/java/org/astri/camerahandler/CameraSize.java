@@ -0,0 +1,56 @@
+package org.astri.camerahandler;
+
+import java.util.Comparator;
+
+/**
+ * Preview or picture size of a {@link CameraDevice}, independent of the
+ * Android camera API.
+ */
+public final class CameraSize {
+
+	/** Orders sizes by pixel count, largest first */
+	public static final Comparator<CameraSize> LARGEST_FIRST = new Comparator<CameraSize>() {
+		@Override
+		public int compare(CameraSize lhs, CameraSize rhs) {
+			long left = (long) lhs.width * lhs.height;
+			long right = (long) rhs.width * rhs.height;
+			return left > right ? -1 : (left < right ? 1 : 0);
+		}
+	};
+
+	private final int width;
+	private final int height;
+
+	public CameraSize(int width, int height) {
+		this.width = width;
+		this.height = height;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof CameraSize)) {
+			return false;
+		}
+		CameraSize other = (CameraSize) o;
+		return width == other.width && height == other.height;
+	}
+
+	@Override
+	public int hashCode() {
+		return width * 32713 + height;
+	}
+
+	@Override
+	public String toString() {
+		return width + "x" + height;
+	}
+
+}
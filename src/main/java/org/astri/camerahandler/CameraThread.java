@@ -0,0 +1,42 @@
+package org.astri.camerahandler;
+
+import java.util.List;
+
+/**
+ * Thread owning the camera, running camera work and callbacks one at a time
+ * in posting order. A HandlerThread on Android, {@link ExecutorCameraThread}
+ * on a plain JVM.
+ */
+interface CameraThread {
+
+    interface Factory {
+        /**
+         * @return a started thread, a new one is started after the previous
+         * one quit
+         */
+        CameraThread start();
+    }
+
+    /**
+     * @return false if the thread quit, the task won't run
+     */
+    boolean post(Runnable task);
+
+    void postDelayed(Runnable task, long delayMillis);
+
+    /**
+     * Removes delayed posts of the task that have not run yet.
+     */
+    void removeCallbacks(Runnable task);
+
+    boolean isCurrentThread();
+
+    /**
+     * Stops the thread after the task running, if any, and waits for that
+     * task unless called from it. Later posts are refused.
+     * @return tasks posted that didn't start, they won't run, so that
+     * callers waiting for them can be failed
+     */
+    List<Runnable> quit();
+
+}
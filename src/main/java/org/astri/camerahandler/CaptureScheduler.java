@@ -0,0 +1,241 @@
+package org.astri.camerahandler;
+
+import java.util.ArrayDeque;
+import java.util.List;
+
+import android.util.Log;
+
+/**
+ * Queues photo and marker captures so that they are taken one after the
+ * other instead of being rejected while a capture is in progress.
+ * <p>
+ * Supported picture sizes are read once per camera session and the picture
+ * size is set to the camera only when it changes, so back to back shots of
+ * the same kind don't need camera parameter round trips. Shots of a burst
+ * are taken right after the previous shot has restarted preview. Confined
+ * to the camera thread.
+ */
+class CaptureScheduler implements PhotoTaker.CaptureListener {
+
+	private static final String TAG = "CaptureScheduler";
+
+	/**
+	 * Told when the scheduler starts taking captures and when its queue has
+	 * run empty or was dropped.
+	 */
+	interface ActivityListener {
+	    void capturesActive(boolean active);
+	}
+
+	private final ArrayDeque<Request> queue = new ArrayDeque<Request>();
+	private Request current;
+	private int nextRequestId = 1;
+
+	private CameraDevice camera;
+	private CameraSize previewSize;
+	private List<CameraSize> pictureSizes;
+	private int appliedWidth;
+	private int appliedHeight;
+
+	private CaptureTimingListener timingListener;
+	private ActivityListener activityListener;
+	private boolean active;
+	private final CameraMetrics metrics;
+
+	CaptureScheduler(CameraMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	void setTimingListener(CaptureTimingListener listener) {
+		this.timingListener = listener;
+	}
+
+	void setActivityListener(ActivityListener listener) {
+		this.activityListener = listener;
+	}
+
+	/**
+	 * Keeps the supported picture sizes of a newly opened camera and sets
+	 * the picture size of the taker to the given settings, which the caller
+	 * applies to the camera.
+	 * @param previewSize preview size set with the settings, pictures of its
+	 * aspect ratio are preferred
+	 * @param taker taker whose size is set, may be null
+	 */
+	void cameraOpened(CameraDevice camera, CameraSettings settings, CameraSize previewSize,
+			PhotoTaker taker) {
+		this.camera = camera;
+		this.previewSize = previewSize;
+		this.pictureSizes = camera.getCapabilities().getPictureSizes();
+		appliedWidth = 0;
+		appliedHeight = 0;
+		if (taker != null && !pictureSizes.isEmpty()) {
+			taker.choosePictureSize(pictureSizes, previewSize);
+			settings.setPictureSize(taker.getPhotoWidth(), taker.getPhotoHeight());
+			appliedWidth = taker.getPhotoWidth();
+			appliedHeight = taker.getPhotoHeight();
+		}
+	}
+
+	/**
+	 * Drops queued captures, a capture in progress is not reported.
+	 */
+	void cameraClosed() {
+		if (current != null || !queue.isEmpty()) {
+			Log.d(TAG, "camera closed, dropping " + (queue.size() + (current != null ? 1 : 0))
+					+ " capture requests");
+		}
+		queue.clear();
+		current = null;
+		camera = null;
+		previewSize = null;
+		pictureSizes = null;
+		setActive(false);
+	}
+
+	/**
+	 * Chooses and sets the picture size of the taker if it differs from the
+	 * size set to the camera.
+	 */
+	void applyPictureSize(PhotoTaker taker) {
+		if (camera == null || pictureSizes == null || pictureSizes.isEmpty()) {
+			return;
+		}
+		taker.choosePictureSize(pictureSizes, previewSize);
+		int width = taker.getPhotoWidth();
+		int height = taker.getPhotoHeight();
+		if (width == appliedWidth && height == appliedHeight) {
+			return;
+		}
+		CameraSettings settings = new CameraSettings();
+		settings.setPictureSize(width, height);
+		camera.applySettings(settings);
+		appliedWidth = width;
+		appliedHeight = height;
+	}
+
+	/**
+	 * Queues a capture.
+	 * @param aspectRatio aspect ratio set to the taker before the capture,
+	 * 0 to keep the taker's own
+	 * @param shotCount shots taken back to back
+	 * @return request id, or -1 if the camera is not open
+	 */
+	int enqueue(PhotoTaker taker, float aspectRatio, int shotCount) {
+		if (camera == null || taker == null || shotCount < 1) {
+			return -1;
+		}
+		Request request = new Request(nextRequestId++, taker, aspectRatio, shotCount);
+		queue.add(request);
+		Log.d(TAG, "capture " + request.id + " queued, shots: " + shotCount
+				+ ", queue: " + queue.size());
+		if (current == null) {
+			startNext();
+		}
+		return request.id;
+	}
+
+	/**
+	 * Reports a shot that was answered without the camera, e.g. from a
+	 * preview frame.
+	 * @return request id of the shot
+	 */
+	int reportImmediateShot(long startNanos) {
+		int requestId = nextRequestId++;
+		long captureNanos = System.nanoTime() - startNanos;
+		metrics.shotCaptured(0, captureNanos);
+		CaptureTimingListener listener = timingListener;
+		if (listener != null) {
+			listener.shotCaptured(requestId, 0, 1, 0, captureNanos / 1000000, true);
+		}
+		return requestId;
+	}
+
+	int getQueuedCount() {
+		return queue.size() + (current != null ? 1 : 0);
+	}
+
+	private void startNext() {
+		current = queue.poll();
+		setActive(current != null);
+		if (current == null) {
+			return;
+		}
+		if (current.aspectRatio > 0) {
+			current.taker.setAspectRatio(current.aspectRatio);
+		}
+		applyPictureSize(current.taker);
+		takeShot(current.requestNanos);
+	}
+
+	private void setActive(boolean nowActive) {
+		if (active == nowActive) {
+			return;
+		}
+		active = nowActive;
+		ActivityListener listener = activityListener;
+		if (listener != null) {
+			listener.capturesActive(nowActive);
+		}
+	}
+
+	private void takeShot(long waitStartNanos) {
+		Request request = current;
+		request.shotStartNanos = System.nanoTime();
+		request.waitNanos = request.shotStartNanos - waitStartNanos;
+		if (!request.taker.takePhotoWithCurrentSize(camera, waitStartNanos) && current == request) {
+			// taker busy with a capture not made through the queue
+			captureFinished(request.taker, false);
+		}
+	}
+
+	@Override
+	public void captureFinished(PhotoTaker taker, boolean success) {
+		Request request = current;
+		if (request == null || request.taker != taker) {
+			// capture not made through the queue
+			return;
+		}
+		long now = System.nanoTime();
+		int shotIndex = request.shotsTaken++;
+		if (success) {
+			metrics.shotCaptured(request.waitNanos, now - request.shotStartNanos);
+		}
+		CaptureTimingListener listener = timingListener;
+		if (listener != null) {
+			listener.shotCaptured(request.id, shotIndex, request.shotCount,
+					request.waitNanos / 1000000, (now - request.shotStartNanos) / 1000000, success);
+		}
+		if (current != request || camera == null) {
+			// closed by the listener
+			return;
+		}
+		if (success && request.shotsTaken < request.shotCount) {
+			takeShot(now);
+		} else {
+			if (!success) {
+				Log.e(TAG, "capture " + request.id + " failed at shot " + shotIndex);
+			}
+			startNext();
+		}
+	}
+
+	private static final class Request {
+		final int id;
+		final PhotoTaker taker;
+		final float aspectRatio;
+		final int shotCount;
+		final long requestNanos = System.nanoTime();
+		int shotsTaken;
+		long shotStartNanos;
+		long waitNanos;
+
+		Request(int id, PhotoTaker taker, float aspectRatio, int shotCount) {
+			this.id = id;
+			this.taker = taker;
+			this.aspectRatio = aspectRatio;
+			this.shotCount = shotCount;
+		}
+	}
+
+}
@@ -0,0 +1,20 @@
+package org.astri.camerahandler;
+
+public interface CaptureTimingListener {
+
+	/**
+	 * Called on the camera thread when a queued shot has been captured and
+	 * preview is running again. The photo is decoded and delivered later.
+	 * @param requestId id returned when the capture was requested
+	 * @param shotIndex index of the shot in the burst, from 0
+	 * @param shotCount shots requested in the burst
+	 * @param waitMs time the shot waited for the camera, from the request
+	 * for the first shot and from the previous shot for the others
+	 * @param captureMs time from takePicture to the JPEG callback
+	 * @param success false if the camera failed to take the picture, the
+	 * remaining shots of the burst are then dropped
+	 */
+	public void shotCaptured(int requestId, int shotIndex, int shotCount,
+			long waitMs, long captureMs, boolean success);
+
+}
@@ -0,0 +1,33 @@
+package org.astri.camerahandler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+/**
+ * Lossless frame compression with Deflate, a stand-in for JPEG that runs
+ * on a plain JVM, e.g. to test the frame history with a
+ * {@link FakeCameraDevice}.
+ */
+public class DeflateFrameCompressor implements FrameCompressor {
+
+	private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+	private final byte[] chunk = new byte[16 * 1024];
+
+	@Override
+	public String getFormatName() {
+		return "deflate";
+	}
+
+	@Override
+	public void compress(byte[] nv21, int width, int height, OutputStream out) throws IOException {
+		deflater.reset();
+		deflater.setInput(nv21, 0, width * height * 3 / 2);
+		deflater.finish();
+		while (!deflater.finished()) {
+			int length = deflater.deflate(chunk);
+			out.write(chunk, 0, length);
+		}
+	}
+
+}
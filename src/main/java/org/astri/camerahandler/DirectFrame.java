@@ -0,0 +1,227 @@
+package org.astri.camerahandler;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Preview frame in direct buffers, delivered to a {@link DirectFrameListener}.
+ * With Camera2 the planes are those of the camera's Image, without copying,
+ * Camera1 frames are copied once from the preview buffer into a pooled
+ * direct buffer.
+ * <p>
+ * Planes are Y, U and V in this order, each given as a direct buffer with
+ * the offset of its first sample and the camera's row and pixel strides.
+ * Planes may share one buffer, e.g. NV21 frames have all three in the same
+ * buffer with V at the end of the luma and U one byte after it, so native
+ * code can take the buffer address once. The frame must be released once
+ * the planes are no longer read, the camera can't reuse the buffers before.
+ * Frame objects are reused, so nothing may be kept after release.
+ */
+public final class DirectFrame {
+
+	/**
+	 * Takes back released frames.
+	 */
+	interface Owner {
+		void releaseFrame(DirectFrame frame);
+	}
+
+	private static final int MAX_PLANES = 3;
+
+	private final Owner owner;
+	private final ByteBuffer[] planes = new ByteBuffer[MAX_PLANES];
+	private final int[] planeOffsets = new int[MAX_PLANES];
+	private final int[] rowStrides = new int[MAX_PLANES];
+	private final int[] pixelStrides = new int[MAX_PLANES];
+	private int planeCount;
+	private int format;
+	private int width;
+	private int height;
+	private long timestampNanos;
+	private int orientation;
+	private boolean backCamera;
+
+	/** Backend data of the frame, e.g. the Image to close */
+	Object source;
+
+	DirectFrame(Owner owner) {
+		this.owner = owner;
+	}
+
+	void set(int format, int width, int height, int planeCount, long timestampNanos) {
+		this.format = format;
+		this.width = width;
+		this.height = height;
+		this.planeCount = planeCount;
+		this.timestampNanos = timestampNanos;
+	}
+
+	void setPlane(int index, ByteBuffer buffer, int offset, int rowStride, int pixelStride) {
+		planes[index] = buffer;
+		planeOffsets[index] = offset;
+		rowStrides[index] = rowStride;
+		pixelStrides[index] = pixelStride;
+	}
+
+	/**
+	 * Sets the planes of a NV21 frame of the current size in one buffer.
+	 */
+	void setNv21Planes(ByteBuffer data) {
+		int lumaSize = width * height;
+		planeCount = 3;
+		setPlane(0, data, 0, width, 1);
+		setPlane(1, data, lumaSize + 1, width, 2);
+		setPlane(2, data, lumaSize, width, 2);
+	}
+
+	void setCamera(int orientation, boolean backCamera) {
+		this.orientation = orientation;
+		this.backCamera = backCamera;
+	}
+
+	/**
+	 * @return ImageFormat constant, YUV_420_888 for Camera2
+	 */
+	public int getFormat() {
+		return format;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getPlaneCount() {
+		return planeCount;
+	}
+
+	/**
+	 * @return plane buffer, don't keep it after release
+	 */
+	public ByteBuffer getPlane(int index) {
+		return planes[index];
+	}
+
+	/**
+	 * @return index of the first sample of the plane in its buffer
+	 */
+	public int getPlaneOffset(int index) {
+		return planeOffsets[index];
+	}
+
+	public int getRowStride(int index) {
+		return rowStrides[index];
+	}
+
+	/**
+	 * @return bytes between adjacent pixels of the plane, 2 for interleaved
+	 * chroma
+	 */
+	public int getPixelStride(int index) {
+		return pixelStrides[index];
+	}
+
+	/**
+	 * @return camera timestamp, not necessarily in the System.nanoTime() base
+	 */
+	public long getTimestampNanos() {
+		return timestampNanos;
+	}
+
+	/**
+	 * @return clockwise rotation that makes the frame upright
+	 */
+	public int getOrientation() {
+		return orientation;
+	}
+
+	public boolean isBackCamera() {
+		return backCamera;
+	}
+
+	/**
+	 * Copies a YUV frame to a NV21 array, for code that takes byte arrays.
+	 * Interleaved VU chroma is copied in bulk. Only reads the planes, but
+	 * uses the plane buffer positions, so it must not run concurrently with
+	 * other readers of them.
+	 * @return false if the frame is not YUV or out is too small
+	 */
+	public boolean copyToNv21(byte[] out) {
+		int lumaSize = width * height;
+		if (planeCount < 3 || out.length < lumaSize + lumaSize / 2) {
+			return false;
+		}
+		copyRows(planes[0], planeOffsets[0], rowStrides[0], width, height, out, 0);
+
+		int chromaWidth = width / 2;
+		int chromaHeight = height / 2;
+		ByteBuffer u = planes[1];
+		ByteBuffer v = planes[2];
+		if (pixelStrides[2] == 2) {
+			// V rows in bulk, V samples land on the even bytes
+			copyRows(v, planeOffsets[2], rowStrides[2], width, chromaHeight, out, lumaSize);
+			if (u == v && planeOffsets[1] == planeOffsets[2] + 1 && rowStrides[1] == rowStrides[2]) {
+				// U came along on the odd bytes, but for the very last one
+				int lastU = planeOffsets[1] + (chromaHeight - 1) * rowStrides[1] + (chromaWidth - 1) * 2;
+				out[lumaSize + lumaSize / 2 - 1] = u.get(lastU);
+				return true;
+			}
+			// separate buffers may or may not share memory, U is copied over
+			// whatever the odd bytes hold
+			int index = lumaSize + 1;
+			for (int y = 0; y < chromaHeight; y++) {
+				int uRow = planeOffsets[1] + y * rowStrides[1];
+				for (int x = 0; x < chromaWidth; x++) {
+					out[index] = u.get(uRow + x * pixelStrides[1]);
+					index += 2;
+				}
+			}
+			return true;
+		}
+		int index = lumaSize;
+		for (int y = 0; y < chromaHeight; y++) {
+			int vRow = planeOffsets[2] + y * rowStrides[2];
+			int uRow = planeOffsets[1] + y * rowStrides[1];
+			for (int x = 0; x < chromaWidth; x++) {
+				out[index++] = v.get(vRow + x * pixelStrides[2]);
+				out[index++] = u.get(uRow + x * pixelStrides[1]);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Copies rows of a plane, the last one possibly cut short by the end
+	 * of the buffer.
+	 */
+	private static void copyRows(ByteBuffer plane, int offset, int rowStride, int width, int height,
+			byte[] out, int outOffset) {
+		int position = plane.position();
+		if (rowStride == width) {
+			plane.position(offset);
+			plane.get(out, outOffset, Math.min(width * height, plane.limit() - offset));
+		} else {
+			for (int y = 0; y < height; y++) {
+				int start = offset + y * rowStride;
+				plane.position(start);
+				plane.get(out, outOffset + y * width, Math.min(width, plane.limit() - start));
+			}
+		}
+		plane.position(position);
+	}
+
+	/**
+	 * Gives the buffers back to the camera. May be called on any thread.
+	 */
+	public void release() {
+		owner.releaseFrame(this);
+	}
+
+	@Override
+	public String toString() {
+		return "DirectFrame " + width + "x" + height + " format: " + format + " planes: " + planeCount;
+	}
+
+}
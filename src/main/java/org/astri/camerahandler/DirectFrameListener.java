@@ -0,0 +1,21 @@
+package org.astri.camerahandler;
+
+/**
+ * Optional interface for a {@link CameraDataListener} that takes preview
+ * frames in direct buffers instead of byte arrays, e.g. for native code that
+ * would otherwise copy or pin every array. Frames are delivered here instead
+ * of receiveCameraFrame. With Camera2 they are the camera's own buffers,
+ * Camera1 frames are copied once into pooled direct buffers. Frames are
+ * delivered on the camera thread, to this listener only, and are not
+ * cropped, rotated or converted. The handler refuses the features that
+ * would need that: the frame pipeline, subscriptions, a frame region, RGB
+ * output, upright frames and zero shutter lag markers.
+ * <p>
+ * Every frame must be released with {@link DirectFrame#release()}, possibly
+ * later on another thread. Frames are dropped while all buffers are held.
+ */
+public interface DirectFrameListener {
+
+    void receiveDirectFrame(DirectFrame frame);
+
+}
@@ -0,0 +1,90 @@
+package org.astri.camerahandler;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Fixed set of direct buffers wrapped in {@link DirectFrame}s, for frames
+ * that don't already come in direct memory, e.g. Camera1 preview buffers.
+ * <p>
+ * Buffers are allocated when first needed. A frame is back in the pool when
+ * it is released, possibly on another thread, and a frame released after the
+ * pool was closed is dropped.
+ */
+final class DirectFramePool implements DirectFrame.Owner {
+
+	private final int frameCount;
+	private final int bufferSize;
+	private final ArrayDeque<DirectFrame> free = new ArrayDeque<DirectFrame>();
+	private int createdCount;
+	private long droppedCount;
+	private boolean closed;
+
+	DirectFramePool(int frameCount, int bufferSize) {
+		if (frameCount < 1) {
+			throw new IllegalArgumentException("At least one frame required: " + frameCount);
+		}
+		this.frameCount = frameCount;
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * @return free frame, its buffer cleared, null if all frames are held
+	 */
+	synchronized DirectFrame obtain() {
+		if (closed) {
+			return null;
+		}
+		DirectFrame frame = free.poll();
+		if (frame == null) {
+			if (createdCount == frameCount) {
+				droppedCount++;
+				return null;
+			}
+			createdCount++;
+			frame = new DirectFrame(this);
+			frame.source = ByteBuffer.allocateDirect(bufferSize);
+		}
+		bufferOf(frame).clear();
+		return frame;
+	}
+
+	/**
+	 * @return the direct buffer of a frame of this pool
+	 */
+	static ByteBuffer bufferOf(DirectFrame frame) {
+		return (ByteBuffer) frame.source;
+	}
+
+	@Override
+	public synchronized void releaseFrame(DirectFrame frame) {
+		if (!closed && !free.contains(frame)) {
+			free.add(frame);
+		}
+	}
+
+	/**
+	 * Frees the buffers of released frames, held ones are dropped once they
+	 * are released.
+	 */
+	synchronized void close() {
+		closed = true;
+		free.clear();
+	}
+
+	int getBufferSize() {
+		return bufferSize;
+	}
+
+	int getFrameCount() {
+		return frameCount;
+	}
+
+	/**
+	 * @return frames not delivered because every frame was held
+	 */
+	synchronized long getDroppedCount() {
+		return droppedCount;
+	}
+
+}
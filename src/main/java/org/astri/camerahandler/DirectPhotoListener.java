@@ -0,0 +1,16 @@
+package org.astri.camerahandler;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Optional interface for a {@link CameraDataListener} that receives photos
+ * and markers decoded to direct buffers, see
+ * {@link PhotoDecoder#OUTPUT_RGB565_DIRECT}. The buffer is reused for the
+ * next capture.
+ */
+public interface DirectPhotoListener {
+
+    void receivePhotoBuffer(ByteBuffer buffer, int width, int height);
+    void receiveMarkerBuffer(ByteBuffer buffer, int width, int height, float screenAspectRatio);
+
+}
@@ -0,0 +1,149 @@
+package org.astri.camerahandler;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * Camera thread of a single thread executor, so that a handler runs without
+ * a looper on a plain JVM, e.g. driven by a {@link FakeCameraDevice}.
+ * Cameras of such a handler must call back through the executor given to
+ * {@link CameraDevice.Provider#open}, Camera1 can't be used.
+ */
+final class ExecutorCameraThread implements CameraThread {
+
+	private static final String TAG = "ExecutorCameraThread";
+
+	static final Factory FACTORY = new Factory() {
+		@Override
+		public CameraThread start() {
+			return new ExecutorCameraThread();
+		}
+	};
+
+	private final ScheduledThreadPoolExecutor executor;
+	private volatile Thread thread;
+	/** Delayed tasks not run yet, so that they can be removed */
+	private final List<DelayedTask> delayedTasks = new ArrayList<DelayedTask>();
+	private final PendingTasks pending = new PendingTasks();
+
+	private ExecutorCameraThread() {
+		executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "CameraThread");
+				t.setDaemon(true);
+				thread = t;
+				return t;
+			}
+		});
+		// quitting drops the delayed tasks
+		executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+		executor.prestartCoreThread();
+	}
+
+	@Override
+	public boolean post(Runnable task) {
+		final Runnable posted = pending.add(task);
+		if (posted == null) {
+			return false;
+		}
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					runTask(posted);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// quit meanwhile, which handed the task back
+		}
+		return true;
+	}
+
+	@Override
+	public void postDelayed(Runnable task, long delayMillis) {
+		DelayedTask delayed = new DelayedTask(task);
+		synchronized (delayedTasks) {
+			try {
+				delayed.future = executor.schedule(delayed, delayMillis, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				// quit, delayed tasks are dropped
+				return;
+			}
+			delayedTasks.add(delayed);
+		}
+	}
+
+	@Override
+	public void removeCallbacks(Runnable task) {
+		synchronized (delayedTasks) {
+			for (Iterator<DelayedTask> it = delayedTasks.iterator(); it.hasNext();) {
+				DelayedTask delayed = it.next();
+				if (delayed.task == task) {
+					delayed.future.cancel(false);
+					it.remove();
+				}
+			}
+		}
+	}
+
+	@Override
+	public boolean isCurrentThread() {
+		return Thread.currentThread() == thread;
+	}
+
+	@Override
+	public List<Runnable> quit() {
+		List<Runnable> dropped = pending.quit();
+		executor.shutdown();
+		if (!isCurrentThread()) {
+			try {
+				executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return dropped;
+	}
+
+	/**
+	 * Runs a task, a failing task is logged and doesn't stop the thread.
+	 * The executor would keep the exception in the task's future unseen.
+	 */
+	private static void runTask(Runnable task) {
+		try {
+			task.run();
+		} catch (RuntimeException e) {
+			Log.e(TAG, "Camera thread task failed", e);
+		}
+	}
+
+	private final class DelayedTask implements Runnable {
+		final Runnable task;
+		Future<?> future;
+
+		DelayedTask(Runnable task) {
+			this.task = task;
+		}
+
+		@Override
+		public void run() {
+			synchronized (delayedTasks) {
+				if (!delayedTasks.remove(this)) {
+					// removed while it was due
+					return;
+				}
+			}
+			runTask(task);
+		}
+	}
+
+}
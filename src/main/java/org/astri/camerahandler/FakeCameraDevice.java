@@ -0,0 +1,737 @@
+package org.astri.camerahandler;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import android.graphics.ImageFormat;
+import android.hardware.Camera;
+
+/**
+ * Simulated {@link CameraDevice} for measuring and load testing the frame
+ * pipeline without a camera, also on a plain JVM: only constants of the
+ * Android API are used, which the compiler inlines.
+ * <p>
+ * NV21 frames from a {@link FrameSource} are written to queued callback
+ * buffers at a fixed rate with optional driver jitter. Like Camera1, a frame
+ * is dropped when no buffer is queued, and preview stops when a picture is
+ * taken. Frame content and timing jitter are deterministic for a given
+ * seed, so runs are reproducible. Frames are produced on a driver thread
+ * and delivered through the callback executor given when opened, or on the
+ * driver thread when it is null.
+ * <p>
+ * With an image callback frames are delivered as {@link DirectFrame}s in
+ * the YUV_420_888 layout typical of Camera2, interleaved chroma planes over
+ * one direct buffer, and dropped while all of them are held.
+ */
+public class FakeCameraDevice implements CameraDevice {
+
+	/**
+	 * Writes the content of a frame.
+	 */
+	public interface FrameSource {
+		/**
+		 * @param nv21 buffer of at least width * height * 3 / 2 bytes
+		 * @param frameIndex frames since preview started
+		 */
+		void fillFrame(byte[] nv21, int width, int height, long frameIndex);
+	}
+
+	private static final int NV21_BITS_PER_PIXEL = 12;
+
+	private final int facing;
+	private final int orientation;
+
+	// configuration
+	private volatile FrameSource frameSource = pattern(0, 0);
+	private volatile long frameIntervalNanos = 1000000000L / 30;
+	/** Interval of the fps range set to the camera, 0 if none was set */
+	private volatile long rangeIntervalNanos;
+	private volatile long jitterNanos;
+	private volatile long jitterSeed;
+	private List<CameraSize> previewSizes = Arrays.asList(new CameraSize(1920, 1080),
+			new CameraSize(1280, 720), new CameraSize(640, 480), new CameraSize(320, 240));
+	private List<CameraSize> pictureSizes = Arrays.asList(new CameraSize(3264, 2448),
+			new CameraSize(2048, 1536), new CameraSize(1920, 1080), new CameraSize(1280, 960),
+			new CameraSize(640, 480));
+	private List<String> focusModes = Arrays.asList(Camera.Parameters.FOCUS_MODE_AUTO,
+			Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO,
+			Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE);
+	private List<CameraFpsRange> fpsRanges = Arrays.asList(new CameraFpsRange(15000, 15000),
+			new CameraFpsRange(15000, 30000), new CameraFpsRange(30000, 30000));
+	private byte[] jpeg;
+	private long captureDelayMillis = 150;
+	private long focusDelayMillis = 100;
+
+	// session state, guarded by this
+	private boolean opened;
+	private Executor callbackExecutor;
+	private ScheduledExecutorService eventExecutor;
+	private CameraCapabilities capabilities;
+	private CameraSettings settings;
+	private PreviewCallback previewCallback;
+	private final ArrayDeque<byte[]> queuedBuffers = new ArrayDeque<byte[]>();
+	private ImageCallback imageCallback;
+	private int maxImageFrames;
+	/** Image frames of the current size and count */
+	private DirectFramePool imageFrames;
+	private Thread driverThread;
+	private ScheduledFuture<?> pendingFocus;
+	/** Incremented when preview stops, frames of an older preview are dropped */
+	private int previewGeneration;
+
+	private final AtomicLong framesDelivered = new AtomicLong();
+	private final AtomicLong framesDropped = new AtomicLong();
+	private final AtomicLong picturesTaken = new AtomicLong();
+
+	/**
+	 * @param facing CameraInfo.CAMERA_FACING_BACK or CAMERA_FACING_FRONT
+	 * @param orientation sensor orientation in degrees
+	 */
+	public FakeCameraDevice(int facing, int orientation) {
+		this.facing = facing;
+		this.orientation = orientation;
+	}
+
+	/**
+	 * @return provider opening the given cameras by index. Opening returns
+	 * the same instance, which can be read for counters afterwards.
+	 */
+	public static CameraDevice.Provider provider(final FakeCameraDevice... cameras) {
+		return new CameraDevice.Provider() {
+			@Override
+			public int getCameraCount() {
+				return cameras.length;
+			}
+
+			@Override
+			public int getFacing(int cameraIndex) {
+				return cameras[cameraIndex].facing;
+			}
+
+			@Override
+			public int getOrientation(int cameraIndex) {
+				return cameras[cameraIndex].orientation;
+			}
+
+			@Override
+			public CameraDevice open(int cameraIndex, Executor callbackExecutor) {
+				return cameras[cameraIndex].open(callbackExecutor);
+			}
+		};
+	}
+
+	/**
+	 * Opens the device directly, without a provider.
+	 * @param callbackExecutor runs the callbacks, null for the driver thread
+	 * @throws RuntimeException if already open
+	 */
+	public synchronized FakeCameraDevice open(Executor callbackExecutor) {
+		if (opened) {
+			throw new RuntimeException("Fake camera already in use");
+		}
+		opened = true;
+		this.callbackExecutor = callbackExecutor;
+		eventExecutor = new ScheduledThreadPoolExecutor(1);
+		capabilities = new CameraCapabilities(previewSizes, pictureSizes, focusModes, 1, fpsRanges);
+		rangeIntervalNanos = 0;
+		settings = new CameraSettings();
+		CameraSize preview = previewSizes.get(previewSizes.size() - 1);
+		settings.setPreviewSize(preview.getWidth(), preview.getHeight());
+		settings.setPreviewFormat(ImageFormat.NV21);
+		CameraSize picture = pictureSizes.get(0);
+		settings.setPictureSize(picture.getWidth(), picture.getHeight());
+		settings.setFocusMode(focusModes.isEmpty() ? null : focusModes.get(0));
+		return this;
+	}
+
+	public void setFrameSource(FrameSource source) {
+		this.frameSource = source;
+	}
+
+	/**
+	 * @param fps frames per second, 30 by default. An fps range set to the
+	 * camera can only lower it.
+	 */
+	public void setFrameRate(float fps) {
+		if (fps <= 0) {
+			throw new IllegalArgumentException("Invalid frame rate: " + fps);
+		}
+		frameIntervalNanos = (long) (1e9 / fps);
+	}
+
+	/**
+	 * Delays each frame by a random amount of up to the given jitter either
+	 * way around its nominal time, without drifting the frame rate.
+	 * @param jitterMicros 0 for exact timing
+	 * @param seed same seed gives the same delays
+	 */
+	public void setJitter(long jitterMicros, long seed) {
+		this.jitterNanos = jitterMicros * 1000;
+		this.jitterSeed = seed;
+	}
+
+	/**
+	 * Sets the sizes reported as supported, takes effect when opened next.
+	 * @param sizes the smallest preview size is selected when opened
+	 */
+	public synchronized void setPreviewSizes(CameraSize... sizes) {
+		previewSizes = Arrays.asList(sizes.clone());
+	}
+
+	/**
+	 * @param sizes the first picture size is selected when opened
+	 */
+	public synchronized void setPictureSizes(CameraSize... sizes) {
+		pictureSizes = Arrays.asList(sizes.clone());
+	}
+
+	public synchronized void setFocusModes(String... modes) {
+		focusModes = Arrays.asList(modes.clone());
+	}
+
+	/**
+	 * Sets the preview fps ranges reported as supported, takes effect when
+	 * opened next.
+	 */
+	public synchronized void setPreviewFpsRanges(CameraFpsRange... ranges) {
+		fpsRanges = Arrays.asList(ranges.clone());
+	}
+
+	/**
+	 * Sets the JPEG returned by takePicture. By default a JPEG-framed filler
+	 * of a typical size for the picture size is returned, which is enough
+	 * for raw JPEG output but can't be decoded.
+	 * @param jpeg null for the default
+	 */
+	public synchronized void setJpeg(byte[] jpeg) {
+		this.jpeg = jpeg;
+	}
+
+	/**
+	 * @param captureDelayMillis takePicture to the picture callback, the
+	 * shutter is reported at once
+	 * @param focusDelayMillis autoFocus to the focus callback
+	 */
+	public synchronized void setDelays(long captureDelayMillis, long focusDelayMillis) {
+		this.captureDelayMillis = captureDelayMillis;
+		this.focusDelayMillis = focusDelayMillis;
+	}
+
+	public long getFramesDelivered() {
+		return framesDelivered.get();
+	}
+
+	/**
+	 * @return frames dropped because no callback buffer was queued
+	 */
+	public long getFramesDropped() {
+		return framesDropped.get();
+	}
+
+	public long getPicturesTaken() {
+		return picturesTaken.get();
+	}
+
+	public synchronized boolean isPreviewRunning() {
+		return driverThread != null;
+	}
+
+	@Override
+	public synchronized CameraCapabilities getCapabilities() {
+		checkOpen();
+		return capabilities;
+	}
+
+	@Override
+	public synchronized CameraSettings getSettings() {
+		checkOpen();
+		CameraSettings copy = new CameraSettings();
+		copy.setPreviewSize(settings.getPreviewWidth(), settings.getPreviewHeight());
+		copy.setPreviewFormat(settings.getPreviewFormat());
+		copy.setPictureSize(settings.getPictureWidth(), settings.getPictureHeight());
+		copy.setFocusMode(settings.getFocusMode());
+		copy.setWhiteBalance(settings.getWhiteBalance());
+		copy.setPreviewFpsRange(settings.getPreviewFpsRange());
+		return copy;
+	}
+
+	@Override
+	public synchronized void applySettings(CameraSettings newSettings) {
+		checkOpen();
+		// validate everything first, nothing is applied if a value is rejected
+		if (newSettings.hasPreviewSize()) {
+			int width = newSettings.getPreviewWidth();
+			int height = newSettings.getPreviewHeight();
+			if (!capabilities.isPreviewSizeSupported(width, height)) {
+				throw new IllegalArgumentException("Unsupported preview size " + width + "x" + height);
+			}
+			if (driverThread != null && (width != settings.getPreviewWidth()
+					|| height != settings.getPreviewHeight())) {
+				throw new IllegalStateException("Preview size changed while preview is running");
+			}
+		}
+		if (newSettings.getPreviewFormat() != 0 && newSettings.getPreviewFormat() != ImageFormat.NV21) {
+			throw new IllegalArgumentException("Only NV21 preview is simulated");
+		}
+		if (newSettings.hasPictureSize() && !capabilities.isPictureSizeSupported(
+				newSettings.getPictureWidth(), newSettings.getPictureHeight())) {
+			throw new IllegalArgumentException("Unsupported picture size "
+					+ newSettings.getPictureWidth() + "x" + newSettings.getPictureHeight());
+		}
+		if (newSettings.getFocusMode() != null && !focusModes.contains(newSettings.getFocusMode())) {
+			throw new IllegalArgumentException("Unsupported focus mode " + newSettings.getFocusMode());
+		}
+		CameraFpsRange fps = newSettings.getPreviewFpsRange();
+		if (fps != null && !fpsRanges.contains(fps)) {
+			throw new IllegalArgumentException("Unsupported preview fps range " + fps);
+		}
+
+		if (newSettings.hasPreviewSize()) {
+			settings.setPreviewSize(newSettings.getPreviewWidth(), newSettings.getPreviewHeight());
+		}
+		if (newSettings.hasPictureSize()) {
+			settings.setPictureSize(newSettings.getPictureWidth(), newSettings.getPictureHeight());
+		}
+		if (newSettings.getFocusMode() != null) {
+			settings.setFocusMode(newSettings.getFocusMode());
+		}
+		if (newSettings.getWhiteBalance() != null) {
+			settings.setWhiteBalance(newSettings.getWhiteBalance());
+		}
+		if (fps != null) {
+			// the driver runs at the top of the range, light is never low
+			settings.setPreviewFpsRange(fps);
+			rangeIntervalNanos = 1000000000000L / fps.getMax();
+		}
+	}
+
+	@Override
+	public void setDisplayOrientation(int degrees) {
+		// no display
+	}
+
+	@Override
+	public void setPreviewDisplay(Object display) {
+		// no display
+	}
+
+	@Override
+	public synchronized void startPreview() {
+		checkOpen();
+		if (driverThread != null) {
+			return;
+		}
+		final int generation = previewGeneration;
+		final int width = settings.getPreviewWidth();
+		final int height = settings.getPreviewHeight();
+		driverThread = new Thread("FakeCamera-" + facing) {
+			@Override
+			public void run() {
+				drive(generation, width, height);
+			}
+		};
+		driverThread.setDaemon(true);
+		driverThread.start();
+	}
+
+	@Override
+	public void stopPreview() {
+		Thread thread;
+		synchronized (this) {
+			thread = driverThread;
+			if (thread == null) {
+				return;
+			}
+			driverThread = null;
+			previewGeneration++;
+		}
+		LockSupport.unpark(thread);
+		if (thread != Thread.currentThread()) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	@Override
+	public synchronized void setPreviewCallback(PreviewCallback callback) {
+		previewCallback = callback;
+		if (callback == null) {
+			// as Camera1, clearing the callback clears the buffer queue
+			queuedBuffers.clear();
+		}
+	}
+
+	@Override
+	public synchronized void addCallbackBuffer(byte[] buffer) {
+		queuedBuffers.add(buffer);
+	}
+
+	@Override
+	public synchronized boolean setImageCallback(ImageCallback callback, int maxFrames) {
+		imageCallback = callback;
+		maxImageFrames = Math.max(1, maxFrames);
+		return true;
+	}
+
+	@Override
+	public synchronized void autoFocus(final FocusCallback callback) {
+		checkOpen();
+		if (pendingFocus != null) {
+			pendingFocus.cancel(false);
+		}
+		pendingFocus = eventExecutor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				deliver(new Runnable() {
+					@Override
+					public void run() {
+						callback.onFocused(true);
+					}
+				});
+			}
+		}, focusDelayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public synchronized void cancelAutoFocus() {
+		if (pendingFocus != null) {
+			pendingFocus.cancel(false);
+			pendingFocus = null;
+		}
+	}
+
+	@Override
+	public void takePicture(final PictureCallback callback) {
+		final byte[] picture;
+		synchronized (this) {
+			checkOpen();
+			if (driverThread == null) {
+				throw new RuntimeException("takePicture failed, preview not running");
+			}
+			picture = jpeg != null ? jpeg
+					: syntheticJpeg(settings.getPictureWidth(), settings.getPictureHeight());
+		}
+		stopPreview();
+		// exposure starts at once, the capture delay is the JPEG's
+		deliver(new Runnable() {
+			@Override
+			public void run() {
+				callback.onShutter();
+			}
+		});
+		synchronized (this) {
+			eventExecutor.schedule(new Runnable() {
+				@Override
+				public void run() {
+					picturesTaken.incrementAndGet();
+					deliver(new Runnable() {
+						@Override
+						public void run() {
+							callback.onPictureTaken(picture);
+						}
+					});
+				}
+			}, captureDelayMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	@Override
+	public void release() {
+		stopPreview();
+		synchronized (this) {
+			if (!opened) {
+				return;
+			}
+			opened = false;
+			previewCallback = null;
+			queuedBuffers.clear();
+			imageCallback = null;
+			if (imageFrames != null) {
+				imageFrames.close();
+				imageFrames = null;
+			}
+			eventExecutor.shutdownNow();
+			eventExecutor = null;
+			pendingFocus = null;
+		}
+	}
+
+	private void checkOpen() {
+		if (!opened) {
+			throw new IllegalStateException("Fake camera is not open");
+		}
+	}
+
+	private void deliver(Runnable callback) {
+		Executor executor;
+		synchronized (this) {
+			if (!opened) {
+				return;
+			}
+			executor = callbackExecutor;
+		}
+		if (executor != null) {
+			executor.execute(callback);
+		} else {
+			callback.run();
+		}
+	}
+
+	/**
+	 * Driver thread loop, a frame is due one interval after the previous
+	 * one's nominal time, plus jitter. The interval is read per frame so
+	 * that a new fps range applies to a running preview.
+	 */
+	private void drive(int generation, int width, int height) {
+		Random random = new Random(jitterSeed);
+		int frameSize = width * height * NV21_BITS_PER_PIXEL / 8;
+		byte[] imageScratch = null;
+		long nominal = System.nanoTime();
+		for (long frame = 0;; frame++) {
+			if (frame > 0) {
+				nominal += Math.max(frameIntervalNanos, rangeIntervalNanos);
+			}
+			long jitter = jitterNanos;
+			long due = nominal
+					+ (jitter > 0 ? (long) ((random.nextDouble() * 2 - 1) * jitter) : 0);
+			for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime()) {
+				LockSupport.parkNanos(wait);
+				if (!isCurrent(generation)) {
+					return;
+				}
+			}
+
+			byte[] buffer;
+			PreviewCallback callback;
+			ImageCallback images;
+			DirectFrame image = null;
+			Executor executor;
+			synchronized (this) {
+				if (generation != previewGeneration || !opened) {
+					return;
+				}
+				callback = previewCallback;
+				images = imageCallback;
+				executor = callbackExecutor;
+				buffer = callback != null && images == null ? queuedBuffers.poll() : null;
+				if (images != null) {
+					image = obtainImageFrame(frameSize);
+				}
+			}
+			if (images != null) {
+				if (image == null) {
+					framesDropped.incrementAndGet();
+					continue;
+				}
+				if (imageScratch == null) {
+					imageScratch = new byte[frameSize];
+				}
+				frameSource.fillFrame(imageScratch, width, height, frame);
+				ByteBuffer data = DirectFramePool.bufferOf(image);
+				data.put(imageScratch, 0, frameSize);
+				data.clear();
+				image.set(ImageFormat.YUV_420_888, width, height, 3, System.nanoTime());
+				image.setNv21Planes(data);
+				framesDelivered.incrementAndGet();
+				deliverImage(images, image, executor);
+				continue;
+			}
+			if (callback == null) {
+				continue;
+			}
+			if (buffer == null) {
+				framesDropped.incrementAndGet();
+				continue;
+			}
+			if (buffer.length < frameSize) {
+				// as Camera1, a too small buffer is dropped and reported as null
+				deliverFrame(callback, null, executor);
+				continue;
+			}
+			frameSource.fillFrame(buffer, width, height, frame);
+			framesDelivered.incrementAndGet();
+			deliverFrame(callback, buffer, executor);
+		}
+	}
+
+	private synchronized boolean isCurrent(int generation) {
+		return generation == previewGeneration && opened;
+	}
+
+	private void deliverFrame(final PreviewCallback callback, final byte[] buffer, Executor executor) {
+		if (executor == null) {
+			callback.onPreviewFrame(buffer);
+			return;
+		}
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				// a frame queued before the callback was cleared is still
+				// delivered, like a Camera1 frame already in the looper
+				if (isOpen()) {
+					callback.onPreviewFrame(buffer);
+				}
+			}
+		});
+	}
+
+	private void deliverImage(final ImageCallback callback, final DirectFrame image, Executor executor) {
+		if (executor == null) {
+			callback.onImageFrame(image);
+			return;
+		}
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				callback.onImageFrame(image);
+			}
+		});
+	}
+
+	/**
+	 * @return free image frame, null if all are held
+	 */
+	private DirectFrame obtainImageFrame(int frameSize) {
+		if (imageFrames == null || imageFrames.getBufferSize() != frameSize
+				|| imageFrames.getFrameCount() != maxImageFrames) {
+			// frames of the old pool are dropped when released
+			if (imageFrames != null) {
+				imageFrames.close();
+			}
+			imageFrames = new DirectFramePool(maxImageFrames, frameSize);
+		}
+		return imageFrames.obtain();
+	}
+
+	private synchronized boolean isOpen() {
+		return opened;
+	}
+
+	/**
+	 * JPEG markers around deterministic filler, about the size of a
+	 * medium quality JPEG of the picture size.
+	 */
+	private static byte[] syntheticJpeg(int width, int height) {
+		byte[] data = new byte[Math.max(64, width * height / 8)];
+		Random random = new Random(width * 31L + height);
+		random.nextBytes(data);
+		data[0] = (byte) 0xff;
+		data[1] = (byte) 0xd8;
+		data[data.length - 2] = (byte) 0xff;
+		data[data.length - 1] = (byte) 0xd9;
+		return data;
+	}
+
+	/**
+	 * @return generated frames of 8x8 blocks of pseudo random brightness,
+	 * moving by the given pixels per frame so that motion analysis sees the
+	 * camera pan
+	 */
+	public static FrameSource pattern(final int dxPerFrame, final int dyPerFrame) {
+		return new FrameSource() {
+			@Override
+			public void fillFrame(byte[] nv21, int width, int height, long frameIndex) {
+				int offsetX = (int) (frameIndex * dxPerFrame);
+				int offsetY = (int) (frameIndex * dyPerFrame);
+				for (int y = 0; y < height; y++) {
+					int sy = y - offsetY;
+					int row = y * width;
+					for (int x = 0; x < width; x++) {
+						int sx = x - offsetX;
+						int block = ((sx >> 3) * 73856093) ^ ((sy >> 3) * 19349663);
+						nv21[row + x] = (byte) (32 + ((block >>> 8) & 0xbf));
+					}
+				}
+				int chroma = width * height;
+				for (int y = 0; y < height / 2; y++) {
+					int row = chroma + y * width;
+					for (int x = 0; x < width; x += 2) {
+						nv21[row + x] = (byte) (128 + ((x - offsetX) >> 5 & 15));
+						nv21[row + x + 1] = (byte) (128 - ((y * 2 - offsetY) >> 5 & 15));
+					}
+				}
+			}
+		};
+	}
+
+	/**
+	 * Replays raw NV21 frames concatenated in a file, looping at the end.
+	 * Frames are read to memory once. When the preview size differs from
+	 * the recorded size frames are resampled to it.
+	 * @param width recorded frame width
+	 * @param height recorded frame height
+	 * @throws IOException if the file can't be read or holds no whole frame
+	 */
+	public static FrameSource fromFile(File file, final int width, final int height)
+			throws IOException {
+		final int frameSize = width * height * NV21_BITS_PER_PIXEL / 8;
+		long length = file.length();
+		final int frameCount = (int) Math.min(length / frameSize, Integer.MAX_VALUE / frameSize);
+		if (frameCount < 1) {
+			throw new IOException("No whole " + width + "x" + height + " frame in " + file);
+		}
+		final byte[] frames = new byte[frameCount * frameSize];
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			in.readFully(frames);
+		} finally {
+			in.close();
+		}
+		return new FrameSource() {
+			@Override
+			public void fillFrame(byte[] nv21, int outWidth, int outHeight, long frameIndex) {
+				int offset = (int) (frameIndex % frameCount) * frameSize;
+				if (outWidth == width && outHeight == height) {
+					System.arraycopy(frames, offset, nv21, 0, frameSize);
+				} else {
+					resample(frames, offset, width, height, nv21, outWidth, outHeight);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Nearest neighbour scaling of an NV21 frame.
+	 */
+	private static void resample(byte[] in, int offset, int inWidth, int inHeight,
+			byte[] out, int outWidth, int outHeight) {
+		for (int y = 0; y < outHeight; y++) {
+			int inRow = offset + (y * inHeight / outHeight) * inWidth;
+			int outRow = y * outWidth;
+			for (int x = 0; x < outWidth; x++) {
+				out[outRow + x] = in[inRow + x * inWidth / outWidth];
+			}
+		}
+		int inChroma = offset + inWidth * inHeight;
+		int outChroma = outWidth * outHeight;
+		int inPairs = inWidth / 2;
+		int outPairs = outWidth / 2;
+		for (int y = 0; y < outHeight / 2; y++) {
+			int inRow = inChroma + (y * (inHeight / 2) / (outHeight / 2)) * inWidth;
+			int outRow = outChroma + y * outWidth;
+			for (int x = 0; x < outPairs; x++) {
+				int inPair = inRow + (x * inPairs / outPairs) * 2;
+				out[outRow + x * 2] = in[inPair];
+				out[outRow + x * 2 + 1] = in[inPair + 1];
+			}
+		}
+	}
+
+}
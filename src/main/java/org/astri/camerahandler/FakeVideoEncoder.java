@@ -0,0 +1,148 @@
+package org.astri.camerahandler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.Deflater;
+
+/**
+ * Software {@link VideoEncoder} standing in for the hardware encoder, so
+ * recording can be tested on a plain JVM, e.g. with a
+ * {@link FakeCameraDevice}.
+ * <p>
+ * Frames are deflated one by one into a simple file: a header of magic,
+ * width, height, frame rate and orientation, then per frame the
+ * presentation time in microseconds, the compressed length and the data.
+ * A frame cost can be set to simulate a slow encoder, encoding then takes
+ * at least that long, and {@link #readFrameTimes(File)} reads back which
+ * frames were written.
+ */
+public class FakeVideoEncoder implements VideoEncoder {
+
+	static final int MAGIC = 0x4e563231;
+
+	private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+	private volatile long frameCostNanos;
+
+	private DataOutputStream out;
+	private byte[] compressed;
+	private int frameSize;
+	private long encodedCount;
+	private long encodedBytes;
+
+	/**
+	 * @param nanos shortest time encoding a frame takes, 0 for as fast as
+	 * deflating goes
+	 */
+	public void setFrameCost(long nanos) {
+		this.frameCostNanos = nanos;
+	}
+
+	@Override
+	public void start(File output, int width, int height, int frameRate, int orientation)
+			throws IOException {
+		frameSize = width * height * 3 / 2;
+		compressed = new byte[frameSize + frameSize / 1000 + 64];
+		encodedCount = 0;
+		encodedBytes = 0;
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(output)));
+		out.writeInt(MAGIC);
+		out.writeInt(width);
+		out.writeInt(height);
+		out.writeInt(frameRate);
+		out.writeInt(orientation);
+	}
+
+	@Override
+	public boolean encodeFrame(byte[] nv21, long presentationNanos) {
+		long start = System.nanoTime();
+		deflater.reset();
+		deflater.setInput(nv21, 0, frameSize);
+		deflater.finish();
+		int length = 0;
+		while (!deflater.finished() && length < compressed.length) {
+			length += deflater.deflate(compressed, length, compressed.length - length);
+		}
+		try {
+			out.writeLong(presentationNanos / 1000);
+			out.writeInt(length);
+			out.write(compressed, 0, length);
+		} catch (IOException e) {
+			return false;
+		}
+		encodedCount++;
+		encodedBytes += length;
+		long remaining = frameCostNanos - (System.nanoTime() - start);
+		while (remaining > 0) {
+			LockSupport.parkNanos(remaining);
+			remaining = frameCostNanos - (System.nanoTime() - start);
+		}
+		return true;
+	}
+
+	@Override
+	public void stop() throws IOException {
+		DataOutputStream stream = out;
+		out = null;
+		if (stream != null) {
+			stream.close();
+		}
+	}
+
+	/**
+	 * @return frames encoded since the last start
+	 */
+	public long getEncodedCount() {
+		return encodedCount;
+	}
+
+	/**
+	 * @return compressed bytes written since the last start
+	 */
+	public long getEncodedBytes() {
+		return encodedBytes;
+	}
+
+	/**
+	 * Reads the presentation times of the frames in a file written by this
+	 * encoder.
+	 * @return microseconds since the first frame
+	 * @throws IOException if the file is not from this encoder
+	 */
+	public static List<Long> readFrameTimes(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("Not a fake video file: " + file);
+			}
+			// width, height, frame rate, orientation
+			in.skipBytes(16);
+			List<Long> times = new ArrayList<Long>();
+			while (true) {
+				long time;
+				try {
+					time = in.readLong();
+				} catch (EOFException e) {
+					return times;
+				}
+				int length = in.readInt();
+				if (in.skipBytes(length) != length) {
+					throw new EOFException("Frame cut short in " + file);
+				}
+				times.add(time);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+}
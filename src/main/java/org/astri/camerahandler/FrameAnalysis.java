@@ -0,0 +1,97 @@
+package org.astri.camerahandler;
+
+/**
+ * Sharpness and motion of one preview frame, see {@link FrameAnalyzer}.
+ * Instances are reused, the values are valid only during the callback they
+ * are passed to.
+ */
+public class FrameAnalysis {
+
+	private long frameNumber;
+	private long timestampNanos;
+	private float sharpness;
+	private int motionX;
+	private int motionY;
+	private boolean motionValid;
+
+	/** Preview buffer the values belong to */
+	byte[] buffer;
+
+	void set(long frameNumber, long timestampNanos, float sharpness, int motionX, int motionY,
+			boolean motionValid) {
+		this.frameNumber = frameNumber;
+		this.timestampNanos = timestampNanos;
+		this.sharpness = sharpness;
+		this.motionX = motionX;
+		this.motionY = motionY;
+		this.motionValid = motionValid;
+	}
+
+	/**
+	 * @return number of frames analyzed before this one since the analyzer
+	 * was reset
+	 */
+	public long getFrameNumber() {
+		return frameNumber;
+	}
+
+	/**
+	 * @return System.nanoTime() when the frame was received
+	 */
+	public long getTimestampNanos() {
+		return timestampNanos;
+	}
+
+	/**
+	 * @return variance of the Laplacian of the luma plane, higher is sharper.
+	 * Comparable only between frames of the same scene and size.
+	 */
+	public float getSharpness() {
+		return sharpness;
+	}
+
+	/**
+	 * @return horizontal movement of the image content since the previous
+	 * frame in pixels, positive to the right
+	 */
+	public int getMotionX() {
+		return motionX;
+	}
+
+	/**
+	 * @return vertical movement of the image content since the previous
+	 * frame in pixels, positive down
+	 */
+	public int getMotionY() {
+		return motionY;
+	}
+
+	/**
+	 * @return length of the motion vector in pixels
+	 */
+	public float getMotion() {
+		return (float) Math.sqrt(motionX * motionX + motionY * motionY);
+	}
+
+	/**
+	 * @return false for the first frame after a reset or a size change, it
+	 * has no previous frame to estimate the motion from
+	 */
+	public boolean isMotionValid() {
+		return motionValid;
+	}
+
+	/**
+	 * @return true if motion is known and at most maxMotion pixels
+	 */
+	public boolean isSteady(float maxMotion) {
+		return motionValid && motionX * motionX + motionY * motionY <= maxMotion * maxMotion;
+	}
+
+	@Override
+	public String toString() {
+		return "FrameAnalysis #" + frameNumber + " sharpness: " + sharpness + ", motion: " + motionX
+				+ "," + motionY + (motionValid ? "" : " (invalid)");
+	}
+
+}
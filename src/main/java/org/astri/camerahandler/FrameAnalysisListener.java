@@ -0,0 +1,13 @@
+package org.astri.camerahandler;
+
+/**
+ * Optional interface for a {@link CameraDataListener} that receives the
+ * sharpness and motion of preview frames, see
+ * {@link CameraHandler#setFrameAnalysis(boolean)}. Called on the delivering
+ * thread right before receiveCameraFrame of the same frame.
+ */
+public interface FrameAnalysisListener {
+
+    void receiveFrameAnalysis(FrameAnalysis analysis);
+
+}
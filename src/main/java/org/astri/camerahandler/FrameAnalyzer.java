@@ -0,0 +1,183 @@
+package org.astri.camerahandler;
+
+/**
+ * Computes sharpness and global motion of consecutive preview frames from
+ * the luma plane.
+ * <p>
+ * Both are estimated from a sparse grid so the cost is fixed by the grid
+ * size rather than the frame size. Sharpness is the variance of the
+ * Laplacian, see {@link SharpnessMeter}. Motion is found by matching the
+ * row and column intensity profiles of the frame against the previous
+ * frame's, which recovers camera shake and panning but not motion of
+ * single objects. No allocations after the first frame of a given size.
+ * Not thread safe, frames must be analyzed in order.
+ */
+public class FrameAnalyzer {
+
+	/** Largest detected motion between two frames in pixels */
+	public static final int DEFAULT_MAX_MOTION = 24;
+
+	private final int gridSize;
+	private final int maxMotion;
+
+	private int width;
+	private int height;
+	/** Sharpness grid step and the rows or columns summed into profiles */
+	private int step;
+	/** Pixels between profile entries, the motion resolution */
+	private int profileStep;
+
+	private int[] columns;
+	private int[] rows;
+	private int[] previousColumns;
+	private int[] previousRows;
+	private long[] shiftCosts;
+	private boolean hasPrevious;
+	private long frameCount;
+
+	public FrameAnalyzer() {
+		this(SharpnessMeter.DEFAULT_GRID_SIZE, DEFAULT_MAX_MOTION);
+	}
+
+	/**
+	 * @param gridSize sample points along the shorter frame edge, the cost is
+	 * about proportional to it squared
+	 * @param maxMotion largest detected motion in pixels
+	 */
+	public FrameAnalyzer(int gridSize, int maxMotion) {
+		if (gridSize < 2 || maxMotion < 1) {
+			throw new IllegalArgumentException("Invalid grid size or max motion");
+		}
+		this.gridSize = gridSize;
+		this.maxMotion = maxMotion;
+	}
+
+	/**
+	 * Forgets the previous frame, the next frame has no motion estimate.
+	 */
+	public void reset() {
+		hasPrevious = false;
+		frameCount = 0;
+	}
+
+	/**
+	 * Analyzes a frame and stores the result.
+	 * @param luma NV21 frame or luma plane
+	 * @param out receives the result
+	 */
+	public void analyze(byte[] luma, int width, int height, long timestampNanos, FrameAnalysis out) {
+		if (width != this.width || height != this.height) {
+			resize(width, height);
+		}
+
+		float sharpness = SharpnessMeter.score(luma, width, height, step);
+
+		// swap so that the previous profiles are kept
+		int[] swap = previousColumns;
+		previousColumns = columns;
+		columns = swap;
+		swap = previousRows;
+		previousRows = rows;
+		rows = swap;
+		buildProfiles(luma);
+
+		int motionX = 0;
+		int motionY = 0;
+		boolean motionValid = hasPrevious;
+		if (hasPrevious) {
+			int maxShift = Math.max(1, maxMotion / profileStep);
+			motionX = findShift(columns, previousColumns, maxShift);
+			motionY = findShift(rows, previousRows, maxShift);
+		}
+		hasPrevious = true;
+		out.set(frameCount++, timestampNanos, sharpness, motionX, motionY, motionValid);
+	}
+
+	private void resize(int width, int height) {
+		this.width = width;
+		this.height = height;
+		step = SharpnessMeter.getStep(width, height, gridSize);
+		profileStep = Math.max(1, step / 4);
+		columns = new int[width / profileStep];
+		rows = new int[height / profileStep];
+		previousColumns = new int[columns.length];
+		previousRows = new int[rows.length];
+		shiftCosts = new long[2 * Math.max(1, maxMotion / profileStep) + 1];
+		hasPrevious = false;
+	}
+
+	/**
+	 * Column profile sums every step-th row at every profileStep-th column,
+	 * the row profile the other way round.
+	 */
+	private void buildProfiles(byte[] luma) {
+		for (int c = 0; c < columns.length; c++) {
+			columns[c] = 0;
+		}
+		for (int y = 0; y < height; y += step) {
+			int row = y * width;
+			for (int c = 0, x = 0; c < columns.length; c++, x += profileStep) {
+				columns[c] += luma[row + x] & 0xff;
+			}
+		}
+		for (int r = 0, y = 0; r < rows.length; r++, y += profileStep) {
+			int row = y * width;
+			int sum = 0;
+			for (int x = 0; x < width; x += step) {
+				sum += luma[row + x] & 0xff;
+			}
+			rows[r] = sum;
+		}
+	}
+
+	/**
+	 * Finds the shift of the current profile against the previous one with
+	 * the smallest mean absolute difference. Profile means are removed so
+	 * that exposure changes are not taken as motion.
+	 * @return movement of the content in pixels, interpolated between
+	 * profile entries
+	 */
+	private int findShift(int[] current, int[] previous, int maxShift) {
+		int length = current.length;
+		maxShift = Math.min(maxShift, length / 4);
+		long currentSum = 0;
+		long previousSum = 0;
+		for (int i = 0; i < length; i++) {
+			currentSum += current[i];
+			previousSum += previous[i];
+		}
+		int offset = (int) ((currentSum - previousSum) / Math.max(1, length));
+
+		int bestShift = 0;
+		long bestCost = Long.MAX_VALUE;
+		for (int shift = -maxShift; shift <= maxShift; shift++) {
+			// content moved by shift: current[i] matches previous[i - shift]
+			int start = Math.max(0, shift);
+			int end = Math.min(length, length + shift);
+			long cost = 0;
+			for (int i = start; i < end; i++) {
+				cost += Math.abs(current[i] - previous[i - shift] - offset);
+			}
+			// compare means, overlaps differ in length
+			cost = (cost << 10) / (end - start);
+			shiftCosts[shift + maxShift] = cost;
+			if (cost < bestCost || (cost == bestCost && Math.abs(shift) < Math.abs(bestShift))) {
+				bestCost = cost;
+				bestShift = shift;
+			}
+		}
+		int motion = bestShift * profileStep;
+		if (profileStep > 1 && bestShift > -maxShift && bestShift < maxShift) {
+			// absolute differences grow linearly around the minimum, fit a V
+			// through the neighbouring costs for the fraction
+			long before = shiftCosts[bestShift + maxShift - 1];
+			long after = shiftCosts[bestShift + maxShift + 1];
+			long slope = 2 * (Math.max(before, after) - bestCost);
+			if (slope > 0) {
+				motion += Math.round((float) ((before - after) * profileStep) / slope);
+			}
+		}
+		return motion;
+	}
+
+}
@@ -0,0 +1,25 @@
+package org.astri.camerahandler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Compresses single NV21 frames for the frame history, see
+ * {@link CameraHandler#enableFrameHistory}. Called on the history thread
+ * only.
+ */
+public interface FrameCompressor {
+
+    /**
+     * @return name of the format, written to history dumps so readers know
+     * how to decode the frames
+     */
+    String getFormatName();
+
+    /**
+     * Writes a compressed frame.
+     * @throws IOException if the frame can't be compressed, it is dropped
+     */
+    void compress(byte[] nv21, int width, int height, OutputStream out) throws IOException;
+
+}
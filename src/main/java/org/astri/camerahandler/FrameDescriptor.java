@@ -0,0 +1,83 @@
+package org.astri.camerahandler;
+
+import android.graphics.ImageFormat;
+
+/**
+ * Immutable snapshot of the preview frame geometry. Built once when the
+ * camera parameters are set so that the per frame path does not need to
+ * query the camera.
+ */
+public final class FrameDescriptor {
+
+	private final int format;
+	private final int width;
+	private final int height;
+	private final int stride;
+	private final int orientation;
+	private final int facing;
+	private final boolean backCamera;
+
+	FrameDescriptor(int format, int width, int height, int orientation, int facing, boolean backCamera) {
+		this.format = format;
+		this.width = width;
+		this.height = height;
+		this.stride = strideFor(format, width);
+		this.orientation = orientation;
+		this.facing = facing;
+		this.backCamera = backCamera;
+	}
+
+	private static int strideFor(int format, int width) {
+		if (format == ImageFormat.YV12) {
+			// YV12 rows are aligned to 16 bytes
+			return (width + 15) & ~15;
+		}
+		return width;
+	}
+
+	public int getFormat() {
+		return format;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getStride() {
+		return stride;
+	}
+
+	public int getOrientation() {
+		return orientation;
+	}
+
+	public int getFacing() {
+		return facing;
+	}
+
+	public boolean isBackCamera() {
+		return backCamera;
+	}
+
+	/**
+	 * Returns a copy with a different preview size, used when the preview
+	 * size is changed after the callback was set.
+	 */
+	FrameDescriptor withSize(int newWidth, int newHeight) {
+		if (newWidth == width && newHeight == height) {
+			return this;
+		}
+		return new FrameDescriptor(format, newWidth, newHeight, orientation, facing, backCamera);
+	}
+
+	@Override
+	public String toString() {
+		return "FrameDescriptor w: " + width + ", h: " + height + ", stride: " + stride
+				+ ", format: " + format + ", orientation: " + orientation + ", facing: " + facing;
+	}
+
+}
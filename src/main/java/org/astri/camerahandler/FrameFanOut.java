@@ -0,0 +1,293 @@
+package org.astri.camerahandler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import android.util.Log;
+
+/**
+ * Delivers preview frames to several {@link FrameSubscription}s.
+ * <p>
+ * Subscriptions with equal output are grouped, each group converts a frame
+ * at most once into a reference counted shared buffer. A raw frame delivered
+ * as it is keeps its preview buffer in flight until every subscriber of the
+ * group has finished with it, so the buffer goes back to the driver only
+ * after that.
+ */
+class FrameFanOut {
+
+	private static final String TAG = "FrameFanOut";
+
+	/** Shared buffers per group, a frame is skipped for the group when all are held */
+	private static final int MAX_SHARED_FRAMES = 4;
+
+	private volatile Group[] groups = new Group[0];
+
+	/** Serial converter is thread safe, used by groups with RGB output */
+	private final YuvConverter converter = new YuvConverter();
+
+	private final CameraMetrics metrics;
+
+	FrameFanOut(CameraMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	synchronized void subscribe(FrameSubscription subscription) {
+		List<FrameSubscription> all = getSubscriptions();
+		if (!all.contains(subscription)) {
+			all.add(subscription);
+			rebuildGroups(all);
+		}
+	}
+
+	synchronized boolean unsubscribe(FrameSubscription subscription) {
+		List<FrameSubscription> all = getSubscriptions();
+		boolean removed = all.remove(subscription);
+		if (removed) {
+			rebuildGroups(all);
+		}
+		return removed;
+	}
+
+	List<FrameSubscription> getSubscriptions() {
+		List<FrameSubscription> all = new ArrayList<FrameSubscription>();
+		for (Group group : groups) {
+			for (FrameSubscription subscription : group.members) {
+				all.add(subscription);
+			}
+		}
+		return all;
+	}
+
+	boolean hasSubscriptions() {
+		return groups.length > 0;
+	}
+
+	private void rebuildGroups(List<FrameSubscription> all) {
+		List<FrameTransform> transforms = new ArrayList<FrameTransform>();
+		List<List<FrameSubscription>> members = new ArrayList<List<FrameSubscription>>();
+		for (FrameSubscription subscription : all) {
+			FrameTransform transform = subscription.createTransform();
+			int index = transforms.indexOf(transform);
+			if (index < 0) {
+				transforms.add(transform);
+				members.add(new ArrayList<FrameSubscription>());
+				index = transforms.size() - 1;
+			}
+			members.get(index).add(subscription);
+		}
+		Group[] newGroups = new Group[transforms.size()];
+		for (int i = 0; i < newGroups.length; i++) {
+			List<FrameSubscription> list = members.get(i);
+			newGroups[i] = new Group(transforms.get(i),
+					list.toArray(new FrameSubscription[list.size()]));
+		}
+		groups = newGroups;
+	}
+
+	/**
+	 * Delivers a frame to due subscribers. The caller keeps its own reference
+	 * to the preview buffer and releases it afterwards.
+	 */
+	void dispatch(byte[] data, FrameDescriptor descriptor, PreviewBufferPool pool, long timestampNanos) {
+		Group[] current = groups;
+		for (int g = 0; g < current.length; g++) {
+			Group group = current[g];
+			SharedFrame frame = null;
+			for (FrameSubscription subscription : group.members) {
+				if (!subscription.tryAcquireFrame(timestampNanos)) {
+					continue;
+				}
+				if (frame == null) {
+					frame = group.obtain(data, descriptor, pool, converter, metrics);
+					if (frame == null) {
+						subscription.frameSkipped();
+						continue;
+					}
+				}
+				frame.retain();
+				deliver(subscription, frame);
+			}
+			if (frame != null) {
+				// dispatcher's own reference
+				frame.release();
+			}
+		}
+	}
+
+	private void deliver(final FrameSubscription subscription, final SharedFrame frame) {
+		Executor executor = subscription.getExecutor();
+		if (executor == null) {
+			frame.deliverTo(subscription);
+			return;
+		}
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					frame.deliverTo(subscription);
+				}
+			});
+		} catch (RuntimeException e) {
+			Log.e(TAG, "Frame delivery rejected", e);
+			subscription.frameSkipped();
+			frame.release();
+		}
+	}
+
+	/**
+	 * Subscriptions with equal output and their shared buffers.
+	 */
+	private static final class Group {
+		final FrameTransform transform;
+		final FrameSubscription[] members;
+		private final SharedFrame[] free = new SharedFrame[MAX_SHARED_FRAMES];
+		private int freeCount;
+		private int created;
+
+		Group(FrameTransform transform, FrameSubscription[] members) {
+			this.transform = transform;
+			this.members = members;
+		}
+
+		/**
+		 * @return frame holding the dispatcher's reference, null if all
+		 * shared frames are in use
+		 */
+		SharedFrame obtain(byte[] data, FrameDescriptor descriptor, PreviewBufferPool pool,
+				YuvConverter converter, CameraMetrics metrics) {
+			SharedFrame frame;
+			synchronized (this) {
+				if (freeCount > 0) {
+					frame = free[--freeCount];
+					free[freeCount] = null;
+				} else if (created < MAX_SHARED_FRAMES) {
+					frame = new SharedFrame(this, metrics);
+					created++;
+				} else {
+					return null;
+				}
+			}
+			if (transform.isIdentity(descriptor)) {
+				frame.setRaw(data, descriptor, pool);
+			} else {
+				frame.setConverted(transform, data, descriptor, converter);
+			}
+			return frame;
+		}
+
+		synchronized void recycle(SharedFrame frame) {
+			free[freeCount++] = frame;
+		}
+	}
+
+	/**
+	 * Reference counted frame delivered to the members of a group.
+	 */
+	private static final class SharedFrame {
+		private final Group owner;
+		private final CameraMetrics metrics;
+		private byte[] buffer;
+		private byte[] scratch;
+		private byte[] data;
+		private PreviewBufferPool rawPool;
+		private int width;
+		private int height;
+		private int format;
+		private int orientation;
+		private boolean backCamera;
+		private int refs;
+
+		SharedFrame(Group owner, CameraMetrics metrics) {
+			this.owner = owner;
+			this.metrics = metrics;
+		}
+
+		void setRaw(byte[] raw, FrameDescriptor descriptor, PreviewBufferPool pool) {
+			// raw buffer stays in flight until every member is done
+			pool.retain(raw);
+			set(raw, pool, descriptor.getWidth(), descriptor.getHeight(), descriptor.getFormat(),
+					descriptor.getOrientation(), descriptor.isBackCamera());
+		}
+
+		void setConverted(FrameTransform transform, byte[] raw, FrameDescriptor descriptor,
+				YuvConverter converter) {
+			int size = transform.getOutputSize(descriptor);
+			if (buffer == null || buffer.length < size) {
+				buffer = new byte[size];
+				metrics.allocated(size);
+			}
+			int scratchSize = transform.getScratchSize(descriptor);
+			if (scratchSize > 0 && (scratch == null || scratch.length < scratchSize)) {
+				scratch = new byte[scratchSize];
+				metrics.allocated(scratchSize);
+			}
+			transform.apply(raw, descriptor, converter, scratch, buffer);
+			set(buffer, null, transform.getOutputWidth(descriptor), transform.getOutputHeight(descriptor),
+					transform.getOutputFormat(descriptor), transform.getOutputOrientation(descriptor),
+					descriptor.isBackCamera());
+		}
+
+		private synchronized void set(byte[] data, PreviewBufferPool rawPool, int width, int height,
+				int format, int orientation, boolean backCamera) {
+			this.data = data;
+			this.rawPool = rawPool;
+			this.width = width;
+			this.height = height;
+			this.format = format;
+			this.orientation = orientation;
+			this.backCamera = backCamera;
+			this.refs = 1;
+		}
+
+		synchronized void retain() {
+			refs++;
+		}
+
+		void release() {
+			byte[] released;
+			PreviewBufferPool pool;
+			synchronized (this) {
+				if (--refs > 0) {
+					return;
+				}
+				released = data;
+				pool = rawPool;
+				data = null;
+				rawPool = null;
+			}
+			if (pool != null) {
+				pool.release(released);
+			}
+			owner.recycle(this);
+		}
+
+		void deliverTo(FrameSubscription subscription) {
+			byte[] frameData;
+			int frameWidth;
+			int frameHeight;
+			int frameFormat;
+			int frameOrientation;
+			boolean frameBackCamera;
+			synchronized (this) {
+				frameData = data;
+				frameWidth = width;
+				frameHeight = height;
+				frameFormat = format;
+				frameOrientation = orientation;
+				frameBackCamera = backCamera;
+			}
+			try {
+				subscription.getListener().receiveCameraFrame(frameData, frameWidth, frameHeight,
+						frameBackCamera, frameFormat, frameOrientation);
+				subscription.frameDelivered();
+			} catch (Exception e) {
+				Log.e(TAG, "Error delivering camera frame to subscriber!", e);
+			} finally {
+				release();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,479 @@
+package org.astri.camerahandler;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import android.graphics.ImageFormat;
+
+/**
+ * Recent preview frames kept compressed in memory, so that the frames from
+ * before an event can be written out after it.
+ * <p>
+ * Frames are taken as by the {@link VideoRecorder}: preview buffers are
+ * retained in their pool and compressed on the history thread, direct frames
+ * are copied once, and frames are dropped for the history rather than held
+ * back from the camera. Compressed frames are stored one after the other in
+ * a direct buffer used as a ring, outside the Java heap. The oldest frames
+ * are evicted when they are older than the history length, when the store
+ * has no room for a new frame, or when the frame index is full.
+ * <p>
+ * {@link #dump} copies one frame at a time under the lock, so frames keep
+ * being stored while a dump is written. A frame evicted before the dump
+ * reached it is skipped.
+ * <p>
+ * Dump files hold the magic {@link #DUMP_MAGIC}, the compressor's format
+ * name, the wall clock time of the dump in milliseconds, then per frame
+ * its time relative to the dump in microseconds, negative, width, height,
+ * orientation, compressed length and the compressed data.
+ */
+final class FrameHistory {
+
+	/** Frames waiting for compression, newer frames are dropped */
+	static final int QUEUE_CAPACITY = 2;
+	/** Highest frame rate the frame index is sized for */
+	static final int MAX_FRAME_RATE = 60;
+
+	static final int DUMP_MAGIC = 0x43484648;
+
+	/**
+	 * Output stream giving access to its array, so compressed frames are
+	 * copied to the store without another copy.
+	 */
+	private static final class FrameBytes extends ByteArrayOutputStream {
+		FrameBytes() {
+			super(64 * 1024);
+		}
+
+		byte[] array() {
+			return buf;
+		}
+	}
+
+	private final FrameCompressor compressor;
+	private final CameraMetrics metrics;
+	private final long maxAgeNanos;
+
+	// stored frames, the index is a ring with the oldest frame at head
+	private final ByteBuffer store;
+	private final int[] offsets;
+	private final int[] lengths;
+	private final long[] timestamps;
+	private final int[] widths;
+	private final int[] heights;
+	private final int[] orientations;
+	private int head;
+	private int count;
+	/** Sequence number of the frame at head, counts evicted frames */
+	private long headSequence;
+	private int writePosition;
+	private long storedBytes;
+
+	// ring of frames waiting for compression, pool is null for own buffers
+	private final byte[][] queuedData = new byte[QUEUE_CAPACITY][];
+	private final PreviewBufferPool[] queuedPools = new PreviewBufferPool[QUEUE_CAPACITY];
+	private final long[] queuedNanos = new long[QUEUE_CAPACITY];
+	private final int[] queuedWidths = new int[QUEUE_CAPACITY];
+	private final int[] queuedHeights = new int[QUEUE_CAPACITY];
+	private final int[] queuedOrientations = new int[QUEUE_CAPACITY];
+	private int queueHead;
+	private int queueCount;
+	/** Buffers for copies of direct frames, allocated on first use */
+	private final ArrayDeque<byte[]> spareBuffers = new ArrayDeque<byte[]>();
+	private int spareCount;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+
+	/** History thread only */
+	private final FrameBytes compressed = new FrameBytes();
+
+	private Thread thread;
+	private boolean running;
+
+	/**
+	 * @param maxAgeNanos history length
+	 * @param maxBytes size of the store for compressed frames
+	 */
+	FrameHistory(FrameCompressor compressor, CameraMetrics metrics, long maxAgeNanos, int maxBytes) {
+		if (maxBytes < 1) {
+			throw new IllegalArgumentException("Store size must be positive: " + maxBytes);
+		}
+		this.compressor = compressor;
+		this.metrics = metrics;
+		this.maxAgeNanos = maxAgeNanos;
+		this.store = ByteBuffer.allocateDirect(maxBytes);
+		int maxFrames = (int) Math.min(maxAgeNanos / 1000000 * MAX_FRAME_RATE / 1000 + 1, maxBytes);
+		offsets = new int[maxFrames];
+		lengths = new int[maxFrames];
+		timestamps = new long[maxFrames];
+		widths = new int[maxFrames];
+		heights = new int[maxFrames];
+		orientations = new int[maxFrames];
+	}
+
+	void start() {
+		lock.lock();
+		try {
+			if (running) {
+				return;
+			}
+			running = true;
+		} finally {
+			lock.unlock();
+		}
+		thread = new Thread(compressLoop, "FrameHistory");
+		thread.start();
+	}
+
+	/**
+	 * Stops the history thread and releases the frames still waiting. The
+	 * stored frames can still be dumped.
+	 */
+	void stop() {
+		lock.lock();
+		try {
+			if (!running) {
+				return;
+			}
+			running = false;
+			while (queueCount > 0) {
+				releaseQueued(queuedData[queueHead], queuedPools[queueHead]);
+				dequeue();
+			}
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Queues a preview frame for compression, retaining its buffer if taken.
+	 * The caller keeps its own reference.
+	 * @return false if the frame was dropped for the history
+	 */
+	boolean offer(byte[] data, FrameDescriptor descriptor, PreviewBufferPool pool, long arrivalNanos) {
+		lock.lock();
+		try {
+			if (!running || descriptor.getFormat() != ImageFormat.NV21 || queueCount == QUEUE_CAPACITY
+					|| pool.getFreeCount() < VideoRecorder.MIN_QUEUED_BUFFERS || !pool.retain(data)) {
+				return drop();
+			}
+			enqueue(data, pool, arrivalNanos, descriptor.getWidth(), descriptor.getHeight(),
+					descriptor.getOrientation());
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Queues a copy of a direct frame for compression.
+	 * @return false if the frame was dropped for the history
+	 */
+	boolean offer(DirectFrame frame, long arrivalNanos) {
+		lock.lock();
+		try {
+			if (!running || queueCount == QUEUE_CAPACITY) {
+				return drop();
+			}
+			int size = frame.getWidth() * frame.getHeight() * 3 / 2;
+			byte[] buffer = spareBuffers.poll();
+			if (buffer != null && buffer.length < size) {
+				// frames got larger
+				buffer = null;
+				spareCount--;
+			}
+			if (buffer == null) {
+				if (spareCount == QUEUE_CAPACITY + 1) {
+					// every buffer is waiting or being compressed
+					return drop();
+				}
+				buffer = new byte[size];
+				spareCount++;
+				metrics.allocated(size);
+			}
+			if (!frame.copyToNv21(buffer)) {
+				spareBuffers.add(buffer);
+				return drop();
+			}
+			enqueue(buffer, null, arrivalNanos, frame.getWidth(), frame.getHeight(),
+					frame.getOrientation());
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// lock must be held
+	private boolean drop() {
+		metrics.historyDropped();
+		return false;
+	}
+
+	// lock must be held
+	private void enqueue(byte[] data, PreviewBufferPool pool, long arrivalNanos, int width,
+			int height, int orientation) {
+		int tail = (queueHead + queueCount) % QUEUE_CAPACITY;
+		queuedData[tail] = data;
+		queuedPools[tail] = pool;
+		queuedNanos[tail] = arrivalNanos;
+		queuedWidths[tail] = width;
+		queuedHeights[tail] = height;
+		queuedOrientations[tail] = orientation;
+		queueCount++;
+		notEmpty.signal();
+	}
+
+	// lock must be held
+	private void dequeue() {
+		queuedData[queueHead] = null;
+		queuedPools[queueHead] = null;
+		queueHead = (queueHead + 1) % QUEUE_CAPACITY;
+		queueCount--;
+	}
+
+	// lock must be held
+	private void releaseQueued(byte[] data, PreviewBufferPool pool) {
+		if (pool != null) {
+			pool.release(data);
+		} else {
+			spareBuffers.add(data);
+		}
+	}
+
+	private final Runnable compressLoop = new Runnable() {
+		@Override
+		public void run() {
+			while (true) {
+				byte[] data;
+				PreviewBufferPool pool;
+				long arrivalNanos;
+				int width;
+				int height;
+				int orientation;
+				lock.lock();
+				try {
+					while (running && queueCount == 0) {
+						notEmpty.awaitUninterruptibly();
+					}
+					if (!running) {
+						return;
+					}
+					data = queuedData[queueHead];
+					pool = queuedPools[queueHead];
+					arrivalNanos = queuedNanos[queueHead];
+					width = queuedWidths[queueHead];
+					height = queuedHeights[queueHead];
+					orientation = queuedOrientations[queueHead];
+					dequeue();
+				} finally {
+					lock.unlock();
+				}
+
+				compressed.reset();
+				boolean ok;
+				try {
+					compressor.compress(data, width, height, compressed);
+					ok = true;
+				} catch (IOException e) {
+					ok = false;
+				} catch (RuntimeException e) {
+					ok = false;
+				}
+
+				lock.lock();
+				try {
+					releaseQueued(data, pool);
+					if (ok && add(compressed.array(), compressed.size(), arrivalNanos, width, height,
+							orientation)) {
+						metrics.historyFrameStored();
+					} else {
+						drop();
+					}
+				} finally {
+					lock.unlock();
+				}
+			}
+		}
+	};
+
+	/**
+	 * Stores a compressed frame, evicting the frames it needs room of.
+	 * Lock must be held.
+	 * @return false if the frame is larger than the store
+	 */
+	private boolean add(byte[] data, int length, long timestamp, int width, int height,
+			int orientation) {
+		if (length > store.capacity()) {
+			return false;
+		}
+		while (count > 0 && timestamp - timestamps[head] > maxAgeNanos) {
+			evictOldest();
+		}
+		if (count == offsets.length) {
+			evictOldest();
+		}
+		int start = writePosition;
+		if (start + length > store.capacity()) {
+			// the end of the store is skipped, the frames there are the oldest
+			while (count > 0 && offsets[head] >= start) {
+				evictOldest();
+			}
+			start = 0;
+		}
+		while (count > 0 && offsets[head] >= start && offsets[head] < start + length) {
+			evictOldest();
+		}
+		store.position(start);
+		store.put(data, 0, length);
+		int slot = (head + count) % offsets.length;
+		offsets[slot] = start;
+		lengths[slot] = length;
+		timestamps[slot] = timestamp;
+		widths[slot] = width;
+		heights[slot] = height;
+		orientations[slot] = orientation;
+		count++;
+		storedBytes += length;
+		writePosition = start + length;
+		return true;
+	}
+
+	// lock must be held
+	private void evictOldest() {
+		storedBytes -= lengths[head];
+		head = (head + 1) % offsets.length;
+		headSequence++;
+		count--;
+	}
+
+	/**
+	 * Writes the stored frames of the given duration before the newest one
+	 * to a file, on the calling thread.
+	 * @return number of frames written
+	 * @throws IOException if the file can't be written
+	 */
+	int dump(File output, long durationNanos) throws IOException {
+		long dumpNanos = System.nanoTime();
+		long dumpMillis = System.currentTimeMillis();
+		ByteBuffer view;
+		long sequence;
+		long endSequence;
+		lock.lock();
+		try {
+			view = store.duplicate();
+			endSequence = headSequence + count;
+			sequence = endSequence;
+			if (count > 0) {
+				long from = timestamps[slotOf(endSequence - 1)] - durationNanos;
+				while (sequence > headSequence && timestamps[slotOf(sequence - 1)] >= from) {
+					sequence--;
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(output)));
+		int written = 0;
+		try {
+			out.writeInt(DUMP_MAGIC);
+			out.writeUTF(compressor.getFormatName());
+			out.writeLong(dumpMillis);
+			byte[] frame = new byte[0];
+			for (; sequence < endSequence; sequence++) {
+				int length;
+				long timestamp;
+				int width;
+				int height;
+				int orientation;
+				lock.lock();
+				try {
+					if (sequence < headSequence) {
+						// evicted while the dump was written
+						continue;
+					}
+					int slot = slotOf(sequence);
+					length = lengths[slot];
+					timestamp = timestamps[slot];
+					width = widths[slot];
+					height = heights[slot];
+					orientation = orientations[slot];
+					if (frame.length < length) {
+						frame = new byte[length];
+					}
+					view.position(offsets[slot]);
+					view.get(frame, 0, length);
+				} finally {
+					lock.unlock();
+				}
+				out.writeLong((timestamp - dumpNanos) / 1000);
+				out.writeInt(width);
+				out.writeInt(height);
+				out.writeInt(orientation);
+				out.writeInt(length);
+				out.write(frame, 0, length);
+				written++;
+			}
+		} finally {
+			out.close();
+		}
+		return written;
+	}
+
+	// lock must be held
+	private int slotOf(long sequence) {
+		return (int) ((head + sequence - headSequence) % offsets.length);
+	}
+
+	/**
+	 * @return number of stored frames
+	 */
+	int getFrameCount() {
+		lock.lock();
+		try {
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return bytes of the stored frames
+	 */
+	long getStoredBytes() {
+		lock.lock();
+		try {
+			return storedBytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return time from the oldest to the newest stored frame
+	 */
+	long getDurationNanos() {
+		lock.lock();
+		try {
+			return count > 0 ? timestamps[slotOf(headSequence + count - 1)] - timestamps[head] : 0;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+}
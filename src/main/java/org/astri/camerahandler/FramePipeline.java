@@ -0,0 +1,347 @@
+package org.astri.camerahandler;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import android.util.Log;
+
+/**
+ * Asynchronous stage between the camera callback and the frame consumer.
+ * <p>
+ * Frames are submitted from the camera thread and processed on a pool of
+ * worker threads, so a slow consumer doesn't lower the capture frame rate.
+ * What happens when the consumer falls behind depends on the
+ * {@link DropPolicy}. A submitted frame is owned by the pipeline and is
+ * released back to its {@link PreviewBufferPool} after it has been
+ * processed or dropped.
+ * <p>
+ * With more than one worker frames can be processed concurrently and out of
+ * order, the consumer must then be thread safe. The preview buffer pool
+ * should have more buffers than queue capacity plus workers, otherwise the
+ * camera driver runs out of buffers.
+ */
+public class FramePipeline {
+
+	private static final String TAG = "FramePipeline";
+
+	/** Longest wait of the camera thread for a free slot with BLOCK */
+	public static final long BLOCK_TIMEOUT_MILLIS = 100;
+
+	public enum DropPolicy {
+		/** Only the newest frame is kept waiting, older waiting frame is dropped. */
+		KEEP_LATEST,
+		/** Up to queue capacity frames wait, the oldest is dropped when full. */
+		BOUNDED_QUEUE,
+		/**
+		 * Up to queue capacity frames wait, the camera thread waits when full.
+		 * After {@link #BLOCK_TIMEOUT_MILLIS} the new frame is dropped. The
+		 * consumer must not wait for the camera thread, e.g. by calling a
+		 * CameraHandler method that runs on it, or every frame stalls until
+		 * the timeout.
+		 */
+		BLOCK
+	}
+
+	public interface FrameConsumer {
+		/**
+		 * Processes a frame on a worker thread. The buffer is released after
+		 * this method returns unless the consumer retains it in the pool.
+		 * With {@link DropPolicy#BLOCK} the camera thread may be waiting for
+		 * this call, don't wait for the camera thread here.
+		 */
+		void processFrame(byte[] data, FrameDescriptor descriptor, PreviewBufferPool pool);
+	}
+
+	private final FrameConsumer consumer;
+	private final DropPolicy dropPolicy;
+	private final int workerCount;
+
+	// ring of waiting frames, preallocated so that submitting doesn't allocate
+	private final byte[][] queuedData;
+	private final FrameDescriptor[] queuedDescriptors;
+	private final PreviewBufferPool[] queuedPools;
+	private int head;
+	private int count;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+
+	private ExecutorService workers;
+	private boolean running;
+
+	private long submittedCount;
+	private long processedCount;
+	private long droppedCount;
+	private long failedCount;
+	private int maxQueueDepth;
+
+	public FramePipeline(FrameConsumer consumer, DropPolicy dropPolicy, int workerCount, int queueCapacity) {
+		if (workerCount < 1) {
+			throw new IllegalArgumentException("At least one worker required: " + workerCount);
+		}
+		if (queueCapacity < 1) {
+			throw new IllegalArgumentException("Queue capacity must be positive: " + queueCapacity);
+		}
+		this.consumer = consumer;
+		this.dropPolicy = dropPolicy;
+		this.workerCount = workerCount;
+		int capacity = dropPolicy == DropPolicy.KEEP_LATEST ? 1 : queueCapacity;
+		this.queuedData = new byte[capacity][];
+		this.queuedDescriptors = new FrameDescriptor[capacity];
+		this.queuedPools = new PreviewBufferPool[capacity];
+	}
+
+	public void start() {
+		lock.lock();
+		try {
+			if (running) {
+				return;
+			}
+			running = true;
+			workers = Executors.newFixedThreadPool(workerCount, new ThreadFactory() {
+				private int threadIndex;
+
+				@Override
+				public Thread newThread(Runnable r) {
+					return new Thread(r, "FramePipeline-" + threadIndex++);
+				}
+			});
+			for (int i = 0; i < workerCount; i++) {
+				workers.execute(workerLoop);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stops the workers and releases the frames still waiting. Waits shortly
+	 * for the frames being processed.
+	 */
+	public void stop() {
+		ExecutorService stopped;
+		lock.lock();
+		try {
+			if (!running) {
+				return;
+			}
+			running = false;
+			while (count > 0) {
+				dropOldest();
+			}
+			notEmpty.signalAll();
+			notFull.signalAll();
+			stopped = workers;
+			workers = null;
+		} finally {
+			lock.unlock();
+		}
+		stopped.shutdown();
+		try {
+			stopped.awaitTermination(1, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Hands a frame over to the pipeline. The caller must own a reference to
+	 * the buffer in the pool, the pipeline releases it.
+	 * @return false if the frame was not queued, the buffer is then already
+	 * released
+	 */
+	public boolean submit(byte[] data, FrameDescriptor descriptor, PreviewBufferPool pool) {
+		lock.lock();
+		try {
+			if (!running) {
+				pool.release(data);
+				return false;
+			}
+			submittedCount++;
+			if (count == queuedData.length) {
+				if (dropPolicy == DropPolicy.BLOCK) {
+					long remaining = TimeUnit.MILLISECONDS.toNanos(BLOCK_TIMEOUT_MILLIS);
+					while (running && count == queuedData.length && remaining > 0) {
+						try {
+							remaining = notFull.awaitNanos(remaining);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							break;
+						}
+					}
+					if (!running) {
+						pool.release(data);
+						return false;
+					}
+					if (count == queuedData.length) {
+						// consumer stuck, the camera thread doesn't wait longer
+						pool.release(data);
+						droppedCount++;
+						return false;
+					}
+				} else {
+					dropOldest();
+				}
+			}
+			int tail = (head + count) % queuedData.length;
+			queuedData[tail] = data;
+			queuedDescriptors[tail] = descriptor;
+			queuedPools[tail] = pool;
+			count++;
+			if (count > maxQueueDepth) {
+				maxQueueDepth = count;
+			}
+			notEmpty.signal();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// lock must be held
+	private void dropOldest() {
+		queuedPools[head].release(queuedData[head]);
+		clearSlot(head);
+		head = (head + 1) % queuedData.length;
+		count--;
+		droppedCount++;
+	}
+
+	private void clearSlot(int slot) {
+		queuedData[slot] = null;
+		queuedDescriptors[slot] = null;
+		queuedPools[slot] = null;
+	}
+
+	private final Runnable workerLoop = new Runnable() {
+		@Override
+		public void run() {
+			while (true) {
+				byte[] data;
+				FrameDescriptor descriptor;
+				PreviewBufferPool pool;
+				lock.lock();
+				try {
+					while (running && count == 0) {
+						notEmpty.awaitUninterruptibly();
+					}
+					if (!running) {
+						return;
+					}
+					data = queuedData[head];
+					descriptor = queuedDescriptors[head];
+					pool = queuedPools[head];
+					clearSlot(head);
+					head = (head + 1) % queuedData.length;
+					count--;
+					notFull.signal();
+				} finally {
+					lock.unlock();
+				}
+
+				boolean failed = false;
+				try {
+					consumer.processFrame(data, descriptor, pool);
+				} catch (RuntimeException e) {
+					// the worker goes on with the next frame
+					Log.e(TAG, "Error processing frame", e);
+					failed = true;
+				} finally {
+					pool.release(data);
+				}
+
+				lock.lock();
+				try {
+					processedCount++;
+					if (failed) {
+						failedCount++;
+					}
+				} finally {
+					lock.unlock();
+				}
+			}
+		}
+	};
+
+	public DropPolicy getDropPolicy() {
+		return dropPolicy;
+	}
+
+	public int getWorkerCount() {
+		return workerCount;
+	}
+
+	public int getQueueCapacity() {
+		return queuedData.length;
+	}
+
+	/**
+	 * @return number of frames currently waiting for a worker
+	 */
+	public int getQueueDepth() {
+		lock.lock();
+		try {
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getMaxQueueDepth() {
+		lock.lock();
+		try {
+			return maxQueueDepth;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getSubmittedCount() {
+		lock.lock();
+		try {
+			return submittedCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getProcessedCount() {
+		lock.lock();
+		try {
+			return processedCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return number of processed frames the consumer threw an exception
+	 * for, also counted as processed
+	 */
+	public long getFailedCount() {
+		lock.lock();
+		try {
+			return failedCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return number of frames dropped by the pipeline before processing
+	 */
+	public long getDroppedCount() {
+		lock.lock();
+		try {
+			return droppedCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+}
@@ -0,0 +1,145 @@
+package org.astri.camerahandler;
+
+/**
+ * Region of interest of preview frames and how it is scaled down before
+ * delivery.
+ * <p>
+ * The region is given relative to the frame size so that it stays valid when
+ * the preview size changes. The region is aligned to even pixels and its size
+ * is rounded down so that the scaled output has even width and height.
+ */
+public final class FrameRoi {
+
+	/** Luma plane only, one byte per pixel. Same value as Android's Y8. */
+	public static final int FORMAT_LUMA = 0x20203859;
+	public static final int FORMAT_NV21 = YuvConverter.FORMAT_NV21;
+
+	private final float left;
+	private final float top;
+	private final float width;
+	private final float height;
+	private final int scaleDivisor;
+	private final boolean bilinear;
+	private final int outputFormat;
+
+	/**
+	 * @param left left edge relative to frame width, 0..1
+	 * @param top top edge relative to frame height, 0..1
+	 * @param width region width relative to frame width, 0..1
+	 * @param height region height relative to frame height, 0..1
+	 * @param scaleDivisor integer downscale factor, 1 for crop only
+	 * @param bilinear sample 2x2 pixels at the center of each scaled block
+	 * instead of averaging the whole block, faster for large divisors
+	 * @param outputFormat {@link #FORMAT_LUMA} or {@link #FORMAT_NV21}
+	 */
+	public FrameRoi(float left, float top, float width, float height, int scaleDivisor,
+			boolean bilinear, int outputFormat) {
+		if (left < 0 || top < 0 || width <= 0 || height <= 0
+				|| left + width > 1.0001f || top + height > 1.0001f) {
+			throw new IllegalArgumentException("Region outside of the frame");
+		}
+		if (scaleDivisor < 1) {
+			throw new IllegalArgumentException("Invalid scale divisor: " + scaleDivisor);
+		}
+		if (outputFormat != FORMAT_LUMA && outputFormat != FORMAT_NV21) {
+			throw new IllegalArgumentException("Unsupported output format: " + outputFormat);
+		}
+		this.left = left;
+		this.top = top;
+		this.width = width;
+		this.height = height;
+		this.scaleDivisor = scaleDivisor;
+		this.bilinear = bilinear;
+		this.outputFormat = outputFormat;
+	}
+
+	/**
+	 * Region in the middle of the frame.
+	 * @param fraction region size relative to the frame size
+	 */
+	public static FrameRoi centered(float fraction, int scaleDivisor, int outputFormat) {
+		float edge = (1.0f - fraction) / 2;
+		return new FrameRoi(edge, edge, fraction, fraction, scaleDivisor, false, outputFormat);
+	}
+
+	/**
+	 * @return the same region with a different output format
+	 */
+	public FrameRoi withOutputFormat(int format) {
+		if (format == outputFormat) {
+			return this;
+		}
+		return new FrameRoi(left, top, width, height, scaleDivisor, bilinear, format);
+	}
+
+	public int getScaleDivisor() {
+		return scaleDivisor;
+	}
+
+	public boolean isBilinear() {
+		return bilinear;
+	}
+
+	public int getOutputFormat() {
+		return outputFormat;
+	}
+
+	int getCropLeft(int frameWidth) {
+		return Math.round(left * frameWidth) & ~1;
+	}
+
+	int getCropTop(int frameHeight) {
+		return Math.round(top * frameHeight) & ~1;
+	}
+
+	public int getOutputWidth(int frameWidth) {
+		int crop = Math.min(Math.round(width * frameWidth), frameWidth - getCropLeft(frameWidth));
+		return (crop / scaleDivisor) & ~1;
+	}
+
+	public int getOutputHeight(int frameHeight) {
+		int crop = Math.min(Math.round(height * frameHeight), frameHeight - getCropTop(frameHeight));
+		return (crop / scaleDivisor) & ~1;
+	}
+
+	/**
+	 * @return output buffer size in bytes for a frame of given size
+	 */
+	public int getOutputSize(int frameWidth, int frameHeight) {
+		int pixels = getOutputWidth(frameWidth) * getOutputHeight(frameHeight);
+		return outputFormat == FORMAT_LUMA ? pixels : pixels * 3 / 2;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof FrameRoi)) {
+			return false;
+		}
+		FrameRoi other = (FrameRoi) o;
+		return left == other.left && top == other.top && width == other.width
+				&& height == other.height && scaleDivisor == other.scaleDivisor
+				&& bilinear == other.bilinear && outputFormat == other.outputFormat;
+	}
+
+	@Override
+	public int hashCode() {
+		int result = Float.floatToIntBits(left);
+		result = 31 * result + Float.floatToIntBits(top);
+		result = 31 * result + Float.floatToIntBits(width);
+		result = 31 * result + Float.floatToIntBits(height);
+		result = 31 * result + scaleDivisor;
+		result = 31 * result + (bilinear ? 1 : 0);
+		result = 31 * result + outputFormat;
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return "FrameRoi left: " + left + ", top: " + top + ", w: " + width + ", h: " + height
+				+ ", divisor: " + scaleDivisor + ", bilinear: " + bilinear + ", format: " + outputFormat;
+	}
+
+}
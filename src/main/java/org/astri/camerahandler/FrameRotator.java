@@ -0,0 +1,146 @@
+package org.astri.camerahandler;
+
+/**
+ * Rotates and mirrors NV21 frames into caller owned buffers.
+ * <p>
+ * Rotation is clockwise in steps of 90 degrees, mirroring flips the rotated
+ * image horizontally. The planes are copied in square tiles so that both
+ * reads and writes stay in cache for 90 and 270 degree rotations. The
+ * interleaved VU plane is moved in pairs so that V and U stay in order.
+ */
+public final class FrameRotator {
+
+	/** Tile edge in pixels, even so that tiles cover whole chroma pairs */
+	private static final int BLOCK = 32;
+
+	private FrameRotator() {
+	}
+
+	public static int getRotatedWidth(int width, int height, int rotation) {
+		return isTransposed(rotation) ? height : width;
+	}
+
+	public static int getRotatedHeight(int width, int height, int rotation) {
+		return isTransposed(rotation) ? width : height;
+	}
+
+	static boolean isTransposed(int rotation) {
+		return rotation == 90 || rotation == 270;
+	}
+
+	static void checkRotation(int rotation) {
+		if (rotation != 0 && rotation != 90 && rotation != 180 && rotation != 270) {
+			throw new IllegalArgumentException("Unsupported rotation: " + rotation);
+		}
+	}
+
+	/**
+	 * Destination index of source pixel x, y in a plane of given size after
+	 * rotation and mirroring. The mapping is linear in x and y, so callers
+	 * can derive offset and steps from three calls.
+	 */
+	static int destIndex(int x, int y, int width, int height, int rotation, boolean mirror) {
+		int dx;
+		int dy;
+		switch (rotation) {
+		case 90:
+			dx = height - 1 - y;
+			dy = x;
+			break;
+		case 180:
+			dx = width - 1 - x;
+			dy = height - 1 - y;
+			break;
+		case 270:
+			dx = y;
+			dy = width - 1 - x;
+			break;
+		default:
+			dx = x;
+			dy = y;
+			break;
+		}
+		int destWidth = getRotatedWidth(width, height, rotation);
+		if (mirror) {
+			dx = destWidth - 1 - dx;
+		}
+		return dy * destWidth + dx;
+	}
+
+	/**
+	 * Rotates and mirrors a NV21 frame.
+	 * @param src source frame
+	 * @param width source width, even
+	 * @param height source height, even
+	 * @param rotation clockwise rotation 0, 90, 180 or 270
+	 * @param mirror flip the rotated frame horizontally
+	 * @param dst destination of at least width * height * 3 / 2 bytes, must
+	 * not be the source buffer
+	 */
+	public static void rotateNv21(byte[] src, int width, int height, int rotation, boolean mirror,
+			byte[] dst) {
+		checkRotation(rotation);
+		int frameSize = width * height;
+		if (src.length < frameSize * 3 / 2 || dst.length < frameSize * 3 / 2) {
+			throw new IllegalArgumentException("Frame buffer too small for " + width + "x" + height);
+		}
+		if (src == dst) {
+			throw new IllegalArgumentException("Rotation can not be done in place");
+		}
+		if (rotation == 0 && !mirror) {
+			System.arraycopy(src, 0, dst, 0, frameSize * 3 / 2);
+			return;
+		}
+		rotatePlane(src, 0, width, height, 1, rotation, mirror, dst, 0);
+		rotatePlane(src, frameSize, width / 2, height / 2, 2, rotation, mirror, dst, frameSize);
+	}
+
+	/**
+	 * Rotates and mirrors a luma only frame of one byte per pixel.
+	 * @see #rotateNv21
+	 */
+	public static void rotateLuma(byte[] src, int width, int height, int rotation, boolean mirror,
+			byte[] dst) {
+		checkRotation(rotation);
+		if (src.length < width * height || dst.length < width * height) {
+			throw new IllegalArgumentException("Frame buffer too small for " + width + "x" + height);
+		}
+		if (src == dst) {
+			throw new IllegalArgumentException("Rotation can not be done in place");
+		}
+		rotatePlane(src, 0, width, height, 1, rotation, mirror, dst, 0);
+	}
+
+	/**
+	 * Rotates a plane of elements of elementSize bytes.
+	 */
+	private static void rotatePlane(byte[] src, int srcOffset, int width, int height, int elementSize,
+			int rotation, boolean mirror, byte[] dst, int dstOffset) {
+		int origin = destIndex(0, 0, width, height, rotation, mirror);
+		int stepX = destIndex(1, 0, width, height, rotation, mirror) - origin;
+		int stepY = destIndex(0, 1, width, height, rotation, mirror) - origin;
+
+		for (int by = 0; by < height; by += BLOCK) {
+			int yEnd = Math.min(height, by + BLOCK);
+			for (int bx = 0; bx < width; bx += BLOCK) {
+				int xEnd = Math.min(width, bx + BLOCK);
+				for (int y = by; y < yEnd; y++) {
+					int s = srcOffset + (y * width + bx) * elementSize;
+					int d = origin + bx * stepX + y * stepY;
+					if (elementSize == 1) {
+						for (int x = bx; x < xEnd; x++, s++, d += stepX) {
+							dst[dstOffset + d] = src[s];
+						}
+					} else {
+						for (int x = bx; x < xEnd; x++, s += 2, d += stepX) {
+							int o = dstOffset + d * 2;
+							dst[o] = src[s];
+							dst[o + 1] = src[s + 1];
+						}
+					}
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,146 @@
+package org.astri.camerahandler;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Subscription to preview frames with its own frame rate, format and region
+ * of interest, see {@link CameraHandler#subscribe(FrameSubscription)}.
+ * <p>
+ * Subscribers asking for the same output share one converted buffer. The
+ * buffer passed to receiveCameraFrame is valid only during the call. Photo
+ * and marker frames are not delivered to subscribers.
+ */
+public class FrameSubscription {
+
+	private final CameraDataListener listener;
+	private final float maxFps;
+	private final long minIntervalNanos;
+	private final int outputFormat;
+	private final FrameRoi roi;
+
+	private boolean upright = false;
+	private boolean mirrorFrontCamera = false;
+	private Executor executor;
+
+	private final AtomicLong nextDueNanos = new AtomicLong(Long.MIN_VALUE);
+	private final AtomicLong deliveredCount = new AtomicLong();
+	private final AtomicLong skippedCount = new AtomicLong();
+
+	/**
+	 * @param listener receives the frames
+	 * @param maxFps maximum frames per second, 0 for every frame
+	 * @param outputFormat {@link YuvConverter#FORMAT_NV21},
+	 * {@link YuvConverter#FORMAT_RGB565}, {@link YuvConverter#FORMAT_RGBA8888}
+	 * or {@link FrameRoi#FORMAT_LUMA}
+	 * @param roi region of interest, null for whole frames. Its own output
+	 * format is overridden by outputFormat.
+	 */
+	public FrameSubscription(CameraDataListener listener, float maxFps, int outputFormat, FrameRoi roi) {
+		if (listener == null) {
+			throw new IllegalArgumentException("Listener required");
+		}
+		if (outputFormat != YuvConverter.FORMAT_NV21 && outputFormat != YuvConverter.FORMAT_RGB565
+				&& outputFormat != YuvConverter.FORMAT_RGBA8888 && outputFormat != FrameRoi.FORMAT_LUMA) {
+			throw new IllegalArgumentException("Unsupported output format: " + outputFormat);
+		}
+		this.listener = listener;
+		this.maxFps = maxFps;
+		this.minIntervalNanos = maxFps > 0 ? (long) (1000000000L / maxFps) : 0;
+		this.outputFormat = outputFormat;
+		if (outputFormat == FrameRoi.FORMAT_LUMA) {
+			this.roi = roi != null ? roi.withOutputFormat(FrameRoi.FORMAT_LUMA)
+					: new FrameRoi(0, 0, 1, 1, 1, false, FrameRoi.FORMAT_LUMA);
+		} else {
+			this.roi = roi != null ? roi.withOutputFormat(FrameRoi.FORMAT_NV21) : null;
+		}
+	}
+
+	/**
+	 * Delivers frames rotated to upright, must be set before subscribing.
+	 * @see CameraHandler#setUprightFrames(boolean, boolean)
+	 */
+	public void setUpright(boolean upright, boolean mirrorFrontCamera) {
+		this.upright = upright;
+		this.mirrorFrontCamera = mirrorFrontCamera;
+	}
+
+	/**
+	 * Calls the listener on the executor instead of the delivering thread,
+	 * must be set before subscribing. The frame is held until the listener
+	 * returns.
+	 * @param executor
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	public CameraDataListener getListener() {
+		return listener;
+	}
+
+	public float getMaxFps() {
+		return maxFps;
+	}
+
+	public int getOutputFormat() {
+		return outputFormat;
+	}
+
+	public FrameRoi getRoi() {
+		return roi;
+	}
+
+	Executor getExecutor() {
+		return executor;
+	}
+
+	FrameTransform createTransform() {
+		return new FrameTransform(roi, outputFormat, upright, mirrorFrontCamera);
+	}
+
+	/**
+	 * Decides if a frame at given time is delivered to this subscriber.
+	 * Small timing jitter is tolerated so that e.g. 15 fps of a 30 fps
+	 * preview is every second frame.
+	 */
+	boolean tryAcquireFrame(long timestampNanos) {
+		if (minIntervalNanos == 0) {
+			return true;
+		}
+		while (true) {
+			long due = nextDueNanos.get();
+			if (due != Long.MIN_VALUE && timestampNanos < due - minIntervalNanos / 4) {
+				skippedCount.incrementAndGet();
+				return false;
+			}
+			// don't try to catch up after a long pause
+			long next = due == Long.MIN_VALUE || timestampNanos - due > minIntervalNanos
+					? timestampNanos + minIntervalNanos : due + minIntervalNanos;
+			if (nextDueNanos.compareAndSet(due, next)) {
+				return true;
+			}
+		}
+	}
+
+	void frameDelivered() {
+		deliveredCount.incrementAndGet();
+	}
+
+	void frameSkipped() {
+		skippedCount.incrementAndGet();
+	}
+
+	public long getDeliveredCount() {
+		return deliveredCount.get();
+	}
+
+	/**
+	 * @return frames not delivered because of the frame rate limit or
+	 * because the subscriber still held all shared buffers
+	 */
+	public long getSkippedCount() {
+		return skippedCount.get();
+	}
+
+}
@@ -0,0 +1,193 @@
+package org.astri.camerahandler;
+
+/**
+ * What is done to a NV21 preview frame before delivery: region of interest,
+ * rotation to upright and RGB conversion, in that order. Transforms that are
+ * equal produce equal output from the same frame, so they can share an
+ * output buffer.
+ */
+final class FrameTransform {
+
+	static final FrameTransform NONE = new FrameTransform(null, YuvConverter.FORMAT_NV21, false, false);
+
+	private final FrameRoi roi;
+	private final int outputFormat;
+	private final boolean upright;
+	private final boolean mirrorFrontCamera;
+
+	/**
+	 * @param roi region of interest, null for the whole frame
+	 * @param outputFormat NV21 or one of the RGB formats of {@link YuvConverter},
+	 * ignored when the region has luma output
+	 * @param upright rotate by the camera orientation
+	 * @param mirrorFrontCamera flip upright front camera frames horizontally
+	 */
+	FrameTransform(FrameRoi roi, int outputFormat, boolean upright, boolean mirrorFrontCamera) {
+		this.roi = roi;
+		this.outputFormat = roi != null && roi.getOutputFormat() == FrameRoi.FORMAT_LUMA
+				? FrameRoi.FORMAT_LUMA : outputFormat;
+		this.upright = upright;
+		this.mirrorFrontCamera = upright && mirrorFrontCamera;
+	}
+
+	FrameRoi getRoi() {
+		return roi;
+	}
+
+	/**
+	 * @return true if the frame is delivered as it is
+	 */
+	boolean isIdentity(FrameDescriptor descriptor) {
+		return descriptor.getFormat() != YuvConverter.FORMAT_NV21
+				|| (roi == null && outputFormat == YuvConverter.FORMAT_NV21
+					&& getRotation(descriptor) == 0 && !isMirrored(descriptor));
+	}
+
+	/**
+	 * @return rough per pixel cost relative to an RGB conversion, 0 when
+	 * frames are delivered as they are
+	 */
+	float getRelativeCost() {
+		float cost = 0;
+		if (outputFormat != YuvConverter.FORMAT_NV21 && outputFormat != FrameRoi.FORMAT_LUMA) {
+			cost += 1;
+		}
+		if (upright) {
+			cost += 0.5f;
+		}
+		if (roi != null) {
+			cost += 0.25f;
+		}
+		return cost;
+	}
+
+	int getRotation(FrameDescriptor descriptor) {
+		return upright ? descriptor.getOrientation() : 0;
+	}
+
+	boolean isMirrored(FrameDescriptor descriptor) {
+		return mirrorFrontCamera && !descriptor.isBackCamera();
+	}
+
+	private int getScaledWidth(FrameDescriptor descriptor) {
+		return roi != null ? roi.getOutputWidth(descriptor.getWidth()) : descriptor.getWidth();
+	}
+
+	private int getScaledHeight(FrameDescriptor descriptor) {
+		return roi != null ? roi.getOutputHeight(descriptor.getHeight()) : descriptor.getHeight();
+	}
+
+	int getOutputWidth(FrameDescriptor descriptor) {
+		if (isIdentity(descriptor)) {
+			return descriptor.getWidth();
+		}
+		return FrameRotator.getRotatedWidth(getScaledWidth(descriptor), getScaledHeight(descriptor),
+				getRotation(descriptor));
+	}
+
+	int getOutputHeight(FrameDescriptor descriptor) {
+		if (isIdentity(descriptor)) {
+			return descriptor.getHeight();
+		}
+		return FrameRotator.getRotatedHeight(getScaledWidth(descriptor), getScaledHeight(descriptor),
+				getRotation(descriptor));
+	}
+
+	int getOutputFormat(FrameDescriptor descriptor) {
+		return isIdentity(descriptor) ? descriptor.getFormat() : outputFormat;
+	}
+
+	int getOutputOrientation(FrameDescriptor descriptor) {
+		return upright && !isIdentity(descriptor) ? 0 : descriptor.getOrientation();
+	}
+
+	/**
+	 * @return output buffer size in bytes
+	 */
+	int getOutputSize(FrameDescriptor descriptor) {
+		int pixels = getScaledWidth(descriptor) * getScaledHeight(descriptor);
+		if (outputFormat == FrameRoi.FORMAT_LUMA) {
+			return pixels;
+		}
+		if (outputFormat == YuvConverter.FORMAT_NV21) {
+			return pixels * 3 / 2;
+		}
+		return YuvConverter.getOutputSize(outputFormat, getScaledWidth(descriptor),
+				getScaledHeight(descriptor));
+	}
+
+	/**
+	 * @return size of the intermediate buffer needed by {@link #apply}, 0 if
+	 * none is needed
+	 */
+	int getScratchSize(FrameDescriptor descriptor) {
+		if (roi == null || !needsSecondPass(descriptor)) {
+			return 0;
+		}
+		return roi.getOutputSize(descriptor.getWidth(), descriptor.getHeight());
+	}
+
+	private boolean needsSecondPass(FrameDescriptor descriptor) {
+		return getRotation(descriptor) != 0 || isMirrored(descriptor)
+				|| (outputFormat != YuvConverter.FORMAT_NV21 && outputFormat != FrameRoi.FORMAT_LUMA);
+	}
+
+	/**
+	 * Transforms a NV21 frame into out. Must not be called for identity
+	 * transforms.
+	 * @param converter converter for RGB output, may be null for NV21 and luma
+	 * @param scratch intermediate buffer of {@link #getScratchSize} bytes
+	 */
+	void apply(byte[] data, FrameDescriptor descriptor, YuvConverter converter, byte[] scratch,
+			byte[] out) {
+		byte[] frame = data;
+		int width = descriptor.getWidth();
+		int height = descriptor.getHeight();
+		boolean secondPass = needsSecondPass(descriptor);
+		if (roi != null) {
+			byte[] target = secondPass ? scratch : out;
+			RoiScaler.scale(frame, width, height, roi, target);
+			frame = target;
+			width = roi.getOutputWidth(width);
+			height = roi.getOutputHeight(height);
+		}
+		if (!secondPass) {
+			return;
+		}
+
+		int rotation = getRotation(descriptor);
+		boolean mirror = isMirrored(descriptor);
+		if (outputFormat == FrameRoi.FORMAT_LUMA) {
+			FrameRotator.rotateLuma(frame, width, height, rotation, mirror, out);
+		} else if (outputFormat == YuvConverter.FORMAT_NV21) {
+			FrameRotator.rotateNv21(frame, width, height, rotation, mirror, out);
+		} else {
+			// rotation, if any, is done in the same pass as conversion
+			converter.convert(frame, width, height, rotation, mirror, outputFormat, out);
+		}
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof FrameTransform)) {
+			return false;
+		}
+		FrameTransform other = (FrameTransform) o;
+		return outputFormat == other.outputFormat && upright == other.upright
+				&& mirrorFrontCamera == other.mirrorFrontCamera
+				&& (roi == null ? other.roi == null : roi.equals(other.roi));
+	}
+
+	@Override
+	public int hashCode() {
+		int result = roi != null ? roi.hashCode() : 0;
+		result = 31 * result + outputFormat;
+		result = 31 * result + (upright ? 1 : 0);
+		result = 31 * result + (mirrorFrontCamera ? 1 : 0);
+		return result;
+	}
+
+}
@@ -0,0 +1,47 @@
+package org.astri.camerahandler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+
+/**
+ * Compresses frames to JPEG with the platform encoder, the default of the
+ * frame history.
+ */
+public class JpegFrameCompressor implements FrameCompressor {
+
+	public static final int DEFAULT_QUALITY = 70;
+
+	private final int quality;
+	private final Rect rect = new Rect();
+
+	public JpegFrameCompressor() {
+		this(DEFAULT_QUALITY);
+	}
+
+	/**
+	 * @param quality 0 to 100
+	 */
+	public JpegFrameCompressor(int quality) {
+		this.quality = quality;
+	}
+
+	@Override
+	public String getFormatName() {
+		return "jpeg";
+	}
+
+	@Override
+	public void compress(byte[] nv21, int width, int height, OutputStream out) throws IOException {
+		rect.right = width;
+		rect.bottom = height;
+		YuvImage image = new YuvImage(nv21, ImageFormat.NV21, width, height, null);
+		if (!image.compressToJpeg(rect, quality, out)) {
+			throw new IOException("JPEG compression failed");
+		}
+	}
+
+}
@@ -0,0 +1,73 @@
+package org.astri.camerahandler;
+
+import java.util.List;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+/**
+ * Camera thread with a looper, Camera1 delivers the callbacks of a camera on
+ * the looper of the thread that opened it.
+ */
+final class LooperCameraThread implements CameraThread {
+
+	static final Factory FACTORY = new Factory() {
+		@Override
+		public CameraThread start() {
+			return new LooperCameraThread();
+		}
+	};
+
+	private final HandlerThread thread;
+	private final Handler handler;
+	private final PendingTasks pending = new PendingTasks();
+
+	private LooperCameraThread() {
+		thread = new HandlerThread("CameraThread", Process.THREAD_PRIORITY_DISPLAY);
+		thread.start();
+		handler = new Handler(thread.getLooper());
+	}
+
+	@Override
+	public boolean post(Runnable task) {
+		Runnable posted = pending.add(task);
+		if (posted == null) {
+			return false;
+		}
+		// refused only once quitting, which handed the task back
+		handler.post(posted);
+		return true;
+	}
+
+	@Override
+	public void postDelayed(Runnable task, long delayMillis) {
+		handler.postDelayed(task, delayMillis);
+	}
+
+	@Override
+	public void removeCallbacks(Runnable task) {
+		handler.removeCallbacks(task);
+	}
+
+	@Override
+	public boolean isCurrentThread() {
+		return Looper.myLooper() == handler.getLooper();
+	}
+
+	@Override
+	public List<Runnable> quit() {
+		List<Runnable> dropped = pending.quit();
+		thread.quit();
+		if (!isCurrentThread()) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return dropped;
+	}
+
+}
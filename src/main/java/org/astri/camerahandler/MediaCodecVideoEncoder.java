@@ -0,0 +1,251 @@
+package org.astri.camerahandler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * H.264 encoder writing MP4 files, the default {@link VideoEncoder}.
+ * <p>
+ * Preview buffers are copied straight into the codec's input buffers, the
+ * only copy of a frame, reordering the chroma on the way when the codec
+ * takes NV12 or I420 rather than NV21. Encoded output is drained after every
+ * input and written to a MediaMuxer.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+final class MediaCodecVideoEncoder implements VideoEncoder {
+
+	private static final String TAG = "MediaCodecVideoEncoder";
+
+	private static final String MIME_TYPE = "video/avc";
+	/** Bits per pixel and frame, about 5.5 Mbit/s for 720p at 30 fps */
+	private static final float BITS_PER_PIXEL = 0.2f;
+	private static final int KEY_FRAME_INTERVAL_SECONDS = 1;
+	/** Longest wait for a free input buffer before the frame is dropped */
+	private static final long INPUT_TIMEOUT_MICROS = 5000;
+	private static final long DRAIN_TIMEOUT_MICROS = 10000;
+	/** Drain attempts at the end of the stream, about a second */
+	private static final int MAX_DRAIN_TRIES = 100;
+
+	private final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+
+	private MediaCodec codec;
+	private MediaMuxer muxer;
+	private int trackIndex = -1;
+	private boolean muxerStarted;
+	private int width;
+	private int height;
+	private boolean semiPlanar;
+
+	@Override
+	public void start(File output, int width, int height, int frameRate, int orientation)
+			throws IOException {
+		MediaCodecInfo info = findEncoder();
+		if (info == null) {
+			throw new IOException("No " + MIME_TYPE + " encoder for NV12 or I420 input");
+		}
+		this.width = width;
+		this.height = height;
+		MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
+		format.setInteger(MediaFormat.KEY_COLOR_FORMAT, semiPlanar
+				? MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar
+				: MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar);
+		format.setInteger(MediaFormat.KEY_BIT_RATE, (int) (width * height * frameRate * BITS_PER_PIXEL));
+		format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+		format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, KEY_FRAME_INTERVAL_SECONDS);
+		try {
+			codec = MediaCodec.createByCodecName(info.getName());
+			codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+			codec.start();
+			muxer = new MediaMuxer(output.getPath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+			muxer.setOrientationHint(orientation);
+		} catch (IOException e) {
+			release();
+			throw e;
+		} catch (RuntimeException e) {
+			release();
+			throw new IOException("Error starting encoder " + info.getName(), e);
+		}
+		Log.d(TAG, "Encoding " + width + "x" + height + " with " + info.getName()
+				+ (semiPlanar ? " NV12" : " I420"));
+	}
+
+	/**
+	 * @return first encoder taking NV12, else the first taking I420, null
+	 * if none
+	 */
+	@SuppressWarnings("deprecation")
+	private MediaCodecInfo findEncoder() {
+		MediaCodecInfo planar = null;
+		for (int i = 0; i < MediaCodecList.getCodecCount(); i++) {
+			MediaCodecInfo info = MediaCodecList.getCodecInfoAt(i);
+			if (!info.isEncoder() || !supportsType(info)) {
+				continue;
+			}
+			for (int colorFormat : info.getCapabilitiesForType(MIME_TYPE).colorFormats) {
+				if (colorFormat == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar) {
+					semiPlanar = true;
+					return info;
+				}
+				if (colorFormat == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar
+						&& planar == null) {
+					planar = info;
+				}
+			}
+		}
+		semiPlanar = false;
+		return planar;
+	}
+
+	private static boolean supportsType(MediaCodecInfo info) {
+		for (String type : info.getSupportedTypes()) {
+			if (type.equalsIgnoreCase(MIME_TYPE)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public boolean encodeFrame(byte[] nv21, long presentationNanos) {
+		try {
+			int index = codec.dequeueInputBuffer(INPUT_TIMEOUT_MICROS);
+			if (index < 0) {
+				drain(false);
+				return false;
+			}
+			ByteBuffer input = inputBuffer(index);
+			input.clear();
+			int size = writeFrame(nv21, input);
+			codec.queueInputBuffer(index, 0, size, presentationNanos / 1000, 0);
+			drain(false);
+			return true;
+		} catch (IllegalStateException e) {
+			Log.e(TAG, "Error encoding frame", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Copies an NV21 frame into the codec's input in its color format.
+	 * @return bytes written
+	 */
+	private int writeFrame(byte[] nv21, ByteBuffer input) {
+		int lumaSize = width * height;
+		int frameSize = lumaSize + lumaSize / 2;
+		input.put(nv21, 0, lumaSize);
+		if (semiPlanar) {
+			// NV12 has U before V in each pair
+			for (int i = lumaSize; i < frameSize; i += 2) {
+				input.put(nv21[i + 1]);
+				input.put(nv21[i]);
+			}
+		} else {
+			int chromaSize = lumaSize / 4;
+			for (int i = 0; i < chromaSize; i++) {
+				input.put(lumaSize + i, nv21[lumaSize + 2 * i + 1]);
+				input.put(lumaSize + chromaSize + i, nv21[lumaSize + 2 * i]);
+			}
+		}
+		return frameSize;
+	}
+
+	/**
+	 * Writes the encoded output to the muxer.
+	 * @param endOfStream wait for the end of stream buffer
+	 */
+	private void drain(boolean endOfStream) {
+		int tries = 0;
+		while (true) {
+			int index = codec.dequeueOutputBuffer(bufferInfo, endOfStream ? DRAIN_TIMEOUT_MICROS : 0);
+			if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+				if (!endOfStream || ++tries >= MAX_DRAIN_TRIES) {
+					return;
+				}
+			} else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+				trackIndex = muxer.addTrack(codec.getOutputFormat());
+				muxer.start();
+				muxerStarted = true;
+			} else if (index >= 0) {
+				ByteBuffer output = outputBuffer(index);
+				if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+					// codec specific data was given to the muxer with the format
+					bufferInfo.size = 0;
+				}
+				if (bufferInfo.size > 0 && muxerStarted) {
+					output.position(bufferInfo.offset);
+					output.limit(bufferInfo.offset + bufferInfo.size);
+					muxer.writeSampleData(trackIndex, output, bufferInfo);
+				}
+				codec.releaseOutputBuffer(index, false);
+				if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+					return;
+				}
+			}
+		}
+	}
+
+	@SuppressWarnings("deprecation")
+	private ByteBuffer inputBuffer(int index) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+			return codec.getInputBuffer(index);
+		}
+		return codec.getInputBuffers()[index];
+	}
+
+	@SuppressWarnings("deprecation")
+	private ByteBuffer outputBuffer(int index) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+			return codec.getOutputBuffer(index);
+		}
+		return codec.getOutputBuffers()[index];
+	}
+
+	@Override
+	public void stop() throws IOException {
+		try {
+			int index = codec.dequeueInputBuffer(DRAIN_TIMEOUT_MICROS * MAX_DRAIN_TRIES);
+			if (index >= 0) {
+				codec.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+				drain(true);
+			}
+			if (muxerStarted) {
+				muxer.stop();
+			} else {
+				throw new IOException("No frames encoded");
+			}
+		} catch (IllegalStateException e) {
+			throw new IOException("Error finishing video", e);
+		} finally {
+			release();
+		}
+	}
+
+	private void release() {
+		if (codec != null) {
+			try {
+				codec.stop();
+			} catch (IllegalStateException e) {
+				// not started
+			}
+			codec.release();
+			codec = null;
+		}
+		if (muxer != null) {
+			muxer.release();
+			muxer = null;
+		}
+		trackIndex = -1;
+		muxerStarted = false;
+	}
+
+}
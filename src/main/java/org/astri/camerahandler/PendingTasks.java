@@ -0,0 +1,63 @@
+package org.astri.camerahandler;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tasks posted to a {@link CameraThread} that have not started yet, so that
+ * quitting can hand back the tasks that will never run.
+ */
+final class PendingTasks {
+
+	private final Set<Task> tasks = new LinkedHashSet<Task>();
+	private boolean quit;
+
+	/**
+	 * @return the task wrapped to be posted, runs it only if it is still
+	 * pending then. Null after {@link #quit()}.
+	 */
+	synchronized Runnable add(Runnable task) {
+		if (quit) {
+			return null;
+		}
+		Task pending = new Task(task);
+		tasks.add(pending);
+		return pending;
+	}
+
+	/**
+	 * Refuses further tasks.
+	 * @return tasks that didn't start, in posting order, they won't run
+	 */
+	synchronized List<Runnable> quit() {
+		quit = true;
+		List<Runnable> dropped = new ArrayList<Runnable>(tasks.size());
+		for (Task pending : tasks) {
+			dropped.add(pending.task);
+		}
+		tasks.clear();
+		return dropped;
+	}
+
+	private synchronized boolean start(Task pending) {
+		return tasks.remove(pending);
+	}
+
+	private final class Task implements Runnable {
+		final Runnable task;
+
+		Task(Runnable task) {
+			this.task = task;
+		}
+
+		@Override
+		public void run() {
+			if (start(this)) {
+				task.run();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,13 @@
+package org.astri.camerahandler;
+
+import java.nio.ByteBuffer;
+
+public interface PhotoBufferListener {
+
+	/**
+	 * Called instead of {@link PhotoListener#photoCaptured} when the photo
+	 * is decoded to a direct buffer. The buffer is reused for the next photo.
+	 */
+	public void photoBufferCaptured(ByteBuffer buffer, int width, int height, float screenAspectRatio);
+	
+}
@@ -0,0 +1,190 @@
+package org.astri.camerahandler;
+
+import java.nio.ByteBuffer;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Decodes captured JPEG photos to RGB565 with as few allocations as
+ * possible.
+ * <p>
+ * The decoded Bitmap is reused for the next decode through inBitmap, photos
+ * can be subsampled to a target size with inSampleSize and the pixels can be
+ * copied to a reused direct ByteBuffer. The JPEG can also be passed through
+ * without decoding. Not thread safe, decodes must not overlap.
+ */
+public class PhotoDecoder {
+
+	private static final String TAG = "PhotoDecoder";
+
+	/** RGB565 pixels in a new heap array for each photo, the default */
+	public static final int OUTPUT_RGB565 = 0;
+	/** RGB565 pixels in a direct buffer that is reused for the next photo */
+	public static final int OUTPUT_RGB565_DIRECT = 1;
+	/** JPEG data as received from the camera, no decoding */
+	public static final int OUTPUT_JPEG = 2;
+
+	private final int output;
+	private final int targetWidth;
+	private final int targetHeight;
+
+	private final BitmapFactory.Options options = new BitmapFactory.Options();
+	private Bitmap reusableBitmap;
+	private ByteBuffer directBuffer;
+
+	private int decodedWidth;
+	private int decodedHeight;
+
+	/**
+	 * @param output one of the OUTPUT constants
+	 * @param targetWidth photos are subsampled by powers of two as long as
+	 * they stay at least this wide, 0 for full size
+	 * @param targetHeight photos are subsampled as long as they stay at least
+	 * this high, 0 for full size
+	 */
+	public PhotoDecoder(int output, int targetWidth, int targetHeight) {
+		if (output != OUTPUT_RGB565 && output != OUTPUT_RGB565_DIRECT && output != OUTPUT_JPEG) {
+			throw new IllegalArgumentException("Unknown photo output: " + output);
+		}
+		this.output = output;
+		this.targetWidth = targetWidth;
+		this.targetHeight = targetHeight;
+		options.inPreferredConfig = Bitmap.Config.RGB_565;
+		options.inMutable = true;
+		options.inTempStorage = new byte[16 * 1024];
+	}
+
+	public int getOutput() {
+		return output;
+	}
+
+	/**
+	 * @return subsampling applied to a photo of the given size, 1 for full
+	 * size
+	 */
+	public int getSampleSize(int width, int height) {
+		return output == OUTPUT_JPEG ? 1 : calculateSampleSize(width, height, targetWidth, targetHeight);
+	}
+
+	/**
+	 * Largest power of two that keeps the photo at least the target size.
+	 */
+	static int calculateSampleSize(int width, int height, int targetWidth, int targetHeight) {
+		int sampleSize = 1;
+		if (targetWidth <= 0 || targetHeight <= 0) {
+			return sampleSize;
+		}
+		while (width / (sampleSize * 2) >= targetWidth && height / (sampleSize * 2) >= targetHeight) {
+			sampleSize *= 2;
+		}
+		return sampleSize;
+	}
+
+	/**
+	 * Decodes a JPEG photo.
+	 * @param jpeg photo data
+	 * @param width photo width set to the camera
+	 * @param height photo height set to the camera
+	 * @return RGB565 pixels, in a direct buffer with OUTPUT_RGB565_DIRECT,
+	 * or the JPEG data with OUTPUT_JPEG. Null if decoding fails.
+	 */
+	public ByteBuffer decode(byte[] jpeg, int width, int height) {
+		if (output == OUTPUT_JPEG) {
+			decodedWidth = width;
+			decodedHeight = height;
+			return ByteBuffer.wrap(jpeg);
+		}
+
+		int sampleSize = calculateSampleSize(width, height, targetWidth, targetHeight);
+		options.inSampleSize = sampleSize;
+		options.inBitmap = canReuse(width / sampleSize, height / sampleSize, sampleSize)
+				? reusableBitmap : null;
+
+		Bitmap imageBitmap;
+		try {
+			imageBitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+		} catch (IllegalArgumentException e) {
+			// reuse refused by the decoder, decode to a new bitmap
+			Log.w(TAG, "Bitmap reuse failed: " + e.getLocalizedMessage());
+			options.inBitmap = null;
+			imageBitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+		}
+		if (imageBitmap == null) {
+			Log.e(TAG, "Failed to decode photo of " + jpeg.length + " bytes");
+			return null;
+		}
+		if (reusableBitmap != null && reusableBitmap != imageBitmap) {
+			reusableBitmap.recycle();
+		}
+		reusableBitmap = imageBitmap;
+		decodedWidth = imageBitmap.getWidth();
+		decodedHeight = imageBitmap.getHeight();
+
+		int bytes = imageBitmap.getRowBytes() * imageBitmap.getHeight();
+		Log.d(TAG, "data length: " + jpeg.length + " bytes: " + bytes
+				+ " sample size: " + sampleSize + " imgh: " + decodedHeight);
+
+		ByteBuffer buffer;
+		if (output == OUTPUT_RGB565_DIRECT) {
+			if (directBuffer == null || directBuffer.capacity() < bytes) {
+				directBuffer = ByteBuffer.allocateDirect(bytes);
+			}
+			buffer = directBuffer;
+			buffer.clear();
+			buffer.limit(bytes);
+		} else {
+			// heap array is handed over to the listener, so a new one each time
+			buffer = ByteBuffer.allocate(bytes);
+		}
+		imageBitmap.copyPixelsToBuffer(buffer);
+		buffer.rewind();
+		return buffer;
+	}
+
+	private boolean canReuse(int width, int height, int sampleSize) {
+		if (reusableBitmap == null || reusableBitmap.isRecycled()) {
+			return false;
+		}
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+			return fitsAllocation(width, height);
+		}
+		// before KitKat only same size bitmaps without subsampling can be reused
+		return sampleSize == 1 && reusableBitmap.getWidth() == width
+				&& reusableBitmap.getHeight() == height;
+	}
+
+	@TargetApi(Build.VERSION_CODES.KITKAT)
+	private boolean fitsAllocation(int width, int height) {
+		return reusableBitmap.getAllocationByteCount() >= width * height * 2;
+	}
+
+	/**
+	 * @return width of the last decoded photo
+	 */
+	public int getDecodedWidth() {
+		return decodedWidth;
+	}
+
+	/**
+	 * @return height of the last decoded photo
+	 */
+	public int getDecodedHeight() {
+		return decodedHeight;
+	}
+
+	/**
+	 * Frees the reused bitmap and buffer.
+	 */
+	public void release() {
+		if (reusableBitmap != null) {
+			reusableBitmap.recycle();
+			reusableBitmap = null;
+		}
+		directBuffer = null;
+	}
+
+}
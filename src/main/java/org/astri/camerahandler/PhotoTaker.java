@@ -5,13 +5,12 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.hardware.Camera;
-import android.hardware.Camera.Size;
 import android.os.Environment;
 import android.util.Log;
 
@@ -28,15 +27,50 @@ public class PhotoTaker {
 	
 	private static final String TAG = "PhotoTaker";
 	
+	/**
+	 * Notified on the camera thread when a capture has finished and preview
+	 * is running again, before the photo is decoded.
+	 */
+	interface CaptureListener {
+		void captureFinished(PhotoTaker taker, boolean success);
+	}
+	
 	private float aspectRatio;
 	private float aspectRatioThreshold;
 	private int maxPixels;
 	
-	private boolean takingPhoto = false;
+	/** Set by the thread that starts a capture, cleared by the camera callbacks */
+	private final AtomicBoolean takingPhoto = new AtomicBoolean();
 	private int photoWidth;
 	private int photoHeight;
 	
 	private PhotoListener photoListener;
+	private PhotoDecoder photoDecoder = new PhotoDecoder(PhotoDecoder.OUTPUT_RGB565, 0, 0);
+	
+	/**
+	 * Decodes and delivers photos off the camera thread when set. Must run
+	 * tasks one at a time in order, the decoder is not thread safe.
+	 */
+	private Executor decodeExecutor;
+	
+	/**
+	 * Incremented to cancel captures in flight, a photo is delivered only if
+	 * no cancel happened after it was requested.
+	 */
+	private final AtomicInteger captureGeneration = new AtomicInteger();
+	private volatile int requestGeneration;
+	
+	private CaptureListener captureListener;
+	private CameraMetrics metrics;
+	
+	/** Camera of the capture in progress, preview is restarted on it */
+	private CameraDevice captureDevice;
+	
+	/** When the capture in progress was requested, for metrics */
+	private long requestNanos;
+	/** takePicture and shutter of the capture in progress, 0 if not reported */
+	private long pictureNanos;
+	private long shutterNanos;
 	
 	PhotoTaker(PhotoListener photoListener, float aspectRatio, float aspectRatioThreshold, int maxPixels){
 		this.photoListener = photoListener;
@@ -49,18 +83,116 @@ public class PhotoTaker {
 		aspectRatio = newRatio;
 	}
 	
+	float getAspectRatio(){
+		return aspectRatio;
+	}
+	
+	float getAspectRatioThreshold(){
+		return aspectRatioThreshold;
+	}
+	
+	int getMaxPixels(){
+		return maxPixels;
+	}
+	
+	/**
+	 * Sets how captured JPEG photos are decoded before delivery.
+	 * @param decoder
+	 */
+	public void setDecoder(PhotoDecoder decoder){
+		if(decoder != photoDecoder){
+			final PhotoDecoder oldDecoder = photoDecoder;
+			photoDecoder = decoder;
+			Executor executor = decodeExecutor;
+			if(executor != null){
+				// old decoder may still have photos waiting
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						oldDecoder.release();
+					}
+				});
+			} else {
+				oldDecoder.release();
+			}
+		}
+	}
+	
+	public PhotoDecoder getDecoder(){
+		return photoDecoder;
+	}
+	
+	/**
+	 * Sets the executor that decodes and delivers photos, so that preview
+	 * is restarted without waiting for the decode. It must run tasks one at
+	 * a time in submission order, e.g. a single thread executor shared by
+	 * takers whose photos should be delivered in capture order.
+	 * @param executor null to decode on the camera thread
+	 */
+	public void setDecodeExecutor(Executor executor){
+		this.decodeExecutor = executor;
+	}
+	
+	/**
+	 * Drops photos that are requested but not yet delivered.
+	 */
+	public void cancelPendingCaptures(){
+		captureGeneration.incrementAndGet();
+		Log.d(TAG, "pending captures cancelled");
+	}
+	
+	void setCaptureListener(CaptureListener listener){
+		this.captureListener = listener;
+	}
+	
+	void setMetrics(CameraMetrics metrics){
+		this.metrics = metrics;
+	}
+	
+	/**
+	 * Takes photo without setting the picture size, used when the picture
+	 * size is already applied to the camera.
+	 * @param camera
+	 * @param requestNanos System.nanoTime() when the photo was requested
+	 * @return if photo taking was initiated
+	 */
+	boolean takePhotoWithCurrentSize(CameraDevice camera, long requestNanos){
+		
+		if(camera != null && takingPhoto.compareAndSet(false, true)){
+			this.requestNanos = requestNanos;
+			requestGeneration = captureGeneration.get();
+			captureDevice = camera;
+			takeJpegPicture();
+			return true;
+		} else {
+			Log.e(TAG, "Can not take a photo now!");
+			return false;
+		}
+	}
+	
 	/**
 	 * Takes photo directly without trying to focus camera
 	 * @param camera
 	 * @return
 	 */
 	public boolean takePhoto(Camera camera){
+		return takePhoto(camera != null ? new Camera1Device(camera) : null);
+	}
+	
+	/**
+	 * Takes photo directly without trying to focus camera
+	 * @param camera
+	 * @return if photo taking was initiated
+	 */
+	public boolean takePhoto(CameraDevice camera){
 		
-		if(camera != null && !takingPhoto){
+		if(camera != null && takingPhoto.compareAndSet(false, true)){
 			
-			setPictureSize(camera);
-			takingPhoto = true;
-			takeJpegPicture(camera);
+			requestNanos = System.nanoTime();
+			setPictureSizeForCapture(camera);
+			requestGeneration = captureGeneration.get();
+			captureDevice = camera;
+			takeJpegPicture();
 			
 			Log.d(TAG, "photo taking called");
 			return true;
@@ -78,10 +210,22 @@ public class PhotoTaker {
 	 * @return if photo taking was initiated
 	 */
 	public boolean focusAndTakePhoto(Camera camera) {
-		if(camera != null && !takingPhoto){
+		return focusAndTakePhoto(camera != null ? new Camera1Device(camera) : null);
+	}
+	
+	/**
+	 *  First tries to focus camera and then take the
+	 *  photo when camera is focused.
+	 * @param camera
+	 * @return if photo taking was initiated
+	 */
+	public boolean focusAndTakePhoto(CameraDevice camera) {
+		if(camera != null && takingPhoto.compareAndSet(false, true)){
 			
-			setPictureSize(camera);
-			takingPhoto = true;
+			requestNanos = System.nanoTime();
+			setPictureSizeForCapture(camera);
+			requestGeneration = captureGeneration.get();
+			captureDevice = camera;
 			camera.autoFocus(focusCallback);
 			
 			Log.d(TAG, "photo taking called, focus in progress");
@@ -92,41 +236,56 @@ public class PhotoTaker {
 		}
 	}
 	
+	private void setPictureSizeForCapture(CameraDevice camera){
+		try {
+			setPictureSize(camera);
+		} catch(RuntimeException e) {
+			takingPhoto.set(false);
+			throw e;
+		}
+	}
+	
 	public void setPictureSize(Camera camera){
+		setPictureSize(new Camera1Device(camera));
+	}
+	
+	public void setPictureSize(CameraDevice camera){
 		
-		Camera.Parameters parameters = camera.getParameters();
+		choosePictureSize(camera.getCapabilities().getPictureSizes());
 		
-		List<Size> pictureSizes = parameters.getSupportedPictureSizes();
-		Collections.sort(pictureSizes, new SizeComparator());
-		Size bestSize = null;
-
-		Log.d(TAG, "Supported picture sizes:");
-		for (Size s : pictureSizes) {
-			Log.d(TAG, "picture size w: " + s.width + ", h:" + s.height);
-			if(s.width * s.height > maxPixels){
-				continue; // too big size
-			}
-			float currentAspectRatio = (float)s.width / (float)s.height;
-			float difference = Math.abs(aspectRatio - currentAspectRatio);
-			if(difference < aspectRatioThreshold){
-				bestSize = s;
-				break;
-			}
-		}
+		CameraSettings settings = new CameraSettings();
+		settings.setPictureSize(photoWidth, photoHeight);
+		camera.applySettings(settings);
+	}
+	
+	/**
+	 * Chooses the picture size from supported sizes without applying it to
+	 * the camera, the result is available from getPhotoWidth/Height.
+	 * @param pictureSizes supported picture sizes
+	 */
+	void choosePictureSize(List<CameraSize> pictureSizes){
+		choosePictureSize(pictureSizes, null);
+	}
+	
+	/**
+	 * Chooses the largest picture size of the aspect ratio within the pixel
+	 * limit, or the closest supported one if none is, see {@link SizeNegotiator}.
+	 * @param pictureSizes supported picture sizes
+	 * @param previewSize preview of the camera, a picture of the same aspect
+	 * ratio is preferred, null if not known
+	 */
+	void choosePictureSize(List<CameraSize> pictureSizes, CameraSize previewSize){
 		
+		CameraSize bestSize = SizeNegotiator.choosePictureSize(pictureSizes, aspectRatio,
+				aspectRatioThreshold, maxPixels, previewSize);
 		if(bestSize == null){
-			// just try 640 x 480
-			photoWidth = 640;
-			photoHeight = 480;
-		} else {
-			photoWidth = bestSize.width;
-			photoHeight = bestSize.height;
+			Log.e(TAG, "No supported picture sizes, keeping " + photoWidth + "x" + photoHeight);
+			return;
 		}
+		photoWidth = bestSize.getWidth();
+		photoHeight = bestSize.getHeight();
 		
 		Log.d(TAG, "set picture size w: " + photoWidth + " h: " + photoHeight);
-		
-		parameters.setPictureSize(photoWidth, photoHeight);
-		camera.setParameters(parameters);
 	}
 	
 	public int getPhotoWidth(){
@@ -137,13 +296,18 @@ public class PhotoTaker {
 		return photoHeight;
 	}
 	
-	private void takeJpegPicture(Camera camera) {
-		if(takingPhoto){
+	private void takeJpegPicture() {
+		if(takingPhoto.get()){
 			try {
-				camera.takePicture(null, null, jpegCallback);
+				pictureNanos = System.nanoTime();
+				shutterNanos = 0;
+				captureDevice.takePicture(jpegCallback);
 			} catch(Exception e) {
 				Log.e(TAG, "Error taking photo", e);
-				takingPhoto = false;
+				takingPhoto.set(false);
+				if(captureListener != null){
+					captureListener.captureFinished(this, false);
+				}
 			}
 			//takingPhoto = false;
 		}
@@ -152,11 +316,11 @@ public class PhotoTaker {
 		}
 	}
 	
-	private Camera.AutoFocusCallback focusCallback = new Camera.AutoFocusCallback() {
+	private CameraDevice.FocusCallback focusCallback = new CameraDevice.FocusCallback() {
 		@Override
-		public void onAutoFocus(boolean success, Camera camera) {
+		public void onFocused(boolean success) {
 			Log.d(TAG, "camera focused: " + success);
-			takeJpegPicture(camera);
+			takeJpegPicture();
 		}
 	};
 	
@@ -170,15 +334,22 @@ public class PhotoTaker {
 		}
 	};
 	
-	private Camera.PictureCallback jpegCallback = new Camera.PictureCallback() {
+	private CameraDevice.PictureCallback jpegCallback = new CameraDevice.PictureCallback() {
 		@Override
-		public void onPictureTaken(byte[] data, Camera camera) {
+		public void onShutter() {
+			shutterNanos = System.nanoTime();
+		}
+		
+		@Override
+		public void onPictureTaken(byte[] data) {
+			if(metrics != null && shutterNanos != 0){
+				metrics.shutterReported(shutterNanos - pictureNanos, System.nanoTime() - shutterNanos);
+			}
 			
 			//saveJpeg(data);
 			
-			// decode jpeg to byte array and convert to RGB565
-			ByteBuffer buffer = decodeJpegToRGB565(data);
-			
+			// restart preview first, decoding can take hundreds of ms
+			CameraDevice camera = captureDevice;
 			camera.startPreview();
 			camera.cancelAutoFocus();
 			Log.d(TAG, "Picture taken, restarting preview. w: " + photoWidth + " h:" + photoHeight);
@@ -186,26 +357,89 @@ public class PhotoTaker {
 			//previewHolder.addCallback(surfaceCallback);
 			//camera.setPreviewDisplay(previewHolder);
 			
-			photoListener.photoCaptured(buffer.array(), photoWidth, photoHeight, aspectRatio);
-			takingPhoto = false;
+			takingPhoto.set(false);
+			if(captureListener != null){
+				captureListener.captureFinished(PhotoTaker.this, true);
+			}
+			
+			DecodeTask task = new DecodeTask(data, photoDecoder, photoWidth, photoHeight,
+					aspectRatio, requestGeneration, requestNanos);
+			Executor executor = decodeExecutor;
+			if(executor != null){
+				executor.execute(task);
+			} else {
+				task.run();
+			}
 		}
 	};
 	
-	private ByteBuffer decodeJpegToRGB565(byte[] data){
+	/**
+	 * Decodes a captured photo and delivers it unless captures were
+	 * cancelled after it was requested.
+	 */
+	private class DecodeTask implements Runnable {
 		
-		// decode jpeg to byte array and convert to RGB565
-		BitmapFactory.Options options = new BitmapFactory.Options();
-		options.inPreferredConfig = Bitmap.Config.RGB_565;
-		Bitmap imageBitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
-		int bytes = imageBitmap.getRowBytes() * imageBitmap.getHeight();
+		private final byte[] jpeg;
+		private final PhotoDecoder decoder;
+		private final int width;
+		private final int height;
+		private final float screenAspectRatio;
+		private final int generation;
+		private final long requestNanos;
+		private final long jpegNanos = System.nanoTime();
 		
-		Log.d(TAG, "data length: " + data.length + " bytes: " + 
-				bytes + " imgh: " + imageBitmap.getHeight());
+		DecodeTask(byte[] jpeg, PhotoDecoder decoder, int width, int height,
+				float screenAspectRatio, int generation, long requestNanos){
+			this.jpeg = jpeg;
+			this.decoder = decoder;
+			this.width = width;
+			this.height = height;
+			this.screenAspectRatio = screenAspectRatio;
+			this.generation = generation;
+			this.requestNanos = requestNanos;
+		}
 		
-		ByteBuffer buffer = ByteBuffer.allocate(bytes);
-		imageBitmap.copyPixelsToBuffer(buffer);
+		@Override
+		public void run(){
+			if(generation != captureGeneration.get()){
+				Log.d(TAG, "Capture cancelled, photo dropped");
+				return;
+			}
+			// decode jpeg, to RGB565 unless raw jpeg output is selected
+			ByteBuffer buffer = decoder.decode(jpeg, width, height);
+			if(buffer != null && generation == captureGeneration.get()){
+				if(metrics != null && decoder.getOutput() == PhotoDecoder.OUTPUT_RGB565){
+					metrics.allocated(buffer.capacity());
+				}
+				deliverPhoto(buffer, decoder, screenAspectRatio);
+				if(metrics != null){
+					long now = System.nanoTime();
+					metrics.photoDelivered(now - jpegNanos, now - requestNanos);
+				}
+			}
+		}
+	}
+	
+	private void deliverPhoto(ByteBuffer buffer, PhotoDecoder decoder, float screenAspectRatio){
 		
-		return buffer;
+		int width = decoder.getDecodedWidth();
+		int height = decoder.getDecodedHeight();
+		if(buffer.hasArray()){
+			photoListener.photoCaptured(buffer.array(), width, height, screenAspectRatio);
+		}
+		else if(photoListener instanceof PhotoBufferListener){
+			((PhotoBufferListener) photoListener).photoBufferCaptured(buffer, width, height,
+					screenAspectRatio);
+		}
+		else {
+			// listener can't take direct buffers
+			byte[] data = new byte[buffer.remaining()];
+			if(metrics != null){
+				metrics.allocated(data.length);
+			}
+			buffer.get(data);
+			photoListener.photoCaptured(data, width, height, screenAspectRatio);
+		}
 	}
 	
 	
@@ -0,0 +1,200 @@
+package org.astri.camerahandler;
+
+/**
+ * Fixed pool of preview buffers shared with the camera driver.
+ * <p>
+ * All buffers are queued to the driver when the pool is started. A buffer
+ * delivered by the driver is in flight until every holder has released it,
+ * only then it is queued back to the driver. This way a slow consumer never
+ * reads a buffer that the driver is already writing the next frame into.
+ * <p>
+ * The pool doesn't depend on the camera API, buffers are handed back through
+ * a {@link BufferSink} so the pool can also be driven by a simulated driver.
+ */
+public class PreviewBufferPool {
+
+	public static final int DEFAULT_BUFFER_COUNT = 4;
+
+	/**
+	 * Receiver of buffers that are given back to the driver, normally
+	 * Camera.addCallbackBuffer.
+	 */
+	public interface BufferSink {
+		void queueBuffer(byte[] buffer);
+	}
+
+	private final byte[][] buffers;
+	private final int[] refCounts;
+	private final int bufferSize;
+	private final BufferSink sink;
+
+	private int queuedCount;
+	private int inFlightCount;
+	private long deliveredCount;
+	private long droppedCount;
+	private boolean closed;
+
+	public PreviewBufferPool(int bufferCount, int bufferSize, BufferSink sink) {
+		this(allocateBuffers(bufferCount, bufferSize), sink);
+	}
+
+	/**
+	 * Pool of buffers allocated in advance, e.g. while the camera opens.
+	 * @param buffers buffers of equal size, see {@link #allocateBuffers(int, int)}
+	 */
+	public PreviewBufferPool(byte[][] buffers, BufferSink sink) {
+		if (buffers.length < 1) {
+			throw new IllegalArgumentException("At least one buffer required: " + buffers.length);
+		}
+		this.buffers = buffers;
+		this.refCounts = new int[buffers.length];
+		this.bufferSize = buffers[0].length;
+		this.sink = sink;
+	}
+
+	public static byte[][] allocateBuffers(int bufferCount, int bufferSize) {
+		if (bufferCount < 1) {
+			throw new IllegalArgumentException("At least one buffer required: " + bufferCount);
+		}
+		byte[][] buffers = new byte[bufferCount][];
+		for (int i = 0; i < bufferCount; i++) {
+			buffers[i] = new byte[bufferSize];
+		}
+		return buffers;
+	}
+
+	/**
+	 * Queues every buffer to the driver.
+	 */
+	public synchronized void start() {
+		closed = false;
+		for (int i = 0; i < buffers.length; i++) {
+			if (refCounts[i] == 0) {
+				sink.queueBuffer(buffers[i]);
+			}
+		}
+		queuedCount = buffers.length - inFlightCount;
+	}
+
+	/**
+	 * Marks a buffer delivered by the driver as in flight, owned by the
+	 * caller until {@link #release(byte[])} is called.
+	 * @param buffer
+	 * @return false if the pool is closed or the buffer doesn't belong to it
+	 */
+	public synchronized boolean acquire(byte[] buffer) {
+		if (closed) {
+			// a frame still delivered after the camera was released
+			return false;
+		}
+		int slot = indexOf(buffer);
+		if (slot < 0 || refCounts[slot] != 0) {
+			return false;
+		}
+		refCounts[slot] = 1;
+		inFlightCount++;
+		queuedCount--;
+		deliveredCount++;
+		if (queuedCount == 0) {
+			// driver has no buffer left for the next frame
+			droppedCount++;
+		}
+		return true;
+	}
+
+	/**
+	 * Adds a holder to an in flight buffer.
+	 * @param buffer
+	 * @return false if the buffer is not in flight
+	 */
+	public synchronized boolean retain(byte[] buffer) {
+		int slot = indexOf(buffer);
+		if (slot < 0 || refCounts[slot] == 0) {
+			return false;
+		}
+		refCounts[slot]++;
+		return true;
+	}
+
+	/**
+	 * Releases one holder of the buffer. The buffer is queued back to the
+	 * driver when the last holder releases it.
+	 * @param buffer
+	 * @return false if the buffer was not in flight
+	 */
+	public synchronized boolean release(byte[] buffer) {
+		int slot = indexOf(buffer);
+		if (slot < 0 || refCounts[slot] == 0) {
+			return false;
+		}
+		if (--refCounts[slot] == 0) {
+			inFlightCount--;
+			if (!closed) {
+				queuedCount++;
+				sink.queueBuffer(buffer);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Stops giving buffers back to the driver, used when the camera is
+	 * released. Buffers still in flight can be released safely afterwards.
+	 */
+	public synchronized void close() {
+		closed = true;
+		queuedCount = 0;
+	}
+
+	/**
+	 * @return index of the buffer in the pool, -1 if it doesn't belong to
+	 * the pool. Lets callers keep per buffer data in arrays.
+	 */
+	int slotOf(byte[] buffer) {
+		return indexOf(buffer);
+	}
+
+	private int indexOf(byte[] buffer) {
+		for (int i = 0; i < buffers.length; i++) {
+			if (buffers[i] == buffer) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	public int getBufferCount() {
+		return buffers.length;
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * @return number of buffers currently queued to the driver
+	 */
+	public synchronized int getFreeCount() {
+		return queuedCount;
+	}
+
+	/**
+	 * @return number of buffers currently held by consumers
+	 */
+	public synchronized int getInFlightCount() {
+		return inFlightCount;
+	}
+
+	public synchronized long getDeliveredCount() {
+		return deliveredCount;
+	}
+
+	/**
+	 * @return number of times the driver was left without a free buffer,
+	 * each of them drops at least one frame in the driver
+	 */
+	public synchronized long getDroppedCount() {
+		return droppedCount;
+	}
+
+}
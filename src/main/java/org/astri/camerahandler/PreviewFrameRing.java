@@ -0,0 +1,114 @@
+package org.astri.camerahandler;
+
+/**
+ * Keeps the most recent preview frames in flight so that a marker can be
+ * taken from them without a takePicture round trip.
+ * <p>
+ * Frames are not copied, the ring holds a reference to each preview buffer
+ * and releases the oldest when a new frame arrives. The preview buffer pool
+ * needs that many extra buffers so the driver is not starved. Confined to
+ * the camera thread.
+ */
+class PreviewFrameRing {
+
+	private final byte[][] frames;
+	private final FrameDescriptor[] descriptors;
+	private final PreviewBufferPool[] pools;
+	private final long[] timestamps;
+	private int next;
+	private int count;
+
+	PreviewFrameRing(int frameCount) {
+		if (frameCount < 1) {
+			throw new IllegalArgumentException("At least one frame required: " + frameCount);
+		}
+		frames = new byte[frameCount][];
+		descriptors = new FrameDescriptor[frameCount];
+		pools = new PreviewBufferPool[frameCount];
+		timestamps = new long[frameCount];
+	}
+
+	int getCapacity() {
+		return frames.length;
+	}
+
+	/**
+	 * Retains the frame and releases the oldest one if the ring is full.
+	 */
+	void add(byte[] data, FrameDescriptor descriptor, PreviewBufferPool pool, long timestampNanos) {
+		if (count == frames.length) {
+			releaseSlot(next);
+		} else {
+			count++;
+		}
+		pool.retain(data);
+		frames[next] = data;
+		descriptors[next] = descriptor;
+		pools[next] = pool;
+		timestamps[next] = timestampNanos;
+		next = (next + 1) % frames.length;
+	}
+
+	/**
+	 * Releases every held frame.
+	 */
+	void clear() {
+		for (int i = 0; i < frames.length; i++) {
+			if (frames[i] != null) {
+				releaseSlot(i);
+			}
+		}
+		next = 0;
+		count = 0;
+	}
+
+	private void releaseSlot(int slot) {
+		pools[slot].release(frames[slot]);
+		frames[slot] = null;
+		descriptors[slot] = null;
+		pools[slot] = null;
+	}
+
+	/**
+	 * Chooses a frame not older than maxAgeNanos.
+	 * @param sharpest pick the frame with the highest {@link SharpnessMeter}
+	 * score instead of the newest
+	 * @return slot of the frame, -1 if there is no recent frame
+	 */
+	int select(boolean sharpest, long nowNanos, long maxAgeNanos) {
+		int best = -1;
+		float bestScore = -1;
+		for (int n = 1; n <= count; n++) {
+			int slot = (next - n + frames.length) % frames.length;
+			if (nowNanos - timestamps[slot] > maxAgeNanos) {
+				break;
+			}
+			if (!sharpest) {
+				return slot;
+			}
+			FrameDescriptor descriptor = descriptors[slot];
+			int width = descriptor.getWidth();
+			int height = descriptor.getHeight();
+			float score = SharpnessMeter.score(frames[slot], width, height,
+					SharpnessMeter.getStep(width, height, SharpnessMeter.DEFAULT_GRID_SIZE));
+			if (score > bestScore) {
+				bestScore = score;
+				best = slot;
+			}
+		}
+		return best;
+	}
+
+	byte[] getFrame(int slot) {
+		return frames[slot];
+	}
+
+	FrameDescriptor getDescriptor(int slot) {
+		return descriptors[slot];
+	}
+
+	PreviewBufferPool getPool(int slot) {
+		return pools[slot];
+	}
+
+}
@@ -0,0 +1,302 @@
+package org.astri.camerahandler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Steps the preview size and frame rate down when the frame consumer falls
+ * behind, and back up when it has time to spare.
+ * <p>
+ * Load is the share of wall time the listener spends on frames, and a
+ * window with frames dropped for lack of a free buffer counts as overloaded.
+ * The levels are the supported preview sizes with the aspect ratio of the
+ * size chosen for the camera, not larger than it, and the supported fps
+ * ranges, both down to the quality floor. Stepping down lowers the frame
+ * rate first to keep the resolution, in power saving mode the size first
+ * to keep the frame rate, and power saving also caps the size.
+ * <p>
+ * Hysteresis: stepping down takes {@link #DOWN_WINDOWS} overloaded windows
+ * in a row, stepping up {@link #UP_WINDOWS} windows whose load, scaled to
+ * the cost of the higher level, stays under {@link #UP_LOAD}. Windows right
+ * after a change are skipped while the new level settles. Frame times may
+ * be recorded from any thread, everything else runs on the camera thread.
+ */
+final class PreviewQualityController {
+
+	/** Length of a load measuring window */
+	static final long WINDOW_MILLIS = 1000;
+
+	/** Load above which a window is overloaded */
+	static final float DOWN_LOAD = 0.8f;
+	/** Highest predicted load at the next level up for a window to count */
+	static final float UP_LOAD = 0.65f;
+	static final int DOWN_WINDOWS = 2;
+	static final int UP_WINDOWS = 5;
+	static final int SETTLE_WINDOWS = 2;
+	/** Power saving keeps sizes up to this share of the largest size's pixels */
+	static final float POWER_SAVING_PIXELS = 0.5f;
+
+	private static final float ASPECT_TOLERANCE = 0.02f;
+
+	private static final Comparator<CameraFpsRange> FASTEST_FIRST = new Comparator<CameraFpsRange>() {
+		@Override
+		public int compare(CameraFpsRange lhs, CameraFpsRange rhs) {
+			return rhs.getMax() - lhs.getMax();
+		}
+	};
+
+	private final StripedCounter busyNanos = new StripedCounter();
+
+	private int floorPixels;
+	/** Lowest fps range maximum allowed, frames per second times 1000 */
+	private int floorFps;
+	private boolean powerSaving;
+
+	/** Levels of the open camera, largest and fastest first */
+	private List<CameraSize> sizes = Collections.emptyList();
+	private List<CameraFpsRange> ranges = Collections.emptyList();
+	private int sizeIndex;
+	private int rangeIndex;
+	/** Index of the largest size allowed in power saving mode */
+	private int powerSavingSizeIndex;
+	private int nextSizeIndex;
+	private int nextRangeIndex;
+
+	private long windowStartNanos;
+	private long windowBusyNanos;
+	private long windowDrops;
+	private float lastLoad;
+	private int overloadedWindows;
+	private int underloadedWindows;
+	private int settleWindows;
+
+	/**
+	 * Sets the lowest quality stepped down to, takes effect when the levels
+	 * are built next. The size chosen for the camera is kept even if it is
+	 * below the floor.
+	 * @param fps lowest frame rate, 0 for no limit
+	 */
+	void setFloor(int width, int height, int fps) {
+		floorPixels = width * height;
+		floorFps = fps * 1000;
+	}
+
+	/**
+	 * @return true if the current size is above the power saving cap and
+	 * was lowered, the caller applies the level
+	 */
+	boolean setPowerSaving(boolean saving) {
+		powerSaving = saving;
+		if (saving && sizeIndex < powerSavingSizeIndex) {
+			sizeIndex = powerSavingSizeIndex;
+			resetCounts();
+			return true;
+		}
+		return false;
+	}
+
+	boolean isPowerSaving() {
+		return powerSaving;
+	}
+
+	/**
+	 * Builds the levels of a newly opened camera, starting from the chosen
+	 * size at the highest frame rate, or the power saving cap.
+	 */
+	void start(CameraCapabilities capabilities, CameraSize chosen) {
+		long chosenPixels = (long) chosen.getWidth() * chosen.getHeight();
+		float aspect = chosen.getHeight() * 1.0f / chosen.getWidth();
+		List<CameraSize> levelSizes = new ArrayList<CameraSize>();
+		levelSizes.add(chosen);
+		for (CameraSize s : capabilities.getPreviewSizes()) {
+			long pixels = (long) s.getWidth() * s.getHeight();
+			if (pixels < chosenPixels && pixels >= floorPixels && !levelSizes.contains(s)
+					&& Math.abs(s.getHeight() * 1.0f / s.getWidth() - aspect) < ASPECT_TOLERANCE) {
+				levelSizes.add(s);
+			}
+		}
+		Collections.sort(levelSizes, CameraSize.LARGEST_FIRST);
+		sizes = levelSizes;
+
+		// one range per maximum, the widest so exposure can still slow down
+		List<CameraFpsRange> levelRanges = new ArrayList<CameraFpsRange>();
+		for (CameraFpsRange r : capabilities.getPreviewFpsRanges()) {
+			if (r.getMax() < floorFps) {
+				continue;
+			}
+			int same = -1;
+			for (int i = 0; i < levelRanges.size(); i++) {
+				if (levelRanges.get(i).getMax() == r.getMax()) {
+					same = i;
+				}
+			}
+			if (same < 0) {
+				levelRanges.add(r);
+			} else if (r.getMin() < levelRanges.get(same).getMin()) {
+				levelRanges.set(same, r);
+			}
+		}
+		Collections.sort(levelRanges, FASTEST_FIRST);
+		ranges = levelRanges;
+
+		powerSavingSizeIndex = 0;
+		long cap = (long) (chosenPixels * POWER_SAVING_PIXELS);
+		while (powerSavingSizeIndex < sizes.size() - 1 && pixelsOf(powerSavingSizeIndex) > cap) {
+			powerSavingSizeIndex++;
+		}
+		sizeIndex = powerSaving ? powerSavingSizeIndex : 0;
+		rangeIndex = 0;
+		resetCounts();
+	}
+
+	/**
+	 * @return false before the levels of a camera were built
+	 */
+	boolean isStarted() {
+		return !sizes.isEmpty();
+	}
+
+	CameraSize getSize() {
+		return sizes.get(sizeIndex);
+	}
+
+	/**
+	 * @return null if the camera doesn't report fps ranges
+	 */
+	CameraFpsRange getFpsRange() {
+		return ranges.isEmpty() ? null : ranges.get(rangeIndex);
+	}
+
+	/**
+	 * @return load of the last evaluated window
+	 */
+	float getLastLoad() {
+		return lastLoad;
+	}
+
+	/**
+	 * Records the time the listener took for a frame, from any thread.
+	 */
+	void frameProcessed(long nanos) {
+		busyNanos.add(nanos);
+	}
+
+	/**
+	 * Starts a new window after the level was applied, the next windows
+	 * are skipped while the preview settles.
+	 * @param drops total frame drops so far
+	 */
+	void restartWindow(long nowNanos, long drops) {
+		windowStartNanos = nowNanos;
+		windowBusyNanos = busyNanos.sum();
+		windowDrops = drops;
+		settleWindows = SETTLE_WINDOWS;
+	}
+
+	/**
+	 * Ends a window and steps the level if the load asks for it.
+	 * @param drops total frame drops so far, a decrease is not counted
+	 * @return true if the level changed and should be applied
+	 */
+	boolean evaluate(long nowNanos, long drops) {
+		long elapsed = nowNanos - windowStartNanos;
+		if (elapsed <= 0 || sizes.isEmpty()) {
+			return false;
+		}
+		long busy = busyNanos.sum();
+		float load = (busy - windowBusyNanos) * 1.0f / elapsed;
+		boolean dropped = drops > windowDrops;
+		windowStartNanos = nowNanos;
+		windowBusyNanos = busy;
+		windowDrops = drops;
+		lastLoad = load;
+		if (settleWindows > 0) {
+			settleWindows--;
+			return false;
+		}
+
+		if (dropped || load > DOWN_LOAD) {
+			underloadedWindows = 0;
+			if (++overloadedWindows >= DOWN_WINDOWS && chooseStep(false, powerSaving)) {
+				return commitStep();
+			}
+			return false;
+		}
+		overloadedWindows = 0;
+		// undo the last kind of step down first, else try the other kind
+		if (fitsStepUp(load, !powerSaving) || fitsStepUp(load, powerSaving)) {
+			if (++underloadedWindows >= UP_WINDOWS) {
+				return commitStep();
+			}
+		} else {
+			underloadedWindows = 0;
+		}
+		return false;
+	}
+
+	private boolean fitsStepUp(float load, boolean sizeFirst) {
+		return chooseStep(true, sizeFirst) && load * costOf(nextSizeIndex, nextRangeIndex)
+				/ costOf(sizeIndex, rangeIndex) < UP_LOAD;
+	}
+
+	/**
+	 * Finds the next level in the given direction.
+	 * @param sizeFirst change the size rather than the fps range if both can
+	 * @return false if already at the top or the floor
+	 */
+	private boolean chooseStep(boolean up, boolean sizeFirst) {
+		nextSizeIndex = sizeIndex;
+		nextRangeIndex = rangeIndex;
+		int topSize = powerSaving ? powerSavingSizeIndex : 0;
+		if (up) {
+			if (sizeFirst && sizeIndex > topSize) {
+				nextSizeIndex--;
+			} else if (rangeIndex > 0) {
+				nextRangeIndex--;
+			} else if (sizeIndex > topSize) {
+				nextSizeIndex--;
+			} else {
+				return false;
+			}
+		} else {
+			if (sizeFirst && sizeIndex < sizes.size() - 1) {
+				nextSizeIndex++;
+			} else if (rangeIndex < ranges.size() - 1) {
+				nextRangeIndex++;
+			} else if (sizeIndex < sizes.size() - 1) {
+				nextSizeIndex++;
+			} else {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean commitStep() {
+		sizeIndex = nextSizeIndex;
+		rangeIndex = nextRangeIndex;
+		resetCounts();
+		return true;
+	}
+
+	private void resetCounts() {
+		overloadedWindows = 0;
+		underloadedWindows = 0;
+	}
+
+	private long pixelsOf(int index) {
+		CameraSize s = sizes.get(index);
+		return (long) s.getWidth() * s.getHeight();
+	}
+
+	/**
+	 * @return relative frame processing cost of a level, pixels per second
+	 */
+	private float costOf(int size, int range) {
+		float fps = ranges.isEmpty() ? 1 : ranges.get(range).getMax();
+		return pixelsOf(size) * fps;
+	}
+
+}
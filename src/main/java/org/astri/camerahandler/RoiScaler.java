@@ -0,0 +1,95 @@
+package org.astri.camerahandler;
+
+/**
+ * Crops a region of interest from NV21 frames and scales it down by an
+ * integer factor into a caller owned buffer, see {@link FrameRoi}.
+ */
+public final class RoiScaler {
+
+	private RoiScaler() {
+	}
+
+	/**
+	 * @param nv21 source frame
+	 * @param frameWidth source width
+	 * @param frameHeight source height
+	 * @param roi region and scaling
+	 * @param out destination of at least roi.getOutputSize() bytes
+	 */
+	public static void scale(byte[] nv21, int frameWidth, int frameHeight, FrameRoi roi, byte[] out) {
+		int left = roi.getCropLeft(frameWidth);
+		int top = roi.getCropTop(frameHeight);
+		int outWidth = roi.getOutputWidth(frameWidth);
+		int outHeight = roi.getOutputHeight(frameHeight);
+		if (out.length < roi.getOutputSize(frameWidth, frameHeight)) {
+			throw new IllegalArgumentException("Output buffer too small: " + out.length);
+		}
+		int divisor = roi.getScaleDivisor();
+		boolean bilinear = roi.isBilinear();
+
+		scalePlane(nv21, 0, frameWidth, left, top, outWidth, outHeight, 1,
+				divisor, bilinear, out, 0);
+		if (roi.getOutputFormat() == FrameRoi.FORMAT_NV21) {
+			// interleaved VU plane at half resolution, pairs moved together
+			scalePlane(nv21, frameWidth * frameHeight, frameWidth, left / 2, top / 2,
+					outWidth / 2, outHeight / 2, 2, divisor, bilinear, out, outWidth * outHeight);
+		}
+	}
+
+	/**
+	 * Scales a plane of elements of elementSize bytes, each byte of an
+	 * element is scaled separately.
+	 */
+	private static void scalePlane(byte[] src, int srcOffset, int rowBytes, int left, int top,
+			int outWidth, int outHeight, int elementSize, int divisor, boolean bilinear,
+			byte[] out, int outOffset) {
+		int outRowBytes = outWidth * elementSize;
+		if (divisor == 1) {
+			for (int y = 0; y < outHeight; y++) {
+				System.arraycopy(src, srcOffset + (top + y) * rowBytes + left * elementSize,
+						out, outOffset + y * outRowBytes, outRowBytes);
+			}
+			return;
+		}
+
+		int o = outOffset;
+		if (bilinear) {
+			// 2x2 samples around the center of each block
+			int first = divisor / 2 - 1;
+			int nextRow = rowBytes;
+			for (int y = 0; y < outHeight; y++) {
+				int row = srcOffset + (top + y * divisor + first) * rowBytes;
+				for (int x = 0; x < outWidth; x++) {
+					int s = row + (left + x * divisor + first) * elementSize;
+					for (int c = 0; c < elementSize; c++, s++) {
+						int sum = (src[s] & 0xff) + (src[s + elementSize] & 0xff)
+								+ (src[s + nextRow] & 0xff) + (src[s + nextRow + elementSize] & 0xff);
+						out[o++] = (byte) ((sum + 2) >> 2);
+					}
+				}
+			}
+			return;
+		}
+
+		// box average of the whole block
+		int area = divisor * divisor;
+		int half = area >> 1;
+		for (int y = 0; y < outHeight; y++) {
+			int row = srcOffset + (top + y * divisor) * rowBytes;
+			for (int x = 0; x < outWidth; x++) {
+				int blockStart = row + (left + x * divisor) * elementSize;
+				for (int c = 0; c < elementSize; c++) {
+					int sum = 0;
+					int s = blockStart + c;
+					for (int by = 0; by < divisor; by++, s += rowBytes) {
+						for (int bx = 0, p = s; bx < divisor; bx++, p += elementSize) {
+							sum += src[p] & 0xff;
+						}
+					}
+					out[o++] = (byte) ((sum + half) / area);
+				}
+			}
+		}
+	}
+
+}
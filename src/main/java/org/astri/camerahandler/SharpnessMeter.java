@@ -0,0 +1,51 @@
+package org.astri.camerahandler;
+
+/**
+ * Cheap focus measure of a frame, the variance of the Laplacian of the luma
+ * plane sampled on a sparse grid. Higher values mean more fine detail, a
+ * blurred frame of the same scene scores lower. Scores are only comparable
+ * between frames of the same scene and size.
+ */
+final class SharpnessMeter {
+
+	/** Grid points along the shorter frame edge */
+	static final int DEFAULT_GRID_SIZE = 48;
+
+	private SharpnessMeter() {
+	}
+
+	/**
+	 * @return grid step that gives about gridSize points along the shorter edge
+	 */
+	static int getStep(int width, int height, int gridSize) {
+		return Math.max(1, (Math.min(width, height) - 2) / Math.max(1, gridSize));
+	}
+
+	/**
+	 * Variance of the 4-neighbour Laplacian at every step-th pixel of every
+	 * step-th row, border pixels excluded.
+	 * @param luma NV21 frame or luma plane, row stride equal to width
+	 */
+	static float score(byte[] luma, int width, int height, int step) {
+		long sum = 0;
+		long sumSquares = 0;
+		int samples = 0;
+		for (int y = 1; y < height - 1; y += step) {
+			int row = y * width;
+			for (int x = 1; x < width - 1; x += step) {
+				int i = row + x;
+				int laplacian = 4 * (luma[i] & 0xff) - (luma[i - 1] & 0xff) - (luma[i + 1] & 0xff)
+						- (luma[i - width] & 0xff) - (luma[i + width] & 0xff);
+				sum += laplacian;
+				sumSquares += laplacian * laplacian;
+				samples++;
+			}
+		}
+		if (samples == 0) {
+			return 0;
+		}
+		float mean = (float) sum / samples;
+		return (float) sumSquares / samples - mean * mean;
+	}
+
+}
@@ -0,0 +1,331 @@
+package org.astri.camerahandler;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Chooses the preview and picture sizes of a camera together, scoring each
+ * candidate pair by cost, lowest wins:
+ * <ul>
+ * <li>preview aspect ratio against the preset</li>
+ * <li>preview pixels against the preset, sizes above it cost more the more
+ * each frame is transformed downstream</li>
+ * <li>picture aspect ratio within the threshold, then picture pixels up to
+ * the budget, larger is better</li>
+ * <li>preview and picture of different aspect ratios, the photo wouldn't
+ * show what the preview showed</li>
+ * <li>a bonus for a preview that can answer markers itself, large enough and
+ * of the marker aspect ratio (zero shutter lag)</li>
+ * </ul>
+ * Ratios are compared as logarithms, so wider and narrower count the same
+ * and nearly equal ratios nearly the same, without float equality. Ties go
+ * to the larger size, then the wider one, so the result doesn't depend on
+ * the order the camera lists its sizes.
+ * <p>
+ * Results of {@link #negotiate} are memoised per camera index and request.
+ * Plain Java, no camera access.
+ */
+final class SizeNegotiator {
+
+	/** Cost per unit of log preview aspect ratio difference */
+	static final double PREVIEW_ASPECT_WEIGHT = 8;
+	/** Cost per unit of log preview pixel count difference */
+	static final double PREVIEW_PIXEL_WEIGHT = 1;
+	/** Cost per unit of log picture aspect ratio difference */
+	static final double PICTURE_ASPECT_WEIGHT = 4;
+	/** Added for a picture aspect ratio outside the threshold */
+	static final double PICTURE_ASPECT_PENALTY = 4;
+	/** Cost per unit of log picture pixels below the budget */
+	static final double PICTURE_PIXEL_WEIGHT = 0.5;
+	/** Added for a picture above the pixel budget, used only if none fit */
+	static final double PICTURE_BUDGET_PENALTY = 8;
+	/** Cost per unit of log aspect ratio difference of preview and picture */
+	static final double PAIR_ASPECT_WEIGHT = 1;
+	/** Subtracted for a preview markers can be taken from */
+	static final double ZERO_SHUTTER_LAG_BONUS = 0.5;
+	/**
+	 * Largest marker aspect ratio difference of a preview frame, as for
+	 * {@link PhotoTaker#MARKER_ASPECT_RATIO_LIMIT}
+	 */
+	static final float ZSL_ASPECT_THRESHOLD = 0.1f;
+
+	private static final int MAX_ENTRIES = 16;
+
+	/**
+	 * What the sizes are negotiated for. Equal requests give equal results
+	 * for the same size lists.
+	 */
+	static final class Request {
+		final int previewWidth;
+		final int previewHeight;
+		final float conversionCost;
+		final float pictureAspect;
+		final float pictureThreshold;
+		final int pictureMaxPixels;
+		final int zslMinPixels;
+		final float zslAspect;
+
+		/**
+		 * @param previewWidth preset, either orientation
+		 * @param conversionCost per pixel cost of the frame transform relative
+		 * to an RGB conversion, 0 when frames are delivered as they are
+		 * @param pictureAspect picture width / height
+		 * @param pictureThreshold largest picture aspect ratio difference
+		 * @param pictureMaxPixels 0 if no picture size is needed
+		 * @param zslMinPixels smallest preview that markers are taken from,
+		 * -1 if markers are not taken from preview frames
+		 * @param zslAspect marker width / height
+		 */
+		Request(int previewWidth, int previewHeight, float conversionCost, float pictureAspect,
+				float pictureThreshold, int pictureMaxPixels, int zslMinPixels, float zslAspect) {
+			this.previewWidth = Math.max(previewWidth, previewHeight);
+			this.previewHeight = Math.min(previewWidth, previewHeight);
+			this.conversionCost = conversionCost;
+			this.pictureAspect = pictureAspect;
+			this.pictureThreshold = pictureThreshold;
+			this.pictureMaxPixels = pictureMaxPixels;
+			this.zslMinPixels = zslMinPixels;
+			this.zslAspect = zslAspect;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Request)) {
+				return false;
+			}
+			Request other = (Request) o;
+			return previewWidth == other.previewWidth && previewHeight == other.previewHeight
+					&& conversionCost == other.conversionCost
+					&& pictureAspect == other.pictureAspect
+					&& pictureThreshold == other.pictureThreshold
+					&& pictureMaxPixels == other.pictureMaxPixels
+					&& zslMinPixels == other.zslMinPixels && zslAspect == other.zslAspect;
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = previewWidth * 32713 + previewHeight;
+			hash = hash * 31 + Float.floatToIntBits(conversionCost);
+			hash = hash * 31 + Float.floatToIntBits(pictureAspect);
+			hash = hash * 31 + Float.floatToIntBits(pictureThreshold);
+			hash = hash * 31 + pictureMaxPixels;
+			hash = hash * 31 + zslMinPixels;
+			return hash * 31 + Float.floatToIntBits(zslAspect);
+		}
+	}
+
+	/**
+	 * Negotiated sizes.
+	 */
+	static final class Result {
+		private final CameraSize previewSize;
+		private final CameraSize pictureSize;
+		private final boolean zeroShutterLag;
+
+		Result(CameraSize previewSize, CameraSize pictureSize, boolean zeroShutterLag) {
+			this.previewSize = previewSize;
+			this.pictureSize = pictureSize;
+			this.zeroShutterLag = zeroShutterLag;
+		}
+
+		/**
+		 * @return null if there are no preview sizes
+		 */
+		CameraSize getPreviewSize() {
+			return previewSize;
+		}
+
+		/**
+		 * @return null if no picture was requested or there are no sizes
+		 */
+		CameraSize getPictureSize() {
+			return pictureSize;
+		}
+
+		/**
+		 * @return true if markers can be taken from preview frames
+		 */
+		boolean isZeroShutterLag() {
+			return zeroShutterLag;
+		}
+
+		@Override
+		public String toString() {
+			return "preview " + previewSize + ", picture " + pictureSize
+					+ (zeroShutterLag ? ", zero shutter lag" : "");
+		}
+	}
+
+	private static final class Memo {
+		final List<CameraSize> previewSizes;
+		final List<CameraSize> pictureSizes;
+		final Result result;
+
+		Memo(List<CameraSize> previewSizes, List<CameraSize> pictureSizes, Result result) {
+			this.previewSizes = previewSizes;
+			this.pictureSizes = pictureSizes;
+			this.result = result;
+		}
+	}
+
+	private static final class Key {
+		final int cameraIndex;
+		final Request request;
+
+		Key(int cameraIndex, Request request) {
+			this.cameraIndex = cameraIndex;
+			this.request = request;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return cameraIndex == other.cameraIndex && request.equals(other.request);
+		}
+
+		@Override
+		public int hashCode() {
+			return cameraIndex * 31 + request.hashCode();
+		}
+	}
+
+	private final Map<Key, Memo> results = new LinkedHashMap<Key, Memo>(MAX_ENTRIES, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, Memo> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+
+	/**
+	 * Negotiates the sizes, or returns the result of an earlier call for the
+	 * same camera and request if the camera reported the same sizes.
+	 */
+	synchronized Result negotiate(int cameraIndex, List<CameraSize> previewSizes,
+			List<CameraSize> pictureSizes, Request request) {
+		Key key = new Key(cameraIndex, request);
+		Memo memo = results.get(key);
+		if (memo != null && sameSizes(memo.previewSizes, previewSizes)
+				&& sameSizes(memo.pictureSizes, pictureSizes)) {
+			return memo.result;
+		}
+		Result result = choose(previewSizes, pictureSizes, request);
+		results.put(key, new Memo(previewSizes, pictureSizes, result));
+		return result;
+	}
+
+	synchronized void clear() {
+		results.clear();
+	}
+
+	private static boolean sameSizes(List<CameraSize> known, List<CameraSize> sizes) {
+		return known == sizes || known.equals(sizes);
+	}
+
+	/**
+	 * Scores every preview size with the best picture size for it.
+	 */
+	static Result choose(List<CameraSize> previewSizes, List<CameraSize> pictureSizes,
+			Request request) {
+		CameraSize bestPreview = null;
+		CameraSize bestPicture = null;
+		double bestCost = Double.MAX_VALUE;
+		boolean wantsPicture = request.pictureMaxPixels > 0 && !pictureSizes.isEmpty();
+		for (CameraSize preview : previewSizes) {
+			double cost = previewCost(preview, request);
+			CameraSize picture = null;
+			if (wantsPicture) {
+				picture = choosePictureSize(pictureSizes, request.pictureAspect,
+						request.pictureThreshold, request.pictureMaxPixels, preview);
+				cost += pictureCost(picture, request.pictureAspect, request.pictureThreshold,
+						request.pictureMaxPixels, preview);
+			}
+			if (cost < bestCost || (cost == bestCost && isLarger(preview, bestPreview))) {
+				bestCost = cost;
+				bestPreview = preview;
+				bestPicture = picture;
+			}
+		}
+		return new Result(bestPreview, bestPicture,
+				bestPreview != null && servesMarkers(bestPreview, request));
+	}
+
+	/**
+	 * @param preview preview size the picture should match, null for none
+	 * @return lowest cost picture size, null if there are no sizes
+	 */
+	static CameraSize choosePictureSize(List<CameraSize> pictureSizes, float aspect,
+			float threshold, int maxPixels, CameraSize preview) {
+		CameraSize best = null;
+		double bestCost = Double.MAX_VALUE;
+		for (CameraSize picture : pictureSizes) {
+			double cost = pictureCost(picture, aspect, threshold, maxPixels, preview);
+			if (cost < bestCost || (cost == bestCost && isLarger(picture, best))) {
+				bestCost = cost;
+				best = picture;
+			}
+		}
+		return best;
+	}
+
+	private static double previewCost(CameraSize preview, Request request) {
+		double cost = PREVIEW_ASPECT_WEIGHT * Math.abs(logRatio(aspectOf(preview),
+				request.previewWidth * 1.0 / request.previewHeight));
+		double pixels = logRatio(pixelsOf(preview),
+				(double) request.previewWidth * request.previewHeight);
+		// each extra pixel is transformed again on every frame
+		cost += PREVIEW_PIXEL_WEIGHT * (pixels > 0 ? pixels * (1 + request.conversionCost) : -pixels);
+		if (servesMarkers(preview, request)) {
+			cost -= ZERO_SHUTTER_LAG_BONUS;
+		}
+		return cost;
+	}
+
+	private static double pictureCost(CameraSize picture, float aspect, float threshold,
+			int maxPixels, CameraSize preview) {
+		double ratio = aspectOf(picture);
+		double aspectDifference = Math.abs(logRatio(ratio, aspect));
+		double cost = PICTURE_ASPECT_WEIGHT * aspectDifference;
+		if (Math.abs(ratio - aspect) >= threshold) {
+			cost += PICTURE_ASPECT_PENALTY;
+		}
+		double pixels = logRatio(maxPixels, pixelsOf(picture));
+		cost += pixels >= 0 ? PICTURE_PIXEL_WEIGHT * pixels
+				: PICTURE_BUDGET_PENALTY - PICTURE_PIXEL_WEIGHT * pixels;
+		if (preview != null) {
+			cost += PAIR_ASPECT_WEIGHT * Math.abs(logRatio(ratio, aspectOf(preview)));
+		}
+		return cost;
+	}
+
+	private static boolean servesMarkers(CameraSize preview, Request request) {
+		return request.zslMinPixels >= 0 && pixelsOf(preview) >= request.zslMinPixels
+				&& Math.abs(aspectOf(preview) - request.zslAspect)
+						< ZSL_ASPECT_THRESHOLD;
+	}
+
+	private static boolean isLarger(CameraSize size, CameraSize other) {
+		if (other == null) {
+			return true;
+		}
+		long pixels = pixelsOf(size);
+		long otherPixels = pixelsOf(other);
+		return pixels > otherPixels || (pixels == otherPixels && size.getWidth() > other.getWidth());
+	}
+
+	private static double aspectOf(CameraSize size) {
+		return size.getWidth() * 1.0 / size.getHeight();
+	}
+
+	private static long pixelsOf(CameraSize size) {
+		return (long) size.getWidth() * size.getHeight();
+	}
+
+	private static double logRatio(double value, double reference) {
+		return Math.log(value / reference);
+	}
+
+}
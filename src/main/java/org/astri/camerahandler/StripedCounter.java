@@ -0,0 +1,42 @@
+package org.astri.camerahandler;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter that threads add to without contending on one memory location.
+ * Each thread adds to one of a few cells on separate cache lines, reading
+ * sums the cells. Adding is lock free, reads are not atomic with respect to
+ * concurrent adds.
+ */
+final class StripedCounter {
+
+	private static final int STRIPES = 8;
+	/** Longs per cell, 64 bytes apart so that cells don't share cache lines */
+	private static final int PADDING = 8;
+
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+	void increment() {
+		add(1);
+	}
+
+	void add(long delta) {
+		int stripe = (int) (Thread.currentThread().getId() & (STRIPES - 1));
+		cells.addAndGet(stripe * PADDING, delta);
+	}
+
+	long sum() {
+		long sum = 0;
+		for (int i = 0; i < STRIPES; i++) {
+			sum += cells.get(i * PADDING);
+		}
+		return sum;
+	}
+
+	void reset() {
+		for (int i = 0; i < STRIPES; i++) {
+			cells.set(i * PADDING, 0);
+		}
+	}
+
+}
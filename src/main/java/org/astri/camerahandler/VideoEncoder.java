@@ -0,0 +1,42 @@
+package org.astri.camerahandler;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Encodes NV21 preview frames to a video file, see
+ * {@link CameraHandler#startRecording(File)}. The default encodes H.264 to
+ * MP4 with MediaCodec, {@link FakeVideoEncoder} stands in on a plain JVM.
+ * <p>
+ * {@link #start} is called on the camera thread, the other methods on the
+ * recording thread, never concurrently.
+ */
+public interface VideoEncoder {
+
+    /**
+     * Creates the file and prepares the encoder.
+     * @param frameRate expected frames per second, frames may come slower
+     * @param orientation clockwise rotation that shows the frames upright,
+     * stored in the file if the format can hold it
+     * @throws IOException if the file or the encoder can't be created
+     */
+    void start(File output, int width, int height, int frameRate, int orientation)
+            throws IOException;
+
+    /**
+     * Encodes a frame, copying it into the encoder's input. May wait
+     * shortly for the encoder.
+     * @param nv21 frame of the size given to start
+     * @param presentationNanos time of the frame since the first one
+     * @return false if the encoder had no input free, the frame is dropped
+     */
+    boolean encodeFrame(byte[] nv21, long presentationNanos);
+
+    /**
+     * Ends the stream, writes the remaining output and closes the file.
+     * Called once after a successful start, also when encoding failed.
+     * @throws IOException if the file could not be completed
+     */
+    void stop() throws IOException;
+
+}
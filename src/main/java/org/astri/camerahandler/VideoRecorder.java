@@ -0,0 +1,335 @@
+package org.astri.camerahandler;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import android.graphics.ImageFormat;
+import android.util.Log;
+
+/**
+ * Feeds preview frames to a {@link VideoEncoder} on a recording thread.
+ * <p>
+ * Preview buffers are retained in their {@link PreviewBufferPool} and
+ * handed to the encoder as they are, released once encoded. Frames are
+ * dropped for the encoder, never for the camera: a frame is skipped when
+ * {@link #QUEUE_CAPACITY} frames already wait, or when holding its buffer
+ * would leave the driver fewer than {@link #MIN_QUEUED_BUFFERS} buffers for
+ * the next frames. Offering a frame doesn't wait. Direct frames can't be
+ * held past their delivery and are copied once to buffers of the recorder.
+ * <p>
+ * Frames must be NV21 of the recording size, others are dropped, so the
+ * preview size must not change while recording.
+ * <p>
+ * Recording stops at the first exception of the encoder, the frames still
+ * waiting are dropped and {@link #stop()} reports the error.
+ */
+final class VideoRecorder {
+
+	private static final String TAG = "VideoRecorder";
+
+	/** Frames waiting for the encoder, newer frames are dropped */
+	static final int QUEUE_CAPACITY = 2;
+	/** Preview buffers left to the driver when a frame is held */
+	static final int MIN_QUEUED_BUFFERS = 1;
+
+	private final VideoEncoder encoder;
+	private final CameraMetrics metrics;
+	private final int width;
+	private final int height;
+
+	// ring of waiting frames, pool is null for the recorder's own buffers
+	private final byte[][] queuedData = new byte[QUEUE_CAPACITY][];
+	private final PreviewBufferPool[] queuedPools = new PreviewBufferPool[QUEUE_CAPACITY];
+	private final long[] queuedNanos = new long[QUEUE_CAPACITY];
+	private int head;
+	private int count;
+	/** Buffers for copies of direct frames, allocated on first use */
+	private final ArrayDeque<byte[]> spareBuffers = new ArrayDeque<byte[]>();
+	private int spareCount;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+
+	private Thread thread;
+	private boolean running;
+	private RuntimeException failure;
+	private long firstNanos = -1;
+	private long recordedCount;
+	private long droppedCount;
+
+	VideoRecorder(VideoEncoder encoder, CameraMetrics metrics, int width, int height) {
+		this.encoder = encoder;
+		this.metrics = metrics;
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * Starts the encoder and the recording thread.
+	 * @throws IOException if the encoder can't be started
+	 */
+	void start(File output, int frameRate, int orientation) throws IOException {
+		encoder.start(output, width, height, frameRate, orientation);
+		Thread recording = new Thread(encodeLoop, "VideoRecorder");
+		lock.lock();
+		try {
+			running = true;
+			thread = recording;
+		} finally {
+			lock.unlock();
+		}
+		recording.start();
+	}
+
+	/**
+	 * Encodes the frames still waiting, then finishes the file. Waits for
+	 * the recording thread.
+	 * @throws IOException if the file could not be completed, or if the
+	 * encoder failed, the file then ends with the last frame encoded
+	 */
+	void stop() throws IOException {
+		Thread recording;
+		lock.lock();
+		try {
+			recording = thread;
+			if (recording == null) {
+				return;
+			}
+			thread = null;
+			running = false;
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+		try {
+			recording.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		encoder.stop();
+		RuntimeException error = getFailure();
+		if (error != null) {
+			throw new IOException("Encoder failed, recording stopped", error);
+		}
+	}
+
+	/**
+	 * Queues a preview frame for the encoder, retaining its buffer if taken.
+	 * The caller keeps its own reference.
+	 * @return false if the frame was dropped for the encoder
+	 */
+	boolean offer(byte[] data, FrameDescriptor descriptor, PreviewBufferPool pool, long arrivalNanos) {
+		lock.lock();
+		try {
+			if (failure != null) {
+				// not recording anymore
+				return false;
+			}
+			if (!running || !accepts(descriptor.getFormat(), descriptor.getWidth(),
+					descriptor.getHeight())) {
+				return drop();
+			}
+			if (count == QUEUE_CAPACITY || pool.getFreeCount() < MIN_QUEUED_BUFFERS
+					|| !pool.retain(data)) {
+				return drop();
+			}
+			enqueue(data, pool, arrivalNanos);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Queues a copy of a direct frame for the encoder.
+	 * @return false if the frame was dropped for the encoder
+	 */
+	boolean offer(DirectFrame frame, long arrivalNanos) {
+		lock.lock();
+		try {
+			if (failure != null) {
+				return false;
+			}
+			if (!running || !accepts(frame.getFormat(), frame.getWidth(), frame.getHeight())
+					|| count == QUEUE_CAPACITY) {
+				return drop();
+			}
+			byte[] buffer = spareBuffers.poll();
+			if (buffer == null) {
+				if (spareCount == QUEUE_CAPACITY + 1) {
+					// every buffer is waiting or being encoded
+					return drop();
+				}
+				buffer = new byte[width * height * 3 / 2];
+				spareCount++;
+				metrics.allocated(buffer.length);
+			}
+			if (!frame.copyToNv21(buffer)) {
+				spareBuffers.add(buffer);
+				return drop();
+			}
+			enqueue(buffer, null, arrivalNanos);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private boolean accepts(int format, int frameWidth, int frameHeight) {
+		return (format == ImageFormat.NV21 || format == ImageFormat.YUV_420_888)
+				&& frameWidth == width && frameHeight == height;
+	}
+
+	// lock must be held
+	private boolean drop() {
+		droppedCount++;
+		metrics.recordingDropped();
+		return false;
+	}
+
+	// lock must be held
+	private void enqueue(byte[] data, PreviewBufferPool pool, long arrivalNanos) {
+		int tail = (head + count) % QUEUE_CAPACITY;
+		queuedData[tail] = data;
+		queuedPools[tail] = pool;
+		queuedNanos[tail] = arrivalNanos;
+		count++;
+		notEmpty.signal();
+	}
+
+	private final Runnable encodeLoop = new Runnable() {
+		@Override
+		public void run() {
+			while (true) {
+				byte[] data;
+				PreviewBufferPool pool;
+				long arrivalNanos;
+				lock.lock();
+				try {
+					while (running && count == 0) {
+						notEmpty.awaitUninterruptibly();
+					}
+					if (count == 0) {
+						return;
+					}
+					data = queuedData[head];
+					pool = queuedPools[head];
+					arrivalNanos = queuedNanos[head];
+					queuedData[head] = null;
+					queuedPools[head] = null;
+					head = (head + 1) % QUEUE_CAPACITY;
+					count--;
+				} finally {
+					lock.unlock();
+				}
+
+				if (firstNanos < 0) {
+					firstNanos = arrivalNanos;
+				}
+				boolean encoded;
+				RuntimeException error = null;
+				try {
+					encoded = encoder.encodeFrame(data, arrivalNanos - firstNanos);
+				} catch (RuntimeException e) {
+					Log.e(TAG, "Error encoding frame, recording stopped", e);
+					encoded = false;
+					error = e;
+				}
+
+				lock.lock();
+				try {
+					releaseBuffer(data, pool);
+					if (encoded) {
+						recordedCount++;
+						metrics.frameRecorded();
+					} else {
+						drop();
+					}
+					if (error != null) {
+						failure = error;
+						running = false;
+						dropQueued();
+						return;
+					}
+				} finally {
+					lock.unlock();
+				}
+			}
+		}
+	};
+
+	// lock must be held
+	private void releaseBuffer(byte[] data, PreviewBufferPool pool) {
+		if (pool != null) {
+			pool.release(data);
+		} else {
+			spareBuffers.add(data);
+		}
+	}
+
+	// lock must be held
+	private void dropQueued() {
+		while (count > 0) {
+			releaseBuffer(queuedData[head], queuedPools[head]);
+			queuedData[head] = null;
+			queuedPools[head] = null;
+			head = (head + 1) % QUEUE_CAPACITY;
+			count--;
+			drop();
+		}
+	}
+
+	/**
+	 * @return false once the encoder failed, frames are no longer taken
+	 */
+	boolean isRecording() {
+		lock.lock();
+		try {
+			return failure == null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private RuntimeException getFailure() {
+		lock.lock();
+		try {
+			return failure;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	int getWidth() {
+		return width;
+	}
+
+	int getHeight() {
+		return height;
+	}
+
+	long getRecordedCount() {
+		lock.lock();
+		try {
+			return recordedCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return frames not recorded, dropped before or by the encoder
+	 */
+	long getDroppedCount() {
+		lock.lock();
+		try {
+			return droppedCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+}
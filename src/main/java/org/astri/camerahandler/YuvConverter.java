@@ -0,0 +1,332 @@
+package org.astri.camerahandler;
+
+import java.util.concurrent.Executor;
+
+import android.graphics.ImageFormat;
+import android.graphics.PixelFormat;
+
+/**
+ * Converts NV21 preview frames to RGB into caller owned buffers.
+ * <p>
+ * Uses BT.601 lookup tables and 10 bit fixed point math, nothing is allocated
+ * per frame. The conversion can optionally be split into row stripes that
+ * are converted in parallel on an executor, and it can be fused with
+ * rotation and mirroring as done by {@link FrameRotator} so that each pixel
+ * is read and written once.
+ * <p>
+ * Output layouts:
+ * <ul>
+ * <li>RGB565: 2 bytes per pixel, little endian as in a RGB_565 Bitmap</li>
+ * <li>RGBA8888: 4 bytes per pixel in R, G, B, A order as in a ARGB_8888
+ * Bitmap buffer</li>
+ * <li>ARGB: one int per pixel as used by Bitmap.setPixels</li>
+ * </ul>
+ */
+public class YuvConverter {
+
+	/** Raw NV21 frames, no conversion */
+	public static final int FORMAT_NV21 = ImageFormat.NV21;
+	public static final int FORMAT_RGB565 = ImageFormat.RGB_565;
+	public static final int FORMAT_RGBA8888 = PixelFormat.RGBA_8888;
+
+	private static final int SHIFT = 10;
+
+	/** Tile edge in pixels for rotated output, even to cover chroma pairs */
+	private static final int BLOCK = 32;
+
+	private static final int[] Y_TABLE = new int[256];
+	private static final int[] RV_TABLE = new int[256];
+	private static final int[] GV_TABLE = new int[256];
+	private static final int[] GU_TABLE = new int[256];
+	private static final int[] BU_TABLE = new int[256];
+
+	static {
+		int one = 1 << SHIFT;
+		for (int i = 0; i < 256; i++) {
+			Y_TABLE[i] = Math.round(1.164f * one * (i - 16)) + (one >> 1);
+			RV_TABLE[i] = Math.round(1.596f * one * (i - 128));
+			GV_TABLE[i] = Math.round(0.813f * one * (i - 128));
+			GU_TABLE[i] = Math.round(0.391f * one * (i - 128));
+			BU_TABLE[i] = Math.round(2.018f * one * (i - 128));
+		}
+	}
+
+	private static final int OUT_RGB565 = 0;
+	private static final int OUT_RGBA8888 = 1;
+	private static final int OUT_ARGB = 2;
+
+	private final Executor executor;
+	private final Stripe[] stripes;
+	private int pendingStripes;
+
+	/**
+	 * Creates a converter that converts on the calling thread.
+	 */
+	public YuvConverter() {
+		this(null, 1);
+	}
+
+	/**
+	 * Creates a converter that splits each frame into row stripes.
+	 * @param executor runs all but the last stripe, the calling thread
+	 * converts the last one. May be null when stripeCount is 1.
+	 * @param stripeCount number of stripes, usually the number of cores
+	 */
+	public YuvConverter(Executor executor, int stripeCount) {
+		if (stripeCount < 1 || (stripeCount > 1 && executor == null)) {
+			throw new IllegalArgumentException("Invalid stripe count: " + stripeCount);
+		}
+		this.executor = executor;
+		this.stripes = new Stripe[stripeCount];
+		for (int i = 0; i < stripeCount; i++) {
+			stripes[i] = new Stripe();
+		}
+	}
+
+	/**
+	 * @return output buffer length for the format, in bytes for RGB565 and
+	 * RGBA8888 and in ints for ARGB, 0 for unknown formats
+	 */
+	public static int getOutputSize(int format, int width, int height) {
+		switch (format) {
+		case FORMAT_RGB565:
+			return width * height * 2;
+		case FORMAT_RGBA8888:
+			return width * height * 4;
+		case FORMAT_NV21:
+			return width * height * 3 / 2;
+		default:
+			return 0;
+		}
+	}
+
+	public void nv21ToRgb565(byte[] nv21, int width, int height, byte[] out) {
+		convert(nv21, width, height, 0, false, FORMAT_RGB565, out);
+	}
+
+	public void nv21ToRgba8888(byte[] nv21, int width, int height, byte[] out) {
+		convert(nv21, width, height, 0, false, FORMAT_RGBA8888, out);
+	}
+
+	public void nv21ToArgb(byte[] nv21, int width, int height, int[] out) {
+		nv21ToArgb(nv21, width, height, 0, false, out);
+	}
+
+	/**
+	 * Converts to ARGB and rotates in the same pass.
+	 * @param rotation clockwise rotation 0, 90, 180 or 270
+	 * @param mirror flip the rotated image horizontally
+	 */
+	public void nv21ToArgb(byte[] nv21, int width, int height, int rotation, boolean mirror, int[] out) {
+		FrameRotator.checkRotation(rotation);
+		checkSizes(nv21, width, height, out.length, width * height);
+		convert(nv21, width, height, rotation, mirror, OUT_ARGB, null, out);
+	}
+
+	/**
+	 * Converts to RGB565 or RGBA8888 selected by format constant.
+	 */
+	public void convert(byte[] nv21, int width, int height, int format, byte[] out) {
+		convert(nv21, width, height, 0, false, format, out);
+	}
+
+	/**
+	 * Converts to RGB565 or RGBA8888 and rotates in the same pass. The
+	 * output size is given by {@link FrameRotator#getRotatedWidth} and
+	 * {@link FrameRotator#getRotatedHeight}.
+	 * @param rotation clockwise rotation 0, 90, 180 or 270
+	 * @param mirror flip the rotated image horizontally
+	 */
+	public void convert(byte[] nv21, int width, int height, int rotation, boolean mirror,
+			int format, byte[] out) {
+		FrameRotator.checkRotation(rotation);
+		if (format == FORMAT_RGB565) {
+			checkSizes(nv21, width, height, out.length, width * height * 2);
+			convert(nv21, width, height, rotation, mirror, OUT_RGB565, out, null);
+		} else if (format == FORMAT_RGBA8888) {
+			checkSizes(nv21, width, height, out.length, width * height * 4);
+			convert(nv21, width, height, rotation, mirror, OUT_RGBA8888, out, null);
+		} else {
+			throw new IllegalArgumentException("Unsupported output format: " + format);
+		}
+	}
+
+	private static void checkSizes(byte[] nv21, int width, int height, int outLength, int required) {
+		if (nv21.length < width * height * 3 / 2) {
+			throw new IllegalArgumentException("NV21 buffer too small: " + nv21.length);
+		}
+		if (outLength < required) {
+			throw new IllegalArgumentException("Output buffer too small: " + outLength
+					+ ", required: " + required);
+		}
+	}
+
+	private void convert(byte[] nv21, int width, int height, int rotation, boolean mirror,
+			int outType, byte[] outBytes, int[] outInts) {
+		// output index of pixel x, y is origin + x * stepX + y * stepY
+		int origin = FrameRotator.destIndex(0, 0, width, height, rotation, mirror);
+		int stepX = FrameRotator.destIndex(1, 0, width, height, rotation, mirror) - origin;
+		int stepY = FrameRotator.destIndex(0, 1, width, height, rotation, mirror) - origin;
+
+		int stripeCount = stripes.length;
+		// stripes start at even rows so that chroma rows are not shared
+		int rowsPerStripe = ((height / stripeCount) + 1) & ~1;
+		if (stripeCount == 1 || rowsPerStripe < 2) {
+			convertRows(nv21, width, height, 0, height, origin, stepX, stepY, outType, outBytes, outInts);
+			return;
+		}
+		synchronized (stripes) {
+			int started = 0;
+			int row = 0;
+			for (int i = 0; i < stripeCount - 1 && row < height; i++) {
+				int end = Math.min(height, row + rowsPerStripe);
+				stripes[i].set(nv21, width, height, row, end, origin, stepX, stepY,
+						outType, outBytes, outInts);
+				row = end;
+				started++;
+			}
+			synchronized (this) {
+				pendingStripes = started;
+			}
+			for (int i = 0; i < started; i++) {
+				executor.execute(stripes[i]);
+			}
+			if (row < height) {
+				convertRows(nv21, width, height, row, height, origin, stepX, stepY,
+						outType, outBytes, outInts);
+			}
+			awaitStripes();
+			for (int i = 0; i < started; i++) {
+				stripes[i].clear();
+			}
+		}
+	}
+
+	private synchronized void awaitStripes() {
+		boolean interrupted = false;
+		while (pendingStripes > 0) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private synchronized void stripeDone() {
+		if (--pendingStripes == 0) {
+			notifyAll();
+		}
+	}
+
+	private final class Stripe implements Runnable {
+		private byte[] nv21;
+		private int width;
+		private int height;
+		private int rowStart;
+		private int rowEnd;
+		private int origin;
+		private int stepX;
+		private int stepY;
+		private int outType;
+		private byte[] outBytes;
+		private int[] outInts;
+
+		void set(byte[] nv21, int width, int height, int rowStart, int rowEnd,
+				int origin, int stepX, int stepY, int outType, byte[] outBytes, int[] outInts) {
+			this.nv21 = nv21;
+			this.width = width;
+			this.height = height;
+			this.rowStart = rowStart;
+			this.rowEnd = rowEnd;
+			this.origin = origin;
+			this.stepX = stepX;
+			this.stepY = stepY;
+			this.outType = outType;
+			this.outBytes = outBytes;
+			this.outInts = outInts;
+		}
+
+		void clear() {
+			nv21 = null;
+			outBytes = null;
+			outInts = null;
+		}
+
+		@Override
+		public void run() {
+			try {
+				convertRows(nv21, width, height, rowStart, rowEnd, origin, stepX, stepY,
+						outType, outBytes, outInts);
+			} finally {
+				stripeDone();
+			}
+		}
+	}
+
+	private static void convertRows(byte[] nv21, int width, int height, int rowStart, int rowEnd,
+			int origin, int stepX, int stepY, int outType, byte[] outBytes, int[] outInts) {
+		if (stepX == 1) {
+			convertTile(nv21, width, height, rowStart, rowEnd, 0, width,
+					origin, stepX, stepY, outType, outBytes, outInts);
+			return;
+		}
+		// rotated output, convert in tiles so that the scattered writes stay in cache
+		for (int by = rowStart; by < rowEnd; by += BLOCK) {
+			int yEnd = Math.min(rowEnd, by + BLOCK);
+			for (int bx = 0; bx < width; bx += BLOCK) {
+				convertTile(nv21, width, height, by, yEnd, bx, Math.min(width, bx + BLOCK),
+						origin, stepX, stepY, outType, outBytes, outInts);
+			}
+		}
+	}
+
+	private static void convertTile(byte[] nv21, int width, int height, int rowStart, int rowEnd,
+			int colStart, int colEnd, int origin, int stepX, int stepY,
+			int outType, byte[] outBytes, int[] outInts) {
+		int frameSize = width * height;
+		for (int row = rowStart; row < rowEnd; row++) {
+			int yIndex = row * width + colStart;
+			int uvIndex = frameSize + (row >> 1) * width + colStart;
+			int outIndex = origin + row * stepY + colStart * stepX;
+			for (int col = colStart; col < colEnd; col += 2, uvIndex += 2) {
+				// two pixels share the chroma terms
+				int v = nv21[uvIndex] & 0xff;
+				int u = nv21[uvIndex + 1] & 0xff;
+				int rv = RV_TABLE[v];
+				int guv = GV_TABLE[v] + GU_TABLE[u];
+				int bu = BU_TABLE[u];
+
+				int pixels = col + 1 < colEnd ? 2 : 1;
+				for (int p = 0; p < pixels; p++, yIndex++, outIndex += stepX) {
+					int y = Y_TABLE[nv21[yIndex] & 0xff];
+					int r = (y + rv) >> SHIFT;
+					int g = (y - guv) >> SHIFT;
+					int b = (y + bu) >> SHIFT;
+					r = r < 0 ? 0 : (r > 255 ? 255 : r);
+					g = g < 0 ? 0 : (g > 255 ? 255 : g);
+					b = b < 0 ? 0 : (b > 255 ? 255 : b);
+
+					if (outType == OUT_RGB565) {
+						int pixel = ((r & 0xf8) << 8) | ((g & 0xfc) << 3) | (b >> 3);
+						int o = outIndex << 1;
+						outBytes[o] = (byte) pixel;
+						outBytes[o + 1] = (byte) (pixel >> 8);
+					} else if (outType == OUT_RGBA8888) {
+						int o = outIndex << 2;
+						outBytes[o] = (byte) r;
+						outBytes[o + 1] = (byte) g;
+						outBytes[o + 2] = (byte) b;
+						outBytes[o + 3] = (byte) 0xff;
+					} else {
+						outInts[outIndex] = 0xff000000 | (r << 16) | (g << 8) | b;
+					}
+				}
+			}
+		}
+	}
+
+}
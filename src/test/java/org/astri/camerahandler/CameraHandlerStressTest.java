@@ -0,0 +1,270 @@
+package org.astri.camerahandler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.hardware.Camera.CameraInfo;
+
+/**
+ * Calls two CameraHandlers from several threads at once, each with a back
+ * and a front fake camera.
+ */
+public class CameraHandlerStressTest {
+
+	private static final int THREADS_PER_HANDLER = 4;
+	private static final int CALLS_PER_THREAD = 100;
+
+	/**
+	 * Handler under test with its cameras, counting broken invariants.
+	 */
+	private static class Subject {
+		final FakeCameraDevice back = new FakeCameraDevice(CameraInfo.CAMERA_FACING_BACK, 90);
+		final FakeCameraDevice front = new FakeCameraDevice(CameraInfo.CAMERA_FACING_FRONT, 270);
+		final AtomicInteger opens = new AtomicInteger();
+		final AtomicInteger failedOpens = new AtomicInteger();
+		/** Frames delivered while the camera was closed */
+		final AtomicInteger framesWhileClosed = new AtomicInteger();
+		/** Shots reported while no capture was active */
+		final AtomicInteger shotsWhileNotCapturing = new AtomicInteger();
+		/** Requests accepted by the handler, guarded by itself */
+		final Set<Integer> requestIds = new HashSet<Integer>();
+		/** Requests shots were reported for, guarded by requestIds */
+		final Set<Integer> shotRequestIds = new HashSet<Integer>();
+		final CameraHandler handler;
+		final RecordingListener listener;
+		final File recording;
+
+		Subject() throws IOException {
+			for (FakeCameraDevice camera : new FakeCameraDevice[] { back, front }) {
+				camera.setFrameRate(120);
+				camera.setDelays(5, 5);
+			}
+			handler = new CameraHandler(640, 480, CameraInfo.CAMERA_FACING_BACK,
+					countingProvider(FakeCameraDevice.provider(back, front)));
+			listener = new RecordingListener() {
+				@Override
+				public void receiveCameraFrame(byte[] data, int width, int height,
+						boolean backCamera, int imageFormat, int imageOrientation) {
+					// frames come on the camera thread, as the pause does
+					if (handler.getState() == CameraHandler.STATE_CLOSED) {
+						framesWhileClosed.incrementAndGet();
+					}
+					super.receiveCameraFrame(data, width, height, backCamera, imageFormat,
+							imageOrientation);
+				}
+			};
+			handler.setDataListener(listener);
+			handler.setVideoEncoder(new FakeVideoEncoder());
+			handler.setCaptureTimingListener(new CaptureTimingListener() {
+				@Override
+				public void shotCaptured(int requestId, int shotIndex, int shotCount,
+						long waitMs, long captureMs, boolean success) {
+					if (handler.getState() != CameraHandler.STATE_CAPTURING) {
+						shotsWhileNotCapturing.incrementAndGet();
+					}
+					synchronized (requestIds) {
+						shotRequestIds.add(requestId);
+					}
+				}
+			});
+			recording = File.createTempFile("stress", ".fake");
+		}
+
+		private CameraDevice.Provider countingProvider(final CameraDevice.Provider provider) {
+			return new CameraDevice.Provider() {
+				@Override
+				public int getCameraCount() {
+					return provider.getCameraCount();
+				}
+
+				@Override
+				public int getFacing(int cameraIndex) {
+					return provider.getFacing(cameraIndex);
+				}
+
+				@Override
+				public int getOrientation(int cameraIndex) {
+					return provider.getOrientation(cameraIndex);
+				}
+
+				@Override
+				public CameraDevice open(int cameraIndex, Executor callbackExecutor) {
+					try {
+						CameraDevice camera = provider.open(cameraIndex, callbackExecutor);
+						opens.incrementAndGet();
+						return camera;
+					} catch (RuntimeException e) {
+						// the handler opened a camera it still had open
+						failedOpens.incrementAndGet();
+						throw e;
+					}
+				}
+			};
+		}
+
+		void call(int action) throws IOException {
+			switch (action) {
+			case 0:
+				handler.resumeCamera();
+				break;
+			case 1:
+				handler.resumeCameraAsync(null);
+				break;
+			case 2:
+				handler.pauseCamera();
+				break;
+			case 3:
+				accepted(handler.takePhotoBurst(1));
+				break;
+			case 4:
+				accepted(handler.captureMarkerBurst(0, 1));
+				break;
+			case 5:
+				handler.cancelPendingCaptures();
+				break;
+			case 6:
+				handler.switchCamera();
+				break;
+			case 7:
+				try {
+					handler.startRecording(recording);
+				} catch (IllegalStateException e) {
+					// not previewing or already recording
+				}
+				break;
+			case 8:
+				handler.stopRecording();
+				break;
+			default:
+				handler.release();
+				break;
+			}
+		}
+
+		/**
+		 * Notes a request id, its shots may be reported before this is called.
+		 */
+		private void accepted(int requestId) {
+			if (requestId >= 0) {
+				synchronized (requestIds) {
+					requestIds.add(requestId);
+				}
+			}
+		}
+	}
+
+	private final List<Subject> subjects = new ArrayList<Subject>();
+
+	@Before
+	public void setUp() throws IOException {
+		subjects.add(new Subject());
+		subjects.add(new Subject());
+	}
+
+	@After
+	public void tearDown() {
+		for (Subject subject : subjects) {
+			subject.handler.release();
+			subject.recording.delete();
+		}
+	}
+
+	@Test
+	public void concurrentCallsKeepTheInvariants() throws Exception {
+		final List<Throwable> errors = new ArrayList<Throwable>();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(subjects.size() * THREADS_PER_HANDLER);
+		int seed = 0;
+		for (final Subject subject : subjects) {
+			for (int t = 0; t < THREADS_PER_HANDLER; t++) {
+				final Random random = new Random(seed++);
+				Thread thread = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							start.await();
+							for (int i = 0; i < CALLS_PER_THREAD; i++) {
+								try {
+									// release is rare, it quits the threads
+									int action = random.nextInt(40);
+									subject.call(action < 36 ? action % 9 : 9);
+								} catch (CancellationException e) {
+									// released by another thread before the call ran
+								}
+							}
+						} catch (Throwable e) {
+							synchronized (errors) {
+								errors.add(e);
+							}
+						} finally {
+							done.countDown();
+						}
+					}
+				}, "Stress-" + seed);
+				thread.start();
+			}
+		}
+
+		start.countDown();
+		// a call lost by a quitting camera thread would hang here
+		assertTrue("calls didn't finish", done.await(60, TimeUnit.SECONDS));
+
+		synchronized (errors) {
+			assertEquals(errors.toString(), 0, errors.size());
+		}
+		for (Subject subject : subjects) {
+			assertEquals(0, subject.failedOpens.get());
+			assertTrue(subject.opens.get() > 0);
+			assertEquals(0, subject.framesWhileClosed.get());
+			assertEquals(0, subject.shotsWhileNotCapturing.get());
+			synchronized (subject.requestIds) {
+				// every shot belongs to a request that was accepted
+				assertTrue(subject.requestIds.containsAll(subject.shotRequestIds));
+			}
+
+			subject.handler.pauseCamera();
+			int frames = subject.listener.getFrameCount();
+			Thread.sleep(50);
+			assertEquals(frames, subject.listener.getFrameCount());
+			assertEquals(CameraHandler.STATE_CLOSED, subject.handler.getState());
+			assertTrue(!subject.handler.isRecording());
+			// throw if the handler left a camera open
+			subject.back.open(null).release();
+			subject.front.open(null).release();
+		}
+
+		// both handlers still work, and captures settle back to preview
+		for (Subject subject : subjects) {
+			int[] size = subject.handler.resumeCamera();
+			assertEquals(640, size[0]);
+			assertTrue(subject.handler.takePhoto());
+			int frames = subject.listener.getFrameCount();
+			assertTrue(subject.listener.awaitFrames(frames + 5, 2000));
+		}
+		for (Subject subject : subjects) {
+			long deadline = System.currentTimeMillis() + 2000;
+			while (subject.handler.getState() != CameraHandler.STATE_PREVIEW) {
+				assertTrue("stuck capturing", System.currentTimeMillis() < deadline);
+				Thread.sleep(5);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,297 @@
+package org.astri.camerahandler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.graphics.ImageFormat;
+import android.hardware.Camera.CameraInfo;
+
+public class CameraHandlerTest {
+
+	private FakeCameraDevice fake;
+	private CountingCameraDevice[] opened;
+	private CameraHandler handler;
+	private RecordingListener listener;
+
+	@Before
+	public void setUp() {
+		fake = new FakeCameraDevice(CameraInfo.CAMERA_FACING_BACK, 90);
+		fake.setFrameRate(120);
+		opened = new CountingCameraDevice[1];
+		handler = new CameraHandler(640, 480, CameraInfo.CAMERA_FACING_BACK,
+				CountingCameraDevice.provider(fake, opened));
+		listener = new RecordingListener();
+		handler.setDataListener(listener);
+	}
+
+	@After
+	public void tearDown() {
+		handler.disableFramePipeline();
+		handler.release();
+	}
+
+	@Test
+	public void resumeDeliversFramesOfTheNegotiatedSize() throws InterruptedException {
+		int[] size = handler.resumeCamera();
+
+		assertEquals(640, size[0]);
+		assertEquals(480, size[1]);
+		assertTrue(listener.awaitFrames(5, 2000));
+		assertEquals(640, listener.getFrameWidth());
+		assertEquals(480, listener.getFrameHeight());
+		assertEquals(CameraHandler.STATE_PREVIEW, handler.getState());
+	}
+
+	@Test
+	public void previewFramesDontQueryCameraParameters() throws InterruptedException {
+		handler.resumeCamera();
+		assertTrue(listener.awaitFrames(5, 2000));
+		CountingCameraDevice camera = opened[0];
+		int settingsQueries = camera.getSettingsQueries();
+		int capabilitiesQueries = camera.getCapabilitiesQueries();
+		int settingsApplied = camera.getSettingsApplied();
+		int frames = listener.getFrameCount();
+
+		assertTrue(listener.awaitFrames(frames + 60, 5000));
+
+		assertEquals(settingsQueries, camera.getSettingsQueries());
+		assertEquals(capabilitiesQueries, camera.getCapabilitiesQueries());
+		assertEquals(settingsApplied, camera.getSettingsApplied());
+	}
+
+	@Test
+	public void pauseStopsFramesAndClosesTheCamera() throws InterruptedException {
+		handler.resumeCamera();
+		assertTrue(listener.awaitFrames(5, 2000));
+
+		handler.pauseCamera();
+		int frames = listener.getFrameCount();
+		Thread.sleep(100);
+
+		assertEquals(frames, listener.getFrameCount());
+		assertEquals(CameraHandler.STATE_CLOSED, handler.getState());
+		assertTrue(!fake.isPreviewRunning());
+	}
+
+	@Test
+	public void previewMarkerIsSubsampledLikeADecodedPicture() throws InterruptedException {
+		handler.setZeroShutterLagMarkers(3, false, 0);
+		handler.setMarkerDecoding(PhotoDecoder.OUTPUT_RGB565, 320, 240);
+		handler.resumeCamera();
+		assertTrue(listener.awaitFrames(5, 2000));
+		long picturesBefore = fake.getPicturesTaken();
+
+		assertTrue(handler.captureMarker(0));
+
+		assertTrue(listener.awaitMarkers(1, 2000));
+		assertEquals(320, listener.getMarkerWidth());
+		assertEquals(240, listener.getMarkerHeight());
+		assertEquals(320 * 240 * 2, listener.getMarkers().get(0).length);
+		assertEquals(picturesBefore, fake.getPicturesTaken());
+	}
+
+	@Test
+	public void directFramesAreDeliveredInTheCamerasBuffers() throws InterruptedException {
+		DirectListener direct = new DirectListener();
+		handler.setDataListener(direct);
+		handler.resumeCamera();
+
+		assertTrue(direct.awaitDirectFrames(5, 2000));
+
+		assertEquals("YUV_420_888 640x480 90 back", direct.getLastFrame());
+		assertEquals(0, direct.getFrameCount());
+	}
+
+	@Test
+	public void heldDirectFramesAreDroppedUntilReleased() throws InterruptedException {
+		DirectListener direct = new DirectListener();
+		direct.setHolding(true);
+		handler.setDataListener(direct);
+		handler.resumeCamera();
+		assertTrue(direct.awaitDirectFrames(PreviewBufferPool.DEFAULT_BUFFER_COUNT, 2000));
+		Thread.sleep(100);
+
+		assertEquals(PreviewBufferPool.DEFAULT_BUFFER_COUNT, direct.getDirectFrameCount());
+		assertTrue(fake.getFramesDropped() > 0);
+
+		direct.setHolding(false);
+		direct.releaseHeld();
+
+		assertTrue(direct.awaitDirectFrames(PreviewBufferPool.DEFAULT_BUFFER_COUNT + 10, 2000));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void zeroShutterLagMarkersAreRejectedWithDirectFrames() {
+		handler.setDataListener(new DirectListener());
+
+		handler.setZeroShutterLagMarkers(3, false, 0);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void directListenerIsRejectedWithZeroShutterLagMarkers() {
+		handler.setZeroShutterLagMarkers(3, false, 0);
+
+		handler.setDataListener(new DirectListener());
+	}
+
+	@Test
+	public void directListenerIsTakenOnceZeroShutterLagMarkersAreDisabled() {
+		handler.setZeroShutterLagMarkers(3, false, 0);
+		handler.setZeroShutterLagMarkers(0, false, 0);
+
+		handler.setDataListener(new DirectListener());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void framePipelineIsRejectedWithDirectFrames() {
+		handler.setDataListener(new DirectListener());
+
+		handler.enableFramePipeline(FramePipeline.DropPolicy.KEEP_LATEST, 1, 1);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void directListenerIsRejectedWithTheFramePipeline() {
+		handler.enableFramePipeline(FramePipeline.DropPolicy.KEEP_LATEST, 1, 1);
+
+		handler.setDataListener(new DirectListener());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void subscriptionsAreRejectedWithDirectFrames() {
+		handler.setDataListener(new DirectListener());
+
+		handler.subscribe(new FrameSubscription(new RecordingListener(), 0, YuvConverter.FORMAT_NV21, null));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void directListenerIsRejectedWithSubscriptions() {
+		handler.subscribe(new FrameSubscription(new RecordingListener(), 0, YuvConverter.FORMAT_NV21, null));
+
+		handler.setDataListener(new DirectListener());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void frameRegionIsRejectedWithDirectFrames() {
+		handler.setDataListener(new DirectListener());
+
+		handler.setFrameRoi(FrameRoi.centered(0.5f, 1, YuvConverter.FORMAT_NV21));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void directListenerIsRejectedWithAFrameRegion() {
+		handler.setFrameRoi(FrameRoi.centered(0.5f, 1, YuvConverter.FORMAT_NV21));
+
+		handler.setDataListener(new DirectListener());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void rgbOutputIsRejectedWithDirectFrames() {
+		handler.setDataListener(new DirectListener());
+
+		handler.setFrameOutputFormat(YuvConverter.FORMAT_RGB565, 1);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void directListenerIsRejectedWithRgbOutput() {
+		handler.setFrameOutputFormat(YuvConverter.FORMAT_RGB565, 1);
+
+		handler.setDataListener(new DirectListener());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void uprightFramesAreRejectedWithDirectFrames() {
+		handler.setDataListener(new DirectListener());
+
+		handler.setUprightFrames(true, false);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void directListenerIsRejectedWithUprightFrames() {
+		handler.setUprightFrames(true, false);
+
+		handler.setDataListener(new DirectListener());
+	}
+
+	@Test
+	public void directListenerIsTakenWithDefaultFrameSettings() {
+		handler.setFrameRoi(null);
+		handler.setFrameOutputFormat(YuvConverter.FORMAT_NV21, 1);
+		handler.setUprightFrames(false, false);
+		handler.setDataListener(new DirectListener());
+
+		handler.setFrameRoi(null);
+		handler.setFrameOutputFormat(YuvConverter.FORMAT_NV21, 1);
+		handler.setUprightFrames(false, true);
+	}
+
+	/**
+	 * Takes direct frames, releasing them at once or holding them until
+	 * {@link #releaseHeld()}.
+	 */
+	private static class DirectListener extends RecordingListener implements DirectFrameListener {
+
+		private final List<DirectFrame> held = new ArrayList<DirectFrame>();
+		private int directFrameCount;
+		private boolean holding;
+		private String lastFrame;
+
+		@Override
+		public synchronized void receiveDirectFrame(DirectFrame frame) {
+			directFrameCount++;
+			if (holding) {
+				held.add(frame);
+			} else {
+				lastFrame = (frame.getFormat() == ImageFormat.YUV_420_888 ? "YUV_420_888 " : "")
+						+ frame.getWidth() + "x" + frame.getHeight() + " "
+						+ frame.getOrientation() + (frame.isBackCamera() ? " back" : " front");
+				frame.release();
+			}
+			notifyAll();
+		}
+
+		synchronized void setHolding(boolean holding) {
+			this.holding = holding;
+		}
+
+		synchronized void releaseHeld() {
+			for (DirectFrame frame : held) {
+				frame.release();
+			}
+			held.clear();
+		}
+
+		synchronized int getDirectFrameCount() {
+			return directFrameCount;
+		}
+
+		/**
+		 * @return format, size, orientation and facing of the last frame
+		 * released at once
+		 */
+		synchronized String getLastFrame() {
+			return lastFrame;
+		}
+
+		synchronized boolean awaitDirectFrames(int count, long timeoutMillis)
+				throws InterruptedException {
+			long deadline = System.currentTimeMillis() + timeoutMillis;
+			while (directFrameCount < count) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					return false;
+				}
+				wait(remaining);
+			}
+			return true;
+		}
+
+	}
+
+}
@@ -0,0 +1,140 @@
+package org.astri.camerahandler;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Camera passing calls to another one, counting the settings queries, the
+ * calls that flatten and parse all parameters with Camera1.
+ */
+class CountingCameraDevice implements CameraDevice {
+
+	private final CameraDevice delegate;
+	private final AtomicInteger settingsQueries = new AtomicInteger();
+	private final AtomicInteger capabilitiesQueries = new AtomicInteger();
+	private final AtomicInteger settingsApplied = new AtomicInteger();
+
+	CountingCameraDevice(CameraDevice delegate) {
+		this.delegate = delegate;
+	}
+
+	/**
+	 * @return provider of a single camera opening the given one, wrapped
+	 * into the returned counting camera
+	 */
+	static CameraDevice.Provider provider(final FakeCameraDevice camera,
+			final CountingCameraDevice[] opened) {
+		final CameraDevice.Provider fake = FakeCameraDevice.provider(camera);
+		return new CameraDevice.Provider() {
+			@Override
+			public int getCameraCount() {
+				return fake.getCameraCount();
+			}
+
+			@Override
+			public int getFacing(int cameraIndex) {
+				return fake.getFacing(cameraIndex);
+			}
+
+			@Override
+			public int getOrientation(int cameraIndex) {
+				return fake.getOrientation(cameraIndex);
+			}
+
+			@Override
+			public CameraDevice open(int cameraIndex, Executor callbackExecutor) {
+				CountingCameraDevice device = new CountingCameraDevice(
+						fake.open(cameraIndex, callbackExecutor));
+				opened[0] = device;
+				return device;
+			}
+		};
+	}
+
+	int getSettingsQueries() {
+		return settingsQueries.get();
+	}
+
+	int getCapabilitiesQueries() {
+		return capabilitiesQueries.get();
+	}
+
+	int getSettingsApplied() {
+		return settingsApplied.get();
+	}
+
+	@Override
+	public CameraCapabilities getCapabilities() {
+		capabilitiesQueries.incrementAndGet();
+		return delegate.getCapabilities();
+	}
+
+	@Override
+	public CameraSettings getSettings() {
+		settingsQueries.incrementAndGet();
+		return delegate.getSettings();
+	}
+
+	@Override
+	public void applySettings(CameraSettings settings) {
+		settingsApplied.incrementAndGet();
+		delegate.applySettings(settings);
+	}
+
+	@Override
+	public void setDisplayOrientation(int degrees) {
+		delegate.setDisplayOrientation(degrees);
+	}
+
+	@Override
+	public void setPreviewDisplay(Object display) throws IOException {
+		delegate.setPreviewDisplay(display);
+	}
+
+	@Override
+	public void startPreview() {
+		delegate.startPreview();
+	}
+
+	@Override
+	public void stopPreview() {
+		delegate.stopPreview();
+	}
+
+	@Override
+	public void setPreviewCallback(PreviewCallback callback) {
+		delegate.setPreviewCallback(callback);
+	}
+
+	@Override
+	public void addCallbackBuffer(byte[] buffer) {
+		delegate.addCallbackBuffer(buffer);
+	}
+
+	@Override
+	public boolean setImageCallback(ImageCallback callback, int maxFrames) {
+		return delegate.setImageCallback(callback, maxFrames);
+	}
+
+	@Override
+	public void autoFocus(FocusCallback callback) {
+		delegate.autoFocus(callback);
+	}
+
+	@Override
+	public void cancelAutoFocus() {
+		delegate.cancelAutoFocus();
+	}
+
+	@Override
+	public void takePicture(PictureCallback callback) {
+		delegate.takePicture(callback);
+	}
+
+	@Override
+	public void release() {
+		delegate.release();
+	}
+
+}
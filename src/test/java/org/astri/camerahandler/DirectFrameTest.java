@@ -0,0 +1,168 @@
+package org.astri.camerahandler;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import android.graphics.ImageFormat;
+
+public class DirectFrameTest {
+
+	private static final int WIDTH = 8;
+	private static final int HEIGHT = 4;
+	private static final int LUMA_SIZE = WIDTH * HEIGHT;
+	private static final int CHROMA_SIZE = LUMA_SIZE / 4;
+
+	private static final DirectFrame.Owner OWNER = new DirectFrame.Owner() {
+		@Override
+		public void releaseFrame(DirectFrame frame) {
+		}
+	};
+
+	/**
+	 * @return NV21 frame with distinct samples, V below 128 and U above
+	 */
+	private static byte[] nv21() {
+		byte[] data = new byte[LUMA_SIZE + LUMA_SIZE / 2];
+		for (int i = 0; i < LUMA_SIZE; i++) {
+			data[i] = (byte) (200 + i % 50);
+		}
+		for (int i = 0; i < CHROMA_SIZE; i++) {
+			data[LUMA_SIZE + 2 * i] = (byte) (10 + i);
+			data[LUMA_SIZE + 2 * i + 1] = (byte) (130 + i);
+		}
+		return data;
+	}
+
+	private static DirectFrame frame() {
+		DirectFrame frame = new DirectFrame(OWNER);
+		frame.set(ImageFormat.YUV_420_888, WIDTH, HEIGHT, 3, 0);
+		return frame;
+	}
+
+	private static ByteBuffer direct(byte[] data) {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+		buffer.put(data);
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * @return read only view of the bytes from start to end of the buffer,
+	 * as an Image plane gives them
+	 */
+	private static ByteBuffer plane(ByteBuffer buffer, int start, int end) {
+		ByteBuffer plane = buffer.duplicate();
+		plane.position(start);
+		plane.limit(end);
+		return plane.slice().asReadOnlyBuffer();
+	}
+
+	@Test
+	public void nv21InOneBuffer() {
+		byte[] expected = nv21();
+		DirectFrame frame = frame();
+		frame.setNv21Planes(direct(expected));
+		byte[] out = new byte[expected.length];
+
+		assertTrue(frame.copyToNv21(out));
+
+		assertArrayEquals(expected, out);
+	}
+
+	@Test
+	public void interleavedVuInSeparateViews() {
+		byte[] expected = nv21();
+		ByteBuffer data = direct(expected);
+		DirectFrame frame = frame();
+		frame.setPlane(0, plane(data, 0, LUMA_SIZE), 0, WIDTH, 1);
+		// Camera2 style: each view ends with its last sample
+		frame.setPlane(1, plane(data, LUMA_SIZE + 1, expected.length), 0, WIDTH, 2);
+		frame.setPlane(2, plane(data, LUMA_SIZE, expected.length - 1), 0, WIDTH, 2);
+		byte[] out = new byte[expected.length];
+
+		assertTrue(frame.copyToNv21(out));
+
+		assertArrayEquals(expected, out);
+	}
+
+	@Test
+	public void interleavedUvInSeparateViews() {
+		byte[] expected = nv21();
+		byte[] nv12 = expected.clone();
+		for (int i = LUMA_SIZE; i < nv12.length; i += 2) {
+			nv12[i] = expected[i + 1];
+			nv12[i + 1] = expected[i];
+		}
+		ByteBuffer data = direct(nv12);
+		DirectFrame frame = frame();
+		frame.setPlane(0, plane(data, 0, LUMA_SIZE), 0, WIDTH, 1);
+		frame.setPlane(1, plane(data, LUMA_SIZE, nv12.length - 1), 0, WIDTH, 2);
+		frame.setPlane(2, plane(data, LUMA_SIZE + 1, nv12.length), 0, WIDTH, 2);
+		byte[] out = new byte[expected.length];
+
+		assertTrue(frame.copyToNv21(out));
+
+		assertArrayEquals(expected, out);
+	}
+
+	@Test
+	public void planarChromaWithPaddedRows() {
+		byte[] expected = nv21();
+		int stride = WIDTH + 4;
+		int chromaStride = stride / 2;
+		byte[] y = new byte[stride * HEIGHT];
+		byte[] u = new byte[chromaStride * HEIGHT / 2];
+		byte[] v = new byte[chromaStride * HEIGHT / 2];
+		for (int row = 0; row < HEIGHT; row++) {
+			System.arraycopy(expected, row * WIDTH, y, row * stride, WIDTH);
+		}
+		for (int i = 0; i < CHROMA_SIZE; i++) {
+			int position = i / (WIDTH / 2) * chromaStride + i % (WIDTH / 2);
+			v[position] = expected[LUMA_SIZE + 2 * i];
+			u[position] = expected[LUMA_SIZE + 2 * i + 1];
+		}
+		DirectFrame frame = frame();
+		frame.setPlane(0, direct(y), 0, stride, 1);
+		frame.setPlane(1, direct(u), 0, chromaStride, 1);
+		frame.setPlane(2, direct(v), 0, chromaStride, 1);
+		byte[] out = new byte[expected.length];
+
+		assertTrue(frame.copyToNv21(out));
+
+		assertArrayEquals(expected, out);
+	}
+
+	@Test
+	public void planesAreLeftUntouched() {
+		byte[] expected = nv21();
+		ByteBuffer data = direct(expected);
+		data.position(3);
+		DirectFrame frame = frame();
+		frame.setPlane(0, data, 0, WIDTH, 1);
+		frame.setPlane(1, data.duplicate(), LUMA_SIZE + 1, WIDTH, 2);
+		frame.setPlane(2, data.duplicate(), LUMA_SIZE, WIDTH, 2);
+
+		assertTrue(frame.copyToNv21(new byte[expected.length]));
+
+		assertEquals(3, data.position());
+		byte[] after = new byte[expected.length];
+		data.clear();
+		data.get(after);
+		assertArrayEquals(expected, after);
+	}
+
+	@Test
+	public void tooSmallArrayIsRefused() {
+		DirectFrame frame = frame();
+		frame.setNv21Planes(direct(nv21()));
+
+		assertFalse(frame.copyToNv21(new byte[LUMA_SIZE]));
+	}
+
+}
@@ -0,0 +1,119 @@
+package org.astri.camerahandler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ExecutorCameraThreadTest {
+
+	private CameraThread thread;
+
+	@Before
+	public void setUp() {
+		thread = ExecutorCameraThread.FACTORY.start();
+	}
+
+	@After
+	public void tearDown() {
+		thread.quit();
+	}
+
+	@Test
+	public void tasksRunInPostingOrderOnTheThread() throws InterruptedException {
+		final StringBuffer order = new StringBuffer();
+		final CountDownLatch done = new CountDownLatch(1);
+		for (int i = 0; i < 5; i++) {
+			final int index = i;
+			assertTrue(thread.post(new Runnable() {
+				@Override
+				public void run() {
+					order.append(index);
+					if (thread.isCurrentThread() && index == 4) {
+						done.countDown();
+					}
+				}
+			}));
+		}
+
+		assertTrue(done.await(1, TimeUnit.SECONDS));
+		assertEquals("01234", order.toString());
+		assertFalse(thread.isCurrentThread());
+	}
+
+	@Test
+	public void quitWaitsForTheRunningTaskAndHandsBackTheOthers() throws InterruptedException {
+		final CountDownLatch running = new CountDownLatch(1);
+		final AtomicInteger ran = new AtomicInteger();
+		thread.post(new Runnable() {
+			@Override
+			public void run() {
+				running.countDown();
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				ran.incrementAndGet();
+			}
+		});
+		Runnable waiting = new Runnable() {
+			@Override
+			public void run() {
+				ran.incrementAndGet();
+			}
+		};
+		thread.post(waiting);
+		assertTrue(running.await(1, TimeUnit.SECONDS));
+
+		List<Runnable> dropped = thread.quit();
+
+		assertEquals(1, ran.get());
+		assertEquals(1, dropped.size());
+		assertSame(waiting, dropped.get(0));
+		assertFalse(thread.post(waiting));
+		Thread.sleep(20);
+		assertEquals(1, ran.get());
+	}
+
+	@Test
+	public void quitFromTheThreadDoesntWait() throws InterruptedException {
+		final CountDownLatch quit = new CountDownLatch(1);
+		thread.post(new Runnable() {
+			@Override
+			public void run() {
+				thread.quit();
+				quit.countDown();
+			}
+		});
+
+		assertTrue(quit.await(1, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void removedDelayedTasksDontRun() throws InterruptedException {
+		final AtomicInteger ran = new AtomicInteger();
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				ran.incrementAndGet();
+			}
+		};
+		thread.postDelayed(task, 20);
+
+		thread.removeCallbacks(task);
+		Thread.sleep(60);
+
+		assertEquals(0, ran.get());
+	}
+
+}
@@ -0,0 +1,329 @@
+package org.astri.camerahandler;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.graphics.ImageFormat;
+import android.hardware.Camera.CameraInfo;
+
+public class FakeCameraDeviceTest {
+
+	private static final int FRAME_SIZE = 320 * 240 * 3 / 2;
+
+	private FakeCameraDevice camera;
+
+	@Before
+	public void setUp() {
+		camera = new FakeCameraDevice(CameraInfo.CAMERA_FACING_FRONT, 270);
+	}
+
+	@After
+	public void tearDown() {
+		camera.release();
+	}
+
+	/**
+	 * Counts frames and gives every buffer straight back, like a fast
+	 * consumer.
+	 */
+	private static class Recycler implements CameraDevice.PreviewCallback {
+		final AtomicInteger frames = new AtomicInteger();
+		final AtomicInteger nullFrames = new AtomicInteger();
+		CameraDevice camera;
+
+		@Override
+		public void onPreviewFrame(byte[] data) {
+			if (data == null) {
+				nullFrames.incrementAndGet();
+				return;
+			}
+			frames.incrementAndGet();
+			camera.addCallbackBuffer(data);
+		}
+	}
+
+	private void start(Recycler recycler, int buffers) {
+		recycler.camera = camera;
+		camera.setPreviewCallback(recycler);
+		for (int i = 0; i < buffers; i++) {
+			camera.addCallbackBuffer(new byte[FRAME_SIZE]);
+		}
+		camera.startPreview();
+	}
+
+	@Test
+	public void openSelectsTheSmallestPreviewAndFirstPictureSize() {
+		camera.open(null);
+		CameraSettings settings = camera.getSettings();
+
+		assertEquals(320, settings.getPreviewWidth());
+		assertEquals(240, settings.getPreviewHeight());
+		assertEquals(ImageFormat.NV21, settings.getPreviewFormat());
+		assertEquals(3264, settings.getPictureWidth());
+		assertEquals(4, camera.getCapabilities().getPreviewSizes().size());
+	}
+
+	@Test(expected = RuntimeException.class)
+	public void openingTwiceFails() {
+		camera.open(null);
+		camera.open(null);
+	}
+
+	@Test
+	public void providerOpensTheSameInstance() {
+		FakeCameraDevice back = new FakeCameraDevice(CameraInfo.CAMERA_FACING_BACK, 90);
+		CameraDevice.Provider provider = FakeCameraDevice.provider(back, camera);
+
+		assertEquals(2, provider.getCameraCount());
+		assertEquals(CameraInfo.CAMERA_FACING_FRONT, provider.getFacing(1));
+		assertEquals(270, provider.getOrientation(1));
+		assertTrue(provider.open(0, null) == back);
+		back.release();
+	}
+
+	@Test
+	public void framesComeAtTheConfiguredRate() throws InterruptedException {
+		camera.setFrameRate(100);
+		camera.setJitter(3000, 1);
+		camera.open(null);
+		Recycler recycler = new Recycler();
+		start(recycler, 3);
+
+		Thread.sleep(500);
+		camera.stopPreview();
+
+		// jitter moves frames, not the rate
+		int frames = recycler.frames.get();
+		assertTrue("frames: " + frames, frames >= 40 && frames <= 52);
+		assertEquals(frames, camera.getFramesDelivered());
+		assertEquals(0, camera.getFramesDropped());
+	}
+
+	@Test
+	public void fpsRangeLowersTheRate() throws InterruptedException {
+		camera.setFrameRate(100);
+		camera.open(null);
+		CameraSettings settings = new CameraSettings();
+		settings.setPreviewFpsRange(new CameraFpsRange(15000, 15000));
+		camera.applySettings(settings);
+		Recycler recycler = new Recycler();
+		start(recycler, 3);
+
+		Thread.sleep(400);
+		camera.stopPreview();
+
+		int frames = recycler.frames.get();
+		assertTrue("frames: " + frames, frames >= 4 && frames <= 8);
+	}
+
+	@Test
+	public void framesAreDroppedWhileNoBufferIsQueued() throws InterruptedException {
+		camera.setFrameRate(200);
+		camera.open(null);
+		final AtomicInteger frames = new AtomicInteger();
+		camera.setPreviewCallback(new CameraDevice.PreviewCallback() {
+			@Override
+			public void onPreviewFrame(byte[] data) {
+				// keeps the buffer
+				frames.incrementAndGet();
+			}
+		});
+		camera.addCallbackBuffer(new byte[FRAME_SIZE]);
+		camera.startPreview();
+
+		Thread.sleep(100);
+		camera.stopPreview();
+
+		assertEquals(1, frames.get());
+		assertTrue(camera.getFramesDropped() > 5);
+	}
+
+	@Test
+	public void tooSmallBufferIsDeliveredAsNull() throws InterruptedException {
+		camera.open(null);
+		Recycler recycler = new Recycler();
+		recycler.camera = camera;
+		camera.setPreviewCallback(recycler);
+		camera.addCallbackBuffer(new byte[FRAME_SIZE - 1]);
+		camera.startPreview();
+
+		Thread.sleep(100);
+		camera.stopPreview();
+
+		assertEquals(0, recycler.frames.get());
+		assertEquals(1, recycler.nullFrames.get());
+	}
+
+	@Test
+	public void frameContentIsDeterministic() {
+		FakeCameraDevice.FrameSource source = FakeCameraDevice.pattern(3, 1);
+		byte[] first = new byte[FRAME_SIZE];
+		byte[] again = new byte[FRAME_SIZE];
+		byte[] next = new byte[FRAME_SIZE];
+
+		source.fillFrame(first, 320, 240, 7);
+		source.fillFrame(again, 320, 240, 7);
+		source.fillFrame(next, 320, 240, 8);
+
+		assertArrayEquals(first, again);
+		assertFalse(Arrays.equals(first, next));
+		// the pattern moves 3 pixels right and 1 down per frame
+		assertEquals(first[100 * 320 + 50], next[101 * 320 + 53]);
+	}
+
+	@Test
+	public void recordedFramesAreReplayedAndResampled() throws IOException {
+		File file = File.createTempFile("frames", ".nv21");
+		try {
+			byte[] frames = new byte[2 * 4 * 4 * 3 / 2];
+			for (int i = 0; i < frames.length; i++) {
+				frames[i] = (byte) i;
+			}
+			FileOutputStream out = new FileOutputStream(file);
+			out.write(frames);
+			out.close();
+			FakeCameraDevice.FrameSource source = FakeCameraDevice.fromFile(file, 4, 4);
+			byte[] frame = new byte[24];
+			byte[] scaled = new byte[6];
+
+			source.fillFrame(frame, 4, 4, 1);
+			assertEquals(24, frame[0]);
+			source.fillFrame(frame, 4, 4, 2);
+			assertEquals(0, frame[0]);
+			source.fillFrame(scaled, 2, 2, 0);
+			assertArrayEquals(new byte[] { 0, 2, 8, 10, 16, 17 }, scaled);
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void rejectedSettingsChangeNothing() {
+		camera.open(null);
+		CameraSettings settings = new CameraSettings();
+		settings.setPictureSize(640, 480);
+		settings.setPreviewSize(123, 45);
+		try {
+			camera.applySettings(settings);
+			fail("unsupported preview size accepted");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+
+		assertEquals(3264, camera.getSettings().getPictureWidth());
+		assertEquals(320, camera.getSettings().getPreviewWidth());
+	}
+
+	@Test
+	public void takePictureStopsPreviewAndDeliversAJpeg() throws InterruptedException {
+		camera.setDelays(10, 0);
+		camera.open(null);
+		start(new Recycler(), 2);
+		final AtomicReference<byte[]> jpeg = new AtomicReference<byte[]>();
+		final AtomicBoolean shutterFirst = new AtomicBoolean();
+		final CountDownLatch taken = new CountDownLatch(1);
+
+		camera.takePicture(new CameraDevice.PictureCallback() {
+			@Override
+			public void onShutter() {
+				shutterFirst.set(jpeg.get() == null);
+			}
+
+			@Override
+			public void onPictureTaken(byte[] data) {
+				jpeg.set(data);
+				taken.countDown();
+			}
+		});
+
+		assertFalse(camera.isPreviewRunning());
+		assertTrue(taken.await(1, TimeUnit.SECONDS));
+		byte[] data = jpeg.get();
+		assertEquals((byte) 0xff, data[0]);
+		assertEquals((byte) 0xd8, data[1]);
+		assertEquals((byte) 0xd9, data[data.length - 1]);
+		assertEquals(1, camera.getPicturesTaken());
+		assertTrue(shutterFirst.get());
+	}
+
+	@Test(expected = RuntimeException.class)
+	public void takePictureNeedsPreview() {
+		camera.open(null);
+		camera.takePicture(new CameraDevice.PictureCallback() {
+			@Override
+			public void onShutter() {
+			}
+
+			@Override
+			public void onPictureTaken(byte[] data) {
+			}
+		});
+	}
+
+	@Test
+	public void imageFramesAreDroppedWhileAllAreHeld() throws InterruptedException {
+		camera.setFrameRate(200);
+		camera.open(null);
+		final List<DirectFrame> held = new ArrayList<DirectFrame>();
+		camera.setImageCallback(new CameraDevice.ImageCallback() {
+			@Override
+			public void onImageFrame(DirectFrame frame) {
+				synchronized (held) {
+					held.add(frame);
+				}
+			}
+		}, 2);
+		camera.startPreview();
+
+		Thread.sleep(100);
+		camera.stopPreview();
+
+		synchronized (held) {
+			assertEquals(2, held.size());
+			DirectFrame frame = held.get(0);
+			assertEquals(ImageFormat.YUV_420_888, frame.getFormat());
+			assertEquals(320, frame.getWidth());
+			assertEquals(3, frame.getPlaneCount());
+			assertEquals(2, frame.getPixelStride(1));
+			assertNotNull(frame.getPlane(0));
+		}
+		assertTrue(camera.getFramesDropped() > 5);
+	}
+
+	@Test
+	public void releaseClearsTheCallbacks() {
+		camera.open(null);
+		camera.setPreviewCallback(new Recycler());
+		camera.release();
+
+		assertFalse(camera.isPreviewRunning());
+		try {
+			assertNull(camera.getSettings());
+			fail("closed camera answered");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+}
@@ -0,0 +1,111 @@
+package org.astri.camerahandler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class FrameAnalyzerTest {
+
+	private static final int WIDTH = 640;
+	private static final int HEIGHT = 480;
+
+	private SyntheticScene scene;
+	private FrameAnalyzer analyzer;
+	private FrameAnalysis analysis;
+
+	@Before
+	public void setUp() {
+		scene = new SyntheticScene(WIDTH, HEIGHT, 3, 42);
+		analyzer = new FrameAnalyzer();
+		analysis = new FrameAnalysis();
+	}
+
+	private void analyze(int dx, int dy, int brightness) {
+		analyzer.analyze(scene.frame(WIDTH, HEIGHT, dx, dy, brightness), WIDTH, HEIGHT, 0, analysis);
+	}
+
+	/**
+	 * Analyzes the centered frame and then the moved one.
+	 */
+	private void assertMotion(int dx, int dy) {
+		analyzer.reset();
+		analyze(0, 0, 0);
+		analyze(dx, dy, 0);
+
+		assertTrue(analysis.isMotionValid());
+		assertEquals("x of " + dx + "," + dy, dx, analysis.getMotionX(), 1);
+		assertEquals("y of " + dx + "," + dy, dy, analysis.getMotionY(), 1);
+	}
+
+	@Test
+	public void firstFrameHasNoMotion() {
+		analyze(0, 0, 0);
+
+		assertFalse(analysis.isMotionValid());
+		assertFalse(analysis.isSteady(100));
+		assertEquals(0, analysis.getFrameNumber());
+	}
+
+	@Test
+	public void stillFramesHaveNoMotion() {
+		analyze(0, 0, 0);
+		analyze(0, 0, 0);
+
+		assertTrue(analysis.isMotionValid());
+		assertEquals(0, analysis.getMotionX());
+		assertEquals(0, analysis.getMotionY());
+		assertTrue(analysis.isSteady(0));
+		assertEquals(1, analysis.getFrameNumber());
+	}
+
+	@Test
+	public void contentMovingRightAndDownIsPositive() {
+		assertMotion(6, 4);
+		assertMotion(12, 0);
+		assertMotion(0, 9);
+	}
+
+	@Test
+	public void contentMovingLeftAndUpIsNegative() {
+		assertMotion(-6, -4);
+		assertMotion(-15, 0);
+		assertMotion(0, -11);
+	}
+
+	@Test
+	public void oddShiftsAreInterpolated() {
+		assertMotion(3, -5);
+		assertMotion(-7, 1);
+	}
+
+	@Test
+	public void motionMagnitudeMatchesTheShift() {
+		assertMotion(12, -16);
+
+		assertEquals(20, analysis.getMotion(), 1.5);
+		assertFalse(analysis.isSteady(10));
+	}
+
+	@Test
+	public void exposureChangeIsNotMotion() {
+		analyze(0, 0, 0);
+		analyze(0, 0, 25);
+
+		assertEquals(0, analysis.getMotionX());
+		assertEquals(0, analysis.getMotionY());
+	}
+
+	@Test
+	public void resetForgetsThePreviousFrame() {
+		analyze(0, 0, 0);
+		analyzer.reset();
+		analyze(8, 8, 0);
+
+		assertFalse(analysis.isMotionValid());
+		assertEquals(0, analysis.getFrameNumber());
+	}
+
+}
@@ -0,0 +1,206 @@
+package org.astri.camerahandler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import android.hardware.Camera.CameraInfo;
+
+public class FrameFanOutTest {
+
+	private static final int WIDTH = 64;
+	private static final int HEIGHT = 48;
+
+	/**
+	 * Pool counting the holders added and released.
+	 */
+	private static class CountingPool extends PreviewBufferPool {
+		int retains;
+		int releases;
+
+		CountingPool(QueueSink sink) {
+			super(2, WIDTH * HEIGHT * 3 / 2, sink);
+		}
+
+		@Override
+		public synchronized boolean retain(byte[] buffer) {
+			retains++;
+			return super.retain(buffer);
+		}
+
+		@Override
+		public synchronized boolean release(byte[] buffer) {
+			releases++;
+			return super.release(buffer);
+		}
+	}
+
+	/**
+	 * Keeps the deliveries until they are run, a subscriber still busy with
+	 * its frame.
+	 */
+	private static class HeldExecutor implements Executor {
+		final List<Runnable> tasks = new ArrayList<Runnable>();
+
+		@Override
+		public void execute(Runnable task) {
+			tasks.add(task);
+		}
+
+		void runAll() {
+			for (Runnable task : tasks) {
+				task.run();
+			}
+			tasks.clear();
+		}
+	}
+
+	/**
+	 * Records the arrays frames were delivered in.
+	 */
+	private static class ArrayListener extends RecordingListener {
+		final List<byte[]> frames = new ArrayList<byte[]>();
+		int lastFormat;
+
+		@Override
+		public synchronized void receiveCameraFrame(byte[] data, int width, int height,
+				boolean backCamera, int imageFormat, int imageOrientation) {
+			frames.add(data);
+			lastFormat = imageFormat;
+			super.receiveCameraFrame(data, width, height, backCamera, imageFormat, imageOrientation);
+		}
+	}
+
+	private final FrameDescriptor descriptor = new FrameDescriptor(YuvConverter.FORMAT_NV21, WIDTH,
+			HEIGHT, 90, CameraInfo.CAMERA_FACING_BACK, true);
+	private QueueSink sink;
+	private CountingPool pool;
+	private FrameFanOut fanOut;
+
+	@Before
+	public void setUp() {
+		sink = new QueueSink();
+		pool = new CountingPool(sink);
+		pool.start();
+		fanOut = new FrameFanOut(new CameraMetrics());
+	}
+
+	/**
+	 * Delivers the next queued buffer like the camera callback does.
+	 */
+	private byte[] deliverFrame() {
+		byte[] buffer = sink.queue.poll();
+		assertTrue(pool.acquire(buffer));
+		fanOut.dispatch(buffer, descriptor, pool, System.nanoTime());
+		pool.release(buffer);
+		return buffer;
+	}
+
+	private FrameSubscription subscribe(ArrayListener listener, int format, FrameRoi roi,
+			Executor executor) {
+		FrameSubscription subscription = new FrameSubscription(listener, 0, format, roi);
+		subscription.setExecutor(executor);
+		fanOut.subscribe(subscription);
+		return subscription;
+	}
+
+	@Test
+	public void rawBufferReturnsAfterEverySubscriberReleasedIt() {
+		HeldExecutor first = new HeldExecutor();
+		HeldExecutor second = new HeldExecutor();
+		ArrayListener a = new ArrayListener();
+		ArrayListener b = new ArrayListener();
+		subscribe(a, YuvConverter.FORMAT_NV21, null, first);
+		subscribe(b, YuvConverter.FORMAT_NV21, null, second);
+
+		byte[] buffer = deliverFrame();
+
+		assertFalse(sink.queue.contains(buffer));
+		assertEquals(1, pool.getInFlightCount());
+		first.runAll();
+		assertFalse(sink.queue.contains(buffer));
+		second.runAll();
+		assertTrue(sink.queue.contains(buffer));
+		assertEquals(0, pool.getInFlightCount());
+
+		// both got the preview buffer itself, held once for the group
+		assertSame(buffer, a.frames.get(0));
+		assertSame(buffer, b.frames.get(0));
+		assertEquals(1, pool.retains);
+		// the caller's and the group's release
+		assertEquals(2, pool.releases);
+	}
+
+	@Test
+	public void sameFormatAndRegionShareOneConvertedBuffer() {
+		HeldExecutor held = new HeldExecutor();
+		ArrayListener a = new ArrayListener();
+		ArrayListener b = new ArrayListener();
+		ArrayListener other = new ArrayListener();
+		ArrayListener raw = new ArrayListener();
+		subscribe(a, YuvConverter.FORMAT_RGB565, FrameRoi.centered(0.5f, 1, YuvConverter.FORMAT_NV21),
+				held);
+		subscribe(b, YuvConverter.FORMAT_RGB565, FrameRoi.centered(0.5f, 1, YuvConverter.FORMAT_NV21),
+				held);
+		subscribe(other, YuvConverter.FORMAT_RGB565, null, held);
+		subscribe(raw, YuvConverter.FORMAT_NV21, null, null);
+
+		byte[] buffer = deliverFrame();
+		held.runAll();
+
+		assertSame(a.frames.get(0), b.frames.get(0));
+		assertNotSame(a.frames.get(0), other.frames.get(0));
+		assertNotSame(buffer, a.frames.get(0));
+		assertEquals(YuvConverter.FORMAT_RGB565, a.lastFormat);
+		assertEquals(32 * 24, a.getFrameWidth() * a.getFrameHeight());
+		assertSame(buffer, raw.frames.get(0));
+		// converted groups don't hold the preview buffer
+		assertEquals(1, pool.retains);
+		assertEquals(2, pool.releases);
+		assertEquals(2, sink.queue.size());
+	}
+
+	@Test
+	public void convertedFramesDontKeepThePreviewBuffer() {
+		HeldExecutor held = new HeldExecutor();
+		ArrayListener converted = new ArrayListener();
+		subscribe(converted, YuvConverter.FORMAT_RGB565, null, held);
+
+		byte[] buffer = deliverFrame();
+
+		assertTrue(sink.queue.contains(buffer));
+		assertEquals(0, pool.retains);
+		held.runAll();
+		assertEquals(1, converted.frames.size());
+	}
+
+	@Test
+	public void sharedBufferIsReusedOnceEverySubscriberReleasedIt() {
+		HeldExecutor held = new HeldExecutor();
+		ArrayListener a = new ArrayListener();
+		ArrayListener b = new ArrayListener();
+		subscribe(a, YuvConverter.FORMAT_RGB565, null, held);
+		subscribe(b, YuvConverter.FORMAT_RGB565, null, held);
+
+		deliverFrame();
+		// still held, the next frame needs another buffer
+		deliverFrame();
+		held.runAll();
+		deliverFrame();
+		held.runAll();
+
+		assertNotSame(a.frames.get(0), a.frames.get(1));
+		assertSame(a.frames.get(1), a.frames.get(2));
+		assertSame(a.frames.get(2), b.frames.get(2));
+	}
+
+}
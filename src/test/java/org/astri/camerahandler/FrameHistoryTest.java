@@ -0,0 +1,274 @@
+package org.astri.camerahandler;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.graphics.ImageFormat;
+import android.hardware.Camera.CameraInfo;
+
+public class FrameHistoryTest {
+
+	private static final int WIDTH = 64;
+	private static final int HEIGHT = 48;
+	private static final int FRAME_SIZE = WIDTH * HEIGHT * 3 / 2;
+	private static final long FRAME_NANOS = 20000000;
+	private static final long SECOND_NANOS = 1000000000;
+
+	private static final FrameDescriptor DESCRIPTOR = new FrameDescriptor(ImageFormat.NV21,
+			WIDTH, HEIGHT, 270, CameraInfo.CAMERA_FACING_FRONT, false);
+
+	/**
+	 * Writes every frame as the given number of copies of its first byte.
+	 */
+	private static class FixedSizeCompressor implements FrameCompressor {
+		private final int size;
+
+		FixedSizeCompressor(int size) {
+			this.size = size;
+		}
+
+		@Override
+		public String getFormatName() {
+			return "fixed";
+		}
+
+		@Override
+		public void compress(byte[] nv21, int width, int height, OutputStream out)
+				throws IOException {
+			for (int i = 0; i < size; i++) {
+				out.write(nv21[0]);
+			}
+		}
+	}
+
+	/**
+	 * Frame of a dump file.
+	 */
+	private static class DumpedFrame {
+		long micros;
+		int width;
+		int height;
+		int orientation;
+		byte[] data;
+	}
+
+	private QueueSink sink;
+	private PreviewBufferPool pool;
+	private CameraMetrics metrics;
+	private FrameHistory history;
+	private File dump;
+
+	@Before
+	public void setUp() throws IOException {
+		sink = new QueueSink();
+		pool = new PreviewBufferPool(4, FRAME_SIZE, sink);
+		pool.start();
+		metrics = new CameraMetrics();
+		dump = File.createTempFile("history", ".dump");
+	}
+
+	@After
+	public void tearDown() {
+		if (history != null) {
+			history.stop();
+		}
+		dump.delete();
+	}
+
+	private void start(FrameCompressor compressor, long maxAgeNanos, int maxBytes) {
+		history = new FrameHistory(compressor, metrics, maxAgeNanos, maxBytes);
+		history.start();
+	}
+
+	/**
+	 * @return frame of distinct content for its index
+	 */
+	private static byte[] frame(int index) {
+		byte[] frame = new byte[FRAME_SIZE];
+		for (int i = 0; i < frame.length; i++) {
+			frame[i] = (byte) (index * 7 + i / WIDTH);
+		}
+		return frame;
+	}
+
+	/**
+	 * Offers frames the given time apart, each once the previous one is
+	 * stored, as the camera handler does.
+	 */
+	private void offer(int frames, long firstNanos) throws InterruptedException {
+		for (int i = 0; i < frames; i++) {
+			long processed = processedCount();
+			byte[] buffer = sink.queue.poll();
+			assertTrue("driver ran out of buffers", buffer != null);
+			assertTrue(pool.acquire(buffer));
+			System.arraycopy(frame(i), 0, buffer, 0, FRAME_SIZE);
+			assertTrue(history.offer(buffer, DESCRIPTOR, pool, firstNanos + i * FRAME_NANOS));
+			pool.release(buffer);
+			long deadline = System.currentTimeMillis() + 2000;
+			while (processedCount() == processed) {
+				assertTrue("history stalled", System.currentTimeMillis() < deadline);
+				Thread.sleep(1);
+			}
+		}
+	}
+
+	private long processedCount() {
+		CameraMetrics.Snapshot snapshot = metrics.snapshot();
+		return snapshot.getHistoryFrames() + snapshot.getHistoryDrops();
+	}
+
+	private static List<DumpedFrame> readDump(File file, String formatName) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			assertEquals(FrameHistory.DUMP_MAGIC, in.readInt());
+			assertEquals(formatName, in.readUTF());
+			long dumpMillis = in.readLong();
+			assertTrue(Math.abs(System.currentTimeMillis() - dumpMillis) < 60000);
+			List<DumpedFrame> frames = new ArrayList<DumpedFrame>();
+			while (true) {
+				DumpedFrame frame = new DumpedFrame();
+				try {
+					frame.micros = in.readLong();
+				} catch (EOFException e) {
+					return frames;
+				}
+				frame.width = in.readInt();
+				frame.height = in.readInt();
+				frame.orientation = in.readInt();
+				frame.data = new byte[in.readInt()];
+				in.readFully(frame.data);
+				frames.add(frame);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static byte[] inflate(byte[] data) throws DataFormatException {
+		Inflater inflater = new Inflater();
+		inflater.setInput(data);
+		byte[] frame = new byte[FRAME_SIZE];
+		int length = 0;
+		while (!inflater.finished() && length < frame.length) {
+			length += inflater.inflate(frame, length, frame.length - length);
+		}
+		assertTrue(inflater.finished());
+		inflater.end();
+		return frame;
+	}
+
+	@Test
+	public void framesOlderThanTheHistoryAreEvicted() throws InterruptedException {
+		start(new DeflateFrameCompressor(), 5 * FRAME_NANOS, 1024 * 1024);
+
+		offer(20, 0);
+
+		// the newest frame and the five before it, the oldest exactly at the limit
+		assertEquals(6, history.getFrameCount());
+		assertEquals(5 * FRAME_NANOS, history.getDurationNanos());
+	}
+
+	@Test
+	public void fullStoreEvictsTheOldestFrames() throws InterruptedException {
+		start(new FixedSizeCompressor(100), 10 * SECOND_NANOS, 350);
+
+		offer(3, 0);
+		assertEquals(3, history.getFrameCount());
+		assertEquals(300, history.getStoredBytes());
+
+		// wraps to the start of the store, over the oldest frame
+		offer(2, 3 * FRAME_NANOS);
+
+		assertEquals(3, history.getFrameCount());
+		assertEquals(300, history.getStoredBytes());
+		assertEquals(2 * FRAME_NANOS, history.getDurationNanos());
+	}
+
+	@Test
+	public void frameLargerThanTheStoreIsDropped() throws InterruptedException {
+		start(new FixedSizeCompressor(100), 10 * SECOND_NANOS, 99);
+
+		offer(1, 0);
+
+		assertEquals(0, history.getFrameCount());
+		assertEquals(1, metrics.snapshot().getHistoryDrops());
+	}
+
+	@Test
+	public void dumpReadsBackTheStoredFrames() throws Exception {
+		start(new DeflateFrameCompressor(), 10 * SECOND_NANOS, 1024 * 1024);
+		long firstNanos = System.nanoTime() - SECOND_NANOS;
+		offer(5, firstNanos);
+
+		assertEquals(5, history.dump(dump, 10 * SECOND_NANOS));
+
+		List<DumpedFrame> frames = readDump(dump, "deflate");
+		assertEquals(5, frames.size());
+		for (int i = 0; i < frames.size(); i++) {
+			DumpedFrame frame = frames.get(i);
+			assertTrue(frame.micros < 0);
+			assertEquals(WIDTH, frame.width);
+			assertEquals(HEIGHT, frame.height);
+			assertEquals(270, frame.orientation);
+			assertArrayEquals(frame(i), inflate(frame.data));
+			if (i > 0) {
+				assertEquals(FRAME_NANOS / 1000, frame.micros - frames.get(i - 1).micros, 1);
+			}
+		}
+	}
+
+	@Test
+	public void dumpTakesTheFramesOfTheDuration() throws Exception {
+		start(new DeflateFrameCompressor(), 10 * SECOND_NANOS, 1024 * 1024);
+		offer(10, System.nanoTime() - SECOND_NANOS);
+
+		assertEquals(3, history.dump(dump, 2 * FRAME_NANOS));
+
+		List<DumpedFrame> frames = readDump(dump, "deflate");
+		assertArrayEquals(frame(7), inflate(frames.get(0).data));
+		assertArrayEquals(frame(9), inflate(frames.get(2).data));
+	}
+
+	@Test
+	public void emptyHistoryDumpsNoFrames() throws IOException {
+		start(new DeflateFrameCompressor(), SECOND_NANOS, 1024);
+
+		assertEquals(0, history.dump(dump, SECOND_NANOS));
+
+		assertTrue(readDump(dump, "deflate").isEmpty());
+	}
+
+	@Test
+	public void stoppedHistoryDropsFramesAndKeepsItsBuffers() throws InterruptedException {
+		start(new DeflateFrameCompressor(), SECOND_NANOS, 1024 * 1024);
+		offer(2, 0);
+		history.stop();
+		byte[] buffer = sink.queue.poll();
+		pool.acquire(buffer);
+
+		assertFalse(history.offer(buffer, DESCRIPTOR, pool, 3 * FRAME_NANOS));
+		pool.release(buffer);
+
+		assertEquals(2, history.getFrameCount());
+		assertEquals(4, pool.getFreeCount());
+	}
+
+}
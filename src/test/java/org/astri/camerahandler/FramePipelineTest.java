@@ -0,0 +1,248 @@
+package org.astri.camerahandler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.graphics.ImageFormat;
+
+public class FramePipelineTest {
+
+	private static final FrameDescriptor DESCRIPTOR = new FrameDescriptor(ImageFormat.NV21,
+			4, 4, 90, 0, true);
+
+	/**
+	 * Consumer recording the frame numbers it processed. The first frame
+	 * waits for {@link #unblock()}, so that the next ones queue up.
+	 */
+	private static class BlockingConsumer implements FramePipeline.FrameConsumer {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch released = new CountDownLatch(1);
+		private final List<Integer> processed = new ArrayList<Integer>();
+
+		@Override
+		public void processFrame(byte[] data, FrameDescriptor descriptor, PreviewBufferPool pool) {
+			started.countDown();
+			try {
+				released.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			synchronized (this) {
+				processed.add((int) data[0]);
+				notifyAll();
+			}
+		}
+
+		void unblock() {
+			released.countDown();
+		}
+
+		synchronized List<Integer> awaitProcessed(int count) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + 2000;
+			while (processed.size() < count && System.currentTimeMillis() < deadline) {
+				wait(100);
+			}
+			return new ArrayList<Integer>(processed);
+		}
+	}
+
+	private PreviewBufferPool pool;
+	private byte[][] buffers;
+	private FramePipeline pipeline;
+
+	@Before
+	public void setUp() {
+		final List<byte[]> queued = new ArrayList<byte[]>();
+		pool = new PreviewBufferPool(8, 16, new PreviewBufferPool.BufferSink() {
+			@Override
+			public void queueBuffer(byte[] buffer) {
+				queued.add(buffer);
+			}
+		});
+		pool.start();
+		buffers = queued.toArray(new byte[0][]);
+	}
+
+	@After
+	public void tearDown() {
+		if (pipeline != null) {
+			pipeline.stop();
+		}
+	}
+
+	/**
+	 * Acquires the buffer of the given frame number like a delivered frame.
+	 */
+	private byte[] frame(int number) {
+		byte[] buffer = buffers[number - 1];
+		buffer[0] = (byte) number;
+		assertTrue(pool.acquire(buffer));
+		return buffer;
+	}
+
+	private List<Integer> list(Integer... values) {
+		List<Integer> list = new ArrayList<Integer>();
+		for (Integer value : values) {
+			list.add(value);
+		}
+		return list;
+	}
+
+	@Test
+	public void keepLatestDropsOlderWaitingFrames() throws InterruptedException {
+		BlockingConsumer consumer = new BlockingConsumer();
+		pipeline = new FramePipeline(consumer, FramePipeline.DropPolicy.KEEP_LATEST, 1, 4);
+		pipeline.start();
+		assertTrue(pipeline.submit(frame(1), DESCRIPTOR, pool));
+		assertTrue(consumer.started.await(1, TimeUnit.SECONDS));
+
+		for (int i = 2; i <= 5; i++) {
+			assertTrue(pipeline.submit(frame(i), DESCRIPTOR, pool));
+		}
+		assertEquals(1, pipeline.getQueueCapacity());
+		assertEquals(1, pipeline.getQueueDepth());
+		consumer.unblock();
+
+		assertEquals(list(1, 5), consumer.awaitProcessed(2));
+		assertEquals(3, pipeline.getDroppedCount());
+		assertEquals(5, pipeline.getSubmittedCount());
+		pipeline.stop();
+		assertEquals(0, pool.getInFlightCount());
+	}
+
+	@Test
+	public void boundedQueueDropsTheOldestFrame() throws InterruptedException {
+		BlockingConsumer consumer = new BlockingConsumer();
+		pipeline = new FramePipeline(consumer, FramePipeline.DropPolicy.BOUNDED_QUEUE, 1, 2);
+		pipeline.start();
+		assertTrue(pipeline.submit(frame(1), DESCRIPTOR, pool));
+		assertTrue(consumer.started.await(1, TimeUnit.SECONDS));
+
+		for (int i = 2; i <= 5; i++) {
+			assertTrue(pipeline.submit(frame(i), DESCRIPTOR, pool));
+		}
+		assertEquals(2, pipeline.getQueueDepth());
+		assertEquals(2, pipeline.getMaxQueueDepth());
+		consumer.unblock();
+
+		assertEquals(list(1, 4, 5), consumer.awaitProcessed(3));
+		assertEquals(2, pipeline.getDroppedCount());
+		pipeline.stop();
+		assertEquals(0, pool.getInFlightCount());
+	}
+
+	@Test
+	public void blockWaitsForAFreeSlot() throws InterruptedException {
+		BlockingConsumer consumer = new BlockingConsumer();
+		pipeline = new FramePipeline(consumer, FramePipeline.DropPolicy.BLOCK, 1, 1);
+		pipeline.start();
+		assertTrue(pipeline.submit(frame(1), DESCRIPTOR, pool));
+		assertTrue(consumer.started.await(1, TimeUnit.SECONDS));
+		assertTrue(pipeline.submit(frame(2), DESCRIPTOR, pool));
+
+		final byte[] third = frame(3);
+		final AtomicBoolean accepted = new AtomicBoolean();
+		Thread camera = new Thread() {
+			@Override
+			public void run() {
+				accepted.set(pipeline.submit(third, DESCRIPTOR, pool));
+			}
+		};
+		camera.start();
+		Thread.sleep(FramePipeline.BLOCK_TIMEOUT_MILLIS / 4);
+		assertTrue("submit should wait while the queue is full", camera.isAlive());
+		consumer.unblock();
+		camera.join(1000);
+
+		assertTrue(accepted.get());
+		assertEquals(list(1, 2, 3), consumer.awaitProcessed(3));
+		assertEquals(0, pipeline.getDroppedCount());
+	}
+
+	@Test
+	public void blockDropsTheNewFrameAfterTheTimeout() throws InterruptedException {
+		BlockingConsumer consumer = new BlockingConsumer();
+		pipeline = new FramePipeline(consumer, FramePipeline.DropPolicy.BLOCK, 1, 1);
+		pipeline.start();
+		assertTrue(pipeline.submit(frame(1), DESCRIPTOR, pool));
+		assertTrue(consumer.started.await(1, TimeUnit.SECONDS));
+		assertTrue(pipeline.submit(frame(2), DESCRIPTOR, pool));
+
+		long start = System.nanoTime();
+		byte[] third = frame(3);
+		assertFalse(pipeline.submit(third, DESCRIPTOR, pool));
+		long waitedMillis = (System.nanoTime() - start) / 1000000;
+
+		assertTrue(waitedMillis >= FramePipeline.BLOCK_TIMEOUT_MILLIS - 5);
+		assertTrue(waitedMillis < FramePipeline.BLOCK_TIMEOUT_MILLIS * 10);
+		assertEquals(1, pipeline.getDroppedCount());
+		assertFalse("dropped frame goes back to the pool", pool.retain(third));
+		consumer.unblock();
+		assertEquals(list(1, 2), consumer.awaitProcessed(2));
+	}
+
+	@Test
+	public void failingConsumerIsCountedAndTheWorkerGoesOn() throws InterruptedException {
+		final List<Integer> processed = new ArrayList<Integer>();
+		FramePipeline.FrameConsumer consumer = new FramePipeline.FrameConsumer() {
+			@Override
+			public void processFrame(byte[] data, FrameDescriptor descriptor, PreviewBufferPool pool) {
+				if (data[0] == 1) {
+					throw new IllegalStateException("consumer bug");
+				}
+				synchronized (processed) {
+					processed.add((int) data[0]);
+					processed.notifyAll();
+				}
+			}
+		};
+		pipeline = new FramePipeline(consumer, FramePipeline.DropPolicy.BOUNDED_QUEUE, 1, 4);
+		pipeline.start();
+
+		assertTrue(pipeline.submit(frame(1), DESCRIPTOR, pool));
+		assertTrue(pipeline.submit(frame(2), DESCRIPTOR, pool));
+		synchronized (processed) {
+			long deadline = System.currentTimeMillis() + 2000;
+			while (processed.isEmpty() && System.currentTimeMillis() < deadline) {
+				processed.wait(100);
+			}
+		}
+		// waits for the worker to finish counting
+		pipeline.stop();
+
+		assertEquals(list(2), processed);
+		assertEquals(1, pipeline.getFailedCount());
+		assertEquals(2, pipeline.getProcessedCount());
+		assertEquals(0, pool.getInFlightCount());
+	}
+
+	@Test
+	public void stopReleasesWaitingFrames() throws InterruptedException {
+		BlockingConsumer consumer = new BlockingConsumer();
+		pipeline = new FramePipeline(consumer, FramePipeline.DropPolicy.BOUNDED_QUEUE, 1, 4);
+		pipeline.start();
+		assertTrue(pipeline.submit(frame(1), DESCRIPTOR, pool));
+		assertTrue(consumer.started.await(1, TimeUnit.SECONDS));
+		assertTrue(pipeline.submit(frame(2), DESCRIPTOR, pool));
+		assertTrue(pipeline.submit(frame(3), DESCRIPTOR, pool));
+
+		consumer.unblock();
+		pipeline.stop();
+
+		assertEquals(0, pool.getInFlightCount());
+		assertFalse(pipeline.submit(frame(4), DESCRIPTOR, pool));
+		assertEquals(0, pool.getInFlightCount());
+	}
+
+}
@@ -0,0 +1,127 @@
+package org.astri.camerahandler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	private static void assertWithin(long expected, long actual, double fraction) {
+		assertTrue("expected about " + expected + " but was " + actual,
+				Math.abs(actual - expected) <= expected * fraction);
+	}
+
+	@Test
+	public void valuesBelowEightHaveABucketEach() {
+		for (int micros = 0; micros < 8; micros++) {
+			assertEquals(micros, LatencyHistogram.bucketOf(micros));
+			assertEquals(micros, LatencyHistogram.valueOf(micros));
+		}
+	}
+
+	@Test
+	public void eachPowerOfTwoHasEightBuckets() {
+		assertEquals(8, LatencyHistogram.bucketOf(8));
+		assertEquals(15, LatencyHistogram.bucketOf(15));
+		assertEquals(16, LatencyHistogram.bucketOf(16));
+		assertEquals(16, LatencyHistogram.bucketOf(17));
+		assertEquals(17, LatencyHistogram.bucketOf(18));
+		assertEquals(24, LatencyHistogram.bucketOf(32));
+		assertEquals(24, LatencyHistogram.bucketOf(35));
+		assertEquals(25, LatencyHistogram.bucketOf(36));
+	}
+
+	@Test
+	public void bucketValuesStayWithinAnEighthOfTheRecordedValue() {
+		int previous = 0;
+		for (long micros = 1; micros < 10000000; micros += 1 + micros / 50) {
+			int bucket = LatencyHistogram.bucketOf(micros);
+			assertTrue(bucket >= previous);
+			assertWithin(micros, LatencyHistogram.valueOf(bucket), 0.125);
+			previous = bucket;
+		}
+	}
+
+	@Test
+	public void hugeValuesShareTheLastBucket() {
+		assertEquals(LatencyHistogram.bucketOf(Long.MAX_VALUE), LatencyHistogram.bucketOf(1L << 50));
+	}
+
+	@Test
+	public void percentilesOfAUniformRange() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int micros = 1; micros <= 1000; micros++) {
+			histogram.recordNanos(micros * 1000L);
+		}
+
+		CameraMetrics.HistogramSnapshot snapshot = histogram.snapshot();
+
+		assertEquals(1000, snapshot.getCount());
+		assertEquals(500.5, snapshot.getMeanMicros(), 0.001);
+		assertWithin(500, snapshot.getP50Micros(), 0.125);
+		assertWithin(900, snapshot.getP90Micros(), 0.125);
+		assertWithin(990, snapshot.getP99Micros(), 0.125);
+		assertEquals(1000, snapshot.getMaxMicros());
+	}
+
+	@Test
+	public void rareSlowValuesShowOnlyInTheTail() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 0; i < 989; i++) {
+			histogram.record(100);
+		}
+		for (int i = 0; i < 11; i++) {
+			histogram.record(10000);
+		}
+
+		CameraMetrics.HistogramSnapshot snapshot = histogram.snapshot();
+
+		assertWithin(100, snapshot.getP50Micros(), 0.125);
+		assertWithin(100, snapshot.getP90Micros(), 0.125);
+		assertWithin(10000, snapshot.getP99Micros(), 0.125);
+		assertTrue(snapshot.getP99Micros() <= snapshot.getMaxMicros());
+		assertEquals(10000, snapshot.getMaxMicros());
+	}
+
+	@Test
+	public void percentilesDontExceedTheMaximum() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		// below the middle of its bucket, 960 to 1023
+		histogram.record(970);
+
+		CameraMetrics.HistogramSnapshot snapshot = histogram.snapshot();
+
+		assertEquals(992, LatencyHistogram.valueOf(LatencyHistogram.bucketOf(970)));
+		assertEquals(970, snapshot.getP50Micros());
+		assertEquals(970, snapshot.getP99Micros());
+	}
+
+	@Test
+	public void negativeDurationsCountAsZero() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(-5);
+
+		CameraMetrics.HistogramSnapshot snapshot = histogram.snapshot();
+
+		assertEquals(1, snapshot.getCount());
+		assertEquals(0, snapshot.getP50Micros());
+		assertEquals(0, snapshot.getMaxMicros());
+	}
+
+	@Test
+	public void resetEmptiesTheHistogram() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(300);
+		histogram.record(70000);
+
+		histogram.reset();
+		CameraMetrics.HistogramSnapshot snapshot = histogram.snapshot();
+
+		assertEquals(0, snapshot.getCount());
+		assertEquals(0.0, snapshot.getMeanMicros(), 0);
+		assertEquals(0, snapshot.getP99Micros());
+		assertEquals(0, snapshot.getMaxMicros());
+	}
+
+}
@@ -0,0 +1,210 @@
+package org.astri.camerahandler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.hardware.Camera.CameraInfo;
+
+public class PhotoTakerTest {
+
+	private static final long CAPTURE_DELAY_MILLIS = 20;
+
+	/**
+	 * Passes the JPEG through after sleeping, a decoder of a slow phone.
+	 */
+	private static class SlowDecoder extends PhotoDecoder {
+		private final long decodeMillis;
+
+		SlowDecoder(long decodeMillis) {
+			super(PhotoDecoder.OUTPUT_JPEG, 0, 0);
+			this.decodeMillis = decodeMillis;
+		}
+
+		long getDecodeMillis(byte[] jpeg) {
+			return decodeMillis;
+		}
+
+		@Override
+		public ByteBuffer decode(byte[] jpeg, int width, int height) {
+			try {
+				Thread.sleep(getDecodeMillis(jpeg));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return super.decode(jpeg, width, height);
+		}
+	}
+
+	/**
+	 * Records when preview restarted and when photos arrived.
+	 */
+	private static class Recorder implements PhotoListener, PhotoTaker.CaptureListener {
+		final List<byte[]> photos = new ArrayList<byte[]>();
+		long restartNanos;
+		long photoNanos;
+		int captures;
+
+		@Override
+		public synchronized void captureFinished(PhotoTaker taker, boolean success) {
+			assertTrue(success);
+			restartNanos = System.nanoTime();
+			captures++;
+			notifyAll();
+		}
+
+		@Override
+		public synchronized void photoCaptured(byte[] data, int width, int height,
+				float screenAspectRatio) {
+			photos.add(data);
+			photoNanos = System.nanoTime();
+			notifyAll();
+		}
+
+		synchronized void awaitCaptures(int count) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + 2000;
+			while (captures < count && System.currentTimeMillis() < deadline) {
+				wait(50);
+			}
+			assertEquals(count, captures);
+		}
+
+		synchronized void awaitPhotos(int count, long timeoutMillis) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + timeoutMillis;
+			while (photos.size() < count && System.currentTimeMillis() < deadline) {
+				wait(50);
+			}
+		}
+	}
+
+	private FakeCameraDevice camera;
+	private ExecutorService decodeExecutor;
+	private Recorder recorder;
+	private PhotoTaker taker;
+
+	@Before
+	public void setUp() {
+		camera = new FakeCameraDevice(CameraInfo.CAMERA_FACING_BACK, 90);
+		camera.setDelays(CAPTURE_DELAY_MILLIS, 0);
+		camera.open(null);
+		camera.startPreview();
+		decodeExecutor = Executors.newSingleThreadExecutor();
+		recorder = new Recorder();
+		taker = new PhotoTaker(recorder, PhotoTaker.PHOTO_ASPECT_RATIO,
+				PhotoTaker.PHOTO_ASPECT_RATIO_LIMIT, PhotoTaker.PHOTO_MAX_PIXELS);
+		taker.setCaptureListener(recorder);
+		taker.setDecodeExecutor(decodeExecutor);
+	}
+
+	@After
+	public void tearDown() throws InterruptedException {
+		camera.release();
+		decodeExecutor.shutdownNow();
+		decodeExecutor.awaitTermination(1, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * @return milliseconds from the request until preview ran again
+	 */
+	private long restartLatency(long decodeMillis) throws InterruptedException {
+		taker.setDecoder(new SlowDecoder(decodeMillis));
+		int photos = recorder.photos.size();
+		long start = System.nanoTime();
+		assertTrue(taker.takePhoto(camera));
+		recorder.awaitCaptures(recorder.captures + 1);
+		assertTrue(camera.isPreviewRunning());
+		recorder.awaitPhotos(photos + 1, decodeMillis + 2000);
+		assertEquals(photos + 1, recorder.photos.size());
+		assertTrue("photo delivered after its decode",
+				recorder.photoNanos - recorder.restartNanos >= (decodeMillis - 5) * 1000000);
+		return (recorder.restartNanos - start) / 1000000;
+	}
+
+	@Test
+	public void previewRestartDoesNotWaitForTheDecode() throws InterruptedException {
+		long fast = restartLatency(10);
+		long slow = restartLatency(600);
+
+		assertTrue("restart took " + fast + " ms", fast < CAPTURE_DELAY_MILLIS + 150);
+		assertTrue("restart took " + slow + " ms", slow < CAPTURE_DELAY_MILLIS + 150);
+	}
+
+	@Test
+	public void photosAreDeliveredInCaptureOrder() throws InterruptedException {
+		taker.setDecoder(new SlowDecoder(50) {
+			@Override
+			long getDecodeMillis(byte[] jpeg) {
+				// later photos decode faster, but must wait for the first
+				return jpeg[2] == 0 ? 200 : super.getDecodeMillis(jpeg);
+			}
+		});
+		byte[][] jpegs = new byte[3][];
+		for (int i = 0; i < jpegs.length; i++) {
+			jpegs[i] = new byte[] { (byte) 0xff, (byte) 0xd8, (byte) i, (byte) 0xff, (byte) 0xd9 };
+			camera.setJpeg(jpegs[i]);
+			assertTrue(taker.takePhoto(camera));
+			recorder.awaitCaptures(i + 1);
+		}
+
+		recorder.awaitPhotos(jpegs.length, 2000);
+
+		assertEquals(jpegs.length, recorder.photos.size());
+		for (int i = 0; i < jpegs.length; i++) {
+			assertSame(jpegs[i], recorder.photos.get(i));
+		}
+	}
+
+	@Test
+	public void cancelledCapturesAreNotDelivered() throws InterruptedException {
+		taker.setDecoder(new SlowDecoder(200));
+		assertTrue(taker.takePhoto(camera));
+		recorder.awaitCaptures(1);
+
+		taker.cancelPendingCaptures();
+		recorder.awaitPhotos(1, 500);
+
+		assertEquals(0, recorder.photos.size());
+		assertTrue(camera.isPreviewRunning());
+	}
+
+	@Test
+	public void shutterSplitsTheCaptureTime() throws InterruptedException {
+		CameraMetrics metrics = new CameraMetrics();
+		taker.setMetrics(metrics);
+		taker.setDecoder(new SlowDecoder(0));
+
+		assertTrue(taker.takePhoto(camera));
+		recorder.awaitCaptures(1);
+
+		CameraMetrics.Snapshot snapshot = metrics.snapshot();
+		assertEquals(1, snapshot.getShutterLag().getCount());
+		assertEquals(1, snapshot.getJpegTime().getCount());
+		// the fake exposes at once and takes the capture delay for the JPEG
+		assertTrue(snapshot.getShutterLag().getMaxMicros() < CAPTURE_DELAY_MILLIS * 1000 / 2);
+		assertTrue(snapshot.getJpegTime().getMaxMicros() >= (CAPTURE_DELAY_MILLIS - 5) * 1000);
+	}
+
+	@Test
+	public void secondPhotoIsRefusedWhileCapturing() throws InterruptedException {
+		taker.setDecoder(new SlowDecoder(0));
+		assertTrue(taker.takePhoto(camera));
+
+		assertFalse(taker.takePhoto(camera));
+		recorder.awaitCaptures(1);
+		assertTrue(taker.takePhoto(camera));
+		recorder.awaitCaptures(2);
+	}
+
+}
@@ -0,0 +1,156 @@
+package org.astri.camerahandler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class PreviewBufferPoolTest {
+
+	@Test
+	public void startQueuesEveryBuffer() {
+		QueueSink sink = new QueueSink();
+		PreviewBufferPool pool = new PreviewBufferPool(3, 100, sink);
+
+		pool.start();
+
+		assertEquals(3, sink.queue.size());
+		assertEquals(3, pool.getFreeCount());
+		assertEquals(0, pool.getInFlightCount());
+	}
+
+	@Test
+	public void bufferIsQueuedAgainWhenTheLastHolderReleases() {
+		QueueSink sink = new QueueSink();
+		PreviewBufferPool pool = new PreviewBufferPool(2, 100, sink);
+		pool.start();
+		byte[] buffer = sink.queue.poll();
+
+		assertTrue(pool.acquire(buffer));
+		assertTrue(pool.retain(buffer));
+		assertTrue(pool.release(buffer));
+		assertFalse(sink.queue.contains(buffer));
+		assertTrue(pool.release(buffer));
+
+		assertTrue(sink.queue.contains(buffer));
+		assertEquals(2, pool.getFreeCount());
+		assertFalse(pool.release(buffer));
+	}
+
+	@Test
+	public void foreignAndDoubleAcquiredBuffersAreRejected() {
+		QueueSink sink = new QueueSink();
+		PreviewBufferPool pool = new PreviewBufferPool(2, 100, sink);
+		pool.start();
+		byte[] buffer = sink.queue.poll();
+
+		assertFalse(pool.acquire(new byte[100]));
+		assertTrue(pool.acquire(buffer));
+		assertFalse(pool.acquire(buffer));
+		assertEquals(1, pool.getInFlightCount());
+	}
+
+	@Test
+	public void closedPoolRejectsFramesAndKeepsItsBuffers() {
+		QueueSink sink = new QueueSink();
+		PreviewBufferPool pool = new PreviewBufferPool(2, 100, sink);
+		pool.start();
+		byte[] held = sink.queue.poll();
+		byte[] late = sink.queue.poll();
+		assertTrue(pool.acquire(held));
+
+		pool.close();
+
+		assertFalse(pool.acquire(late));
+		assertEquals(0, pool.getFreeCount());
+		assertEquals(0, pool.getDroppedCount());
+		assertTrue(pool.release(held));
+		assertTrue(sink.queue.isEmpty());
+		assertEquals(0, pool.getInFlightCount());
+	}
+
+	@Test
+	public void emptyQueueCountsAsDrop() {
+		QueueSink sink = new QueueSink();
+		PreviewBufferPool pool = new PreviewBufferPool(2, 100, sink);
+		pool.start();
+
+		assertTrue(pool.acquire(sink.queue.poll()));
+		assertEquals(0, pool.getDroppedCount());
+		assertTrue(pool.acquire(sink.queue.poll()));
+		assertEquals(1, pool.getDroppedCount());
+	}
+
+	/**
+	 * A driver much faster than the consumer: frames are dropped in the
+	 * driver, but no buffer is written while a consumer holds it and every
+	 * buffer comes back.
+	 */
+	@Test
+	public void fastDriverNeverWritesIntoHeldBuffers() throws InterruptedException {
+		final QueueSink sink = new QueueSink();
+		final PreviewBufferPool pool = new PreviewBufferPool(4, 64, sink);
+		final ConcurrentHashMap<byte[], Boolean> held = new ConcurrentHashMap<byte[], Boolean>();
+		final AtomicInteger overwrites = new AtomicInteger();
+		final AtomicInteger consumed = new AtomicInteger();
+		ExecutorService consumer = Executors.newSingleThreadExecutor();
+		pool.start();
+
+		int driverDrops = 0;
+		int frames = 400;
+		for (int frame = 0; frame < frames; frame++) {
+			final byte[] buffer = sink.queue.poll();
+			if (buffer == null) {
+				driverDrops++;
+			} else {
+				if (held.containsKey(buffer)) {
+					overwrites.incrementAndGet();
+				}
+				buffer[0] = (byte) frame;
+				assertTrue(pool.acquire(buffer));
+				held.put(buffer, Boolean.TRUE);
+				final byte expected = (byte) frame;
+				consumer.execute(new Runnable() {
+					@Override
+					public void run() {
+						sleepMicros(5000);
+						if (buffer[0] != expected) {
+							overwrites.incrementAndGet();
+						}
+						consumed.incrementAndGet();
+						held.remove(buffer);
+						pool.release(buffer);
+					}
+				});
+			}
+			sleepMicros(200);
+		}
+		consumer.shutdown();
+		assertTrue(consumer.awaitTermination(10, TimeUnit.SECONDS));
+
+		assertEquals(0, overwrites.get());
+		assertTrue("driver should have dropped frames", driverDrops > 0);
+		assertTrue(pool.getDroppedCount() > 0);
+		assertEquals(frames - driverDrops, consumed.get());
+		assertEquals(consumed.get(), pool.getDeliveredCount());
+		assertEquals(0, pool.getInFlightCount());
+		assertEquals(4, pool.getFreeCount());
+		assertEquals(4, sink.queue.size());
+	}
+
+	private static void sleepMicros(long micros) {
+		try {
+			TimeUnit.MICROSECONDS.sleep(micros);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
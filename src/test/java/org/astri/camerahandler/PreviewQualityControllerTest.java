@@ -0,0 +1,222 @@
+package org.astri.camerahandler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class PreviewQualityControllerTest {
+
+	private static final long WINDOW_NANOS = PreviewQualityController.WINDOW_MILLIS * 1000000;
+	private static final float OVERLOADED = 0.9f;
+	private static final float IDLE = 0.1f;
+
+	private static final CameraCapabilities CAPABILITIES = new CameraCapabilities(
+			Arrays.asList(new CameraSize(1280, 720), new CameraSize(640, 480),
+					new CameraSize(320, 180), new CameraSize(960, 540), new CameraSize(640, 360)),
+			Collections.<CameraSize>emptyList(), Collections.<String>emptyList(), 0,
+			Arrays.asList(new CameraFpsRange(30000, 30000), new CameraFpsRange(15000, 30000),
+					new CameraFpsRange(15000, 24000), new CameraFpsRange(7000, 15000)));
+
+	private static final CameraSize CHOSEN = new CameraSize(1280, 720);
+
+	private PreviewQualityController controller;
+	private long nowNanos;
+	private long drops;
+
+	@Before
+	public void setUp() {
+		controller = new PreviewQualityController();
+	}
+
+	private void start() {
+		controller.start(CAPABILITIES, CHOSEN);
+		controller.restartWindow(nowNanos, drops);
+	}
+
+	/**
+	 * Ends a window in which the listener was busy for the given share of
+	 * the time.
+	 * @return true if the level changed
+	 */
+	private boolean window(float load, int newDrops) {
+		controller.frameProcessed((long) (load * WINDOW_NANOS));
+		nowNanos += WINDOW_NANOS;
+		drops += newDrops;
+		return controller.evaluate(nowNanos, drops);
+	}
+
+	private boolean window(float load) {
+		return window(load, 0);
+	}
+
+	/**
+	 * Passes the windows skipped after a level change.
+	 */
+	private void settle() {
+		for (int i = 0; i < PreviewQualityController.SETTLE_WINDOWS; i++) {
+			assertFalse(window(OVERLOADED, 1));
+		}
+	}
+
+	/**
+	 * Overloads until the level steps down and applies it.
+	 */
+	private void stepDown() {
+		settle();
+		for (int i = 1; i < PreviewQualityController.DOWN_WINDOWS; i++) {
+			assertFalse(window(OVERLOADED));
+		}
+		assertTrue(window(OVERLOADED));
+		controller.restartWindow(nowNanos, drops);
+	}
+
+	private String level() {
+		return controller.getSize() + " " + controller.getFpsRange();
+	}
+
+	@Test
+	public void levelsStartAtTheChosenSizeAndFastestWidestRange() {
+		start();
+
+		assertEquals("1280x720 [15.0, 30.0]", level());
+	}
+
+	@Test
+	public void settleWindowsAreSkipped() {
+		start();
+
+		settle();
+
+		assertEquals("1280x720 [15.0, 30.0]", level());
+		assertEquals(OVERLOADED, controller.getLastLoad(), 0.001);
+	}
+
+	@Test
+	public void steppingDownTakesConsecutiveOverloadedWindows() {
+		start();
+		settle();
+
+		for (int i = 1; i < PreviewQualityController.DOWN_WINDOWS; i++) {
+			assertFalse(window(OVERLOADED));
+		}
+		assertFalse(window(0.5f));
+		for (int i = 1; i < PreviewQualityController.DOWN_WINDOWS; i++) {
+			assertFalse(window(OVERLOADED));
+		}
+		assertTrue(window(OVERLOADED));
+
+		// frame rate first, keeping the resolution
+		assertEquals("1280x720 [15.0, 24.0]", level());
+	}
+
+	@Test
+	public void droppedFramesCountAsOverloaded() {
+		start();
+		settle();
+
+		for (int i = 1; i < PreviewQualityController.DOWN_WINDOWS; i++) {
+			assertFalse(window(IDLE, 1));
+		}
+
+		assertTrue(window(IDLE, 1));
+	}
+
+	@Test
+	public void steppingUpTakesConsecutiveIdleWindows() {
+		start();
+		stepDown();
+		settle();
+
+		for (int i = 1; i < PreviewQualityController.UP_WINDOWS; i++) {
+			assertFalse(window(IDLE));
+		}
+		// 0.6 at 24 fps is 0.75 at 30, too much to step up
+		assertFalse(window(0.6f));
+		for (int i = 1; i < PreviewQualityController.UP_WINDOWS; i++) {
+			assertFalse(window(IDLE));
+		}
+		assertTrue(window(IDLE));
+
+		assertEquals("1280x720 [15.0, 30.0]", level());
+	}
+
+	@Test
+	public void noStepUpAboveTheChosenLevel() {
+		start();
+		settle();
+
+		for (int i = 0; i < PreviewQualityController.UP_WINDOWS * 2; i++) {
+			assertFalse(window(IDLE));
+		}
+
+		assertEquals("1280x720 [15.0, 30.0]", level());
+	}
+
+	@Test
+	public void floorIsRespected() {
+		controller.setFloor(640, 360, 24);
+		start();
+
+		stepDown();
+		assertEquals("1280x720 [15.0, 24.0]", level());
+		stepDown();
+		assertEquals("960x540 [15.0, 24.0]", level());
+		stepDown();
+		assertEquals("640x360 [15.0, 24.0]", level());
+
+		settle();
+		for (int i = 0; i < PreviewQualityController.DOWN_WINDOWS * 3; i++) {
+			assertFalse(window(OVERLOADED, 1));
+		}
+		assertEquals("640x360 [15.0, 24.0]", level());
+	}
+
+	@Test
+	public void powerSavingStepsTheSizeFirst() {
+		controller.setPowerSaving(true);
+		start();
+		// capped to half the pixels of the chosen size
+		assertEquals("640x360 [15.0, 30.0]", level());
+
+		stepDown();
+
+		assertEquals("320x180 [15.0, 30.0]", level());
+	}
+
+	@Test
+	public void powerSavingCapsSteppingUp() {
+		controller.setPowerSaving(true);
+		start();
+		stepDown();
+		settle();
+
+		for (int i = 1; i < PreviewQualityController.UP_WINDOWS; i++) {
+			assertFalse(window(IDLE));
+		}
+		assertTrue(window(IDLE));
+		controller.restartWindow(nowNanos, drops);
+		assertEquals("640x360 [15.0, 30.0]", level());
+
+		settle();
+		for (int i = 0; i < PreviewQualityController.UP_WINDOWS * 2; i++) {
+			assertFalse(window(IDLE));
+		}
+		assertEquals("640x360 [15.0, 30.0]", level());
+	}
+
+	@Test
+	public void enablingPowerSavingLowersALargerSize() {
+		start();
+
+		assertTrue(controller.setPowerSaving(true));
+		assertEquals("640x360 [15.0, 30.0]", level());
+		assertFalse(controller.setPowerSaving(true));
+	}
+
+}
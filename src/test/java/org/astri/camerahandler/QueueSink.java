@@ -0,0 +1,19 @@
+package org.astri.camerahandler;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Buffer sink for tests, standing in for the driver's queue of preview
+ * buffers.
+ */
+class QueueSink implements PreviewBufferPool.BufferSink {
+
+	final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(16);
+
+	@Override
+	public void queueBuffer(byte[] buffer) {
+		queue.add(buffer);
+	}
+
+}
@@ -0,0 +1,120 @@
+package org.astri.camerahandler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Data listener for tests, counts the frames and keeps the photos and
+ * markers delivered, with waits for them.
+ */
+class RecordingListener implements CameraDataListener {
+
+	private int frameCount;
+	private int frameWidth;
+	private int frameHeight;
+	private final List<byte[]> photos = new ArrayList<byte[]>();
+	private final List<byte[]> markers = new ArrayList<byte[]>();
+	private int markerWidth;
+	private int markerHeight;
+
+	@Override
+	public synchronized void receiveCameraFrame(byte[] data, int width, int height,
+			boolean backCamera, int imageFormat, int imageOrientation) {
+		frameCount++;
+		frameWidth = width;
+		frameHeight = height;
+		notifyAll();
+	}
+
+	@Override
+	public synchronized void receivePhotoFrame(byte[] data, int width, int height) {
+		photos.add(data);
+		notifyAll();
+	}
+
+	@Override
+	public synchronized void receiveMarkerFrame(byte[] data, int width, int height,
+			float screenAspectRatio) {
+		markers.add(data);
+		markerWidth = width;
+		markerHeight = height;
+		notifyAll();
+	}
+
+	synchronized int getFrameCount() {
+		return frameCount;
+	}
+
+	synchronized int getFrameWidth() {
+		return frameWidth;
+	}
+
+	synchronized int getFrameHeight() {
+		return frameHeight;
+	}
+
+	synchronized List<byte[]> getPhotos() {
+		return new ArrayList<byte[]>(photos);
+	}
+
+	synchronized List<byte[]> getMarkers() {
+		return new ArrayList<byte[]>(markers);
+	}
+
+	synchronized int getMarkerWidth() {
+		return markerWidth;
+	}
+
+	synchronized int getMarkerHeight() {
+		return markerHeight;
+	}
+
+	/**
+	 * Waits until the given number of frames was received in total.
+	 * @return false on timeout
+	 */
+	synchronized boolean awaitFrames(int count, long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (frameCount < count) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				return false;
+			}
+			wait(remaining);
+		}
+		return true;
+	}
+
+	/**
+	 * Waits until the given number of photos was received in total.
+	 * @return false on timeout
+	 */
+	synchronized boolean awaitPhotos(int count, long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (photos.size() < count) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				return false;
+			}
+			wait(remaining);
+		}
+		return true;
+	}
+
+	/**
+	 * Waits until the given number of markers was received in total.
+	 * @return false on timeout
+	 */
+	synchronized boolean awaitMarkers(int count, long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (markers.size() < count) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				return false;
+			}
+			wait(remaining);
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,157 @@
+package org.astri.camerahandler;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class RoiScalerTest {
+
+	private static final int WIDTH = 160;
+	private static final int HEIGHT = 80;
+
+	/**
+	 * @return NV21 frame with luma x + y, V rising with x and U with y, no
+	 * value wraps at this size
+	 */
+	private static byte[] gradient(int width, int height) {
+		byte[] nv21 = new byte[width * height * 3 / 2];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				nv21[y * width + x] = (byte) (x + y);
+			}
+		}
+		for (int y = 0; y < height / 2; y++) {
+			for (int x = 0; x < width / 2; x++) {
+				int uv = width * height + y * width + x * 2;
+				nv21[uv] = (byte) (16 + x);
+				nv21[uv + 1] = (byte) (16 + y);
+			}
+		}
+		return nv21;
+	}
+
+	private static int at(byte[] data, int index) {
+		return data[index] & 0xff;
+	}
+
+	@Test
+	public void cropCopiesTheRegion() {
+		byte[] frame = gradient(WIDTH, HEIGHT);
+		FrameRoi roi = new FrameRoi(0.25f, 0.25f, 0.5f, 0.5f, 1, false, FrameRoi.FORMAT_LUMA);
+		int outWidth = roi.getOutputWidth(WIDTH);
+		int outHeight = roi.getOutputHeight(HEIGHT);
+		byte[] out = new byte[roi.getOutputSize(WIDTH, HEIGHT)];
+
+		RoiScaler.scale(frame, WIDTH, HEIGHT, roi, out);
+
+		assertEquals(80, outWidth);
+		assertEquals(40, outHeight);
+		for (int y = 0; y < outHeight; y++) {
+			for (int x = 0; x < outWidth; x++) {
+				assertEquals((40 + x) + (20 + y), at(out, y * outWidth + x));
+			}
+		}
+	}
+
+	@Test
+	public void boxAverageOfALinearGradientIsTheBlockCenter() {
+		byte[] frame = gradient(WIDTH, HEIGHT);
+		FrameRoi roi = new FrameRoi(0, 0, 0.5f, 0.5f, 4, false, FrameRoi.FORMAT_LUMA);
+		int outWidth = roi.getOutputWidth(WIDTH);
+		int outHeight = roi.getOutputHeight(HEIGHT);
+		byte[] out = new byte[roi.getOutputSize(WIDTH, HEIGHT)];
+
+		RoiScaler.scale(frame, WIDTH, HEIGHT, roi, out);
+
+		assertEquals(20, outWidth);
+		assertEquals(10, outHeight);
+		for (int y = 0; y < outHeight; y++) {
+			for (int x = 0; x < outWidth; x++) {
+				// block of 4x4 from x * 4, y * 4 averages to its center, + 1.5 + 1.5
+				assertEquals(x * 4 + y * 4 + 3, at(out, y * outWidth + x));
+			}
+		}
+	}
+
+	@Test
+	public void boxAverageMatchesAReference() {
+		byte[] frame = gradient(WIDTH, HEIGHT);
+		FrameRoi roi = new FrameRoi(0.1f, 0.2f, 0.6f, 0.7f, 3, false, FrameRoi.FORMAT_LUMA);
+		int left = roi.getCropLeft(WIDTH);
+		int top = roi.getCropTop(HEIGHT);
+		int outWidth = roi.getOutputWidth(WIDTH);
+		int outHeight = roi.getOutputHeight(HEIGHT);
+		byte[] out = new byte[roi.getOutputSize(WIDTH, HEIGHT)];
+
+		RoiScaler.scale(frame, WIDTH, HEIGHT, roi, out);
+
+		for (int y = 0; y < outHeight; y++) {
+			for (int x = 0; x < outWidth; x++) {
+				int sum = 0;
+				for (int by = 0; by < 3; by++) {
+					for (int bx = 0; bx < 3; bx++) {
+						sum += at(frame, (top + y * 3 + by) * WIDTH + left + x * 3 + bx);
+					}
+				}
+				assertEquals(Math.round(sum / 9f), at(out, y * outWidth + x));
+			}
+		}
+	}
+
+	@Test
+	public void bilinearSamplesTheBlockCenter() {
+		byte[] frame = gradient(WIDTH, HEIGHT);
+		FrameRoi roi = new FrameRoi(0, 0, 1, 1, 8, true, FrameRoi.FORMAT_LUMA);
+		int outWidth = roi.getOutputWidth(WIDTH);
+		int outHeight = roi.getOutputHeight(HEIGHT);
+		byte[] out = new byte[roi.getOutputSize(WIDTH, HEIGHT)];
+
+		RoiScaler.scale(frame, WIDTH, HEIGHT, roi, out);
+
+		for (int y = 0; y < outHeight; y++) {
+			for (int x = 0; x < outWidth; x++) {
+				// pixels 3 and 4 of the block in x and y, centered at + 3.5 + 3.5
+				assertEquals(x * 8 + y * 8 + 7, at(out, y * outWidth + x));
+			}
+		}
+	}
+
+	@Test
+	public void chromaPairsStayTogether() {
+		byte[] frame = gradient(WIDTH, HEIGHT);
+		FrameRoi roi = new FrameRoi(0.5f, 0.5f, 0.5f, 0.5f, 2, false, FrameRoi.FORMAT_NV21);
+		int outWidth = roi.getOutputWidth(WIDTH);
+		int outHeight = roi.getOutputHeight(HEIGHT);
+		byte[] out = new byte[roi.getOutputSize(WIDTH, HEIGHT)];
+
+		RoiScaler.scale(frame, WIDTH, HEIGHT, roi, out);
+
+		assertEquals(outWidth * outHeight * 3 / 2, out.length);
+		int chromaLeft = WIDTH / 4;
+		int chromaTop = HEIGHT / 4;
+		for (int y = 0; y < outHeight / 2; y++) {
+			for (int x = 0; x < outWidth / 2; x++) {
+				int uv = outWidth * outHeight + y * outWidth + x * 2;
+				// average of 2x2 chroma samples from chromaLeft + 2x, rounded up
+				assertEquals(16 + chromaLeft + x * 2 + 1, at(out, uv));
+				assertEquals(16 + chromaTop + y * 2 + 1, at(out, uv + 1));
+			}
+		}
+	}
+
+	@Test
+	public void centeredHalfAtHalfResolutionTouchesASixteenth() {
+		FrameRoi roi = FrameRoi.centered(0.5f, 2, FrameRoi.FORMAT_LUMA);
+
+		assertEquals(640 * 480 / 16, roi.getOutputSize(640, 480));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void tooSmallOutputIsRejected() {
+		FrameRoi roi = FrameRoi.centered(0.5f, 2, FrameRoi.FORMAT_NV21);
+		byte[] out = new byte[roi.getOutputSize(WIDTH, HEIGHT) - 1];
+
+		RoiScaler.scale(gradient(WIDTH, HEIGHT), WIDTH, HEIGHT, roi, out);
+	}
+
+}
@@ -0,0 +1,66 @@
+package org.astri.camerahandler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class SharpnessMeterTest {
+
+	private static final int WIDTH = 640;
+	private static final int HEIGHT = 480;
+
+	private static float score(byte[] nv21) {
+		return SharpnessMeter.score(nv21, WIDTH, HEIGHT,
+				SharpnessMeter.getStep(WIDTH, HEIGHT, SharpnessMeter.DEFAULT_GRID_SIZE));
+	}
+
+	@Test
+	public void flatFrameScoresZero() {
+		byte[] flat = new byte[WIDTH * HEIGHT * 3 / 2];
+		Arrays.fill(flat, (byte) 90);
+
+		assertEquals(0, score(flat), 0);
+	}
+
+	@Test
+	public void moreBlurScoresLower() {
+		byte[] sharp = new SyntheticScene(WIDTH, HEIGHT, 1, 7).frame(WIDTH, HEIGHT, 0, 0, 0);
+		byte[] slightlyBlurred = SyntheticScene.blurFrame(sharp, WIDTH, HEIGHT, 1);
+		byte[] blurred = SyntheticScene.blurFrame(sharp, WIDTH, HEIGHT, 3);
+
+		float sharpScore = score(sharp);
+		float slightlyBlurredScore = score(slightlyBlurred);
+		float blurredScore = score(blurred);
+
+		assertTrue(sharpScore + " > " + slightlyBlurredScore, sharpScore > slightlyBlurredScore);
+		assertTrue(slightlyBlurredScore + " > " + blurredScore, slightlyBlurredScore > blurredScore);
+		assertTrue(blurredScore > 0);
+	}
+
+	@Test
+	public void brightnessDoesntChangeTheScore() {
+		SyntheticScene scene = new SyntheticScene(WIDTH, HEIGHT, 2, 7);
+
+		// stays clear of clipping, the scene averages to mid gray
+		assertEquals(score(scene.frame(WIDTH, HEIGHT, 0, 0, 0)),
+				score(scene.frame(WIDTH, HEIGHT, 0, 0, 20)), 0.001);
+	}
+
+	@Test
+	public void analyzerReportsTheSharperFrameHigher() {
+		byte[] sharp = new SyntheticScene(WIDTH, HEIGHT, 1, 7).frame(WIDTH, HEIGHT, 0, 0, 0);
+		byte[] blurred = SyntheticScene.blurFrame(sharp, WIDTH, HEIGHT, 2);
+		FrameAnalyzer analyzer = new FrameAnalyzer();
+		FrameAnalysis analysis = new FrameAnalysis();
+
+		analyzer.analyze(sharp, WIDTH, HEIGHT, 0, analysis);
+		float sharpScore = analysis.getSharpness();
+		analyzer.analyze(blurred, WIDTH, HEIGHT, 0, analysis);
+
+		assertTrue(sharpScore > analysis.getSharpness());
+	}
+
+}
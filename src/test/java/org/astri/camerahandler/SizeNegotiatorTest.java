@@ -0,0 +1,178 @@
+package org.astri.camerahandler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SizeNegotiatorTest {
+
+	// the lists of SizeNegotiationBenchmark
+	private static final int[][] PREVIEW_SIZES = {
+		{1920, 1080}, {1440, 1080}, {1280, 960}, {1280, 720}, {960, 720}, {960, 540},
+		{800, 480}, {768, 432}, {720, 480}, {640, 480}, {640, 360}, {576, 432},
+		{480, 320}, {384, 288}, {352, 288}, {320, 240}, {240, 160}, {176, 144},
+	};
+
+	private static final int[][] PICTURE_SIZES = {
+		{4160, 3120}, {4160, 2340}, {4000, 3000}, {3840, 2160}, {3264, 2448}, {3264, 1836},
+		{3200, 2400}, {2976, 2976}, {2592, 1944}, {2592, 1458}, {2560, 1920}, {2560, 1440},
+		{2048, 1536}, {2048, 1152}, {1920, 1440}, {1920, 1080}, {1600, 1200}, {1440, 1080},
+		{1280, 960}, {1280, 768}, {1280, 720}, {1024, 768}, {800, 600}, {800, 480},
+		{720, 480}, {640, 480}, {640, 360}, {480, 360}, {352, 288}, {320, 240},
+	};
+
+	private static final int PICTURE_BUDGET = 2048 * 1600;
+
+	/** preset, picture aspect, expected preview, picture and zero shutter lag */
+	private static final Object[][] EXPECTED = {
+		{"640x480", 1.7778f, "640x480", "2048x1152", true},
+		{"640x480", 1.3333f, "640x480", "2048x1536", true},
+		{"1280x720", 1.7778f, "1280x720", "2048x1152", false},
+		{"1280x720", 1.3333f, "1280x720", "2048x1536", false},
+		{"1920x1080", 1.7778f, "1920x1080", "2048x1152", false},
+		{"1920x1080", 1.3333f, "1920x1080", "2048x1536", false},
+	};
+
+	private static List<CameraSize> toSizes(int[][] sizes) {
+		List<CameraSize> result = new ArrayList<CameraSize>();
+		for (int[] size : sizes) {
+			result.add(new CameraSize(size[0], size[1]));
+		}
+		return result;
+	}
+
+	private static SizeNegotiator.Request request(String preset, float pictureAspect,
+			int pictureMaxPixels) {
+		String[] size = preset.split("x");
+		return new SizeNegotiator.Request(Integer.parseInt(size[0]), Integer.parseInt(size[1]),
+				0, pictureAspect, 0.01f, pictureMaxPixels, 640 * 480, 1.3333f);
+	}
+
+	private static String describe(SizeNegotiator.Result result) {
+		return result.getPreviewSize() + " " + result.getPictureSize() + " "
+				+ result.isZeroShutterLag();
+	}
+
+	@Test
+	public void recordedListsGiveTheExpectedPairs() {
+		List<CameraSize> previewSizes = toSizes(PREVIEW_SIZES);
+		List<CameraSize> pictureSizes = toSizes(PICTURE_SIZES);
+		for (Object[] expected : EXPECTED) {
+			SizeNegotiator.Result result = SizeNegotiator.choose(previewSizes, pictureSizes,
+					request((String) expected[0], (Float) expected[1], PICTURE_BUDGET));
+
+			assertEquals(expected[0] + " " + expected[1],
+					expected[2] + " " + expected[3] + " " + expected[4], describe(result));
+		}
+	}
+
+	@Test
+	public void shuffledListsGiveTheSameResult() {
+		Random random = new Random(1);
+		for (Object[] expected : EXPECTED) {
+			SizeNegotiator.Request request = request((String) expected[0], (Float) expected[1],
+					PICTURE_BUDGET);
+			String ordered = describe(SizeNegotiator.choose(toSizes(PREVIEW_SIZES),
+					toSizes(PICTURE_SIZES), request));
+			for (int i = 0; i < 20; i++) {
+				List<CameraSize> previewSizes = toSizes(PREVIEW_SIZES);
+				List<CameraSize> pictureSizes = toSizes(PICTURE_SIZES);
+				Collections.shuffle(previewSizes, random);
+				Collections.shuffle(pictureSizes, random);
+
+				assertEquals(ordered, describe(SizeNegotiator.choose(previewSizes, pictureSizes,
+						request)));
+			}
+		}
+	}
+
+	@Test
+	public void smallestPictureOfTheAspectWhenNoneFitsTheBudget() {
+		SizeNegotiator.Result result = SizeNegotiator.choose(toSizes(PREVIEW_SIZES),
+				toSizes(PICTURE_SIZES), request("1280x720", 1.7778f, 100 * 100));
+
+		assertEquals(new CameraSize(1280, 720), result.getPreviewSize());
+		assertEquals(new CameraSize(640, 360), result.getPictureSize());
+	}
+
+	@Test
+	public void noPictureWhenNoneIsRequested() {
+		SizeNegotiator.Result result = SizeNegotiator.choose(toSizes(PREVIEW_SIZES),
+				toSizes(PICTURE_SIZES), request("1280x720", 1.7778f, 0));
+
+		assertEquals(new CameraSize(1280, 720), result.getPreviewSize());
+		assertNull(result.getPictureSize());
+	}
+
+	@Test
+	public void emptyListsGiveNoSizes() {
+		SizeNegotiator.Result result = SizeNegotiator.choose(new ArrayList<CameraSize>(),
+				new ArrayList<CameraSize>(), request("1280x720", 1.7778f, PICTURE_BUDGET));
+
+		assertNull(result.getPreviewSize());
+		assertNull(result.getPictureSize());
+		assertFalse(result.isZeroShutterLag());
+	}
+
+	@Test
+	public void memoAnswersTheSameSizesAgain() {
+		SizeNegotiator negotiator = new SizeNegotiator();
+		SizeNegotiator.Request request = request("1280x720", 1.7778f, PICTURE_BUDGET);
+		SizeNegotiator.Result first = negotiator.negotiate(0, toSizes(PREVIEW_SIZES),
+				toSizes(PICTURE_SIZES), request);
+
+		// equal lists and an equal request, as when the camera is opened again
+		SizeNegotiator.Result again = negotiator.negotiate(0, toSizes(PREVIEW_SIZES),
+				toSizes(PICTURE_SIZES), request("1280x720", 1.7778f, PICTURE_BUDGET));
+
+		assertSame(first, again);
+	}
+
+	@Test
+	public void memoIsMissedWhenTheSizesChange() {
+		SizeNegotiator negotiator = new SizeNegotiator();
+		SizeNegotiator.Request request = request("1280x720", 1.7778f, PICTURE_BUDGET);
+		SizeNegotiator.Result first = negotiator.negotiate(0, toSizes(PREVIEW_SIZES),
+				toSizes(PICTURE_SIZES), request);
+		List<CameraSize> previewSizes = toSizes(PREVIEW_SIZES);
+		assertTrue(previewSizes.remove(new CameraSize(1280, 720)));
+
+		SizeNegotiator.Result changed = negotiator.negotiate(0, previewSizes,
+				toSizes(PICTURE_SIZES), request);
+
+		assertNotSame(first, changed);
+		assertFalse(new CameraSize(1280, 720).equals(changed.getPreviewSize()));
+		// the memo now holds the changed lists
+		assertSame(changed, negotiator.negotiate(0, previewSizes, toSizes(PICTURE_SIZES),
+				request));
+	}
+
+	@Test
+	public void memoIsKeptPerCamera() {
+		SizeNegotiator negotiator = new SizeNegotiator();
+		SizeNegotiator.Request request = request("1280x720", 1.7778f, PICTURE_BUDGET);
+		List<CameraSize> previewSizes = toSizes(PREVIEW_SIZES);
+		List<CameraSize> pictureSizes = toSizes(PICTURE_SIZES);
+		SizeNegotiator.Result back = negotiator.negotiate(0, previewSizes, pictureSizes, request);
+
+		SizeNegotiator.Result front = negotiator.negotiate(1, previewSizes, pictureSizes, request);
+
+		assertNotSame(back, front);
+		assertEquals(describe(back), describe(front));
+		assertSame(back, negotiator.negotiate(0, previewSizes, pictureSizes, request));
+
+		negotiator.clear();
+		assertNotSame(back, negotiator.negotiate(0, previewSizes, pictureSizes, request));
+	}
+
+}
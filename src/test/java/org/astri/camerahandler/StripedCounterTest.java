@@ -0,0 +1,74 @@
+package org.astri.camerahandler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class StripedCounterTest {
+
+	@Test
+	public void addsOfOneThreadSum() {
+		StripedCounter counter = new StripedCounter();
+		counter.increment();
+		counter.add(41);
+		counter.add(-2);
+
+		assertEquals(40, counter.sum());
+	}
+
+	@Test
+	public void addsOfManyThreadsAreNotLost() throws InterruptedException {
+		final StripedCounter counter = new StripedCounter();
+		final int threads = 16;
+		final int adds = 20000;
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int t = 0; t < threads; t++) {
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int i = 0; i < adds; i++) {
+							counter.increment();
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} finally {
+						done.countDown();
+					}
+				}
+			}).start();
+		}
+
+		start.countDown();
+
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals((long) threads * adds, counter.sum());
+	}
+
+	@Test
+	public void resetClearsEveryStripe() throws InterruptedException {
+		final StripedCounter counter = new StripedCounter();
+		for (int t = 0; t < 8; t++) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					counter.add(3);
+				}
+			});
+			thread.start();
+			thread.join();
+		}
+		assertEquals(24, counter.sum());
+
+		counter.reset();
+
+		assertEquals(0, counter.sum());
+	}
+
+}
@@ -0,0 +1,98 @@
+package org.astri.camerahandler;
+
+import java.util.Random;
+
+/**
+ * Smooth random texture that NV21 frames are cut from, so that tests can
+ * move the camera over it or blur it by known amounts.
+ */
+class SyntheticScene {
+
+	/** Margin around the frames the scene can be moved by */
+	static final int MARGIN = 40;
+
+	private final int width;
+	private final int height;
+	private final int[] luma;
+
+	/**
+	 * @param blurRadius box blur radius of the random noise, larger is
+	 * smoother
+	 */
+	SyntheticScene(int frameWidth, int frameHeight, int blurRadius, long seed) {
+		width = frameWidth + 2 * MARGIN;
+		height = frameHeight + 2 * MARGIN;
+		int[] noise = new int[width * height];
+		Random random = new Random(seed);
+		for (int i = 0; i < noise.length; i++) {
+			noise[i] = random.nextInt(256);
+		}
+		luma = blur(noise, width, height, blurRadius);
+	}
+
+	/**
+	 * Cuts a frame with the content moved by dx, dy from the centered frame.
+	 * @param brightness added to every luma sample
+	 */
+	byte[] frame(int frameWidth, int frameHeight, int dx, int dy, int brightness) {
+		byte[] nv21 = new byte[frameWidth * frameHeight * 3 / 2];
+		for (int y = 0; y < frameHeight; y++) {
+			int row = (y - dy + MARGIN) * width - dx + MARGIN;
+			for (int x = 0; x < frameWidth; x++) {
+				nv21[y * frameWidth + x] = (byte) Math.max(0, Math.min(255, luma[row + x] + brightness));
+			}
+		}
+		for (int i = frameWidth * frameHeight; i < nv21.length; i++) {
+			nv21[i] = (byte) 128;
+		}
+		return nv21;
+	}
+
+	/**
+	 * @return the luma plane of the frame box blurred by radius, chroma kept
+	 */
+	static byte[] blurFrame(byte[] nv21, int frameWidth, int frameHeight, int radius) {
+		int[] plane = new int[frameWidth * frameHeight];
+		for (int i = 0; i < plane.length; i++) {
+			plane[i] = nv21[i] & 0xff;
+		}
+		int[] blurred = blur(plane, frameWidth, frameHeight, radius);
+		byte[] out = nv21.clone();
+		for (int i = 0; i < blurred.length; i++) {
+			out[i] = (byte) blurred[i];
+		}
+		return out;
+	}
+
+	/**
+	 * Separable box blur, edges clamped.
+	 */
+	private static int[] blur(int[] in, int width, int height, int radius) {
+		if (radius == 0) {
+			return in.clone();
+		}
+		int size = 2 * radius + 1;
+		int[] horizontal = new int[in.length];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int sum = 0;
+				for (int k = -radius; k <= radius; k++) {
+					sum += in[y * width + Math.max(0, Math.min(width - 1, x + k))];
+				}
+				horizontal[y * width + x] = sum / size;
+			}
+		}
+		int[] out = new int[in.length];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int sum = 0;
+				for (int k = -radius; k <= radius; k++) {
+					sum += horizontal[Math.max(0, Math.min(height - 1, y + k)) * width + x];
+				}
+				out[y * width + x] = sum / size;
+			}
+		}
+		return out;
+	}
+
+}
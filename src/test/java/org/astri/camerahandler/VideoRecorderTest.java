@@ -0,0 +1,213 @@
+package org.astri.camerahandler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.graphics.ImageFormat;
+import android.hardware.Camera.CameraInfo;
+
+public class VideoRecorderTest {
+
+	private static final int WIDTH = 64;
+	private static final int HEIGHT = 48;
+	private static final int FRAME_SIZE = WIDTH * HEIGHT * 3 / 2;
+	private static final int BUFFER_COUNT = 4;
+	private static final long FRAME_NANOS = 33333000;
+
+	private static final FrameDescriptor DESCRIPTOR = new FrameDescriptor(ImageFormat.NV21,
+			WIDTH, HEIGHT, 90, CameraInfo.CAMERA_FACING_BACK, true);
+
+	/**
+	 * Throws on the given frame, counted from 1.
+	 */
+	private static class FailingEncoder extends FakeVideoEncoder {
+		private final int failingFrame;
+		private int frames;
+		volatile boolean stopped;
+
+		FailingEncoder(int failingFrame) {
+			this.failingFrame = failingFrame;
+		}
+
+		@Override
+		public boolean encodeFrame(byte[] nv21, long presentationNanos) {
+			if (++frames == failingFrame) {
+				throw new IllegalStateException("codec error");
+			}
+			return super.encodeFrame(nv21, presentationNanos);
+		}
+
+		@Override
+		public void stop() throws IOException {
+			stopped = true;
+			super.stop();
+		}
+	}
+
+	private QueueSink sink;
+	private PreviewBufferPool pool;
+	private File output;
+
+	@Before
+	public void setUp() throws IOException {
+		sink = new QueueSink();
+		pool = new PreviewBufferPool(BUFFER_COUNT, FRAME_SIZE, sink);
+		pool.start();
+		output = File.createTempFile("recording", ".fake");
+	}
+
+	@After
+	public void tearDown() {
+		output.delete();
+	}
+
+	/**
+	 * Fills a queued buffer and offers it, as the camera handler does.
+	 * @return false if the recorder dropped the frame
+	 */
+	private boolean deliver(VideoRecorder recorder, long arrivalNanos) {
+		byte[] buffer = sink.queue.poll();
+		assertTrue("driver ran out of buffers", buffer != null);
+		assertTrue(pool.acquire(buffer));
+		buffer[0] = (byte) arrivalNanos;
+		boolean taken = recorder.offer(buffer, DESCRIPTOR, pool, arrivalNanos);
+		pool.release(buffer);
+		return taken;
+	}
+
+	private static void awaitRecorded(VideoRecorder recorder, long count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 2000;
+		while (recorder.getRecordedCount() + recorder.getDroppedCount() < count) {
+			assertTrue("encoder stalled", System.currentTimeMillis() < deadline);
+			Thread.sleep(1);
+		}
+	}
+
+	@Test
+	public void framesAreRecordedWithTheirTimes() throws Exception {
+		FakeVideoEncoder encoder = new FakeVideoEncoder();
+		VideoRecorder recorder = new VideoRecorder(encoder, new CameraMetrics(), WIDTH, HEIGHT);
+		recorder.start(output, 30, 90);
+		long start = 1000000000L;
+		for (int i = 0; i < 10; i++) {
+			assertTrue(deliver(recorder, start + i * FRAME_NANOS));
+			awaitRecorded(recorder, i + 1);
+		}
+
+		recorder.stop();
+
+		assertEquals(10, recorder.getRecordedCount());
+		assertEquals(0, recorder.getDroppedCount());
+		assertEquals(10, encoder.getEncodedCount());
+		List<Long> times = FakeVideoEncoder.readFrameTimes(output);
+		assertEquals(10, times.size());
+		for (int i = 0; i < 10; i++) {
+			assertEquals(i * FRAME_NANOS / 1000, (long) times.get(i));
+		}
+		assertEquals(BUFFER_COUNT, pool.getFreeCount());
+	}
+
+	@Test
+	public void slowEncoderDropsFramesButLeavesTheDriverBuffers() throws Exception {
+		FakeVideoEncoder encoder = new FakeVideoEncoder();
+		encoder.setFrameCost(20000000);
+		VideoRecorder recorder = new VideoRecorder(encoder, new CameraMetrics(), WIDTH, HEIGHT);
+		recorder.start(output, 30, 0);
+		int dropped = 0;
+		for (int i = 0; i < 30; i++) {
+			if (!deliver(recorder, i * FRAME_NANOS)) {
+				dropped++;
+			}
+			assertTrue(pool.getFreeCount() >= VideoRecorder.MIN_QUEUED_BUFFERS);
+			Thread.sleep(2);
+		}
+
+		recorder.stop();
+
+		assertTrue(dropped > 10);
+		assertEquals(30, recorder.getRecordedCount() + recorder.getDroppedCount());
+		assertEquals(encoder.getEncodedCount(), recorder.getRecordedCount());
+		assertEquals(recorder.getRecordedCount(), FakeVideoEncoder.readFrameTimes(output).size());
+		assertEquals(BUFFER_COUNT, pool.getFreeCount());
+	}
+
+	@Test
+	public void encoderFailureStopsTheRecording() throws Exception {
+		FailingEncoder encoder = new FailingEncoder(3);
+		VideoRecorder recorder = new VideoRecorder(encoder, new CameraMetrics(), WIDTH, HEIGHT);
+		recorder.start(output, 30, 0);
+		for (int i = 0; i < 3; i++) {
+			assertTrue(deliver(recorder, i * FRAME_NANOS));
+			awaitRecorded(recorder, i + 1);
+		}
+
+		assertFalse(recorder.isRecording());
+		assertFalse(deliver(recorder, 3 * FRAME_NANOS));
+		assertEquals(BUFFER_COUNT, pool.getFreeCount());
+		try {
+			recorder.stop();
+			fail("encoder failure not reported");
+		} catch (IOException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+		assertTrue(encoder.stopped);
+		assertEquals(2, recorder.getRecordedCount());
+		assertEquals(1, recorder.getDroppedCount());
+		assertEquals(2, FakeVideoEncoder.readFrameTimes(output).size());
+	}
+
+	@Test
+	public void framesOfAnotherSizeAreDropped() throws Exception {
+		FakeVideoEncoder encoder = new FakeVideoEncoder();
+		VideoRecorder recorder = new VideoRecorder(encoder, new CameraMetrics(), WIDTH, HEIGHT);
+		recorder.start(output, 30, 0);
+		byte[] buffer = sink.queue.poll();
+		pool.acquire(buffer);
+
+		assertFalse(recorder.offer(buffer, DESCRIPTOR.withSize(WIDTH / 2, HEIGHT / 2), pool, 0));
+		pool.release(buffer);
+		recorder.stop();
+
+		assertEquals(1, recorder.getDroppedCount());
+		assertEquals(0, FakeVideoEncoder.readFrameTimes(output).size());
+		assertEquals(BUFFER_COUNT, pool.getFreeCount());
+	}
+
+	@Test
+	public void directFramesAreCopied() throws Exception {
+		FakeVideoEncoder encoder = new FakeVideoEncoder();
+		VideoRecorder recorder = new VideoRecorder(encoder, new CameraMetrics(), WIDTH, HEIGHT);
+		recorder.start(output, 30, 0);
+		final DirectFrame[] released = new DirectFrame[1];
+		DirectFrame frame = new DirectFrame(new DirectFrame.Owner() {
+			@Override
+			public void releaseFrame(DirectFrame frame) {
+				released[0] = frame;
+			}
+		});
+		frame.set(ImageFormat.YUV_420_888, WIDTH, HEIGHT, 3, 0);
+		frame.setNv21Planes(ByteBuffer.allocateDirect(FRAME_SIZE));
+
+		assertTrue(recorder.offer(frame, 0));
+		frame.release();
+		awaitRecorded(recorder, 1);
+		recorder.stop();
+
+		assertSame(frame, released[0]);
+		assertEquals(1, recorder.getRecordedCount());
+		assertEquals(1, FakeVideoEncoder.readFrameTimes(output).size());
+	}
+
+}
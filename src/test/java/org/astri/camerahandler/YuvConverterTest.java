@@ -0,0 +1,230 @@
+package org.astri.camerahandler;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+public class YuvConverterTest {
+
+	/**
+	 * BT.601 studio range Y, U, V of the color bars: black, white, red,
+	 * green, blue, yellow, cyan, magenta.
+	 */
+	private static final int[][] BARS_YUV = {
+		{ 16, 128, 128 }, { 235, 128, 128 }, { 81, 90, 240 }, { 145, 54, 34 },
+		{ 41, 240, 110 }, { 210, 16, 146 }, { 170, 166, 16 }, { 106, 202, 222 },
+	};
+
+	/** Golden ARGB of the color bars, within one of the exact BT.601 values */
+	private static final int[] BARS_ARGB = {
+		0xff000000, 0xffffffff, 0xfffe0000, 0xff00ff01,
+		0xff0000ff, 0xffffff00, 0xff01ffff, 0xffff00fe,
+	};
+
+	/**
+	 * @return 8x4 NV21 image of 2x2 blocks, one per bar, four bars per row
+	 */
+	private static byte[] colorBars() {
+		int width = 8;
+		byte[] nv21 = new byte[width * 4 * 3 / 2];
+		for (int bar = 0; bar < BARS_YUV.length; bar++) {
+			int x = (bar % 4) * 2;
+			int y = (bar / 4) * 2;
+			for (int dy = 0; dy < 2; dy++) {
+				for (int dx = 0; dx < 2; dx++) {
+					nv21[(y + dy) * width + x + dx] = (byte) BARS_YUV[bar][0];
+				}
+			}
+			int uv = width * 4 + (y / 2) * width + x;
+			nv21[uv] = (byte) BARS_YUV[bar][2];
+			nv21[uv + 1] = (byte) BARS_YUV[bar][1];
+		}
+		return nv21;
+	}
+
+	/**
+	 * @return golden ARGB of {@link #colorBars()}
+	 */
+	private static int[] colorBarsArgb() {
+		int[] argb = new int[8 * 4];
+		for (int i = 0; i < argb.length; i++) {
+			int x = i % 8;
+			int y = i / 8;
+			argb[i] = BARS_ARGB[(y / 2) * 4 + x / 2];
+		}
+		return argb;
+	}
+
+	private static byte[] randomFrame(int width, int height, long seed) {
+		byte[] nv21 = new byte[width * height * 3 / 2];
+		new Random(seed).nextBytes(nv21);
+		return nv21;
+	}
+
+	@Test
+	public void colorBarsMatchGoldenArgb() {
+		int[] out = new int[8 * 4];
+
+		new YuvConverter().nv21ToArgb(colorBars(), 8, 4, out);
+
+		assertArrayEquals(colorBarsArgb(), out);
+	}
+
+	@Test
+	public void colorBarsMatchGoldenRgba8888() {
+		int[] golden = colorBarsArgb();
+		byte[] expected = new byte[golden.length * 4];
+		for (int i = 0; i < golden.length; i++) {
+			expected[i * 4] = (byte) (golden[i] >> 16);
+			expected[i * 4 + 1] = (byte) (golden[i] >> 8);
+			expected[i * 4 + 2] = (byte) golden[i];
+			expected[i * 4 + 3] = (byte) 0xff;
+		}
+		byte[] out = new byte[expected.length];
+
+		new YuvConverter().nv21ToRgba8888(colorBars(), 8, 4, out);
+
+		assertArrayEquals(expected, out);
+	}
+
+	@Test
+	public void colorBarsMatchGoldenRgb565() {
+		int[] golden = colorBarsArgb();
+		byte[] expected = new byte[golden.length * 2];
+		for (int i = 0; i < golden.length; i++) {
+			int r = (golden[i] >> 16) & 0xff;
+			int g = (golden[i] >> 8) & 0xff;
+			int b = golden[i] & 0xff;
+			int pixel = ((r & 0xf8) << 8) | ((g & 0xfc) << 3) | (b >> 3);
+			expected[i * 2] = (byte) pixel;
+			expected[i * 2 + 1] = (byte) (pixel >> 8);
+		}
+		byte[] out = new byte[expected.length];
+
+		new YuvConverter().nv21ToRgb565(colorBars(), 8, 4, out);
+
+		assertArrayEquals(expected, out);
+	}
+
+	@Test
+	public void randomFrameIsWithinOneOfBt601() {
+		int width = 64;
+		int height = 48;
+		byte[] nv21 = randomFrame(width, height, 42);
+		int[] out = new int[width * height];
+
+		new YuvConverter().nv21ToArgb(nv21, width, height, out);
+
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int uv = width * height + (y / 2) * width + (x & ~1);
+				double luma = 1.164 * ((nv21[y * width + x] & 0xff) - 16);
+				double v = (nv21[uv] & 0xff) - 128;
+				double u = (nv21[uv + 1] & 0xff) - 128;
+				int pixel = out[y * width + x];
+				String at = "pixel " + x + "," + y;
+				assertEquals(at, clamp(luma + 1.596 * v), (pixel >> 16) & 0xff, 1);
+				assertEquals(at, clamp(luma - 0.813 * v - 0.391 * u), (pixel >> 8) & 0xff, 1);
+				assertEquals(at, clamp(luma + 2.018 * u), pixel & 0xff, 1);
+				assertEquals(at, 0xff, pixel >>> 24);
+			}
+		}
+	}
+
+	private static double clamp(double value) {
+		return Math.max(0, Math.min(255, value));
+	}
+
+	@Test
+	public void stripesGiveTheSameOutput() {
+		int width = 66;
+		int height = 50;
+		byte[] nv21 = randomFrame(width, height, 7);
+		byte[] expected = new byte[width * height * 4];
+		new YuvConverter().nv21ToRgba8888(nv21, width, height, expected);
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			for (int stripes = 2; stripes <= 4; stripes++) {
+				byte[] out = new byte[expected.length];
+
+				new YuvConverter(executor, stripes).nv21ToRgba8888(nv21, width, height, out);
+
+				assertArrayEquals("stripes: " + stripes, expected, out);
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void rotationMovesEveryPixel() {
+		int width = 70;
+		int height = 40;
+		byte[] nv21 = randomFrame(width, height, 3);
+		int[] upright = new int[width * height];
+		YuvConverter converter = new YuvConverter();
+		converter.nv21ToArgb(nv21, width, height, upright);
+
+		for (int rotation = 0; rotation < 360; rotation += 90) {
+			for (int mirror = 0; mirror < 2; mirror++) {
+				int[] out = new int[width * height];
+
+				converter.nv21ToArgb(nv21, width, height, rotation, mirror == 1, out);
+
+				int[] expected = new int[width * height];
+				for (int y = 0; y < height; y++) {
+					for (int x = 0; x < width; x++) {
+						expected[rotatedIndex(x, y, width, height, rotation, mirror == 1)] =
+								upright[y * width + x];
+					}
+				}
+				assertArrayEquals("rotation " + rotation + " mirror " + mirror, expected, out);
+			}
+		}
+	}
+
+	/**
+	 * Clockwise rotation, then a horizontal flip of the rotated image.
+	 */
+	private static int rotatedIndex(int x, int y, int width, int height, int rotation,
+			boolean mirror) {
+		int outWidth = rotation % 180 == 0 ? width : height;
+		int outX;
+		int outY;
+		if (rotation == 90) {
+			outX = height - 1 - y;
+			outY = x;
+		} else if (rotation == 180) {
+			outX = width - 1 - x;
+			outY = height - 1 - y;
+		} else if (rotation == 270) {
+			outX = y;
+			outY = width - 1 - x;
+		} else {
+			outX = x;
+			outY = y;
+		}
+		if (mirror) {
+			outX = outWidth - 1 - outX;
+		}
+		return outY * outWidth + outX;
+	}
+
+	@Test
+	public void outputSizes() {
+		assertEquals(640 * 480 * 2, YuvConverter.getOutputSize(YuvConverter.FORMAT_RGB565, 640, 480));
+		assertEquals(640 * 480 * 4, YuvConverter.getOutputSize(YuvConverter.FORMAT_RGBA8888, 640, 480));
+		assertEquals(640 * 480 * 3 / 2, YuvConverter.getOutputSize(YuvConverter.FORMAT_NV21, 640, 480));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void tooSmallOutputIsRejected() {
+		new YuvConverter().nv21ToRgba8888(colorBars(), 8, 4, new byte[8 * 4 * 4 - 1]);
+	}
+
+}